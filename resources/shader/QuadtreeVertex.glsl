@@ -0,0 +1,61 @@
+#version 130
+
+// Vertex shader for the CDLOD terrain (see TerrainQuadtree)
+// Every node draws the same grid patch, which is placed, given altitudes and morphed here
+
+in vec2 patchPosition;
+
+uniform sampler2D heightMap;
+uniform vec2 terrainSize; //largest grid x and z coordinates
+uniform vec3 eyePosition;
+uniform vec2 nodeOrigin;
+uniform float nodeSpacing;
+uniform vec2 morphRange; //distances at which morphing starts and ends
+
+out vec3 V;
+out vec3 N;
+
+out vec2 textureCoords;
+
+float height(vec2 p) {
+  return texelFetch(heightMap, ivec2(clamp(p, vec2(0.0), terrainSize)), 0).r;
+}
+
+//Central difference of the neighbouring altitudes, the same as NormalField
+vec3 normal(vec2 p) {
+  vec2 low = max(p - vec2(1.0), vec2(0.0));
+  vec2 high = min(p + vec2(1.0), terrainSize);
+  float dx = (height(vec2(high.x, p.y)) - height(vec2(low.x, p.y))) / max(high.x - low.x, 1.0);
+  float dz = (height(vec2(p.x, high.y)) - height(vec2(p.x, low.y))) / max(high.y - low.y, 1.0);
+  return normalize(vec3(-dx, 1.0, -dz));
+}
+
+void main(void) {
+  vec2 fine = min(nodeOrigin + patchPosition * nodeSpacing, terrainSize);
+  float fineHeight = height(fine);
+  
+  //Odd vertices slide onto the even vertex before them, so at the end of the range the patch is the next coarser grid
+  float eyeDistance = length(vec3(fine.x, fineHeight, fine.y) - eyePosition);
+  float morph = clamp((eyeDistance - morphRange.x) / (morphRange.y - morphRange.x), 0.0, 1.0);
+  vec2 odd = fract(patchPosition * 0.5) * 2.0;
+  vec2 coarse = min(nodeOrigin + (patchPosition - odd) * nodeSpacing, terrainSize);
+  
+  vec2 position = mix(fine, coarse, morph);
+  vec4 vertexPosition = vec4(position.x, mix(fineHeight, height(coarse), morph), position.y, 1.0);
+  vec3 vertexNormal = normalize(mix(normal(fine), normal(coarse), morph));
+  
+  //Set output vertex position
+  gl_Position = gl_ModelViewProjectionMatrix * vertexPosition;
+  
+  //The current vertex position is transformed to eye space
+  //These are passed to fragment shader for lighting
+  V = vec3(gl_ModelViewMatrix * vertexPosition);
+  N = normalize(gl_NormalMatrix * vertexNormal);
+  
+  //Pass gl colour through
+  gl_FrontColor = gl_Color;
+  gl_BackColor = gl_Color;
+  
+  //Texture repeats once per grid, matching TerrainMesh
+  textureCoords = vec2(position.y, position.x);
+}
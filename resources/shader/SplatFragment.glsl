@@ -0,0 +1,56 @@
+#version 130
+
+// Fragment shader for texture splatting (see SplatMap)
+// Blends the four layer textures by the vertex weights and lights them like the fixed function
+// pipeline does: the sun is light 1 (directional) and the night torch is light 2 (spot)
+
+uniform bool lightingEnabled;
+uniform bool nightMode;
+
+uniform sampler2D grassTexture;
+uniform sampler2D rockTexture;
+uniform sampler2D roadTexture;
+uniform sampler2D lavaTexture;
+
+in vec2 textureCoords;
+in vec4 weights;
+
+in vec3 V;
+in vec3 N;
+
+void main (void) {
+  vec4 totalLight = gl_Color;
+  
+  if (lightingEnabled) {
+    vec3 normal = normalize(N);
+    vec4 l_ambient = gl_LightModel.ambient * gl_FrontMaterial.ambient;
+    vec4 l_diffuse = vec4(0.0);
+    
+    if (nightMode) {
+      //Torch, a spot light that fades out past its cutoff
+      vec3 L = normalize(gl_LightSource[2].position.xyz - V);
+      float spot = dot(-L, normalize(gl_LightSource[2].spotDirection));
+      if (spot >= gl_LightSource[2].spotCosCutoff) {
+        float attenuation = pow(spot, gl_LightSource[2].spotExponent);
+        l_ambient += gl_LightSource[2].ambient * gl_FrontMaterial.ambient * attenuation;
+        l_diffuse = gl_LightSource[2].diffuse * gl_FrontMaterial.diffuse * max(dot(normal, L), 0.0) * attenuation;
+      }
+    } else {
+      //Sun, a directional light
+      vec3 L = normalize(gl_LightSource[1].position.xyz);
+      l_ambient += gl_LightSource[1].ambient * gl_FrontMaterial.ambient;
+      l_diffuse = gl_LightSource[1].diffuse * gl_FrontMaterial.diffuse * max(dot(normal, L), 0.0);
+    }
+    
+    totalLight = clamp(l_ambient + l_diffuse, 0.0, 1.0);
+  }
+  
+  //Weights are renormalised as rounding them to bytes may leave them summing to slightly more or less than 1
+  vec4 w = weights / max(weights.x + weights.y + weights.z + weights.w, 0.001);
+  vec4 colour = texture2D(grassTexture, textureCoords) * w.x
+              + texture2D(rockTexture, textureCoords) * w.y
+              + texture2D(roadTexture, textureCoords) * w.z
+              + texture2D(lavaTexture, textureCoords) * w.w;
+  
+  gl_FragColor = vec4(colour.rgb * totalLight.rgb, 1.0);
+}
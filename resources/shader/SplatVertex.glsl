@@ -0,0 +1,28 @@
+#version 130
+
+// Vertex shader for texture splatting (see SplatMap)
+// The mesh is drawn from its usual vertex arrays with the layer weights in an extra attribute
+
+in vec4 splatWeights;
+
+out vec3 V;
+out vec3 N;
+
+out vec2 textureCoords;
+out vec4 weights;
+
+void main(void) {
+  gl_Position = gl_ModelViewProjectionMatrix * gl_Vertex;
+
+  //The current vertex position is transformed to eye space
+  //These are passed to fragment shader for lighting
+  V = vec3(gl_ModelViewMatrix * gl_Vertex);
+  N = normalize(gl_NormalMatrix * gl_Normal);
+  
+  //Pass gl colour through
+  gl_FrontColor = gl_Color;
+  gl_BackColor = gl_Color;
+
+  textureCoords = gl_MultiTexCoord0.st;
+  weights = splatWeights;
+}
@@ -0,0 +1,45 @@
+#version 130
+
+// Vertex shader for instanced trees (see TreeInstances)
+// Every tree draws the same mesh, moved to the position of its instance
+// Billboards (impostors) are also turned about the vertical axis to face the camera
+
+in vec3 vertexPosition;
+in vec3 vertexNormals;
+in vec2 vertexTextures;
+
+in vec3 instancePosition;
+
+uniform bool billboard;
+
+out vec3 V;
+out vec3 N;
+
+out vec2 textureCoords;
+
+void main(void) {
+  vec3 offset = vertexPosition;
+  vec3 normal = vertexNormals;
+  if (billboard) {
+    //Camera right vector in world space is the first row of the modelview matrix, kept horizontal
+    vec3 right = normalize(vec3(gl_ModelViewMatrix[0][0], 0.0, gl_ModelViewMatrix[2][0]));
+    offset = right * vertexPosition.x + vec3(0.0, vertexPosition.y, 0.0);
+    
+    //Face the camera, tilted up so the sun lights the top of the tree
+    normal = normalize(vec3(-right.z, 0.0, right.x) + vec3(0.0, 1.0, 0.0));
+  }
+  
+  vec4 position = vec4(offset + instancePosition, 1.0);
+  gl_Position = gl_ModelViewProjectionMatrix * position;
+
+  //The current vertex position is transformed to eye space
+  //These are passed to fragment shader for lighting
+  V = vec3(gl_ModelViewMatrix * position);
+  N = normalize(gl_NormalMatrix * normal);
+  
+  //Pass gl colour through
+  gl_FrontColor = gl_Color;
+  gl_BackColor = gl_Color;
+
+  textureCoords = vertexTextures;
+}
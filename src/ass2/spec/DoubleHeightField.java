@@ -0,0 +1,47 @@
+package ass2.spec;
+
+/**
+ * Height field storing each altitude as a double in one flat array.
+ */
+public class DoubleHeightField extends HeightField {
+
+  private int myWidth;
+  private int myDepth;
+  private double[] myHeights;
+
+  public DoubleHeightField(int width, int depth) {
+    this.myWidth = width;
+    this.myDepth = depth;
+    this.myHeights = new double[width * depth];
+  }
+
+  @Override
+  public int getWidth() {
+    return myWidth;
+  }
+
+  @Override
+  public int getDepth() {
+    return myDepth;
+  }
+
+  @Override
+  public double get(int x, int z) {
+    return myHeights[HeightField.index(x, z, myWidth, myDepth)];
+  }
+
+  @Override
+  public void set(int x, int z, double h) {
+    myHeights[HeightField.index(x, z, myWidth, myDepth)] = h;
+  }
+
+  @Override
+  public ENCODING getEncoding() {
+    return ENCODING.DOUBLE;
+  }
+
+  @Override
+  public HeightField create(int width, int depth) {
+    return new DoubleHeightField(width, depth);
+  }
+}
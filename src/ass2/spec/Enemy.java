@@ -44,6 +44,7 @@ public class Enemy {
   //For bouncing animation
   private double bounceTime;
   public static double MIN_ENEMY_ALTITUDE = 0.18;
+  private static final double BOUNDING_RADIUS = 0.25; //holds the body and eyes around the centre
   
   //Setup
   private boolean setupComplete;
@@ -81,6 +82,17 @@ public class Enemy {
     return myYPosition;
   }
   
+  /**
+   * Get a bounding box holding the enemy anywhere in its bounce.
+   *
+   * @return minimum x, y, z then maximum x, y, z
+   */
+  public double[] getBounds() {
+    double altitude = myTerrain.altitude(myPos[0], myPos[1]);
+    return new double[]{myPos[0] - BOUNDING_RADIUS, altitude + MIN_ENEMY_ALTITUDE - BOUNDING_RADIUS, myPos[1] - BOUNDING_RADIUS,
+      myPos[0] + BOUNDING_RADIUS, altitude + 1 + BOUNDING_RADIUS, myPos[1] + BOUNDING_RADIUS};
+  }
+  
   public void draw(GL2 gl, TexturePack texturePack, int shaderProgram, Game.FRAGMENT_SHADER_MODE fragmentShaderColourMode,
                    boolean curLighting, boolean nightMode, float[] torchPosition) {
     gl.glPushMatrix();
@@ -0,0 +1,48 @@
+package ass2.spec;
+
+/**
+ * Height field storing each altitude as a 32 bit float in one flat array.
+ * Uses half the memory of DoubleHeightField.
+ */
+public class FloatHeightField extends HeightField {
+
+  private int myWidth;
+  private int myDepth;
+  private float[] myHeights;
+
+  public FloatHeightField(int width, int depth) {
+    this.myWidth = width;
+    this.myDepth = depth;
+    this.myHeights = new float[width * depth];
+  }
+
+  @Override
+  public int getWidth() {
+    return myWidth;
+  }
+
+  @Override
+  public int getDepth() {
+    return myDepth;
+  }
+
+  @Override
+  public double get(int x, int z) {
+    return myHeights[HeightField.index(x, z, myWidth, myDepth)];
+  }
+
+  @Override
+  public void set(int x, int z, double h) {
+    myHeights[HeightField.index(x, z, myWidth, myDepth)] = (float)h;
+  }
+
+  @Override
+  public ENCODING getEncoding() {
+    return ENCODING.FLOAT;
+  }
+
+  @Override
+  public HeightField create(int width, int depth) {
+    return new FloatHeightField(width, depth);
+  }
+}
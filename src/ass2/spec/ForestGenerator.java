@@ -0,0 +1,339 @@
+package ass2.spec;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Scatters a forest over a terrain with Poisson disk sampling, so no two trees are closer than the
+ * spacing and the gaps between them look natural instead of gridded or clumped.
+ *
+ * The terrain is split into square tiles and each tile is filled with Bridson's algorithm using a
+ * random generator seeded from the seed and the tile, so a seed always gives the same forest.
+ * Tiles are filled in four phases like the squares of a chess board, two apart in each direction,
+ * so tiles filled at the same time never touch and can run in parallel (see RowBands), while
+ * each tile still sees the trees of the neighbouring tiles filled before it.
+ *
+ * Every sample is then kept with a probability given by the density, which drops to nothing on
+ * steep slopes, outside the altitude range and close to roads.
+ */
+public class ForestGenerator {
+
+  private Terrain myTerrain;
+
+  //Rules
+  private long mySeed;
+  private double mySpacing;
+  private double myDensity;
+  private double myMaxSlope;
+  private double myMinAltitude;
+  private double myMaxAltitude;
+  private double myRoadClearance;
+
+  //Samples, at most one per grid cell as a cell is smaller than the spacing
+  private int myColumns;
+  private int myRows;
+  private double myCellSize;
+  private float[] mySampleX;
+  private float[] mySampleZ;
+  private boolean[] myKept;
+
+  //Furthest distance from a road spine at which the road still thins the forest
+  private double myRoadReach;
+
+  //Constants
+  public static final double DEFAULT_SPACING = 2.0; //closest two trees may be
+  public static final double DEFAULT_MAX_SLOPE = 35.0; //slope in degrees at which no trees grow
+  public static final double DEFAULT_ROAD_CLEARANCE = 1.0; //distance past the edge of a road kept clear of trees
+  private static final double SLOPE_BLEND = 15.0; //degrees of slope below the maximum over which trees thin out
+  private static final double ALTITUDE_BLEND = 0.5; //altitude inside the range over which trees thin out
+  private static final double ROAD_BLEND = 3.0; //distance past the road clearance over which trees thin out
+  private static final int ATTEMPTS = 30; //candidates tried around a sample before it is retired
+  private static final int SEED_ATTEMPTS = 30; //random points tried to start a tile, filling gaps the others missed
+  private static final double TILE_SIZE = 32; //width and depth of a tile, grown to at least TILE_SPACINGS spacings
+  private static final double TILE_SPACINGS = 4; //smallest tile in spacings, so tiles filled together stay apart
+
+  public ForestGenerator(Terrain terrain) {
+    this.myTerrain = terrain;
+    this.mySeed = 0;
+    this.mySpacing = DEFAULT_SPACING;
+    this.myDensity = 1.0;
+    this.myMaxSlope = DEFAULT_MAX_SLOPE;
+    this.myMinAltitude = Double.NEGATIVE_INFINITY;
+    this.myMaxAltitude = Double.POSITIVE_INFINITY;
+    this.myRoadClearance = DEFAULT_ROAD_CLEARANCE;
+  }
+
+  /**
+   * Scatter the forest and add its trees to the terrain.
+   *
+   * @return number of trees added
+   */
+  public int scatter() {
+    double[] positions = generate();
+    myTerrain.addTrees(positions, positions.length / 2);
+    return positions.length / 2;
+  }
+
+  /**
+   * Scatter the forest without adding it to the terrain.
+   *
+   * @return x and z of each tree, in the same order for the same seed and rules
+   */
+  public double[] generate() {
+    final int width = myTerrain.size().width;
+    final int depth = myTerrain.size().height;
+    if (width < 2 || depth < 2 || myDensity <= 0)
+      return new double[0];
+
+    //Sampling reads normals and roads from every thread, so build them first
+    myTerrain.getNormalField().update();
+    myTerrain.getRoadIndex().build();
+    myRoadReach = roadReach();
+
+    myCellSize = mySpacing / Math.sqrt(2);
+    myColumns = (int)((width - 1) / myCellSize) + 1;
+    myRows = (int)((depth - 1) / myCellSize) + 1;
+    mySampleX = new float[myColumns * myRows];
+    mySampleZ = new float[myColumns * myRows];
+    myKept = new boolean[myColumns * myRows];
+    for (int i = 0; i < mySampleX.length; ++i)
+      mySampleX[i] = Float.NaN;
+
+    final double tileSize = Math.max(TILE_SIZE, mySpacing * TILE_SPACINGS);
+    final int tileColumns = (int)Math.ceil((width - 1) / tileSize);
+    final int tileRows = (int)Math.ceil((depth - 1) / tileSize);
+    for (int phase = 0; phase < 4; ++phase) {
+      final int phaseX = phase % 2;
+      final int phaseZ = phase / 2;
+      RowBands.run(0, (tileRows - phaseZ + 1) / 2, 1, new RowBands.Band() {
+        @Override
+        public void run(int z0, int z1) {
+          for (int i = z0; i < z1; ++i) {
+            int tileZ = 2 * i + phaseZ;
+            for (int tileX = phaseX; tileX < tileColumns; tileX += 2) {
+              fillTile(tileX, tileZ, tileX * tileSize, tileZ * tileSize,
+                Math.min((tileX + 1) * tileSize, width - 1), Math.min((tileZ + 1) * tileSize, depth - 1));
+            }
+          }
+        }
+      });
+    }
+
+    //Gather the kept samples row by row so the order does not depend on the threads
+    int count = 0;
+    for (boolean kept : myKept) {
+      if (kept)
+        count++;
+    }
+    double[] positions = new double[count * 2];
+    int p = 0;
+    for (int i = 0; i < myKept.length; ++i) {
+      if (myKept[i]) {
+        positions[p++] = mySampleX[i];
+        positions[p++] = mySampleZ[i];
+      }
+    }
+
+    mySampleX = null;
+    mySampleZ = null;
+    myKept = null;
+    return positions;
+  }
+
+  /**
+   * Helper to fill one tile with Bridson's algorithm. Samples must fall inside the tile, but are
+   * tested against the samples of every tile around it.
+   */
+  private void fillTile(int tileX, int tileZ, double x0, double z0, double x1, double z1) {
+    Random random = new Random(mySeed ^ (tileX * 0x9E3779B97F4A7C15L) ^ (tileZ * 0xC2B2AE3D27D4EB4FL));
+    int[] active = new int[16];
+    int activeCount = 0;
+
+    for (int s = 0; s < SEED_ATTEMPTS; ++s) {
+      double x = x0 + random.nextDouble() * (x1 - x0);
+      double z = z0 + random.nextDouble() * (z1 - z0);
+      if (!fits(x, z))
+        continue;
+      active[activeCount++] = insert(x, z, random);
+
+      //Grow around the active samples until none has room left next to it
+      while (activeCount > 0) {
+        int a = random.nextInt(activeCount);
+        double ax = mySampleX[active[a]];
+        double az = mySampleZ[active[a]];
+        boolean found = false;
+        for (int k = 0; k < ATTEMPTS; ++k) {
+          double angle = random.nextDouble() * 2 * Math.PI;
+          double radius = mySpacing * (1 + random.nextDouble());
+          double cx = ax + Math.cos(angle) * radius;
+          double cz = az + Math.sin(angle) * radius;
+          if (cx < x0 || cx >= x1 || cz < z0 || cz >= z1 || !fits(cx, cz))
+            continue;
+
+          if (activeCount == active.length) {
+            int[] bigger = new int[active.length * 2];
+            System.arraycopy(active, 0, bigger, 0, activeCount);
+            active = bigger;
+          }
+          active[activeCount++] = insert(cx, cz, random);
+          found = true;
+          break;
+        }
+
+        if (!found)
+          active[a] = active[--activeCount];
+      }
+    }
+  }
+
+  /**
+   * Helper to check that no sample is within the spacing of a point.
+   */
+  private boolean fits(double x, double z) {
+    int cx = (int)(x / myCellSize);
+    int cz = (int)(z / myCellSize);
+    double spacing2 = mySpacing * mySpacing;
+    for (int j = Math.max(cz - 2, 0); j <= Math.min(cz + 2, myRows - 1); ++j) {
+      for (int i = Math.max(cx - 2, 0); i <= Math.min(cx + 2, myColumns - 1); ++i) {
+        int cell = j * myColumns + i;
+        if (Float.isNaN(mySampleX[cell]))
+          continue;
+
+        double dx = mySampleX[cell] - x;
+        double dz = mySampleZ[cell] - z;
+        if (dx * dx + dz * dz < spacing2)
+          return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Helper to store a sample and decide if a tree grows there.
+   *
+   * @return grid cell of the sample
+   */
+  private int insert(double x, double z, Random random) {
+    int cell = (int)(z / myCellSize) * myColumns + (int)(x / myCellSize);
+    mySampleX[cell] = (float)x;
+    mySampleZ[cell] = (float)z;
+    myKept[cell] = random.nextDouble() < densityAt(x, z, myRoadReach);
+    return cell;
+  }
+
+  /**
+   * Get the chance of a tree growing at a point, from the density, slope, altitude and roads.
+   *
+   * @param x point on x axis
+   * @param z point on z axis
+   * @return chance from 0 to 1
+   */
+  public double densityAt(double x, double z) {
+    return densityAt(x, z, roadReach());
+  }
+
+  /**
+   * Helper to get the chance of a tree growing at a point, given how far roads reach.
+   */
+  private double densityAt(double x, double z, double roadReach) {
+    double density = MathUtil.clamp(myDensity, 0, 1);
+
+    double slope = myTerrain.slopeAt(x, z);
+    density *= MathUtil.clamp((myMaxSlope - slope) / SLOPE_BLEND, 0, 1);
+    if (density <= 0)
+      return 0;
+
+    double altitude = myTerrain.altitude(x, z);
+    density *= MathUtil.clamp((altitude - myMinAltitude) / ALTITUDE_BLEND, 0, 1);
+    density *= MathUtil.clamp((myMaxAltitude - altitude) / ALTITUDE_BLEND, 0, 1);
+    if (density <= 0)
+      return 0;
+
+    double[] nearest = myTerrain.getRoadIndex().nearestPoint(x, z, roadReach);
+    if (nearest != null) {
+      List<Road> roads = myTerrain.roads();
+      double edge = nearest[2] - roads.get((int)nearest[3]).width() / 2;
+      density *= MathUtil.clamp((edge - myRoadClearance) / ROAD_BLEND, 0, 1);
+    }
+
+    return density;
+  }
+
+  /**
+   * Helper to get the furthest distance from a road spine at which the widest road still thins
+   * the forest.
+   */
+  private double roadReach() {
+    double maxHalfWidth = 0;
+    for (Road road : myTerrain.roads())
+      maxHalfWidth = Math.max(maxHalfWidth, road.width() / 2);
+    return maxHalfWidth + myRoadClearance + ROAD_BLEND;
+  }
+
+  //Getters and setters
+  public long getSeed() {
+    return mySeed;
+  }
+
+  public void setSeed(long seed) {
+    this.mySeed = seed;
+  }
+
+  public double getSpacing() {
+    return mySpacing;
+  }
+
+  /**
+   * Set the closest two trees may be.
+   *
+   * @param spacing distance, greater than 0
+   */
+  public void setSpacing(double spacing) {
+    if (spacing <= 0)
+      throw new IllegalArgumentException("Forest spacing must be greater than 0: " + spacing);
+    this.mySpacing = spacing;
+  }
+
+  public double getDensity() {
+    return myDensity;
+  }
+
+  /**
+   * Set the chance of a tree growing on flat open ground, 1 for the densest forest the spacing allows.
+   */
+  public void setDensity(double density) {
+    this.myDensity = density;
+  }
+
+  public double getMaxSlope() {
+    return myMaxSlope;
+  }
+
+  public void setMaxSlope(double maxSlope) {
+    this.myMaxSlope = maxSlope;
+  }
+
+  public double getMinAltitude() {
+    return myMinAltitude;
+  }
+
+  public void setMinAltitude(double minAltitude) {
+    this.myMinAltitude = minAltitude;
+  }
+
+  public double getMaxAltitude() {
+    return myMaxAltitude;
+  }
+
+  public void setMaxAltitude(double maxAltitude) {
+    this.myMaxAltitude = maxAltitude;
+  }
+
+  public double getRoadClearance() {
+    return myRoadClearance;
+  }
+
+  public void setRoadClearance(double roadClearance) {
+    this.myRoadClearance = roadClearance;
+  }
+}
@@ -0,0 +1,166 @@
+package ass2.spec;
+
+/**
+ * View frustum of the camera.
+ *
+ * Built from the same parameters that are passed to gluPerspective and gluLookAt,
+ * so anything outside of it is not visible and can be skipped before any GL work.
+ * Each of the six planes is stored as a normal pointing into the frustum plus a distance.
+ */
+public class Frustum {
+
+  private double[][] myPlanes;
+
+  //Camera
+  private double[] myEye;
+  private double[] myForward;
+  private double[] myRight;
+  private double[] myUp;
+  private double myTanHalfFovY;
+  private double myAspectRatio;
+  private double myNear;
+  private double myFar;
+
+  //Constants
+  private static final double MAXIMUM_HALF_FIELD_OF_VIEW = 89.9; //gluPerspective degenerates at 180 degrees
+
+  /**
+   * Create a frustum for a perspective camera.
+   *
+   * @param fieldOfView field of view in the y direction in degrees (as in gluPerspective)
+   * @param aspectRatio width / height of the viewport
+   * @param near distance to near clipping plane
+   * @param far distance to far clipping plane
+   * @param eye eye position (as in gluLookAt)
+   * @param center position being looked at (as in gluLookAt)
+   * @param up up vector (as in gluLookAt)
+   */
+  public Frustum(double fieldOfView, double aspectRatio, double near, double far,
+                 double[] eye, double[] center, double[] up) {
+    myEye = new double[]{eye[0], eye[1], eye[2]};
+    myForward = MathUtil.getUnitVector(new double[]{center[0] - eye[0], center[1] - eye[1], center[2] - eye[2]});
+    myRight = MathUtil.getUnitVector(MathUtil.crossProduct(myForward, up));
+    myUp = MathUtil.crossProduct(myRight, myForward);
+    myTanHalfFovY = Math.tan(Math.toRadians(Math.min(fieldOfView / 2, MAXIMUM_HALF_FIELD_OF_VIEW)));
+    myAspectRatio = aspectRatio;
+    myNear = near;
+    myFar = far;
+
+    double tanHalfFovX = myTanHalfFovY * aspectRatio;
+    myPlanes = new double[6][];
+
+    //Near and far planes
+    myPlanes[0] = plane(myForward, 1, null, 0, pointAlong(near));
+    myPlanes[1] = plane(myForward, -1, null, 0, pointAlong(far));
+
+    //Side planes all pass through the eye, their normals lean towards the forward vector
+    myPlanes[2] = plane(myForward, tanHalfFovX, myRight, 1, myEye); //left
+    myPlanes[3] = plane(myForward, tanHalfFovX, myRight, -1, myEye); //right
+    myPlanes[4] = plane(myForward, myTanHalfFovY, myUp, 1, myEye); //bottom
+    myPlanes[5] = plane(myForward, myTanHalfFovY, myUp, -1, myEye); //top
+  }
+
+  /**
+   * Create a copy of another frustum moved by an offset.
+   */
+  private Frustum(Frustum other, double dx, double dy, double dz) {
+    myEye = new double[]{other.myEye[0] + dx, other.myEye[1] + dy, other.myEye[2] + dz};
+    myForward = other.myForward;
+    myRight = other.myRight;
+    myUp = other.myUp;
+    myTanHalfFovY = other.myTanHalfFovY;
+    myAspectRatio = other.myAspectRatio;
+    myNear = other.myNear;
+    myFar = other.myFar;
+
+    //Normals are unchanged, only the distances shift along them
+    myPlanes = new double[6][];
+    for (int i = 0; i < myPlanes.length; i++) {
+      double[] p = other.myPlanes[i];
+      myPlanes[i] = new double[]{p[0], p[1], p[2], p[3] - (p[0] * dx + p[1] * dy + p[2] * dz)};
+    }
+  }
+
+  /**
+   * Get this frustum moved by an offset, for example into the local coordinates of an object
+   * drawn with a translation.
+   *
+   * @param dx offset along x axis
+   * @param dy offset along y axis
+   * @param dz offset along z axis
+   * @return the moved frustum
+   */
+  public Frustum translate(double dx, double dy, double dz) {
+    return new Frustum(this, dx, dy, dz);
+  }
+
+  /**
+   * Helper to create a plane with normal (a * u + b * v) passing through point p.
+   */
+  private static double[] plane(double[] u, double a, double[] v, double b, double[] p) {
+    double[] n = new double[3];
+    for (int i = 0; i < 3; i++) {
+      n[i] = a * u[i] + ((v == null) ? 0 : b * v[i]);
+    }
+    double[] unit = MathUtil.getUnitVector(n);
+
+    return new double[]{unit[0], unit[1], unit[2], -(unit[0] * p[0] + unit[1] * p[1] + unit[2] * p[2])};
+  }
+
+  private double[] pointAlong(double distance) {
+    return new double[]{myEye[0] + myForward[0] * distance, myEye[1] + myForward[1] * distance, myEye[2] + myForward[2] * distance};
+  }
+
+  /**
+   * Test an axis aligned bounding box against the frustum.
+   * The test is conservative, boxes near the corners of the frustum may be reported as visible.
+   *
+   * @return true if the box is at least partially inside the frustum, false otherwise
+   */
+  public boolean intersectsBox(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+    for (double[] p : myPlanes) {
+      //Test the corner of the box furthest along the plane normal
+      double x = (p[0] >= 0) ? maxX : minX;
+      double y = (p[1] >= 0) ? maxY : minY;
+      double z = (p[2] >= 0) ? maxZ : minZ;
+
+      if (p[0] * x + p[1] * y + p[2] * z + p[3] < 0)
+        return false;
+    }
+
+    return true;
+  }
+
+  //Getters
+  public double[] getEye() {
+    return myEye;
+  }
+
+  public double[] getForward() {
+    return myForward;
+  }
+
+  public double[] getRight() {
+    return myRight;
+  }
+
+  public double[] getUp() {
+    return myUp;
+  }
+
+  public double getTanHalfFovY() {
+    return myTanHalfFovY;
+  }
+
+  public double getAspectRatio() {
+    return myAspectRatio;
+  }
+
+  public double getNear() {
+    return myNear;
+  }
+
+  public double getFar() {
+    return myFar;
+  }
+}
@@ -8,6 +8,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.jogamp.opengl.*;
 import com.jogamp.opengl.awt.GLJPanel;
@@ -27,6 +29,7 @@ import com.jogamp.opengl.util.texture.TextureIO;
 public class Game extends JFrame implements GLEventListener, KeyListener {
   
   private Terrain myTerrain;
+  private TerrainWorld myWorld;
   
   //Camera
   private int width;
@@ -35,6 +38,7 @@ public class Game extends JFrame implements GLEventListener, KeyListener {
   private double cameraRotation;
   private boolean thirdPerson;
   private GLU glu;
+  private Frustum frustum;
   
   //Textures
   private TexturePack texturePack;
@@ -65,6 +69,8 @@ public class Game extends JFrame implements GLEventListener, KeyListener {
   //Constants
   private static final double FIELD_OF_VIEW = 60.0; //field of view to use in world
   private static final double MAXIMUM_FIELD_OF_VIEW = 180.0; //max possible value for field of view
+  private static final double NEAR_PLANE = 0.01; //near clipping plane distance
+  private static final double FAR_PLANE = 10000.0; //far clipping plane distance
   public static final double ALTITUDE_OFFSET = 0.5; //camera offset from ground so world is visible
   private static final double THIRDPERSON_ALTITUDE_CHANGE = 1.0; //how much to change altitude of camera in third person view
   private static final double WALKING_SPEED = 0.1; //speed at which player (camera) moves at
@@ -77,6 +83,8 @@ public class Game extends JFrame implements GLEventListener, KeyListener {
   private static final double PORTAL_MIN_PROXIMITY = 0.15; //how close must you get to a portal to be teleported
   private static final double PORTAL_TELEPORT_PUSHBACK = 0.3; //how far you should be 'pushed' after teleporting from one portal to another
   private static final double ENEMY_AWARE_PROXIMITY = 1.5; //how close must you get to an enemy before they notice you/look at you
+  private static final double PLAYER_RADIUS = 0.1; //how close the player can get to a tree trunk
+  private static final double ENEMY_RADIUS = 0.15; //how close an enemy can get to a tree trunk
   
   public Game(Terrain terrain) {
     super("Assignment 2");
@@ -99,6 +107,20 @@ public class Game extends JFrame implements GLEventListener, KeyListener {
     playerName = "";
   }
   
+  /**
+   * Create a game streaming a large world of terrain tiles around the player (see TerrainWorld).
+   * Objects on the tiles are drawn but only the player moves.
+   *
+   * @param world world to stream
+   */
+  public Game(TerrainWorld world) {
+    this(new Terrain(1, 1));
+    
+    myWorld = world;
+    float[] sunlight = world.getSunlight();
+    myTerrain.setSunlightDir(sunlight[0], sunlight[1], sunlight[2]);
+  }
+  
   /**
    * Run the game.
    *
@@ -127,12 +149,17 @@ public class Game extends JFrame implements GLEventListener, KeyListener {
   /**
    * Load a level file and display it.
    *
-   * @param args - The first argument is a level file in JSON format
+   * @param args - The first argument is a level file in JSON format, or -world followed by a world manifest
    * @throws FileNotFoundException
    */
   public static void main(String[] args) throws FileNotFoundException {
-    Terrain terrain = LevelIO.load(new File(args[0]));
-    Game game = new Game(terrain);
+    Game game;
+    if (args.length >= 2 && args[0].equals("-world")) {
+      game = new Game(TerrainWorld.load(new File(args[1])));
+    } else {
+      Terrain terrain = LevelIO.load(new File(args[0]));
+      game = new Game(terrain);
+    }
     game.run();
   }
   
@@ -189,13 +216,33 @@ public class Game extends JFrame implements GLEventListener, KeyListener {
     }
     
     //Draw terrain including enemy
-    float[] torchPosition = {(float)cameraPosition[0], (float)(myTerrain.altitude(cameraPosition[0], cameraPosition[1])) + (float)ALTITUDE_OFFSET, (float)cameraPosition[1]};
-    myTerrain.draw(gl, texturePack, shaderProgram, fragmentShaderColourMode, curLighting, nightMode, torchPosition);
+    float[] torchPosition = {(float)cameraPosition[0], (float)(altitude(cameraPosition[0], cameraPosition[1])) + (float)ALTITUDE_OFFSET, (float)cameraPosition[1]};
+    if (myWorld != null) {
+      //Stream tiles around the player, uploading a little of the new ones each frame
+      myWorld.update(cameraPosition[0], cameraPosition[1]);
+      myWorld.upload(gl);
+      myWorld.draw(gl, texturePack, shaderProgram, fragmentShaderColourMode, curLighting, nightMode, torchPosition, frustum);
+    } else {
+      myTerrain.draw(gl, texturePack, shaderProgram, fragmentShaderColourMode, curLighting, nightMode, torchPosition, frustum);
+    }
     
     //Draw avatar
     if (thirdPerson && !gameOver) {
-      Avatar avatar = new Avatar(myTerrain, cameraPosition, cameraRotation);
-      avatar.draw(gl, texturePack, thirdPerson, playerName);
+      if (myWorld != null) {
+        //Avatar stands on the tile under the player, in that tile's coordinates
+        TerrainTile tile = myWorld.getTileAt(cameraPosition[0], cameraPosition[1]);
+        if (tile != null) {
+          gl.glPushMatrix();
+          gl.glTranslated(tile.getOriginX(), 0, tile.getOriginZ());
+          double[] tilePosition = {cameraPosition[0] - tile.getOriginX(), cameraPosition[1] - tile.getOriginZ()};
+          Avatar avatar = new Avatar(tile.getTerrain(), tilePosition, cameraRotation);
+          avatar.draw(gl, texturePack, thirdPerson, playerName);
+          gl.glPopMatrix();
+        }
+      } else {
+        Avatar avatar = new Avatar(myTerrain, cameraPosition, cameraRotation);
+        avatar.draw(gl, texturePack, thirdPerson, playerName);
+      }
     }
     
     //Check if user is 'going through portal'
@@ -256,7 +303,7 @@ public class Game extends JFrame implements GLEventListener, KeyListener {
     double aspectRatio = (double)width / (double)height;
     double fieldOfView = Math.min(aspectRatio * FIELD_OF_VIEW, MAXIMUM_FIELD_OF_VIEW);
     
-    glu.gluPerspective(fieldOfView, aspectRatio, 0.01d, 10000d);
+    glu.gluPerspective(fieldOfView, aspectRatio, NEAR_PLANE, FAR_PLANE);
   }
   
   
@@ -276,7 +323,7 @@ public class Game extends JFrame implements GLEventListener, KeyListener {
     double fieldOfView = Math.min(aspectRatio * FIELD_OF_VIEW, MAXIMUM_FIELD_OF_VIEW);
     
     //set near,far so they show everything for all sample terrains of size without clipping
-    glu.gluPerspective(fieldOfView, aspectRatio, 0.01d, 10000d);
+    glu.gluPerspective(fieldOfView, aspectRatio, NEAR_PLANE, FAR_PLANE);
     
     //Default first person offsets
     double xOffset = 0; //changes the eye position in x axis
@@ -291,25 +338,88 @@ public class Game extends JFrame implements GLEventListener, KeyListener {
       altitudeThirdpersonOffset = THIRDPERSON_ALTITUDE_CHANGE;
     }
     
-    glu.gluLookAt(//Eye is the camera location with interpolated altitude
+    //Eye is the camera location with interpolated altitude
+    double[] eye = {
       cameraPosition[0] - xOffset,
-      myTerrain.altitude(cameraPosition[0], cameraPosition[1]) + ALTITUDE_OFFSET + altitudeThirdpersonOffset,
-      cameraPosition[1] - zOffset,
-      
-      //center of object is vector going away from camera
+      altitude(cameraPosition[0], cameraPosition[1]) + ALTITUDE_OFFSET + altitudeThirdpersonOffset,
+      cameraPosition[1] - zOffset
+    };
+    
+    //center of object is vector going away from camera
+    double[] center = {
       cameraPosition[0] + Math.cos(Math.toRadians(cameraRotation)),
-      myTerrain.altitude(cameraPosition[0], cameraPosition[1]) + ALTITUDE_OFFSET,
-      cameraPosition[1] + Math.sin(Math.toRadians(cameraRotation)),
-      
-      //standard camera orientation (UP)
-      0,
-      1,
-      0
-    );
+      altitude(cameraPosition[0], cameraPosition[1]) + ALTITUDE_OFFSET,
+      cameraPosition[1] + Math.sin(Math.toRadians(cameraRotation))
+    };
+    
+    //standard camera orientation (UP)
+    double[] up = {0, 1, 0};
+    
+    glu.gluLookAt(eye[0], eye[1], eye[2], center[0], center[1], center[2], up[0], up[1], up[2]);
+    
+    //Keep the frustum for this camera so objects outside of it can be culled
+    frustum = new Frustum(fieldOfView, aspectRatio, NEAR_PLANE, FAR_PLANE, eye, center, up);
     
     gl.glPopMatrix();
   }
   
+  /**
+   * Get the altitude under a point, from the streamed world if there is one.
+   *
+   * @param x point on x axis
+   * @param z point on z axis
+   * @return altitude at the point
+   */
+  private double altitude(double x, double z) {
+    return (myWorld != null) ? myWorld.altitude(x, z) : myTerrain.altitude(x, z);
+  }
+  
+  /**
+   * Check if a point is on the terrain, or on the streamed world if there is one.
+   *
+   * @param x point on x axis
+   * @param z point on z axis
+   * @return true if the player may stand there
+   */
+  private boolean isOnMap(double x, double z) {
+    double width = (myWorld != null) ? myWorld.getWidth() : myTerrain.size().getWidth();
+    double depth = (myWorld != null) ? myWorld.getDepth() : myTerrain.size().getHeight();
+    return !(x < 0 || x > width - 1 || z < 0 || z > depth - 1);
+  }
+  
+  /**
+   * Push a mover out of the tree trunks around it, on the streamed world's tiles if there is one.
+   *
+   * @param position x and z of the mover, moved in place
+   * @param radius radius of the mover
+   */
+  private void resolveTreeCollision(double[] position, double radius) {
+    if (myWorld == null) {
+      myTerrain.getTreeCollider().resolve(position, radius);
+      return;
+    }
+    
+    //Trunks across a seam can reach the mover too, so every tile under a corner of the reach is used
+    //Tiles are much wider than the reach so the corners find every tile within it
+    double reach = radius + Tree.TRUNK_RADIUS;
+    List<TerrainTile> tiles = new ArrayList<TerrainTile>();
+    for (int corner = 0; corner < 4; corner++) {
+      double x = position[0] + (((corner & 1) == 0) ? -reach : reach);
+      double z = position[1] + (((corner & 2) == 0) ? -reach : reach);
+      TerrainTile tile = myWorld.getTileAt(x, z);
+      if (tile != null && !tiles.contains(tile))
+        tiles.add(tile);
+    }
+    
+    //Tiles keep their trees in their own coordinates
+    for (TerrainTile tile : tiles) {
+      double[] tilePosition = {position[0] - tile.getOriginX(), position[1] - tile.getOriginZ()};
+      tile.getTerrain().getTreeCollider().resolve(tilePosition, radius);
+      position[0] = tilePosition[0] + tile.getOriginX();
+      position[1] = tilePosition[1] + tile.getOriginZ();
+    }
+  }
+  
   /**
    * Setup Sun as light source
    *
@@ -375,7 +485,7 @@ public class Game extends JFrame implements GLEventListener, KeyListener {
     gl.glLightfv(GL2.GL_LIGHT2, GL2.GL_SPECULAR, lightDifAndSpec, 0);
     
     //Set torch position to camera position
-    float[] torchPosition = {(float)cameraPosition[0], (float)(myTerrain.altitude(cameraPosition[0], cameraPosition[1])) + (float)ALTITUDE_OFFSET, (float)cameraPosition[1], 1.0f};
+    float[] torchPosition = {(float)cameraPosition[0], (float)(altitude(cameraPosition[0], cameraPosition[1])) + (float)ALTITUDE_OFFSET, (float)cameraPosition[1], 1.0f};
     gl.glLightfv(GL2.GL_LIGHT2, GL2.GL_POSITION, torchPosition, 0);
     
     //Set torch direction (facing outwards from avatar)
@@ -463,12 +573,17 @@ public class Game extends JFrame implements GLEventListener, KeyListener {
         //Make enemy slowly path towards player
         double straightLineDistance = Math.sqrt(Math.pow(enemyPosition[0] - cameraPosition[0], 2) + Math.pow(enemyPosition[1] - cameraPosition[1], 2));
         if (straightLineDistance > 0.1) {
-          double newEnemyX = Math.cos(Math.toRadians(-(directionToEnemy - 90.0))) * ENEMY_MOVEMENT_SPEED + enemyPosition[0];
-          double newEnemyZ = Math.sin(Math.toRadians(-(directionToEnemy - 90.0))) * ENEMY_MOVEMENT_SPEED + enemyPosition[1];
+          double[] newEnemyPosition = {
+            Math.cos(Math.toRadians(-(directionToEnemy - 90.0))) * ENEMY_MOVEMENT_SPEED + enemyPosition[0],
+            Math.sin(Math.toRadians(-(directionToEnemy - 90.0))) * ENEMY_MOVEMENT_SPEED + enemyPosition[1]
+          };
           
-          //Only move if we stay on the grid
+          //Walk around tree trunks and only move if we stay on the grid
+          myTerrain.getTreeCollider().resolve(newEnemyPosition, ENEMY_RADIUS);
+          double newEnemyX = newEnemyPosition[0];
+          double newEnemyZ = newEnemyPosition[1];
           if (newEnemyX > 0 && newEnemyX <= myTerrain.size().getWidth() - 1 && newEnemyZ > 0 && newEnemyZ <= myTerrain.size().getHeight() - 1)
-            e.setMyPos(new double[]{newEnemyX, newEnemyZ});
+            e.setMyPos(newEnemyPosition);
         }
         
         //If enemy has caught player, they die! Game over.
@@ -498,6 +613,10 @@ public class Game extends JFrame implements GLEventListener, KeyListener {
           texturePack.setTreeTrunk(TextureIO.newTexture(this.getClass().getResourceAsStream("/textures/tree_trunk.jpg"), true, TextureIO.JPG));
           texturePack.setTreeLeaves(TextureIO.newTexture(this.getClass().getResourceAsStream("/textures/tree_leaves.jpg"), true, TextureIO.JPG));
           texturePack.setRoad(TextureIO.newTexture(this.getClass().getResourceAsStream("/textures/asphalt.png"), true, TextureIO.PNG));
+          texturePack.setSplatLayer(SplatMap.LAYER.GRASS, texturePack.getTerrain());
+          texturePack.setSplatLayer(SplatMap.LAYER.ROCK, TextureIO.newTexture(this.getClass().getResourceAsStream("/textures/black_bark.png"), true, TextureIO.PNG));
+          texturePack.setSplatLayer(SplatMap.LAYER.ROAD, texturePack.getRoad());
+          texturePack.setSplatLayer(SplatMap.LAYER.LAVA, TextureIO.newTexture(this.getClass().getResourceAsStream("/textures/lava.jpg"), true, TextureIO.JPG));
           texturePack.setAvatar(TextureIO.newTexture(this.getClass().getResourceAsStream("/textures/circular_gold.jpg"), true, TextureIO.JPG));
           
           texturePack.setEnemyBody(TextureIO.newTexture(this.getClass().getResourceAsStream("/textures/enemy_body.jpg"), true, TextureIO.JPG));
@@ -519,6 +638,10 @@ public class Game extends JFrame implements GLEventListener, KeyListener {
           texturePack.setTreeTrunk(TextureIO.newTexture(this.getClass().getResourceAsStream("/textures/black_bark.png"), true, TextureIO.PNG));
           texturePack.setTreeLeaves(TextureIO.newTexture(this.getClass().getResourceAsStream("/textures/autumn_leaves.jpg"), true, TextureIO.JPG));
           texturePack.setRoad(TextureIO.newTexture(this.getClass().getResourceAsStream("/textures/lava_crack.jpg"), true, TextureIO.JPG));
+          texturePack.setSplatLayer(SplatMap.LAYER.GRASS, texturePack.getTerrain());
+          texturePack.setSplatLayer(SplatMap.LAYER.ROCK, texturePack.getTreeTrunk());
+          texturePack.setSplatLayer(SplatMap.LAYER.ROAD, texturePack.getRoad());
+          texturePack.setSplatLayer(SplatMap.LAYER.LAVA, texturePack.getTerrain());
           texturePack.setAvatar(TextureIO.newTexture(this.getClass().getResourceAsStream("/textures/circular_gold.jpg"), true, TextureIO.JPG));
   
           texturePack.setEnemyBody(TextureIO.newTexture(this.getClass().getResourceAsStream("/textures/enemy_body.jpg"), true, TextureIO.JPG));
@@ -552,6 +675,10 @@ public class Game extends JFrame implements GLEventListener, KeyListener {
    * T: Toggle third person mode
    * F: Toggle shader mode (colours/textures)
    * N: Toggle night mode (and torch)
+   * M: Toggle terrain level of detail
+   * Q: Toggle continuous level of detail terrain (quadtree)
+   * S: Toggle terrain texture splatting (grass, rock, road and lava)
+   * O: Toggle occlusion culling of objects behind terrain
    *
    * @param e Key event
    */
@@ -565,26 +692,32 @@ public class Game extends JFrame implements GLEventListener, KeyListener {
       case KeyEvent.VK_UP:
       {
         //Calculate new camera location
-        double newX = (Math.cos(Math.toRadians(cameraRotation)) * WALKING_SPEED) + cameraPosition[0];
-        double newZ = (Math.sin(Math.toRadians(cameraRotation)) * WALKING_SPEED) + cameraPosition[1];
+        double[] newPosition = {
+          (Math.cos(Math.toRadians(cameraRotation)) * WALKING_SPEED) + cameraPosition[0],
+          (Math.sin(Math.toRadians(cameraRotation)) * WALKING_SPEED) + cameraPosition[1]
+        };
         
-        //Update global camera position only if movement doesn't take us 'off the grid'
-        if (!(newX < 0 || newX > myTerrain.size().getWidth() - 1 || newZ < 0 || newZ > myTerrain.size().getHeight() - 1)) {
-          cameraPosition[0] = newX;
-          cameraPosition[1] = newZ;
+        //Walk around tree trunks, then update global camera position only if movement doesn't take us 'off the grid'
+        resolveTreeCollision(newPosition, PLAYER_RADIUS);
+        if (isOnMap(newPosition[0], newPosition[1])) {
+          cameraPosition[0] = newPosition[0];
+          cameraPosition[1] = newPosition[1];
         }
       }
       break;
       case KeyEvent.VK_DOWN:
       {
         //Calculate new camera location
-        double newX = cameraPosition[0] - (Math.cos(Math.toRadians(cameraRotation)) * WALKING_SPEED);
-        double newZ = cameraPosition[1] - (Math.sin(Math.toRadians(cameraRotation)) * WALKING_SPEED);
+        double[] newPosition = {
+          cameraPosition[0] - (Math.cos(Math.toRadians(cameraRotation)) * WALKING_SPEED),
+          cameraPosition[1] - (Math.sin(Math.toRadians(cameraRotation)) * WALKING_SPEED)
+        };
         
-        //Update global camera position only if movement doesn't take us 'off the grid'
-        if (!(newX < 0 || newX > myTerrain.size().getWidth() - 1 || newZ < 0 || newZ > myTerrain.size().getHeight() - 1)) {
-          cameraPosition[0] = newX;
-          cameraPosition[1] = newZ;
+        //Walk around tree trunks, then update global camera position only if movement doesn't take us 'off the grid'
+        resolveTreeCollision(newPosition, PLAYER_RADIUS);
+        if (isOnMap(newPosition[0], newPosition[1])) {
+          cameraPosition[0] = newPosition[0];
+          cameraPosition[1] = newPosition[1];
         }
       }
       break;
@@ -642,6 +775,48 @@ public class Game extends JFrame implements GLEventListener, KeyListener {
         System.out.println("Night mode: " + ((this.nightMode) ? "ENABLED" : "DISABLED"));
       }
       break;
+      case KeyEvent.VK_M:
+      {
+        //Toggle terrain level of detail
+        myTerrain.setLodEnabled(!myTerrain.isLodEnabled());
+        if (myWorld != null)
+          myWorld.setLodEnabled(myTerrain.isLodEnabled());
+        
+        System.out.println("Terrain level of detail: " + ((myTerrain.isLodEnabled()) ? "ENABLED" : "DISABLED"));
+      }
+      break;
+      case KeyEvent.VK_Q:
+      {
+        //Toggle continuous level of detail terrain
+        myTerrain.setQuadtreeEnabled(!myTerrain.isQuadtreeEnabled());
+        if (myWorld != null)
+          myWorld.setQuadtreeEnabled(myTerrain.isQuadtreeEnabled());
+        
+        System.out.println("Terrain quadtree: " + ((myTerrain.isQuadtreeEnabled()) ? "ENABLED" : "DISABLED"));
+      }
+      break;
+      case KeyEvent.VK_S:
+      {
+        //Toggle terrain texture splatting
+        myTerrain.setSplatEnabled(!myTerrain.isSplatEnabled());
+        if (myWorld != null)
+          myWorld.setSplatEnabled(myTerrain.isSplatEnabled());
+        
+        System.out.println("Terrain texture splatting: " + ((myTerrain.isSplatEnabled()) ? "ENABLED" : "DISABLED"));
+      }
+      break;
+      case KeyEvent.VK_O:
+      {
+        //Toggle occlusion culling
+        myTerrain.setOcclusionEnabled(!myTerrain.isOcclusionEnabled());
+        if (myWorld != null)
+          myWorld.setOcclusionEnabled(myTerrain.isOcclusionEnabled());
+        
+        System.out.println("Occlusion culling: " + ((myTerrain.isOcclusionEnabled()) ? "ENABLED" : "DISABLED"));
+        System.out.println("Culled trees: " + myTerrain.getTreesCulled() + ", roads: " + myTerrain.getRoadsCulled() +
+          ", enemies: " + myTerrain.getEnemiesCulled() + ", portals: " + myTerrain.getPortalsCulled());
+      }
+      break;
       default:
         break;
     }
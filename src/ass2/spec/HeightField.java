@@ -0,0 +1,77 @@
+package ass2.spec;
+
+/**
+ * Storage for the altitudes of a terrain grid.
+ *
+ * Implementations keep the altitudes in a single flat array row by row, so the point (x, z) is at
+ * index z * width + x and each row of constant z is contiguous in memory.
+ */
+public abstract class HeightField {
+
+  /**
+   * Ways altitudes can be stored.
+   * DOUBLE and FLOAT keep the value as given, SHORT quantizes it to 16 bits within a fixed range.
+   */
+  public enum ENCODING {
+    DOUBLE, FLOAT, SHORT
+  }
+
+  /**
+   * @return number of grid points in the x-direction
+   */
+  public abstract int getWidth();
+
+  /**
+   * @return number of grid points in the z-direction
+   */
+  public abstract int getDepth();
+
+  /**
+   * Get the altitude at a grid point
+   *
+   * @param x grid x coordinate
+   * @param z grid z coordinate
+   * @return altitude
+   */
+  public abstract double get(int x, int z);
+
+  /**
+   * Set the altitude at a grid point
+   *
+   * @param x grid x coordinate
+   * @param z grid z coordinate
+   * @param h altitude
+   */
+  public abstract void set(int x, int z, double h);
+
+  /**
+   * @return how the altitudes are stored
+   */
+  public abstract ENCODING getEncoding();
+
+  /**
+   * Create an empty height field of a new size using the same storage and settings as this one.
+   *
+   * @param width number of grid points in the x-direction
+   * @param depth number of grid points in the z-direction
+   * @return new height field with all altitudes 0 (or as close as the encoding allows)
+   */
+  public abstract HeightField create(int width, int depth);
+
+  /**
+   * Helper to get the index of a grid point in a flat row by row array, a point outside the field
+   * would otherwise land on a neighbouring row.
+   *
+   * @param x grid x coordinate
+   * @param z grid z coordinate
+   * @param width number of grid points in the x-direction
+   * @param depth number of grid points in the z-direction
+   * @return z * width + x
+   * @throws IndexOutOfBoundsException if the point is outside the field
+   */
+  protected static int index(int x, int z, int width, int depth) {
+    if (x < 0 || x >= width || z < 0 || z >= depth)
+      throw new IndexOutOfBoundsException("Grid point (" + x + ", " + z + ") is outside the " + width + "x" + depth + " height field");
+    return z * width + x;
+  }
+}
@@ -0,0 +1,495 @@
+package ass2.spec;
+
+/**
+ * Min/max height quadtree of a terrain, stored as a pyramid of levels.
+ *
+ * Level 0 holds the minimum and maximum altitude of each grid (its 4 corners). Each level above
+ * holds the minimum and maximum of 2x2 blocks of the level below, up to a single block covering the
+ * whole terrain. A block at level k covers 2^k by 2^k grids.
+ *
+ * Rays are cast by walking the blocks along the ray with a 2D DDA, starting at the top level. A block
+ * is only opened up when the part of the ray passing over it dips into its altitude range, so empty
+ * sky is skipped a whole block at a time. At level 0 the ray is intersected with the 2 triangles of
+ * the grid, split the same way as the drawn mesh.
+ *
+ * The same pyramid answers altitude range and highest point queries over rectangles of the terrain
+ * without scanning every grid point. Edits mark a dirty rectangle and only the blocks above it are
+ * recomputed the next time the pyramid is used.
+ */
+public class HeightPyramid {
+
+  private Terrain myTerrain;
+  private int myWidth;
+  private int myDepth;
+
+  //Blocks per level and their altitude ranges, row by row
+  private int[] myLevelWidths;
+  private int[] myLevelDepths;
+  private float[][] myMins;
+  private float[][] myMaxs;
+
+  //Dirty rectangle in grid points, minimum x and z then maximum x and z (inclusive)
+  private int[] dirtyRegion;
+  private boolean built;
+
+  //Constants
+  private static final double EPSILON = 1e-9; //tolerance for ray and triangle tests
+
+  public HeightPyramid(Terrain terrain) {
+    this.myTerrain = terrain;
+    this.built = false;
+  }
+
+  /**
+   * Mark the pyramid as out of date, it is rebuilt the next time it is used.
+   */
+  public synchronized void invalidate() {
+    built = false;
+    dirtyRegion = null;
+  }
+
+  /**
+   * Mark a rectangle of grid points as changed. The blocks holding them are recomputed the next
+   * time the pyramid is used.
+   *
+   * @param x0 minimum grid x coordinate
+   * @param z0 minimum grid z coordinate
+   * @param x1 maximum grid x coordinate (inclusive)
+   * @param z1 maximum grid z coordinate (inclusive)
+   */
+  public synchronized void markDirty(int x0, int z0, int x1, int z1) {
+    if (!built)
+      return;
+
+    if (dirtyRegion == null) {
+      dirtyRegion = new int[]{x0, z0, x1, z1};
+    } else {
+      dirtyRegion[0] = Math.min(dirtyRegion[0], x0);
+      dirtyRegion[1] = Math.min(dirtyRegion[1], z0);
+      dirtyRegion[2] = Math.max(dirtyRegion[2], x1);
+      dirtyRegion[3] = Math.max(dirtyRegion[3], z1);
+    }
+  }
+
+  /**
+   * Bring the pyramid up to date with the terrain, building all of it on first use.
+   */
+  public synchronized void update() {
+    if (built) {
+      if (dirtyRegion != null)
+        updateDirty();
+      return;
+    }
+
+    myWidth = myTerrain.size().width;
+    myDepth = myTerrain.size().height;
+
+    //Number of levels needed to reach a single block
+    int cellsX = Math.max(myWidth - 1, 1);
+    int cellsZ = Math.max(myDepth - 1, 1);
+    int levels = 1;
+    while ((1 << (levels - 1)) < Math.max(cellsX, cellsZ)) {
+      levels++;
+    }
+
+    myLevelWidths = new int[levels];
+    myLevelDepths = new int[levels];
+    myMins = new float[levels][];
+    myMaxs = new float[levels][];
+    for (int level = 0; level < levels; level++) {
+      myLevelWidths[level] = ((cellsX - 1) >> level) + 1;
+      myLevelDepths[level] = ((cellsZ - 1) >> level) + 1;
+      myMins[level] = new float[myLevelWidths[level] * myLevelDepths[level]];
+      myMaxs[level] = new float[myLevelWidths[level] * myLevelDepths[level]];
+    }
+
+    computeCells(0, 0, myLevelWidths[0] - 1, myLevelDepths[0] - 1);
+    for (int level = 1; level < levels; level++) {
+      computeBlocks(level, 0, 0, myLevelWidths[level] - 1, myLevelDepths[level] - 1);
+    }
+    built = true;
+    dirtyRegion = null;
+  }
+
+  /**
+   * Recompute the grids touching the dirty rectangle, then the blocks above them on each level.
+   */
+  private void updateDirty() {
+    //A grid point is a corner of the grids on either side of it
+    int x0 = (int)MathUtil.clamp(dirtyRegion[0] - 1, 0, myLevelWidths[0] - 1);
+    int z0 = (int)MathUtil.clamp(dirtyRegion[1] - 1, 0, myLevelDepths[0] - 1);
+    int x1 = (int)MathUtil.clamp(dirtyRegion[2], 0, myLevelWidths[0] - 1);
+    int z1 = (int)MathUtil.clamp(dirtyRegion[3], 0, myLevelDepths[0] - 1);
+    dirtyRegion = null;
+
+    computeCells(x0, z0, x1, z1);
+    for (int level = 1; level < myMins.length; level++) {
+      computeBlocks(level, x0 >> level, z0 >> level, x1 >> level, z1 >> level);
+    }
+  }
+
+  /**
+   * Compute the altitude range of a rectangle of grids (inclusive) from their corners.
+   * Ranges are widened to the next float so they always contain the exact altitudes.
+   */
+  private void computeCells(int x0, int z0, int x1, int z1) {
+    float[] mins = myMins[0];
+    float[] maxs = myMaxs[0];
+    int levelWidth = myLevelWidths[0];
+
+    for (int z = z0; z <= z1; ++z) {
+      for (int x = x0; x <= x1; ++x) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int j = z; j <= Math.min(z + 1, myDepth - 1); ++j) {
+          for (int i = x; i <= Math.min(x + 1, myWidth - 1); ++i) {
+            double h = myTerrain.getGridAltitude(i, j);
+            min = Math.min(min, h);
+            max = Math.max(max, h);
+          }
+        }
+        mins[z * levelWidth + x] = Math.nextDown((float)min);
+        maxs[z * levelWidth + x] = Math.nextUp((float)max);
+      }
+    }
+  }
+
+  /**
+   * Compute the altitude range of a rectangle of blocks (inclusive) at a level from the level below.
+   */
+  private void computeBlocks(int level, int x0, int z0, int x1, int z1) {
+    float[] mins = myMins[level];
+    float[] maxs = myMaxs[level];
+    float[] childMins = myMins[level - 1];
+    float[] childMaxs = myMaxs[level - 1];
+    int levelWidth = myLevelWidths[level];
+    int childWidth = myLevelWidths[level - 1];
+    int childDepth = myLevelDepths[level - 1];
+
+    for (int z = z0; z <= z1; ++z) {
+      for (int x = x0; x <= x1; ++x) {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int j = 2 * z; j <= Math.min(2 * z + 1, childDepth - 1); ++j) {
+          for (int i = 2 * x; i <= Math.min(2 * x + 1, childWidth - 1); ++i) {
+            min = Math.min(min, childMins[j * childWidth + i]);
+            max = Math.max(max, childMaxs[j * childWidth + i]);
+          }
+        }
+        mins[z * levelWidth + x] = min;
+        maxs[z * levelWidth + x] = max;
+      }
+    }
+  }
+
+  /**
+   * Cast a ray against the terrain.
+   *
+   * @param origin start of the ray
+   * @param direction direction of the ray, it does not need to be unit length
+   * @param maxT furthest ray parameter to look at, in multiples of direction
+   * @return ray parameter of the first hit, or -1 if nothing is hit before maxT
+   */
+  public double raycast(double[] origin, double[] direction, double maxT) {
+    update();
+    if (myWidth < 2 || myDepth < 2)
+      return -1;
+
+    //Clip the ray to the bounding box of the whole terrain
+    int top = myMins.length - 1;
+    double[] range = {0, maxT};
+    if (!clip(origin[0], direction[0], 0, myWidth - 1, range) ||
+        !clip(origin[1], direction[1], myMins[top][0], myMaxs[top][0], range) ||
+        !clip(origin[2], direction[2], 0, myDepth - 1, range))
+      return -1;
+
+    return walk(top, 0, 0, 1, 1, origin, direction, range[0], range[1]);
+  }
+
+  /**
+   * Walk the blocks of a level from bx0, bz0 to bx1, bz1 (exclusive) that the ray passes over between
+   * tStart and tEnd, front to back, opening up blocks the ray may hit.
+   *
+   * @return ray parameter of the first hit, or -1
+   */
+  private double walk(int level, int bx0, int bz0, int bx1, int bz1,
+                      double[] origin, double[] direction, double tStart, double tEnd) {
+    int size = 1 << level;
+    bx1 = Math.min(bx1, myLevelWidths[level]);
+    bz1 = Math.min(bz1, myLevelDepths[level]);
+
+    //Block holding the start of the ray
+    double startX = origin[0] + direction[0] * tStart;
+    double startZ = origin[2] + direction[2] * tStart;
+    int bx = (int)MathUtil.clamp(Math.floor(startX / size), bx0, bx1 - 1);
+    int bz = (int)MathUtil.clamp(Math.floor(startZ / size), bz0, bz1 - 1);
+
+    //DDA steps and the ray parameter of the next block edge on each axis
+    int stepX = (direction[0] > 0) ? 1 : -1;
+    int stepZ = (direction[2] > 0) ? 1 : -1;
+    double deltaX = (direction[0] != 0) ? size / Math.abs(direction[0]) : Double.POSITIVE_INFINITY;
+    double deltaZ = (direction[2] != 0) ? size / Math.abs(direction[2]) : Double.POSITIVE_INFINITY;
+    double nextX = (direction[0] != 0) ? ((bx + (stepX > 0 ? 1 : 0)) * size - origin[0]) / direction[0] : Double.POSITIVE_INFINITY;
+    double nextZ = (direction[2] != 0) ? ((bz + (stepZ > 0 ? 1 : 0)) * size - origin[2]) / direction[2] : Double.POSITIVE_INFINITY;
+
+    double t = tStart;
+    while (t <= tEnd && bx >= bx0 && bx < bx1 && bz >= bz0 && bz < bz1) {
+      double tExit = Math.min(Math.min(nextX, nextZ), tEnd);
+
+      //Only open the block if the ray passing over it is within its altitude range
+      int index = bz * myLevelWidths[level] + bx;
+      double y0 = origin[1] + direction[1] * t;
+      double y1 = origin[1] + direction[1] * tExit;
+      if (Math.min(y0, y1) <= myMaxs[level][index] && Math.max(y0, y1) >= myMins[level][index]) {
+        double hit = (level == 0)
+          ? intersectCell(bx, bz, origin, direction, t, tExit)
+          : walk(level - 1, 2 * bx, 2 * bz, 2 * bx + 2, 2 * bz + 2, origin, direction, t, tExit);
+        if (hit >= 0)
+          return hit;
+      }
+
+      //Step to the next block
+      if (nextX < nextZ) {
+        bx += stepX;
+        t = nextX;
+        nextX += deltaX;
+      } else {
+        bz += stepZ;
+        t = nextZ;
+        nextZ += deltaZ;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Intersect the ray with the 2 triangles of grid (x, z), split along the diagonal from
+   * (x, z + 1) to (x + 1, z) like the drawn mesh.
+   *
+   * @return ray parameter of the closest hit between tStart and tEnd, or -1
+   */
+  private double intersectCell(int x, int z, double[] origin, double[] direction, double tStart, double tEnd) {
+    double[] p00 = {x, myTerrain.getGridAltitude(x, z), z};
+    double[] p10 = {x + 1, myTerrain.getGridAltitude(x + 1, z), z};
+    double[] p01 = {x, myTerrain.getGridAltitude(x, z + 1), z + 1};
+    double[] p11 = {x + 1, myTerrain.getGridAltitude(x + 1, z + 1), z + 1};
+
+    //Allow a little slack at the ends so rays through grid edges and corners are not lost
+    double slack = EPSILON * Math.max(1, tEnd);
+    double best = -1;
+    double t = intersectTriangle(origin, direction, p00, p01, p10);
+    if (t >= tStart - slack && t <= tEnd + slack)
+      best = t;
+
+    t = intersectTriangle(origin, direction, p10, p01, p11);
+    if (t >= tStart - slack && t <= tEnd + slack && (best < 0 || t < best))
+      best = t;
+
+    return (best < 0) ? -1 : Math.max(best, 0);
+  }
+
+  /**
+   * Intersect a ray with a triangle from either side (Moller-Trumbore).
+   *
+   * @return ray parameter of the hit, or -1
+   */
+  private static double intersectTriangle(double[] origin, double[] direction, double[] a, double[] b, double[] c) {
+    double e1x = b[0] - a[0], e1y = b[1] - a[1], e1z = b[2] - a[2];
+    double e2x = c[0] - a[0], e2y = c[1] - a[1], e2z = c[2] - a[2];
+
+    //p = direction x e2
+    double px = direction[1] * e2z - direction[2] * e2y;
+    double py = direction[2] * e2x - direction[0] * e2z;
+    double pz = direction[0] * e2y - direction[1] * e2x;
+    double det = e1x * px + e1y * py + e1z * pz;
+    if (Math.abs(det) < EPSILON)
+      return -1;
+
+    double inverse = 1 / det;
+    double sx = origin[0] - a[0], sy = origin[1] - a[1], sz = origin[2] - a[2];
+    double u = (sx * px + sy * py + sz * pz) * inverse;
+    if (u < -EPSILON || u > 1 + EPSILON)
+      return -1;
+
+    //q = s x e1
+    double qx = sy * e1z - sz * e1y;
+    double qy = sz * e1x - sx * e1z;
+    double qz = sx * e1y - sy * e1x;
+    double v = (direction[0] * qx + direction[1] * qy + direction[2] * qz) * inverse;
+    if (v < -EPSILON || u + v > 1 + EPSILON)
+      return -1;
+
+    return (e2x * qx + e2y * qy + e2z * qz) * inverse;
+  }
+
+  /**
+   * Clip a ray parameter range to a slab on one axis.
+   *
+   * @param range minimum and maximum ray parameter, narrowed in place
+   * @return false if nothing of the range is left
+   */
+  private static boolean clip(double origin, double direction, double min, double max, double[] range) {
+    if (direction == 0)
+      return origin >= min && origin <= max;
+
+    double t0 = (min - origin) / direction;
+    double t1 = (max - origin) / direction;
+    range[0] = Math.max(range[0], Math.min(t0, t1));
+    range[1] = Math.min(range[1], Math.max(t0, t1));
+
+    return range[0] <= range[1];
+  }
+
+  /**
+   * Get bounds on the altitudes of a rectangle of grid points.
+   * Whole blocks inside the rectangle are answered from the pyramid so the bounds may be wider than
+   * the exact altitudes by a float rounding step, which is safe for culling.
+   *
+   * @param x0 minimum grid x coordinate
+   * @param z0 minimum grid z coordinate
+   * @param x1 maximum grid x coordinate (inclusive)
+   * @param z1 maximum grid z coordinate (inclusive)
+   * @return minimum and maximum altitude
+   */
+  public double[] getAltitudeRange(int x0, int z0, int x1, int z1) {
+    update();
+
+    double[] range = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+    int top = myMins.length - 1;
+    queryRange(top, 0, 0, (int)MathUtil.clamp(x0, 0, myWidth - 1), (int)MathUtil.clamp(z0, 0, myDepth - 1),
+      (int)MathUtil.clamp(x1, 0, myWidth - 1), (int)MathUtil.clamp(z1, 0, myDepth - 1), range);
+
+    return range;
+  }
+
+  /**
+   * Widen range by the altitudes of the grid points of the rectangle inside block (bx, bz).
+   */
+  private void queryRange(int level, int bx, int bz, int x0, int z0, int x1, int z1, double[] range) {
+    //Grid points covered by the block
+    int size = 1 << level;
+    int px0 = bx * size;
+    int pz0 = bz * size;
+    int px1 = Math.min(px0 + size, myWidth - 1);
+    int pz1 = Math.min(pz0 + size, myDepth - 1);
+    if (px0 > x1 || pz0 > z1 || px1 < x0 || pz1 < z0)
+      return;
+
+    int index = bz * myLevelWidths[level] + bx;
+    if (px0 >= x0 && pz0 >= z0 && px1 <= x1 && pz1 <= z1) {
+      range[0] = Math.min(range[0], myMins[level][index]);
+      range[1] = Math.max(range[1], myMaxs[level][index]);
+      return;
+    }
+
+    if (level == 0) {
+      for (int z = Math.max(pz0, z0); z <= Math.min(pz1, z1); ++z) {
+        for (int x = Math.max(px0, x0); x <= Math.min(px1, x1); ++x) {
+          double h = myTerrain.getGridAltitude(x, z);
+          range[0] = Math.min(range[0], h);
+          range[1] = Math.max(range[1], h);
+        }
+      }
+      return;
+    }
+
+    for (int j = 2 * bz; j <= Math.min(2 * bz + 1, myLevelDepths[level - 1] - 1); ++j) {
+      for (int i = 2 * bx; i <= Math.min(2 * bx + 1, myLevelWidths[level - 1] - 1); ++i) {
+        queryRange(level - 1, i, j, x0, z0, x1, z1, range);
+      }
+    }
+  }
+
+  /**
+   * Find the highest grid point in a rectangle, for example as a vantage point.
+   * Blocks that cannot beat the highest point found so far are skipped.
+   *
+   * @param x0 minimum grid x coordinate
+   * @param z0 minimum grid z coordinate
+   * @param x1 maximum grid x coordinate (inclusive)
+   * @param z1 maximum grid z coordinate (inclusive)
+   * @return highest grid point (x, y, z), or null if the rectangle is off the terrain
+   */
+  public double[] getHighestPoint(int x0, int z0, int x1, int z1) {
+    update();
+
+    x0 = Math.max(x0, 0);
+    z0 = Math.max(z0, 0);
+    x1 = Math.min(x1, myWidth - 1);
+    z1 = Math.min(z1, myDepth - 1);
+    if (x0 > x1 || z0 > z1)
+      return null;
+
+    double[] best = {x0, Double.NEGATIVE_INFINITY, z0};
+    queryHighest(myMins.length - 1, 0, 0, x0, z0, x1, z1, best);
+
+    return best;
+  }
+
+  /**
+   * Replace best with any higher grid point of the rectangle inside block (bx, bz).
+   */
+  private void queryHighest(int level, int bx, int bz, int x0, int z0, int x1, int z1, double[] best) {
+    int size = 1 << level;
+    int px0 = bx * size;
+    int pz0 = bz * size;
+    int px1 = Math.min(px0 + size, myWidth - 1);
+    int pz1 = Math.min(pz0 + size, myDepth - 1);
+    if (px0 > x1 || pz0 > z1 || px1 < x0 || pz1 < z0)
+      return;
+    if (myMaxs[level][bz * myLevelWidths[level] + bx] <= best[1])
+      return;
+
+    if (level == 0) {
+      for (int z = Math.max(pz0, z0); z <= Math.min(pz1, z1); ++z) {
+        for (int x = Math.max(px0, x0); x <= Math.min(px1, x1); ++x) {
+          double h = myTerrain.getGridAltitude(x, z);
+          if (h > best[1]) {
+            best[0] = x;
+            best[1] = h;
+            best[2] = z;
+          }
+        }
+      }
+      return;
+    }
+
+    for (int j = 2 * bz; j <= Math.min(2 * bz + 1, myLevelDepths[level - 1] - 1); ++j) {
+      for (int i = 2 * bx; i <= Math.min(2 * bx + 1, myLevelWidths[level - 1] - 1); ++i) {
+        queryHighest(level - 1, i, j, x0, z0, x1, z1, best);
+      }
+    }
+  }
+
+  /**
+   * Get the lowest altitude in block (bx, bz) of a level, or positive infinity off the pyramid.
+   * The block covers the grid points from (bx, bz) * 2^level to (bx + 1, bz + 1) * 2^level.
+   */
+  public double getBlockMin(int level, int bx, int bz) {
+    update();
+    if (bx < 0 || bz < 0 || bx >= myLevelWidths[level] || bz >= myLevelDepths[level])
+      return Double.POSITIVE_INFINITY;
+
+    return myMins[level][bz * myLevelWidths[level] + bx];
+  }
+
+  /**
+   * Get the highest altitude in block (bx, bz) of a level, or negative infinity off the pyramid.
+   */
+  public double getBlockMax(int level, int bx, int bz) {
+    update();
+    if (bx < 0 || bz < 0 || bx >= myLevelWidths[level] || bz >= myLevelDepths[level])
+      return Double.NEGATIVE_INFINITY;
+
+    return myMaxs[level][bz * myLevelWidths[level] + bx];
+  }
+
+  /**
+   * Get the number of levels, level 0 being single grids.
+   */
+  public int getLevels() {
+    update();
+    return myMins.length;
+  }
+}
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.io.Reader;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
@@ -34,7 +35,29 @@ public class LevelIO {
     
     int width = jsonTerrain.getInt("width");
     int depth = jsonTerrain.getInt("depth");
-    Terrain terrain = new Terrain(width, depth);
+    
+    //Altitudes are either mapped directly from a raw height file or listed in the level
+    Terrain terrain;
+    if (jsonTerrain.has("altitudeFile")) {
+      terrain = new Terrain(openHeightFile(mapFile, jsonTerrain, width, depth));
+    } else {
+      JSONArray jsonAltitude = jsonTerrain.getJSONArray("altitude");
+    
+      //Altitudes are stored as doubles unless the level asks for a smaller encoding
+      HeightField.ENCODING encoding = HeightField.ENCODING.DOUBLE;
+      if (jsonTerrain.has("altitudeEncoding"))
+        encoding = HeightField.ENCODING.valueOf(jsonTerrain.getString("altitudeEncoding").toUpperCase());
+      
+      terrain = new Terrain(createHeightField(encoding, width, depth, jsonAltitude));
+      
+      for (int i = 0; i < jsonAltitude.length(); i++) {
+        int x = i % width;
+        int z = i / width;
+        
+        double h = jsonAltitude.getDouble(i);
+        terrain.setGridAltitude(x, z, h);
+      }
+    }
     
     JSONArray jsonSun = jsonTerrain.getJSONArray("sunlight");
     float dx = (float)jsonSun.getDouble(0);
@@ -42,14 +65,11 @@ public class LevelIO {
     float dz = (float)jsonSun.getDouble(2);
     terrain.setSunlightDir(dx, dy, dz);
     
-    JSONArray jsonAltitude = jsonTerrain.getJSONArray("altitude");
-    for (int i = 0; i < jsonAltitude.length(); i++) {
-      int x = i % width;
-      int z = i / width;
-      
-      double h = jsonAltitude.getDouble(i);
-      terrain.setGridAltitude(x, z, h);
-    }
+    //Texture splatting rules
+    if (jsonTerrain.has("rockSlope"))
+      terrain.getSplatMap().setRockSlope(jsonTerrain.getDouble("rockSlope"));
+    if (jsonTerrain.has("lavaAltitude"))
+      terrain.getSplatMap().setLavaAltitude(jsonTerrain.getDouble("lavaAltitude"));
     
     if (jsonTerrain.has("trees")) {
       JSONArray jsonTrees = jsonTerrain.getJSONArray("trees");
@@ -88,6 +108,9 @@ public class LevelIO {
       }
     }
     
+    //Roads are flat and tessellated in equal steps unless they ask to be draped or adaptive, like so:
+    //  { "width" : 2.0, "spine" : [ ... ], "adaptive" : true, "flatness" : 0.01,
+    //    "drape" : true, "drapeSpacing" : 1.0 }
     if (jsonTerrain.has("roads")) {
       JSONArray jsonRoads = jsonTerrain.getJSONArray("roads");
       for (int i = 0; i < jsonRoads.length(); i++) {
@@ -101,11 +124,115 @@ public class LevelIO {
           spine[j] = jsonSpine.getDouble(j);
         }
         terrain.addRoad(w, spine);
+        
+        Road road = terrain.roads().get(terrain.roads().size() - 1);
+        if (jsonRoad.has("adaptive"))
+          road.setAdaptiveEnabled(jsonRoad.getBoolean("adaptive"));
+        if (jsonRoad.has("flatness"))
+          road.setFlatness(jsonRoad.getDouble("flatness"));
+        if (jsonRoad.has("drape"))
+          road.setDrapeEnabled(jsonRoad.getBoolean("drape"));
+        if (jsonRoad.has("drapeSpacing"))
+          road.setDrapeSpacing(jsonRoad.getDouble("drapeSpacing"));
       }
     }
+    
+    //Generated forest, scattered once the roads it keeps clear of are in place
+    if (jsonTerrain.has("forest")) {
+      JSONObject jsonForest = jsonTerrain.getJSONObject("forest");
+      ForestGenerator forest = terrain.getForest();
+      if (jsonForest.has("seed"))
+        forest.setSeed(jsonForest.getLong("seed"));
+      if (jsonForest.has("spacing"))
+        forest.setSpacing(jsonForest.getDouble("spacing"));
+      if (jsonForest.has("density"))
+        forest.setDensity(jsonForest.getDouble("density"));
+      if (jsonForest.has("maxSlope"))
+        forest.setMaxSlope(jsonForest.getDouble("maxSlope"));
+      if (jsonForest.has("minAltitude"))
+        forest.setMinAltitude(jsonForest.getDouble("minAltitude"));
+      if (jsonForest.has("maxAltitude"))
+        forest.setMaxAltitude(jsonForest.getDouble("maxAltitude"));
+      if (jsonForest.has("roadClearance"))
+        forest.setRoadClearance(jsonForest.getDouble("roadClearance"));
+      forest.scatter();
+    }
     return terrain;
   }
   
+  /**
+   * Memory map the raw height file of a level, see MappedHeightField for the file format.
+   *
+   * Defined in scene language like so:
+   *   "altitudeFile" : "heights.raw", "altitudeEncoding" : "short", "altitudeRange" : [ -10.0, 50.0 ]
+   *
+   * where the file name is relative to the level file, the encoding defaults to float and the
+   * range is only needed for short.
+   *
+   * @param mapFile level file
+   * @param jsonTerrain level
+   * @param width number of grid points in the x-direction
+   * @param depth number of grid points in the z-direction
+   * @return mapped height field
+   * @throws FileNotFoundException
+   */
+  private static HeightField openHeightFile(File mapFile, JSONObject jsonTerrain, int width, int depth) throws FileNotFoundException {
+    File heightFile = new File(jsonTerrain.getString("altitudeFile"));
+    if (!heightFile.isAbsolute())
+      heightFile = new File(mapFile.getAbsoluteFile().getParentFile(), heightFile.getPath());
+    
+    HeightField.ENCODING encoding = HeightField.ENCODING.FLOAT;
+    if (jsonTerrain.has("altitudeEncoding"))
+      encoding = HeightField.ENCODING.valueOf(jsonTerrain.getString("altitudeEncoding").toUpperCase());
+    
+    double min = 0;
+    double max = 0;
+    if (jsonTerrain.has("altitudeRange")) {
+      JSONArray jsonRange = jsonTerrain.getJSONArray("altitudeRange");
+      min = jsonRange.getDouble(0);
+      max = jsonRange.getDouble(1);
+    } else if (encoding == HeightField.ENCODING.SHORT) {
+      //Without a range the samples cannot be turned into altitudes
+      throw new JSONException("altitudeRange is needed for a short altitudeFile in " + mapFile);
+    }
+    
+    try {
+      return new MappedHeightField(heightFile, width, depth, encoding, min, max);
+    } catch (FileNotFoundException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * Create empty altitude storage for a level.
+   * Quantized storage needs a range, so it is taken from the altitudes in the level.
+   *
+   * @param encoding how altitudes should be stored
+   * @param width number of grid points in the x-direction
+   * @param depth number of grid points in the z-direction
+   * @param jsonAltitude altitudes of the level
+   * @return height field for the level
+   */
+  private static HeightField createHeightField(HeightField.ENCODING encoding, int width, int depth, JSONArray jsonAltitude) {
+    switch (encoding) {
+      case FLOAT:
+        return new FloatHeightField(width, depth);
+      case SHORT:
+        double min = 0;
+        double max = 0;
+        for (int i = 0; i < jsonAltitude.length(); i++) {
+          double h = jsonAltitude.getDouble(i);
+          min = Math.min(min, h);
+          max = Math.max(max, h);
+        }
+        return new QuantizedHeightField(width, depth, min, max);
+      default:
+        return new DoubleHeightField(width, depth);
+    }
+  }
+  
   /**
    * Write Terrain to a JSON file
    *
@@ -126,13 +253,38 @@ public class LevelIO {
     jsonSun.put(sunlight[2]);
     json.put("sunlight", jsonSun);
     
-    JSONArray altitude = new JSONArray();
-    for (int i = 0; i < size.width; i++) {
+    SplatMap splatMap = terrain.getSplatMap();
+    if (splatMap.getRockSlope() != SplatMap.DEFAULT_ROCK_SLOPE)
+      json.put("rockSlope", splatMap.getRockSlope());
+    if (!Double.isInfinite(splatMap.getLavaAltitude()))
+      json.put("lavaAltitude", splatMap.getLavaAltitude());
+    
+    //Mapped altitudes stay in their height file, the level only refers to it
+    HeightField heightField = terrain.getHeightField();
+    HeightField.ENCODING encoding = heightField.getEncoding();
+    if (heightField instanceof MappedHeightField) {
+      MappedHeightField mapped = (MappedHeightField)heightField;
+      mapped.flush();
+      json.put("altitudeFile", relativePath(file, mapped.getFile()));
+      
+      JSONArray range = new JSONArray();
+      range.put(mapped.getMinHeight());
+      range.put(mapped.getMaxHeight());
+      json.put("altitudeRange", range);
+    } else {
+      //Row by row, the same order load() reads them in
+      JSONArray altitude = new JSONArray();
       for (int j = 0; j < size.height; j++) {
-        altitude.put(terrain.getGridAltitude(i, j));
+        for (int i = 0; i < size.width; i++) {
+          altitude.put(terrain.getGridAltitude(i, j));
+        }
       }
+      json.put("altitude", altitude);
     }
-    json.put("altitude", altitude);
+    
+    //Height files default to float so their encoding is always written
+    if (encoding != HeightField.ENCODING.DOUBLE || heightField instanceof MappedHeightField)
+      json.put("altitudeEncoding", encoding.name().toLowerCase());
     
     JSONArray trees = new JSONArray();
     for (Tree t : terrain.trees()) {
@@ -182,14 +334,20 @@ public class LevelIO {
       j.put("width", r.width());
       
       JSONArray spine = new JSONArray();
-      int n = r.size();
+      double[] points = r.getSpine();
       
-      for (int i = 0; i <= n*3; i++) {
-        double[] p = r.controlPoint(i);
-        spine.put(p[0]);
-        spine.put(p[1]);
+      for (int i = 0; i < points.length; i++) {
+        spine.put(points[i]);
       }
       j.put("spine", spine);
+      if (r.isAdaptiveEnabled()) {
+        j.put("adaptive", true);
+        j.put("flatness", r.getFlatness());
+      }
+      if (r.isDrapeEnabled()) {
+        j.put("drape", true);
+        j.put("drapeSpacing", r.getDrapeSpacing());
+      }
       roads.put(j);
     }
     json.put("roads", roads);
@@ -200,6 +358,23 @@ public class LevelIO {
     
   }
   
+  /**
+   * Get the path of a file relative to the folder of a level, the way load() resolves it.
+   * Files on another drive or root cannot be reached relatively so keep their absolute path.
+   *
+   * @param levelFile level file
+   * @param file file the level refers to
+   * @return path of the file
+   */
+  private static String relativePath(File levelFile, File file) {
+    File folder = levelFile.getAbsoluteFile().getParentFile();
+    try {
+      return folder.toPath().relativize(file.getAbsoluteFile().toPath()).toString().replace(File.separatorChar, '/');
+    } catch (IllegalArgumentException e) {
+      return file.getAbsolutePath();
+    }
+  }
+  
   /**
    * For testing.
    *
@@ -0,0 +1,242 @@
+package ass2.spec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Height field backed by a memory mapped raw binary file.
+ *
+ * The file holds width * depth little endian samples row by row (x varies fastest), with no header.
+ * Samples are doubles, floats or unsigned 16 bit values quantized over a range, as for
+ * QuantizedHeightField. Nothing is read when the file is opened, the operating system pages parts
+ * of the file in as they are used, so maps larger than the Java heap can be addressed.
+ *
+ * A single mapping is limited to 2GB so the file is mapped as several regions of whole rows.
+ * The mapping is copy on write: set() only changes the altitudes in memory and the file is left
+ * as it was until flush() writes the changed rows back. If the file is read only, set() throws a
+ * ReadOnlyBufferException.
+ */
+public class MappedHeightField extends HeightField {
+
+  private File myFile;
+  private int myWidth;
+  private int myDepth;
+  private ENCODING myEncoding;
+  private int mySampleSize;
+  private double myOffset;
+  private double myScale;
+
+  //Mapped regions of the file
+  private MappedByteBuffer[] myRegions;
+  private int myRowsPerRegion;
+
+  //Rows changed since the last flush, minimum and maximum z (inclusive), minimum above maximum when none
+  private int myDirtyMin;
+  private int myDirtyMax;
+
+  //Constants
+  private static final int LEVELS = 65535; //number of steps between the minimum and maximum altitude for SHORT
+  private static final long MAXIMUM_REGION_SIZE = Integer.MAX_VALUE; //largest size of a single mapping in bytes
+
+  /**
+   * Map a raw height file storing doubles or floats.
+   *
+   * @param file raw height file
+   * @param width number of grid points in the x-direction
+   * @param depth number of grid points in the z-direction
+   * @param encoding DOUBLE or FLOAT
+   * @throws IOException if the file cannot be opened or is too small
+   */
+  public MappedHeightField(File file, int width, int depth, ENCODING encoding) throws IOException {
+    this(file, width, depth, encoding, 0, LEVELS);
+  }
+
+  /**
+   * Map a raw height file.
+   *
+   * @param file raw height file
+   * @param width number of grid points in the x-direction
+   * @param depth number of grid points in the z-direction
+   * @param encoding how samples are stored
+   * @param minHeight altitude of the sample value 0 (SHORT only)
+   * @param maxHeight altitude of the sample value 65535 (SHORT only)
+   * @throws IOException if the file cannot be opened or is too small
+   */
+  public MappedHeightField(File file, int width, int depth, ENCODING encoding,
+                           double minHeight, double maxHeight) throws IOException {
+    this.myFile = file;
+    this.myWidth = width;
+    this.myDepth = depth;
+    this.myEncoding = encoding;
+    this.myOffset = minHeight;
+    this.myScale = (maxHeight > minHeight) ? (maxHeight - minHeight) / LEVELS : 1.0 / LEVELS;
+
+    switch (encoding) {
+      case DOUBLE:
+        mySampleSize = 8;
+        break;
+      case FLOAT:
+        mySampleSize = 4;
+        break;
+      default:
+        mySampleSize = 2;
+        break;
+    }
+
+    long rowSize = (long)width * mySampleSize;
+    long size = rowSize * depth;
+    if (file.length() < size)
+      throw new IOException("Height file " + file + " is " + file.length() + " bytes, expected " + size);
+
+    //A private mapping needs a channel opened for writing, but never writes to the file
+    boolean writable = file.canWrite();
+    RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      FileChannel.MapMode mode = writable ? FileChannel.MapMode.PRIVATE : FileChannel.MapMode.READ_ONLY;
+
+      myRowsPerRegion = (int)Math.max(Math.min(MAXIMUM_REGION_SIZE / Math.max(rowSize, 1), depth), 1);
+      int regions = (depth + myRowsPerRegion - 1) / myRowsPerRegion;
+      myRegions = new MappedByteBuffer[regions];
+
+      for (int i = 0; i < regions; i++) {
+        long start = i * myRowsPerRegion * rowSize;
+        long length = Math.min(myRowsPerRegion, depth - i * myRowsPerRegion) * rowSize;
+        myRegions[i] = channel.map(mode, start, length);
+        myRegions[i].order(ByteOrder.LITTLE_ENDIAN);
+      }
+    } finally {
+      //Mappings stay valid after the channel is closed
+      raf.close();
+    }
+
+    myDirtyMin = depth;
+    myDirtyMax = -1;
+  }
+
+  @Override
+  public int getWidth() {
+    return myWidth;
+  }
+
+  @Override
+  public int getDepth() {
+    return myDepth;
+  }
+
+  @Override
+  public double get(int x, int z) {
+    int index = regionIndex(HeightField.index(x, z, myWidth, myDepth), z);
+    MappedByteBuffer region = myRegions[z / myRowsPerRegion];
+
+    switch (myEncoding) {
+      case DOUBLE:
+        return region.getDouble(index);
+      case FLOAT:
+        return region.getFloat(index);
+      default:
+        return myOffset + myScale * (region.getShort(index) & 0xFFFF);
+    }
+  }
+
+  @Override
+  public void set(int x, int z, double h) {
+    int index = regionIndex(HeightField.index(x, z, myWidth, myDepth), z);
+    MappedByteBuffer region = myRegions[z / myRowsPerRegion];
+
+    switch (myEncoding) {
+      case DOUBLE:
+        region.putDouble(index, h);
+        break;
+      case FLOAT:
+        region.putFloat(index, (float)h);
+        break;
+      default:
+        long v = Math.round((h - myOffset) / myScale);
+        region.putShort(index, (short)Math.max(0, Math.min(LEVELS, v)));
+        break;
+    }
+
+    myDirtyMin = Math.min(myDirtyMin, z);
+    myDirtyMax = Math.max(myDirtyMax, z);
+  }
+
+  /**
+   * Helper to get the byte index of a grid point within its region, from its index in the whole field.
+   */
+  private int regionIndex(int index, int z) {
+    return (index - (z - z % myRowsPerRegion) * myWidth) * mySampleSize;
+  }
+
+  @Override
+  public ENCODING getEncoding() {
+    return myEncoding;
+  }
+
+  /**
+   * Create an in memory height field with the same encoding.
+   * A new size cannot be mapped onto the same file.
+   */
+  @Override
+  public HeightField create(int width, int depth) {
+    switch (myEncoding) {
+      case DOUBLE:
+        return new DoubleHeightField(width, depth);
+      case FLOAT:
+        return new FloatHeightField(width, depth);
+      default:
+        return new QuantizedHeightField(width, depth, getMinHeight(), getMaxHeight());
+    }
+  }
+
+  /**
+   * Write the rows changed since the last flush back to the file.
+   *
+   * @throws IOException if the file cannot be written
+   */
+  public void flush() throws IOException {
+    if (myDirtyMin > myDirtyMax)
+      return;
+
+    long rowSize = (long)myWidth * mySampleSize;
+    RandomAccessFile raf = new RandomAccessFile(myFile, "rw");
+    try {
+      FileChannel channel = raf.getChannel();
+      for (int i = myDirtyMin / myRowsPerRegion; i <= myDirtyMax / myRowsPerRegion; i++) {
+        //Changed rows of this region
+        int z0 = Math.max(myDirtyMin, i * myRowsPerRegion);
+        int z1 = Math.min(myDirtyMax, (i + 1) * myRowsPerRegion - 1);
+        ByteBuffer rows = myRegions[i].duplicate();
+        rows.limit((int)((z1 - i * myRowsPerRegion + 1) * rowSize));
+        rows.position((int)((z0 - i * myRowsPerRegion) * rowSize));
+
+        long position = z0 * rowSize;
+        while (rows.hasRemaining())
+          position += channel.write(rows, position);
+      }
+      channel.force(false);
+    } finally {
+      raf.close();
+    }
+
+    myDirtyMin = myDepth;
+    myDirtyMax = -1;
+  }
+
+  public File getFile() {
+    return myFile;
+  }
+
+  public double getMinHeight() {
+    return myOffset;
+  }
+
+  public double getMaxHeight() {
+    return myOffset + myScale * LEVELS;
+  }
+}
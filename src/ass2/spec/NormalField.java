@@ -0,0 +1,195 @@
+package ass2.spec;
+
+/**
+ * Cached smooth vertex normals of a terrain.
+ *
+ * The normal at each grid point is computed once from the central difference of the
+ * neighbouring altitudes and stored flat, row by row, like HeightField. Edits mark a dirty
+ * rectangle and only the normals around it are recomputed the next time the field is used.
+ * The same normals are used for lighting the mesh and for normalAt/slopeAt queries.
+ * Rows are computed in parallel bands (see RowBands).
+ */
+public class NormalField {
+
+  private Terrain myTerrain;
+  private int myWidth;
+  private int myDepth;
+  private float[] myNormals;
+
+  //Dirty rectangle in grid points, minimum x and z then maximum x and z (inclusive)
+  private int[] dirtyRegion;
+  private boolean built;
+
+  public NormalField(Terrain terrain) {
+    this.myTerrain = terrain;
+    this.built = false;
+  }
+
+  /**
+   * Mark the whole field as out of date, for example when the terrain is resized.
+   */
+  public void invalidate() {
+    built = false;
+    dirtyRegion = null;
+  }
+
+  /**
+   * Mark a rectangle of grid points as changed. Their normals, and their neighbours', are
+   * recomputed the next time the field is used.
+   *
+   * @param x0 minimum grid x coordinate
+   * @param z0 minimum grid z coordinate
+   * @param x1 maximum grid x coordinate (inclusive)
+   * @param z1 maximum grid z coordinate (inclusive)
+   */
+  public void markDirty(int x0, int z0, int x1, int z1) {
+    if (!built)
+      return;
+
+    if (dirtyRegion == null) {
+      dirtyRegion = new int[]{x0, z0, x1, z1};
+    } else {
+      dirtyRegion[0] = Math.min(dirtyRegion[0], x0);
+      dirtyRegion[1] = Math.min(dirtyRegion[1], z0);
+      dirtyRegion[2] = Math.max(dirtyRegion[2], x1);
+      dirtyRegion[3] = Math.max(dirtyRegion[3], z1);
+    }
+  }
+
+  /**
+   * Bring the normals up to date with the terrain, computing all of them on first use.
+   */
+  public void update() {
+    if (!built) {
+      myWidth = myTerrain.size().width;
+      myDepth = myTerrain.size().height;
+      if (myNormals == null || myNormals.length != myWidth * myDepth * 3)
+        myNormals = new float[myWidth * myDepth * 3];
+
+      computeRegion(0, 0, myWidth - 1, myDepth - 1);
+      built = true;
+      dirtyRegion = null;
+    } else if (dirtyRegion != null) {
+      //Normals depend on neighbouring altitudes so grow the rectangle by one grid point
+      int x0 = Math.max(dirtyRegion[0] - 1, 0);
+      int z0 = Math.max(dirtyRegion[1] - 1, 0);
+      int x1 = Math.min(dirtyRegion[2] + 1, myWidth - 1);
+      int z1 = Math.min(dirtyRegion[3] + 1, myDepth - 1);
+      dirtyRegion = null;
+
+      computeRegion(x0, z0, x1, z1);
+    }
+  }
+
+  /**
+   * Compute the normals of a rectangle of grid points (inclusive).
+   */
+  public void computeRegion(final int x0, int z0, final int x1, int z1) {
+    RowBands.run(z0, z1 + 1, RowBands.DEFAULT_GRAIN, new RowBands.Band() {
+      @Override
+      public void run(int bandZ0, int bandZ1) {
+        for (int z = bandZ0; z < bandZ1; ++z) {
+          for (int x = x0; x <= x1; ++x) {
+            computeNormal(x, z);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Compute the normal at a grid point from the central difference of the neighbouring altitudes,
+   * using one sided differences at the edge of the terrain.
+   */
+  private void computeNormal(int x, int z) {
+    int left = Math.max(x - 1, 0);
+    int right = Math.min(x + 1, myWidth - 1);
+    int up = Math.max(z - 1, 0);
+    int down = Math.min(z + 1, myDepth - 1);
+
+    double dx = (right == left) ? 0 : (myTerrain.getGridAltitude(right, z) - myTerrain.getGridAltitude(left, z)) / (right - left);
+    double dz = (down == up) ? 0 : (myTerrain.getGridAltitude(x, down) - myTerrain.getGridAltitude(x, up)) / (down - up);
+    double magnitude = Math.sqrt(dx * dx + 1 + dz * dz);
+
+    int index = (z * myWidth + x) * 3;
+    myNormals[index] = (float)(-dx / magnitude);
+    myNormals[index + 1] = (float)(1 / magnitude);
+    myNormals[index + 2] = (float)(-dz / magnitude);
+  }
+
+  //Getters for the normal at a grid point
+  public float getX(int x, int z) {
+    return myNormals[(z * myWidth + x) * 3];
+  }
+
+  public float getY(int x, int z) {
+    return myNormals[(z * myWidth + x) * 3 + 1];
+  }
+
+  public float getZ(int x, int z) {
+    return myNormals[(z * myWidth + x) * 3 + 2];
+  }
+
+  /**
+   * Get the smooth normal at an arbitrary point.
+   * The vertex normals of the triangle holding the point are blended the same way altitude() blends
+   * altitudes and the result is normalised. Points off the terrain face straight up.
+   *
+   * @param x point on x axis
+   * @param z point on z axis
+   * @return unit normal vector
+   */
+  public double[] normalAt(double x, double z) {
+    update();
+
+    if (x < 0 || x > myWidth - 1 || z < 0 || z > myDepth - 1)
+      return new double[]{0, 1, 0};
+
+    int x0 = Math.min((int)x, Math.max(myWidth - 2, 0));
+    int z0 = Math.min((int)z, Math.max(myDepth - 2, 0));
+    int x1 = Math.min(x0 + 1, myWidth - 1);
+    int z1 = Math.min(z0 + 1, myDepth - 1);
+    double fx = x - x0;
+    double fz = z - z0;
+
+    //Corner weights for the triangle holding the point, see Terrain.altitude()
+    double w00 = 0;
+    double w11 = 0;
+    double w10;
+    double w01;
+    if (fx + fz < 1) {
+      w00 = 1 - fx - fz;
+      w10 = fx;
+      w01 = fz;
+    } else {
+      w11 = fx + fz - 1;
+      w10 = 1 - fz;
+      w01 = 1 - fx;
+    }
+
+    double[] n = new double[3];
+    for (int i = 0; i < 3; i++) {
+      n[i] = w00 * myNormals[(z0 * myWidth + x0) * 3 + i] + w10 * myNormals[(z0 * myWidth + x1) * 3 + i] +
+        w01 * myNormals[(z1 * myWidth + x0) * 3 + i] + w11 * myNormals[(z1 * myWidth + x1) * 3 + i];
+    }
+
+    double magnitude = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+    n[0] /= magnitude;
+    n[1] /= magnitude;
+    n[2] /= magnitude;
+
+    return n;
+  }
+
+  /**
+   * Get the slope at an arbitrary point as the angle between the normal and straight up.
+   *
+   * @param x point on x axis
+   * @param z point on z axis
+   * @return slope in degrees, 0 for flat ground
+   */
+  public double slopeAt(double x, double z) {
+    double[] n = normalAt(x, z);
+    return Math.toDegrees(Math.acos(MathUtil.clamp(n[1], -1, 1)));
+  }
+}
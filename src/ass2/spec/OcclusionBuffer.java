@@ -0,0 +1,409 @@
+package ass2.spec;
+
+import java.util.Arrays;
+
+/**
+ * Coarse CPU depth buffer of the terrain used to skip objects hidden behind hills.
+ *
+ * The occluders are taken from the terrain's min/max height pyramid. Over each block the terrain is
+ * never lower than the block's minimum altitude, so the column under the block up to that altitude is
+ * inside the terrain. While the camera is above the terrain, anything seen through the top or sides of
+ * such a column must be behind the terrain surface. Where the mesh is drawn at a coarser level of
+ * detail its triangles reach past the block, so the minimum is taken over the block widened by the
+ * drawn vertex spacing.
+ *
+ * Each frame the pyramid is walked from the top and a block is rasterised as a column once it covers
+ * only a few pixels of the small buffer, so blocks near the camera are finer than those far away.
+ * Pixels are covered by their centre and store the furthest depth of the face over the pixel, then
+ * each pixel takes the furthest depth of its neighbours so partly covered edge pixels stay open. An
+ * object is hidden if every pixel its bounding box covers holds an occluder closer than the nearest
+ * corner of the box.
+ */
+public class OcclusionBuffer {
+
+  private int myWidth;
+  private int myHeight;
+  private float[] myDepths;
+  private float[] myEroded;
+
+  //Camera of the last render
+  private double[] myEye;
+  private double[] myForward;
+  private double[] myRight;
+  private double[] myUp;
+  private double myTanHalfFovX;
+  private double myTanHalfFovY;
+  private double myNear;
+  private boolean myActive;
+
+  //Direction of the view ray through each pixel corner, scaled so its forward component is 1
+  private double[][] myCorners;
+
+  //Terrain of the current render
+  private Terrain myTerrain;
+  private Frustum myFrustum;
+  private double myBottom;
+  private double myBlockPixels;
+
+  //Constants
+  public static final int DEFAULT_WIDTH = 128; //pixels across, the height follows the aspect ratio
+  private static final double BLOCK_PIXELS = 8.0; //blocks are split until they are about this many pixels across
+
+  public OcclusionBuffer() {
+    this(DEFAULT_WIDTH);
+  }
+
+  /**
+   * @param width number of pixels across
+   */
+  public OcclusionBuffer(int width) {
+    this.myWidth = width;
+    this.myActive = false;
+  }
+
+  /**
+   * Rasterise the terrain in view into the buffer.
+   * If the camera is off or under the terrain nothing is treated as hidden.
+   *
+   * @param terrain terrain to rasterise
+   * @param frustum camera frustum
+   */
+  public void render(Terrain terrain, Frustum frustum) {
+    double[] eye = frustum.getEye();
+    int width = terrain.size().width;
+    int depth = terrain.size().height;
+    myActive = width > 1 && depth > 1 && eye[0] >= 0 && eye[0] <= width - 1 &&
+      eye[2] >= 0 && eye[2] <= depth - 1 && eye[1] > terrain.altitude(eye[0], eye[2]);
+    if (!myActive)
+      return;
+
+    setCamera(frustum);
+    Arrays.fill(myDepths, Float.POSITIVE_INFINITY);
+
+    myTerrain = terrain;
+    myFrustum = frustum;
+    myBottom = terrain.getHeightPyramid().getAltitudeRange(0, 0, width - 1, depth - 1)[0];
+
+    //Size of a few buffer pixels in radians, as blocks get closer they are split further
+    myBlockPixels = BLOCK_PIXELS * 2 * myTanHalfFovY / myHeight;
+
+    int top = terrain.getHeightPyramid().getLevels() - 1;
+    visit(top, 0, 0);
+    erode();
+
+    myTerrain = null;
+    myFrustum = null;
+  }
+
+  /**
+   * Rasterise block (bx, bz) of a pyramid level, or its 4 children if it is still large on screen.
+   */
+  private void visit(int level, int bx, int bz) {
+    int size = 1 << level;
+    int x0 = bx * size;
+    int z0 = bz * size;
+    int maxX = myTerrain.size().width - 1;
+    int maxZ = myTerrain.size().height - 1;
+    if (x0 >= maxX || z0 >= maxZ)
+      return;
+    int x1 = Math.min(x0 + size, maxX);
+    int z1 = Math.min(z0 + size, maxZ);
+
+    //The range is widened so the column stays under coarse level of detail triangles too
+    HeightPyramid pyramid = myTerrain.getHeightPyramid();
+    int stride = myTerrain.getDrawnStride(x0, z0, x1, z1);
+    double[] range;
+    if (stride > 1)
+      range = pyramid.getAltitudeRange(x0 - stride, z0 - stride, x1 + stride, z1 + stride);
+    else
+      range = new double[]{pyramid.getBlockMin(level, bx, bz), pyramid.getBlockMax(level, bx, bz)};
+    if (!myFrustum.intersectsBox(x0, myBottom, z0, x1, range[1], z1))
+      return;
+
+    //Distance from the eye to the block
+    double dx = Math.max(Math.max(x0 - myEye[0], myEye[0] - x1), 0);
+    double dz = Math.max(Math.max(z0 - myEye[2], myEye[2] - z1), 0);
+    double dy = Math.max(Math.max(myBottom - myEye[1], myEye[1] - range[1]), 0);
+    double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+    if (level > 0 && size > distance * myBlockPixels) {
+      visit(level - 1, 2 * bx, 2 * bz);
+      visit(level - 1, 2 * bx + 1, 2 * bz);
+      visit(level - 1, 2 * bx, 2 * bz + 1);
+      visit(level - 1, 2 * bx + 1, 2 * bz + 1);
+      return;
+    }
+
+    //The sides only need to reach down to about the columns next to this one, below that they are
+    //behind them. Any bottom is safe, a higher one only leaves gaps.
+    double bottom = range[0];
+    for (int j = bz - 1; j <= bz + 1; ++j) {
+      for (int i = bx - 1; i <= bx + 1; ++i) {
+        bottom = Math.min(bottom, pyramid.getBlockMin(level, i, j));
+      }
+    }
+    rasteriseColumn(x0, z0, x1, z1, bottom, range[0]);
+  }
+
+  /**
+   * Give each pixel the furthest depth of its neighbours.
+   * Pixels are covered by their centre, so a pixel on the edge of an occluder may be only partly
+   * behind it. Its neighbours on the open side are not covered, so this pulls it back open.
+   */
+  private void erode() {
+    if (myEroded == null || myEroded.length != myDepths.length)
+      myEroded = new float[myDepths.length];
+
+    for (int j = 0; j < myHeight; ++j) {
+      for (int i = 0; i < myWidth; ++i) {
+        float depth = myDepths[j * myWidth + i];
+        for (int y = Math.max(j - 1, 0); y <= Math.min(j + 1, myHeight - 1); ++y) {
+          for (int x = Math.max(i - 1, 0); x <= Math.min(i + 1, myWidth - 1); ++x) {
+            depth = Math.max(depth, myDepths[y * myWidth + x]);
+          }
+        }
+        myEroded[j * myWidth + i] = depth;
+      }
+    }
+
+    float[] swap = myDepths;
+    myDepths = myEroded;
+    myEroded = swap;
+  }
+
+  /**
+   * Rasterise the faces of the column under a block that face the camera.
+   */
+  private void rasteriseColumn(double x0, double z0, double x1, double z1, double bottom, double top) {
+    if (myEye[1] > top)
+      rasteriseFace(1, top, new double[]{x0, top, z0}, new double[]{x1, top, z1});
+    if (top <= bottom)
+      return;
+
+    if (myEye[0] < x0)
+      rasteriseFace(0, x0, new double[]{x0, bottom, z0}, new double[]{x0, top, z1});
+    if (myEye[0] > x1)
+      rasteriseFace(0, x1, new double[]{x1, bottom, z0}, new double[]{x1, top, z1});
+    if (myEye[2] < z0)
+      rasteriseFace(2, z0, new double[]{x0, bottom, z0}, new double[]{x1, top, z0});
+    if (myEye[2] > z1)
+      rasteriseFace(2, z1, new double[]{x0, bottom, z1}, new double[]{x1, top, z1});
+  }
+
+  /**
+   * Take the camera from the frustum and size the buffer to its aspect ratio.
+   */
+  private void setCamera(Frustum frustum) {
+    myEye = frustum.getEye();
+    myForward = frustum.getForward();
+    myRight = frustum.getRight();
+    myUp = frustum.getUp();
+    myTanHalfFovY = frustum.getTanHalfFovY();
+    myTanHalfFovX = myTanHalfFovY * frustum.getAspectRatio();
+    myNear = frustum.getNear();
+
+    int height = Math.max((int)Math.round(myWidth / frustum.getAspectRatio()), 1);
+    if (myDepths == null || height != myHeight) {
+      myHeight = height;
+      myDepths = new float[myWidth * myHeight];
+      myCorners = new double[3][(myWidth + 1) * (myHeight + 1)];
+    }
+
+    for (int j = 0; j <= myHeight; ++j) {
+      double sy = (2.0 * j / myHeight - 1) * myTanHalfFovY;
+      for (int i = 0; i <= myWidth; ++i) {
+        double sx = (2.0 * i / myWidth - 1) * myTanHalfFovX;
+        int index = j * (myWidth + 1) + i;
+        for (int k = 0; k < 3; k++) {
+          myCorners[k][index] = myForward[k] + myRight[k] * sx + myUp[k] * sy;
+        }
+      }
+    }
+  }
+
+  /**
+   * Rasterise an axis aligned rectangle lying in the plane where coordinate axis equals value.
+   *
+   * @param axis 0, 1 or 2 for a plane of constant x, y or z
+   * @param value coordinate of the plane
+   * @param min minimum corner of the rectangle
+   * @param max maximum corner of the rectangle
+   */
+  private void rasteriseFace(int axis, double value, double[] min, double[] max) {
+    //Corners of the rectangle in order around it
+    int u = (axis == 0) ? 1 : 0;
+    int v = (axis == 2) ? 1 : 2;
+    double[][] polygon = new double[4][3];
+    for (int i = 0; i < 4; i++) {
+      polygon[i][axis] = value;
+      polygon[i][u] = (i == 1 || i == 2) ? max[u] : min[u];
+      polygon[i][v] = (i >= 2) ? max[v] : min[v];
+    }
+
+    //Pixels the part of the rectangle in front of the camera can cover
+    int[] rect = screenRect(clipNear(polygon));
+    if (rect == null)
+      return;
+
+    //Depth at which each pixel corner ray meets the plane, or infinity if it meets it behind the camera
+    int stride = myWidth + 1;
+    int rowLength = rect[2] - rect[0] + 2;
+    double[] cornerDepths = new double[rowLength * (rect[3] - rect[1] + 2)];
+    double[] direction = myCorners[axis];
+    double offset = value - myEye[axis];
+    for (int j = rect[1]; j <= rect[3] + 1; ++j) {
+      for (int i = rect[0]; i <= rect[2] + 1; ++i) {
+        double t = offset / direction[j * stride + i];
+        cornerDepths[(j - rect[1]) * rowLength + (i - rect[0])] = (t > 0) ? t : Double.POSITIVE_INFINITY;
+      }
+    }
+
+    //A pixel is covered if the ray through its centre meets the rectangle, it takes the furthest
+    //depth of the plane over the pixel which is at one of its corners
+    for (int j = rect[1]; j <= rect[3]; ++j) {
+      for (int i = rect[0]; i <= rect[2]; ++i) {
+        int corner = (j - rect[1]) * rowLength + (i - rect[0]);
+        double depth = Math.max(Math.max(cornerDepths[corner], cornerDepths[corner + 1]),
+          Math.max(cornerDepths[corner + rowLength], cornerDepths[corner + rowLength + 1]));
+        int pixel = j * myWidth + i;
+        if (depth >= myDepths[pixel])
+          continue;
+
+        //Centre ray is the average of the corner rays
+        int index = j * stride + i;
+        double t = offset / centre(direction, index, stride);
+        double pu = myEye[u] + centre(myCorners[u], index, stride) * t;
+        double pv = myEye[v] + centre(myCorners[v], index, stride) * t;
+        if (t > 0 && pu >= min[u] && pu <= max[u] && pv >= min[v] && pv <= max[v])
+          myDepths[pixel] = Math.nextUp((float)depth);
+      }
+    }
+  }
+
+  /**
+   * Get a component of the ray through the centre of a pixel from its corner rays.
+   */
+  private static double centre(double[] corners, int index, int stride) {
+    return (corners[index] + corners[index + 1] + corners[index + stride] + corners[index + stride + 1]) / 4;
+  }
+
+  /**
+   * Clip a convex polygon to the part in front of the near plane.
+   *
+   * @param polygon corners in order
+   * @return clipped corners, possibly none
+   */
+  private double[][] clipNear(double[][] polygon) {
+    double[][] clipped = new double[polygon.length + 1][];
+    int count = 0;
+
+    for (int i = 0; i < polygon.length; i++) {
+      double[] a = polygon[i];
+      double[] b = polygon[(i + 1) % polygon.length];
+      double da = depth(a) - myNear;
+      double db = depth(b) - myNear;
+
+      if (da >= 0)
+        clipped[count++] = a;
+      if ((da >= 0) != (db >= 0)) {
+        double t = da / (da - db);
+        clipped[count++] = new double[]{a[0] + (b[0] - a[0]) * t, a[1] + (b[1] - a[1]) * t, a[2] + (b[2] - a[2]) * t};
+      }
+    }
+
+    return Arrays.copyOf(clipped, count);
+  }
+
+  /**
+   * Get the depth of a point along the view direction.
+   */
+  private double depth(double[] p) {
+    return (p[0] - myEye[0]) * myForward[0] + (p[1] - myEye[1]) * myForward[1] + (p[2] - myEye[2]) * myForward[2];
+  }
+
+  /**
+   * Get the rectangle of pixels covered by a set of points in front of the camera, clamped to the buffer.
+   *
+   * @return minimum x and y then maximum x and y pixel (inclusive), or null if it is off the buffer
+   */
+  private int[] screenRect(double[][] points) {
+    double minX = Double.POSITIVE_INFINITY;
+    double minY = Double.POSITIVE_INFINITY;
+    double maxX = Double.NEGATIVE_INFINITY;
+    double maxY = Double.NEGATIVE_INFINITY;
+
+    for (double[] p : points) {
+      double vx = p[0] - myEye[0];
+      double vy = p[1] - myEye[1];
+      double vz = p[2] - myEye[2];
+      double depth = Math.max(depth(p), myNear);
+
+      double sx = (vx * myRight[0] + vy * myRight[1] + vz * myRight[2]) / (depth * myTanHalfFovX);
+      double sy = (vx * myUp[0] + vy * myUp[1] + vz * myUp[2]) / (depth * myTanHalfFovY);
+      minX = Math.min(minX, sx);
+      minY = Math.min(minY, sy);
+      maxX = Math.max(maxX, sx);
+      maxY = Math.max(maxY, sy);
+    }
+
+    int x0 = Math.max((int)Math.floor((minX + 1) / 2 * myWidth), 0);
+    int y0 = Math.max((int)Math.floor((minY + 1) / 2 * myHeight), 0);
+    int x1 = Math.min((int)Math.floor((maxX + 1) / 2 * myWidth), myWidth - 1);
+    int y1 = Math.min((int)Math.floor((maxY + 1) / 2 * myHeight), myHeight - 1);
+    if (x0 > x1 || y0 > y1)
+      return null;
+
+    return new int[]{x0, y0, x1, y1};
+  }
+
+  /**
+   * Check if a box is completely hidden behind the terrain rasterised by the last render.
+   *
+   * @param bounds minimum x, y, z then maximum x, y, z of the box
+   * @return true if the box cannot be seen
+   */
+  public boolean isOccluded(double[] bounds) {
+    if (!myActive)
+      return false;
+
+    double[][] corners = new double[8][];
+    double nearest = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < 8; i++) {
+      corners[i] = new double[]{bounds[(i & 1) * 3], bounds[((i >> 1) & 1) * 3 + 1], bounds[((i >> 2) & 1) * 3 + 2]};
+      nearest = Math.min(nearest, depth(corners[i]));
+    }
+
+    //Boxes reaching behind the camera are never hidden
+    if (nearest < myNear)
+      return false;
+
+    int[] rect = screenRect(corners);
+    if (rect == null)
+      return false;
+
+    for (int j = rect[1]; j <= rect[3]; ++j) {
+      for (int i = rect[0]; i <= rect[2]; ++i) {
+        if (myDepths[j * myWidth + i] >= nearest)
+          return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Check if the last render rasterised anything, it is skipped while the camera is off or under
+   * the terrain.
+   */
+  public boolean isActive() {
+    return myActive;
+  }
+
+  public int getWidth() {
+    return myWidth;
+  }
+
+  public int getHeight() {
+    return myHeight;
+  }
+}
@@ -14,6 +14,8 @@ public class Portal {
   
   //Constants
   public static final double PORTAL_ALTITUDE_OFFSET = 0.8; //offset from ground so portal sits on ground
+  private static final double PORTAL_HALF_WIDTH = 0.5; //x scale of the portal circle
+  private static final double PORTAL_HALF_HEIGHT = 0.8; //y scale of the portal circle
   
   public Portal(Terrain terrain, double x, double z, double rotation, int portalNum) {
     this.myTerrain = terrain;
@@ -28,7 +30,7 @@ public class Portal {
     //Set positions and apply rotations
     gl.glTranslated(myPos[0], myTerrain.altitude(myPos[0], myPos[1]) + PORTAL_ALTITUDE_OFFSET, myPos[1]);
     gl.glRotated(-myRotation, 0, 1.0, 0);
-    gl.glScaled(0.5, 0.8, 1.0);
+    gl.glScaled(PORTAL_HALF_WIDTH, PORTAL_HALF_HEIGHT, 1.0);
   
     //Determine portal colour and texture based on portal number
     //Ie based on if portal is first or second portal defined in portal pair
@@ -103,6 +105,17 @@ public class Portal {
     gl.glPopMatrix();
   }
   
+  /**
+   * Get a bounding box holding the portal at any rotation.
+   *
+   * @return minimum x, y, z then maximum x, y, z
+   */
+  public double[] getBounds() {
+    double y = myTerrain.altitude(myPos[0], myPos[1]) + PORTAL_ALTITUDE_OFFSET;
+    return new double[]{myPos[0] - PORTAL_HALF_WIDTH, y - PORTAL_HALF_HEIGHT, myPos[1] - PORTAL_HALF_WIDTH,
+      myPos[0] + PORTAL_HALF_WIDTH, y + PORTAL_HALF_HEIGHT, myPos[1] + PORTAL_HALF_WIDTH};
+  }
+  
   //Getters
   public double[] getMyPos() {
     return myPos;
@@ -0,0 +1,93 @@
+package ass2.spec;
+
+/**
+ * Height field storing each altitude as a 16 bit value in one flat array.
+ *
+ * Altitudes are quantized over a fixed range: the stored value v maps to offset + scale * v
+ * where v runs over 0..65535. Altitudes outside the range are clamped to it.
+ * Uses a quarter of the memory of DoubleHeightField.
+ */
+public class QuantizedHeightField extends HeightField {
+
+  private int myWidth;
+  private int myDepth;
+  private short[] myHeights;
+  private double myOffset;
+  private double myScale;
+
+  //Constants
+  private static final int LEVELS = 65535; //number of steps between the minimum and maximum altitude
+
+  /**
+   * Create a quantized height field
+   *
+   * @param width number of grid points in the x-direction
+   * @param depth number of grid points in the z-direction
+   * @param minHeight lowest altitude that can be stored
+   * @param maxHeight highest altitude that can be stored
+   */
+  public QuantizedHeightField(int width, int depth, double minHeight, double maxHeight) {
+    this.myWidth = width;
+    this.myDepth = depth;
+    this.myHeights = new short[width * depth];
+    this.myOffset = minHeight;
+    this.myScale = (maxHeight > minHeight) ? (maxHeight - minHeight) / LEVELS : 1.0 / LEVELS;
+
+    //Start at the value closest to 0 like the other height fields
+    if (minHeight < 0 || maxHeight < 0) {
+      for (int i = 0; i < myHeights.length; i++) {
+        myHeights[i] = encode(0);
+      }
+    }
+  }
+
+  @Override
+  public int getWidth() {
+    return myWidth;
+  }
+
+  @Override
+  public int getDepth() {
+    return myDepth;
+  }
+
+  @Override
+  public double get(int x, int z) {
+    return myOffset + myScale * (myHeights[HeightField.index(x, z, myWidth, myDepth)] & 0xFFFF);
+  }
+
+  @Override
+  public void set(int x, int z, double h) {
+    myHeights[HeightField.index(x, z, myWidth, myDepth)] = encode(h);
+  }
+
+  /**
+   * Helper to quantize an altitude to the closest stored value.
+   */
+  private short encode(double h) {
+    long v = Math.round((h - myOffset) / myScale);
+    return (short)Math.max(0, Math.min(LEVELS, v));
+  }
+
+  @Override
+  public ENCODING getEncoding() {
+    return ENCODING.SHORT;
+  }
+
+  @Override
+  public HeightField create(int width, int depth) {
+    return new QuantizedHeightField(width, depth, getMinHeight(), getMaxHeight());
+  }
+
+  public double getMinHeight() {
+    return myOffset;
+  }
+
+  public double getMaxHeight() {
+    return myOffset + myScale * LEVELS;
+  }
+
+  public double getScale() {
+    return myScale;
+  }
+}
@@ -1,11 +1,13 @@
 package ass2.spec;
 
+import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.util.GLBuffers;
 import com.jogamp.opengl.util.texture.Texture;
 import com.jogamp.opengl.util.texture.TextureCoords;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 /**
  * COMMENT: Comment Road 
@@ -14,23 +16,58 @@ import java.util.List;
  */
 public class Road {
   
-  private List<Double> myPoints;
+  //Control points as x, y pairs, only the first myPointsLength values are used
+  private double[] myPoints;
+  private int myPointsLength;
   private double myWidth;
   private Terrain myTerrain;
   
+  //Baked triangle strips, interleaved position, normal and texture coordinates
+  private FloatBuffer vertexBuffer;
+  private int stripVertices;
+  private int vertexVboId;
+  private boolean built;
+  private boolean uploaded;
+  
+  //Tessellation, the parameters of the samples along the spine
+  private double[] mySamples;
+  private int mySampleCount;
+  private boolean adaptiveEnabled;
+  private double myFlatness;
+  
+  //Draping over the terrain, the strips are split into columns across the road
+  private boolean drapeEnabled;
+  private double myDrapeSpacing;
+  private int myColumns;
+  private double myMinY;
+  private double myMaxY;
+  
   //Constants
   private static final double DIVISION_FACTOR = 75; //the higher this is the more accurate/smooth road is
                                                       //but also increases computation cost
+  public static final double DEFAULT_FLATNESS = 0.01; //distance the spine may stray from its quads in adaptive mode
+  public static final double DEFAULT_DRAPE_SPACING = 1.0; //distance between terrain samples of a draped road, one grid
+  private static final double COS_MAX_TURN = Math.cos(Math.toRadians(10)); //largest turn of the spine within one quad
+  private static final int MAX_SUBDIVISIONS = 16; //deepest halving of a segment, for degenerate curves
+  private static final int INITIAL_CAPACITY = 8; //values in a new spine array, one segment
   private static final double ALTITUDE_OFFSET = 0.015; //to combat 'Z-fighting' of terrain and road
+  private static final int FLOATS_PER_VERTEX = 8; //position (3), normal (3), texture coordinates (2)
+  private static final int NORMAL_OFFSET = 3; //offset of the normal in a vertex, in floats
+  private static final int TEXTURE_OFFSET = 6; //offset of the texture coordinates in a vertex, in floats
+  private static final int STRIDE = FLOATS_PER_VERTEX * GLBuffers.SIZEOF_FLOAT; //bytes between vertices
   
   /**
    * Create a new road starting at the specified point
    */
   public Road(double width, double x0, double y0) {
     myWidth = width;
-    myPoints = new ArrayList<Double>();
-    myPoints.add(x0);
-    myPoints.add(y0);
+    adaptiveEnabled = false;
+    myFlatness = DEFAULT_FLATNESS;
+    drapeEnabled = false;
+    myDrapeSpacing = DEFAULT_DRAPE_SPACING;
+    myPoints = new double[INITIAL_CAPACITY];
+    myPoints[myPointsLength++] = x0;
+    myPoints[myPointsLength++] = y0;
   }
   
   /**
@@ -42,10 +79,13 @@ public class Road {
   public Road(double width, double[] spine, Terrain terrain) {
     myWidth = width;
     myTerrain = terrain;
-    myPoints = new ArrayList<Double>();
-    for (int i = 0; i < spine.length; i++) {
-      myPoints.add(spine[i]);
-    }
+    adaptiveEnabled = false;
+    myFlatness = DEFAULT_FLATNESS;
+    drapeEnabled = false;
+    myDrapeSpacing = DEFAULT_DRAPE_SPACING;
+    myPoints = new double[Math.max(spine.length, INITIAL_CAPACITY)];
+    System.arraycopy(spine, 0, myPoints, 0, spine.length);
+    myPointsLength = spine.length;
   }
   
   /**
@@ -69,12 +109,21 @@ public class Road {
    * @param y3
    */
   public void addSegment(double x1, double y1, double x2, double y2, double x3, double y3) {
-    myPoints.add(x1);
-    myPoints.add(y1);
-    myPoints.add(x2);
-    myPoints.add(y2);
-    myPoints.add(x3);
-    myPoints.add(y3);
+    //Grow the array by half again when it is full
+    if (myPointsLength + 6 > myPoints.length)
+      myPoints = Arrays.copyOf(myPoints, Math.max(myPoints.length + myPoints.length / 2, myPointsLength + 6));
+    
+    myPoints[myPointsLength++] = x1;
+    myPoints[myPointsLength++] = y1;
+    myPoints[myPointsLength++] = x2;
+    myPoints[myPointsLength++] = y2;
+    myPoints[myPointsLength++] = x3;
+    myPoints[myPointsLength++] = y3;
+    
+    //The baked strip no longer matches the spine
+    built = false;
+    if (myTerrain != null)
+      myTerrain.roadChanged(this);
   }
   
   /**
@@ -83,7 +132,7 @@ public class Road {
    * @return
    */
   public int size() {
-    return myPoints.size() / 6;
+    return myPointsLength / 6;
   }
   
   /**
@@ -94,11 +143,74 @@ public class Road {
    */
   public double[] controlPoint(int i) {
     double[] p = new double[2];
-    p[0] = myPoints.get(i*2);
-    p[1] = myPoints.get(i*2+1);
+    p[0] = myPoints[i*2];
+    p[1] = myPoints[i*2+1];
     return p;
   }
   
+  /**
+   * Get the number of control points, which is 3 * size() + 1 for a road with at least one segment.
+   *
+   * @return
+   */
+  public int controlPointCount() {
+    return myPointsLength / 2;
+  }
+  
+  /**
+   * Copy the spine, as x, y pairs of every control point, into an array.
+   * The array must have room for 2 * controlPointCount() values from the offset.
+   *
+   * @param dest array to copy into
+   * @param offset index in dest of the first x coordinate
+   * @return number of values copied
+   */
+  public int getSpine(double[] dest, int offset) {
+    System.arraycopy(myPoints, 0, dest, offset, myPointsLength);
+    return myPointsLength;
+  }
+  
+  /**
+   * Get a copy of the spine, as x, y pairs of every control point.
+   *
+   * @return
+   */
+  public double[] getSpine() {
+    return Arrays.copyOf(myPoints, myPointsLength);
+  }
+  
+  /**
+   * Get the bounding box of the road.
+   * A bezier curve stays inside its control points so they bound the spine, widened by half the road.
+   * A draped road spans the altitudes it is baked at, so it is baked first if it is out of date,
+   * otherwise a road climbing a hill could be culled on stale bounds and never baked again.
+   * A flat road is at the altitude of its start.
+   *
+   * @return minimum x, y, z then maximum x, y, z
+   */
+  public double[] getBounds() {
+    if (isDraped() && !built)
+      build();
+    
+    double minY, maxY;
+    if (isDraped() && myMinY <= myMaxY) {
+      minY = myMinY;
+      maxY = myMaxY;
+    } else {
+      minY = maxY = myTerrain.altitude(point(0.0)[0], point(0.0)[1]) + ALTITUDE_OFFSET;
+    }
+    double[] bounds = {Double.POSITIVE_INFINITY, minY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, maxY, Double.NEGATIVE_INFINITY};
+    
+    for (int i = 0; i < myPointsLength; i += 2) {
+      bounds[0] = Math.min(bounds[0], myPoints[i] - myWidth / 2);
+      bounds[2] = Math.min(bounds[2], myPoints[i+1] - myWidth / 2);
+      bounds[3] = Math.max(bounds[3], myPoints[i] + myWidth / 2);
+      bounds[5] = Math.max(bounds[5], myPoints[i+1] + myWidth / 2);
+    }
+    
+    return bounds;
+  }
+  
   /**
    * Get a point on the spine. The parameter t may vary from 0 to size().
    * Points on the kth segment take have parameters in the range (k, k+1).
@@ -107,21 +219,36 @@ public class Road {
    * @return
    */
   public double[] point(double t) {
+    return point(t, new double[2]);
+  }
+  
+  /**
+   * Get a point on the spine into an existing array, see point(t).
+   *
+   * @param t
+   * @param p array of at least 2 values to store the x and y coordinates in
+   * @return p
+   */
+  public double[] point(double t, double[] p) {
     int i = (int)Math.floor(t);
     t = t - i;
     
-    i *= 6;
+    //The very end of the spine is the end of the last segment
+    if (i >= size()) {
+      i = size() - 1;
+      t = 1.0;
+    }
     
-    double x0 = myPoints.get(i++);
-    double y0 = myPoints.get(i++);
-    double x1 = myPoints.get(i++);
-    double y1 = myPoints.get(i++);
-    double x2 = myPoints.get(i++);
-    double y2 = myPoints.get(i++);
-    double x3 = myPoints.get(i++);
-    double y3 = myPoints.get(i++);
+    i *= 6;
     
-    double[] p = new double[2];
+    double x0 = myPoints[i++];
+    double y0 = myPoints[i++];
+    double x1 = myPoints[i++];
+    double y1 = myPoints[i++];
+    double x2 = myPoints[i++];
+    double y2 = myPoints[i++];
+    double x3 = myPoints[i++];
+    double y3 = myPoints[i++];
     
     p[0] = b(0, t) * x0 + b(1, t) * x1 + b(2, t) * x2 + b(3, t) * x3;
     p[1] = b(0, t) * y0 + b(1, t) * y1 + b(2, t) * y2 + b(3, t) * y3;
@@ -129,6 +256,31 @@ public class Road {
     return p;
   }
   
+  /**
+   * Get the direction of the spine (the derivative of point(t)) into an existing array.
+   *
+   * @param t
+   * @param d array of at least 2 values to store the x and y components in
+   * @return d
+   */
+  public double[] tangent(double t, double[] d) {
+    int i = (int)Math.floor(t);
+    t = t - i;
+    if (i >= size()) {
+      i = size() - 1;
+      t = 1.0;
+    }
+    i *= 6;
+    
+    double a = 3 * (1-t) * (1-t);
+    double b = 6 * (1-t) * t;
+    double c = 3 * t * t;
+    d[0] = a * (myPoints[i+2] - myPoints[i]) + b * (myPoints[i+4] - myPoints[i+2]) + c * (myPoints[i+6] - myPoints[i+4]);
+    d[1] = a * (myPoints[i+3] - myPoints[i+1]) + b * (myPoints[i+5] - myPoints[i+3]) + c * (myPoints[i+7] - myPoints[i+5]);
+    
+    return d;
+  }
+  
   /**
    * Calculate the Bezier coefficients
    *
@@ -158,23 +310,423 @@ public class Road {
   }
   
   /*********************** My Code *********************/
-  public void draw(GL2 gl, TexturePack texturePack) {
-    gl.glPushMatrix();
-    gl.glPushAttrib(GL2.GL_LIGHTING);
+  
+  /**
+   * Bake the road into triangle strips along the spine, one strip per column across the road.
+   * This only touches CPU memory, no OpenGL calls are made.
+   *
+   * A flat road is a single strip at altitude 0 which is lifted to the start of the road when
+   * drawn. A draped road samples the terrain at most every drape spacing along and across the road,
+   * so it is split into as many columns as that needs and its vertices are at the terrain altitude.
+   */
+  public void build() {
+    mySampleCount = 0;
+    if (adaptiveEnabled)
+      sampleAdaptive();
+    else
+      sampleFixed();
+    
+    boolean draped = isDraped();
+    if (draped)
+      densifySamples();
+    
+    myColumns = draped ? Math.max((int)Math.ceil(myWidth / myDrapeSpacing), 1) : 1;
+    stripVertices = (mySampleCount >= 2) ? mySampleCount * 2 : 0;
+    
+    int vertices = stripVertices * myColumns;
+    if (vertexBuffer == null || vertexBuffer.capacity() < vertices * FLOATS_PER_VERTEX)
+      vertexBuffer = GLBuffers.newDirectFloatBuffer(Math.max(vertices, 1) * FLOATS_PER_VERTEX);
+    vertexBuffer.clear();
+    
+    //Each sample is pushed out sideways along the perpendicular of the spine, giving a row of
+    //myColumns + 1 points across the road
+    int rowLength = myColumns + 1;
+    double[] rowX = new double[mySampleCount * rowLength];
+    double[] rowZ = new double[mySampleCount * rowLength];
+    float[] rowV = new float[mySampleCount];
+    
+    double[] currentPoint = new double[2];
+    double[] previousPoint = new double[2];
+    double[] direction = new double[2];
+    double arcLength = 0;
+    for (int k = 0; k < mySampleCount && stripVertices > 0; ++k) {
+      point(mySamples[k], currentPoint);
+      if (k > 0)
+        arcLength += Math.hypot(currentPoint[0] - previousPoint[0], currentPoint[1] - previousPoint[1]);
+      
+      //The tangent vanishes where control points coincide, the chord between neighbouring samples is used there
+      tangent(mySamples[k], direction);
+      if (Math.hypot(direction[0], direction[1]) < 1e-9) {
+        double[] from = point(mySamples[Math.max(k - 1, 0)]);
+        double[] to = point(mySamples[Math.min(k + 1, mySampleCount - 1)]);
+        direction[0] = to[0] - from[0];
+        direction[1] = to[1] - from[1];
+      }
+      
+      //Perpendicular of the spine in the xz plane scaled to half the width
+      double length = Math.hypot(direction[0], direction[1]);
+      double px = (length == 0) ? 0 : direction[1] / length * (myWidth / 2);
+      double pz = (length == 0) ? 0 : -direction[0] / length * (myWidth / 2);
+      
+      for (int c = 0; c < rowLength; ++c) {
+        double across = 2.0 * c / myColumns - 1; //-1 at the left edge to 1 at the right edge
+        rowX[k * rowLength + c] = currentPoint[0] + px * across;
+        rowZ[k * rowLength + c] = currentPoint[1] + pz * across;
+      }
+      
+      //The texture runs across the road and repeats once every road width along it, by arc length
+      //so it does not stretch where samples are far apart
+      rowV[k] = (float)(arcLength / myWidth);
+      
+      previousPoint[0] = currentPoint[0];
+      previousPoint[1] = currentPoint[1];
+    }
+    
+    //Altitudes and normals of every point, from the terrain when draped
+    double[] rowY = new double[mySampleCount * rowLength];
+    double[][] rowNormal = new double[mySampleCount * rowLength][];
+    myMinY = Double.POSITIVE_INFINITY;
+    myMaxY = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < rowY.length && draped; ++i) {
+      rowY[i] = myTerrain.altitude(rowX[i], rowZ[i]) + ALTITUDE_OFFSET;
+      rowNormal[i] = myTerrain.normalAt(rowX[i], rowZ[i]);
+      myMinY = Math.min(myMinY, rowY[i]);
+      myMaxY = Math.max(myMaxY, rowY[i]);
+    }
+    
+    //One strip per column, laid out one after the other
+    double[] up = {0, 1, 0};
+    for (int c = 0; c < myColumns && stripVertices > 0; ++c) {
+      for (int k = 0; k < mySampleCount; ++k) {
+        int left = k * rowLength + c;
+        int right = left + 1;
+        putVertex(rowX[left], rowY[left], rowZ[left], draped ? rowNormal[left] : up, (float)c / myColumns, rowV[k]);
+        putVertex(rowX[right], rowY[right], rowZ[right], draped ? rowNormal[right] : up, (float)(c + 1) / myColumns, rowV[k]);
+      }
+    }
+    vertexBuffer.flip();
+    
+    built = true;
+    uploaded = false;
+  }
+  
+  /**
+   * Add samples between any two samples further apart than the drape spacing, so the terrain is
+   * followed closely along the road.
+   */
+  private void densifySamples() {
+    if (mySampleCount < 2)
+      return;
     
-    double step = (myPoints.size() / 6.0) / DIVISION_FACTOR; //determine how many quadrants to cut road into
+    double[] samples = Arrays.copyOf(mySamples, mySampleCount);
+    int count = mySampleCount;
+    mySampleCount = 0;
+    
+    double[] a = new double[2];
+    double[] b = new double[2];
+    addSample(samples[0]);
+    for (int k = 1; k < count; ++k) {
+      point(samples[k - 1], a);
+      point(samples[k], b);
+      int steps = Math.max((int)Math.ceil(Math.hypot(b[0] - a[0], b[1] - a[1]) / myDrapeSpacing), 1);
+      for (int j = 1; j <= steps; ++j) {
+        addSample(samples[k - 1] + (samples[k] - samples[k - 1]) * j / steps);
+      }
+    }
+  }
+  
+  /**
+   * Sample the spine at DIVISION_FACTOR equal steps of t.
+   */
+  private void sampleFixed() {
+    double step = (myPointsLength / 6.0) / DIVISION_FACTOR; //determine how many quadrants to cut road into
                                                              //the smaller the step the more intermediate 't' values
     
     //Compute road distance (from t - roadDistance).
-    //Cannot use size() here instead of myPoints.size() / 6.0 as double precision is required
-    double roadDistance = (myPoints.size() / 6.0) - (1.0/3.0) - (2 * step);
-    double startingY = myTerrain.altitude(point(0.0)[0], point(0.0)[1]) + ALTITUDE_OFFSET;
+    //Cannot use size() here instead of myPointsLength / 6.0 as double precision is required
+    double roadDistance = (myPointsLength / 6.0) - (1.0/3.0) - (2 * step);
+    
+    double t = 0.0;
+    for (; t < roadDistance; t += step)
+      addSample(t);
+    if (mySampleCount > 0)
+      addSample(t);
+  }
+  
+  /**
+   * Sample the spine by recursively halving each segment until it is flat.
+   * Straight stretches get a single quad while tight bends get as many as they need.
+   */
+  private void sampleAdaptive() {
+    if (size() == 0)
+      return;
+    
+    addSample(0.0);
+    for (int segment = 0; segment < size(); ++segment) {
+      int i = segment * 6;
+      subdivide(segment, segment + 1, myPoints[i], myPoints[i+1], myPoints[i+2], myPoints[i+3],
+        myPoints[i+4], myPoints[i+5], myPoints[i+6], myPoints[i+7], 0);
+    }
+  }
+  
+  /**
+   * Add the end of a piece of the spine from t0 to t1 with control points p0 to p3, halving it
+   * (de Casteljau) until it is flat. A piece is flat when its inner control points are within the
+   * flatness tolerance of its chord and its direction turns by at most MAX_TURN, so the road edges
+   * are flat as well.
+   */
+  private void subdivide(double t0, double t1, double x0, double y0, double x1, double y1,
+                         double x2, double y2, double x3, double y3, int depth) {
+    double chordX = x3 - x0;
+    double chordY = y3 - y0;
+    double chord = Math.hypot(chordX, chordY);
+    
+    double deviation;
+    if (chord < 1e-9) {
+      deviation = Math.max(Math.hypot(x1 - x0, y1 - y0), Math.hypot(x2 - x0, y2 - y0));
+    } else {
+      //Distance of the inner control points from the chord
+      double d1 = Math.abs((x1 - x0) * chordY - (y1 - y0) * chordX) / chord;
+      double d2 = Math.abs((x2 - x0) * chordY - (y2 - y0) * chordX) / chord;
+      deviation = Math.max(d1, d2);
+    }
+    
+    //Turn between the start and end directions, from the first and last legs of the control polygon
+    double startX = (x1 != x0 || y1 != y0) ? x1 - x0 : x2 - x0;
+    double startY = (x1 != x0 || y1 != y0) ? y1 - y0 : y2 - y0;
+    double endX = (x3 != x2 || y3 != y2) ? x3 - x2 : x3 - x1;
+    double endY = (x3 != x2 || y3 != y2) ? y3 - y2 : y3 - y1;
+    double lengths = Math.hypot(startX, startY) * Math.hypot(endX, endY);
+    boolean straight = lengths < 1e-18 || (startX * endX + startY * endY) / lengths >= COS_MAX_TURN;
+    
+    if (depth >= MAX_SUBDIVISIONS || (deviation <= myFlatness && straight)) {
+      addSample(t1);
+      return;
+    }
+    
+    double x01 = (x0 + x1) / 2, y01 = (y0 + y1) / 2;
+    double x12 = (x1 + x2) / 2, y12 = (y1 + y2) / 2;
+    double x23 = (x2 + x3) / 2, y23 = (y2 + y3) / 2;
+    double xa = (x01 + x12) / 2, ya = (y01 + y12) / 2;
+    double xb = (x12 + x23) / 2, yb = (y12 + y23) / 2;
+    double xm = (xa + xb) / 2, ym = (ya + yb) / 2;
+    double tm = (t0 + t1) / 2;
+    
+    subdivide(t0, tm, x0, y0, x01, y01, xa, ya, xm, ym, depth + 1);
+    subdivide(tm, t1, xm, ym, xb, yb, x23, y23, x3, y3, depth + 1);
+  }
+  
+  /**
+   * Helper to add a sample parameter, growing the array when it is full.
+   */
+  private void addSample(double t) {
+    if (mySamples == null)
+      mySamples = new double[INITIAL_CAPACITY];
+    else if (mySampleCount == mySamples.length)
+      mySamples = Arrays.copyOf(mySamples, mySamples.length + mySamples.length / 2);
+    mySamples[mySampleCount++] = t;
+  }
+  
+  /**
+   * Get the points the spine was sampled at when baking, building it first if required.
+   * The straight lines between them follow the spine to within the flatness tolerance.
+   *
+   * @return x, z pairs of every sample
+   */
+  public double[] getPolyline() {
+    if (!built)
+      build();
+    
+    double[] polyline = new double[mySampleCount * 2];
+    double[] p = new double[2];
+    for (int k = 0; k < mySampleCount; ++k) {
+      point(mySamples[k], p);
+      polyline[k * 2] = p[0];
+      polyline[k * 2 + 1] = p[1];
+    }
+    return polyline;
+  }
+  
+  /**
+   * Get the number of triangles in the baked strip, building it first if required.
+   */
+  public int getTriangleCount() {
+    if (!built)
+      build();
+    return Math.max(stripVertices - 2, 0) * myColumns;
+  }
+  
+  public boolean isAdaptiveEnabled() {
+    return adaptiveEnabled;
+  }
+  
+  /**
+   * Choose between subdividing the spine until it is flat (adaptive) and equal steps of t.
+   * Roads use equal steps unless the level asks for adaptive tessellation.
+   *
+   * @param adaptiveEnabled true to subdivide adaptively
+   */
+  public void setAdaptiveEnabled(boolean adaptiveEnabled) {
+    this.adaptiveEnabled = adaptiveEnabled;
+    built = false;
+    if (myTerrain != null)
+      myTerrain.roadChanged(this);
+  }
+  
+  public boolean isDrapeEnabled() {
+    return drapeEnabled;
+  }
+  
+  /**
+   * Choose between draping the road over the terrain and keeping it flat at the altitude of its start.
+   * Roads are flat unless the level asks for draping, and roads without a terrain are always flat.
+   *
+   * @param drapeEnabled true to drape the road over the terrain
+   */
+  public void setDrapeEnabled(boolean drapeEnabled) {
+    this.drapeEnabled = drapeEnabled;
+    built = false;
+  }
+  
+  /**
+   * Helper to check if the road follows the terrain.
+   */
+  private boolean isDraped() {
+    return drapeEnabled && myTerrain != null;
+  }
+  
+  public double getDrapeSpacing() {
+    return myDrapeSpacing;
+  }
+  
+  /**
+   * Set the largest distance between the terrain samples of a draped road, along and across it.
+   *
+   * @param drapeSpacing spacing in world units
+   */
+  public void setDrapeSpacing(double drapeSpacing) {
+    this.myDrapeSpacing = drapeSpacing;
+    built = false;
+  }
+  
+  /**
+   * Mark a rectangle of terrain grid points as changed. A draped road over them is baked again
+   * the next time it is drawn. Altitudes are interpolated from the surrounding grid points and
+   * normals are central differences of those, so the rectangle is grown by two points.
+   *
+   * @param x0 minimum grid x coordinate
+   * @param z0 minimum grid z coordinate
+   * @param x1 maximum grid x coordinate (inclusive)
+   * @param z1 maximum grid z coordinate (inclusive)
+   */
+  public void markDirty(int x0, int z0, int x1, int z1) {
+    if (!built || !isDraped())
+      return;
+    
+    double[] bounds = getBounds();
+    if (x1 + 2 >= bounds[0] && x0 - 2 <= bounds[3] && z1 + 2 >= bounds[2] && z0 - 2 <= bounds[5])
+      built = false;
+  }
+  
+  public double getFlatness() {
+    return myFlatness;
+  }
+  
+  /**
+   * Set how far the spine may stray from the straight quads drawn for it in adaptive mode.
+   *
+   * @param flatness tolerance in world units
+   */
+  public void setFlatness(double flatness) {
+    this.myFlatness = flatness;
+    built = false;
+    if (myTerrain != null)
+      myTerrain.roadChanged(this);
+  }
+  
+  /**
+   * Helper to add a vertex of the strip.
+   */
+  private void putVertex(double x, double y, double z, double[] normal, float u, float v) {
+    vertexBuffer.put((float)x);
+    vertexBuffer.put((float)y);
+    vertexBuffer.put((float)z);
+    vertexBuffer.put((float)normal[0]);
+    vertexBuffer.put((float)normal[1]);
+    vertexBuffer.put((float)normal[2]);
+    vertexBuffer.put(u);
+    vertexBuffer.put(v);
+  }
+  
+  /**
+   * Upload the baked strip into a VBO, creating the VBO on first use.
+   *
+   * @param gl GL2 object
+   * @return number of bytes uploaded
+   */
+  public long upload(GL2 gl) {
+    if (!built)
+      build();
+    if (vertexVboId == 0) {
+      int[] bufferIDs = new int[1];
+      gl.glGenBuffers(1, bufferIDs, 0);
+      vertexVboId = bufferIDs[0];
+    }
+    
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexVboId);
+    gl.glBufferData(GL.GL_ARRAY_BUFFER, (long)vertexBuffer.limit() * GLBuffers.SIZEOF_FLOAT, vertexBuffer, GL.GL_STATIC_DRAW);
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+    
+    uploaded = true;
+    return (long)vertexBuffer.limit() * GLBuffers.SIZEOF_FLOAT;
+  }
+  
+  public boolean isUploaded() {
+    return built && uploaded;
+  }
+  
+  /**
+   * Release the VBO. The baked strip is kept and uploaded again if the road is drawn.
+   *
+   * @param gl GL2 object
+   */
+  public void dispose(GL2 gl) {
+    if (vertexVboId != 0) {
+      gl.glDeleteBuffers(1, new int[]{vertexVboId}, 0);
+      vertexVboId = 0;
+    }
+    uploaded = false;
+  }
+  
+  public void draw(GL2 gl, TexturePack texturePack) {
+    if (!built)
+      build();
+    if (!uploaded)
+      upload(gl);
+    
+    gl.glPushMatrix();
+    gl.glPushAttrib(GL2.GL_LIGHTING);
+    
+    //A flat road is at the altitude of its start, which can change as the terrain is edited
+    if (!isDraped()) {
+      double startingY = myTerrain.altitude(point(0.0)[0], point(0.0)[1]) + ALTITUDE_OFFSET;
+      gl.glTranslated(0, startingY, 0);
+    }
   
     //Get terrain texture
     Texture road = texturePack.getRoad();
     road.enable(gl);
     road.bind(gl);
+    road.setTexParameteri(gl, GL2.GL_TEXTURE_WRAP_T, GL2.GL_REPEAT);
+    
+    //The strip uses texture coordinates from 0 to 1 across the road, scale them to the part of the texture holding the image
     TextureCoords textureCoords = road.getImageTexCoords();
+    gl.glMatrixMode(GL2.GL_TEXTURE);
+    gl.glPushMatrix();
+    gl.glLoadIdentity();
+    gl.glTranslatef(textureCoords.left(), textureCoords.bottom(), 0);
+    gl.glScalef(textureCoords.right() - textureCoords.left(), textureCoords.top() - textureCoords.bottom(), 1);
+    gl.glMatrixMode(GL2.GL_MODELVIEW);
     
     //Set road material (matte kind of look)
     float[] ambient = {0.2f, 0.2f, 0.2f, 1.0f};
@@ -186,85 +738,30 @@ public class Road {
     gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SPECULAR, specular, 0);
     
     gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_FILL);
+    gl.glColor3f(0.9f, 0.9f, 0.9f); //Black road (does nothing if lighting enabled)
     
-    for (double t = 0.0; t < roadDistance; t += step) {
-      //Get current point
-      double[] currentPoint = point(t);
-      double[] currentPointVertex = {currentPoint[0], startingY, currentPoint[1]};
-      
-      //Get next point
-      double[] nextPoint = point(t + step);
-      double[] nextPointVertex = {nextPoint[0], startingY, nextPoint[1]};
-      
-      //Get next next point
-      double[] nextNextPoint = point(t + (2 * step));
-  
-      //Obtain line segments vectors
-      //These are lines segments connecting currentPoint to nextPoint, and nextPoint to nextNextPoint
-      //The 'y' axis does not matter here as altitude will be based on terrain, so we set it to 0
-      double[] currentToNextLine = {nextPoint[0] - currentPoint[0], 0, nextPoint[1] - currentPoint[1], 1};
-      double[] nextToNextNextLine = {nextNextPoint[0] - nextPoint[0], 0, nextNextPoint[1] - nextPoint[1], 1};
-  
-      
-      //Compute perpendicular of these vectors (using cross product method).
-      //The normal vector here is simply pointing upwards in y axis
-      //As all roads will be flat rather than 'melting' into the terrain
-      //We also want these results as unit vectors so both vectors are comparable
-      double[] normalVector = {0, 1, 0, 1};
-      double[] currentToNextLinePerp = MathUtil.getUnitVector(MathUtil.crossProduct(normalVector, currentToNextLine));
-      double[] nextToNextNextLinePerp = MathUtil.getUnitVector(MathUtil.crossProduct(normalVector, nextToNextNextLine));
-  
-      //Scale these vectors to match provided myWidth
-      //We scale by myWidth/2 as we need to go outwards from the central line segments
-      //In both directions to match the total width required.
-      double[] currentToNextLineFinal = MathUtil.multiply(MathUtil.scaleMatrix(myWidth / 2), currentToNextLinePerp);
-      double[] nextToNextNextLineFinal = MathUtil.multiply(MathUtil.scaleMatrix(myWidth / 2), nextToNextNextLinePerp);
-  
-      //At this stage we can generate the 4 vertexes that will be used to draw this portion of the road
-      //We will use 2 triangles to represent the polygon (4 points)
-      double[] currentLeft = {currentPointVertex[0] - currentToNextLineFinal[0], currentPointVertex[1] - currentToNextLineFinal[1], currentPointVertex[2] - currentToNextLineFinal[2]};
-      double[] currentRight = {currentPointVertex[0] + currentToNextLineFinal[0], currentPointVertex[1] + currentToNextLineFinal[1], currentPointVertex[2] + currentToNextLineFinal[2]};
-      double[] nextLeft = {nextPointVertex[0] - nextToNextNextLineFinal[0], nextPointVertex[1] - nextToNextNextLineFinal[1], nextPointVertex[2] - nextToNextNextLineFinal[2]};
-      double[] nextRight = {nextPointVertex[0] + nextToNextNextLineFinal[0], nextPointVertex[1] + nextToNextNextLineFinal[1], nextPointVertex[2] + nextToNextNextLineFinal[2]};
-      
-      //Draw first triangle
-      gl.glBegin(GL2.GL_TRIANGLES);
-      {
-        gl.glColor3f(0.9f, 0.9f, 0.9f); //Black road (does nothing if lighting enabled)
-        gl.glNormal3dv(normalVector, 0); //Roads are always facing directly upwards
-        
-        double[] currentLeftTexture = {textureCoords.left(), textureCoords.bottom()};
-        double[] currentRightTexture = {textureCoords.right(), textureCoords.bottom()};
-        double[] nextRightTexture = {textureCoords.left(), textureCoords.top()};
-  
-        gl.glTexCoord2dv(currentLeftTexture, 0);
-        gl.glVertex3dv(currentLeft, 0);
-        gl.glTexCoord2dv(currentRightTexture, 0);
-        gl.glVertex3dv(currentRight, 0);
-        gl.glTexCoord2dv(nextRightTexture, 0);
-        gl.glVertex3dv(nextRight, 0);
-      }
-      gl.glEnd();
-      
-      //Draw second triangle
-      gl.glBegin(GL2.GL_TRIANGLES);
-      {
-        gl.glColor3f(0.9f, 0.9f, 0.9f); //Black road (does nothing if lighting enabled)
-        gl.glNormal3dv(normalVector, 0); //Roads are always facing directly upwards
-  
-        double[] currentLeftTexture = {textureCoords.left(), textureCoords.bottom()};
-        double[] nextRightTexture = {textureCoords.left(), textureCoords.top()};
-        double[] nextLeftTexture = {textureCoords.right(), textureCoords.top()};
-        
-        gl.glTexCoord2dv(currentLeftTexture, 0);
-        gl.glVertex3dv(currentLeft, 0);
-        gl.glTexCoord2dv(nextRightTexture, 0);
-        gl.glVertex3dv(nextRight, 0);
-        gl.glTexCoord2dv(nextLeftTexture, 0);
-        gl.glVertex3dv(nextLeft, 0);
-      }
-      gl.glEnd();
+    //Draw the whole road as one triangle strip from its VBO
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexVboId);
+    gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+    gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+    gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+    gl.glVertexPointer(3, GL.GL_FLOAT, STRIDE, 0);
+    gl.glNormalPointer(GL.GL_FLOAT, STRIDE, NORMAL_OFFSET * GLBuffers.SIZEOF_FLOAT);
+    gl.glTexCoordPointer(2, GL.GL_FLOAT, STRIDE, TEXTURE_OFFSET * GLBuffers.SIZEOF_FLOAT);
+    
+    for (int c = 0; c < myColumns; ++c) {
+      gl.glDrawArrays(GL.GL_TRIANGLE_STRIP, c * stripVertices, stripVertices);
     }
+    
+    //Cleanup and reset bindings
+    gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+    gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+    gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+    
+    gl.glMatrixMode(GL2.GL_TEXTURE);
+    gl.glPopMatrix();
+    gl.glMatrixMode(GL2.GL_MODELVIEW);
   
     road.disable(gl);
     gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_FILL);
@@ -0,0 +1,302 @@
+package ass2.spec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Spatial index over the roads of a terrain.
+ *
+ * Every road is baked into a polyline (see Road.getPolyline) and each straight piece of it is
+ * filed under the cells of a uniform grid that its bounding box, widened by half the road, touches.
+ * Queries then only look at the pieces in the cells around the query point instead of evaluating
+ * every Bezier of every road. The grid is stored as one flat array of entries sorted by cell.
+ *
+ * The index is rebuilt lazily after Terrain.roadChanged().
+ */
+public class RoadIndex {
+
+  private Terrain myTerrain;
+
+  //Baked roads, a polyline per road in the same order as Terrain.roads()
+  private Road[] myRoads;
+  private double[][] myPolylines;
+
+  //Grid, the entries of cell (cx, cz) are myCellStart[i] to myCellStart[i + 1] - 1 where i = cz * myColumns + cx
+  private double myOriginX;
+  private double myOriginZ;
+  private int myColumns;
+  private int myRows;
+  private int[] myCellStart;
+  private int[] myEntryRoad;
+  private int[] myEntryPiece;
+
+  //State
+  private boolean built;
+
+  //Constants
+  private static final double CELL_SIZE = 8.0; //width and depth of a grid cell in world units
+
+  public RoadIndex(Terrain terrain) {
+    this.myTerrain = terrain;
+    this.built = false;
+  }
+
+  /**
+   * Mark the index as out of date, for example when a road is added.
+   */
+  public void invalidate() {
+    built = false;
+  }
+
+  /**
+   * Bake every road and file its pieces under the grid cells they touch.
+   */
+  public synchronized void build() {
+    if (built)
+      return;
+
+    List<Road> roads = myTerrain.roads();
+    myRoads = roads.toArray(new Road[roads.size()]);
+    myPolylines = new double[myRoads.length][];
+
+    //The grid covers every road
+    double minX = Double.POSITIVE_INFINITY, minZ = Double.POSITIVE_INFINITY;
+    double maxX = Double.NEGATIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+    for (int r = 0; r < myRoads.length; ++r) {
+      myPolylines[r] = (myRoads[r].size() > 0) ? myRoads[r].getPolyline() : new double[0];
+      double halfWidth = myRoads[r].width() / 2;
+      for (int i = 0; i < myPolylines[r].length; i += 2) {
+        minX = Math.min(minX, myPolylines[r][i] - halfWidth);
+        minZ = Math.min(minZ, myPolylines[r][i + 1] - halfWidth);
+        maxX = Math.max(maxX, myPolylines[r][i] + halfWidth);
+        maxZ = Math.max(maxZ, myPolylines[r][i + 1] + halfWidth);
+      }
+    }
+    if (minX > maxX) {
+      minX = minZ = maxX = maxZ = 0;
+    }
+    myOriginX = minX;
+    myOriginZ = minZ;
+    myColumns = (int)Math.floor((maxX - minX) / CELL_SIZE) + 1;
+    myRows = (int)Math.floor((maxZ - minZ) / CELL_SIZE) + 1;
+
+    //Count the entries of every cell, then fill them in (the counts become the start of each cell)
+    myCellStart = new int[myColumns * myRows + 1];
+    for (int pass = 0; pass < 2; ++pass) {
+      int[] next = null;
+      if (pass == 1) {
+        for (int i = 1; i < myCellStart.length; ++i)
+          myCellStart[i] += myCellStart[i - 1];
+        myEntryRoad = new int[myCellStart[myCellStart.length - 1]];
+        myEntryPiece = new int[myEntryRoad.length];
+        next = Arrays.copyOf(myCellStart, myCellStart.length - 1);
+      }
+
+      for (int r = 0; r < myRoads.length; ++r) {
+        double[] polyline = myPolylines[r];
+        double halfWidth = myRoads[r].width() / 2;
+        for (int piece = 0; piece + 3 < polyline.length; piece += 2) {
+          int cx0 = cellX(Math.min(polyline[piece], polyline[piece + 2]) - halfWidth);
+          int cz0 = cellZ(Math.min(polyline[piece + 1], polyline[piece + 3]) - halfWidth);
+          int cx1 = cellX(Math.max(polyline[piece], polyline[piece + 2]) + halfWidth);
+          int cz1 = cellZ(Math.max(polyline[piece + 1], polyline[piece + 3]) + halfWidth);
+
+          for (int cz = cz0; cz <= cz1; ++cz) {
+            for (int cx = cx0; cx <= cx1; ++cx) {
+              int cell = cz * myColumns + cx;
+              if (pass == 0) {
+                myCellStart[cell + 1]++;
+              } else {
+                myEntryRoad[next[cell]] = r;
+                myEntryPiece[next[cell]] = piece;
+                next[cell]++;
+              }
+            }
+          }
+        }
+      }
+    }
+
+    built = true;
+  }
+
+  /**
+   * Helpers to find the grid cell of a coordinate, clamped to the grid.
+   */
+  private int cellX(double x) {
+    return (int)MathUtil.clamp(Math.floor((x - myOriginX) / CELL_SIZE), 0, myColumns - 1);
+  }
+
+  private int cellZ(double z) {
+    return (int)MathUtil.clamp(Math.floor((z - myOriginZ) / CELL_SIZE), 0, myRows - 1);
+  }
+
+  /**
+   * Find the nearest point on the spine of any road.
+   *
+   * Cells are searched in growing square rings around the query point. Every point in ring r + 1
+   * or beyond is at least r cells away, so the search stops once the best distance found is within that.
+   *
+   * @param x point on x axis
+   * @param z point on z axis
+   * @param maxDistance furthest distance to look
+   * @return x and z of the nearest point, its distance and the index of its road in Terrain.roads(),
+   *         or null if no road is within maxDistance
+   */
+  public double[] nearestPoint(double x, double z, double maxDistance) {
+    if (!built)
+      build();
+
+    //Query cell, which may be outside the grid
+    int qx = (int)Math.floor((x - myOriginX) / CELL_SIZE);
+    int qz = (int)Math.floor((z - myOriginZ) / CELL_SIZE);
+
+    //Rings past this are entirely outside the grid
+    int lastRing = Math.max(Math.max(Math.abs(qx), Math.abs(qx - (myColumns - 1))),
+      Math.max(Math.abs(qz), Math.abs(qz - (myRows - 1))));
+
+    double[] best = null;
+    double bestDistance = maxDistance;
+    double[] closest = new double[3];
+    for (int ring = 0; ring <= lastRing; ++ring) {
+      if ((ring - 1) * CELL_SIZE > bestDistance)
+        break;
+
+      for (int cz = qz - ring; cz <= qz + ring; ++cz) {
+        if (cz < 0 || cz >= myRows)
+          continue;
+
+        //Whole rows at the top and bottom of the ring, only the two ends in between
+        int step = (cz == qz - ring || cz == qz + ring) ? 1 : Math.max(2 * ring, 1);
+        for (int cx = qx - ring; cx <= qx + ring; cx += step) {
+          if (cx < 0 || cx >= myColumns)
+            continue;
+
+          int cell = cz * myColumns + cx;
+          for (int e = myCellStart[cell]; e < myCellStart[cell + 1]; ++e) {
+            closestOnPiece(myPolylines[myEntryRoad[e]], myEntryPiece[e], x, z, closest);
+            if (closest[2] <= bestDistance) {
+              bestDistance = closest[2];
+              best = new double[]{closest[0], closest[1], closest[2], myEntryRoad[e]};
+            }
+          }
+        }
+      }
+    }
+
+    return best;
+  }
+
+  /**
+   * Find the nearest road.
+   *
+   * @param x point on x axis
+   * @param z point on z axis
+   * @param maxDistance furthest distance to look
+   * @return nearest road, or null if no road is within maxDistance of its spine
+   */
+  public Road nearestRoad(double x, double z, double maxDistance) {
+    double[] nearest = nearestPoint(x, z, maxDistance);
+    return (nearest == null) ? null : myRoads[(int)nearest[3]];
+  }
+
+  /**
+   * Find a road under a point. Only the cell of the point is searched, as every piece is filed
+   * under all cells within half the width of its road.
+   *
+   * @param x point on x axis
+   * @param z point on z axis
+   * @return a road whose spine is within half its width of the point, or null if there is none
+   */
+  public Road roadAt(double x, double z) {
+    if (!built)
+      build();
+
+    int qx = (int)Math.floor((x - myOriginX) / CELL_SIZE);
+    int qz = (int)Math.floor((z - myOriginZ) / CELL_SIZE);
+    if (qx < 0 || qx >= myColumns || qz < 0 || qz >= myRows)
+      return null;
+
+    double[] closest = new double[3];
+    int cell = qz * myColumns + qx;
+    for (int e = myCellStart[cell]; e < myCellStart[cell + 1]; ++e) {
+      Road road = myRoads[myEntryRoad[e]];
+      closestOnPiece(myPolylines[myEntryRoad[e]], myEntryPiece[e], x, z, closest);
+      if (closest[2] <= road.width() / 2)
+        return road;
+    }
+
+    return null;
+  }
+
+  /**
+   * Check if a point is on any road.
+   *
+   * @param x point on x axis
+   * @param z point on z axis
+   * @return true if the point is within half the width of a road from its spine
+   */
+  public boolean onRoad(double x, double z) {
+    return roadAt(x, z) != null;
+  }
+
+  /**
+   * Find the roads with a piece whose bounding box, widened by half the road, overlaps a rectangle.
+   *
+   * @param x0 minimum x
+   * @param z0 minimum z
+   * @param x1 maximum x
+   * @param z1 maximum z
+   * @return roads in the order of Terrain.roads(), each once
+   */
+  public List<Road> roadsIn(double x0, double z0, double x1, double z1) {
+    if (!built)
+      build();
+
+    boolean[] found = new boolean[myRoads.length];
+    for (int cz = cellZ(z0); cz <= cellZ(z1); ++cz) {
+      for (int cx = cellX(x0); cx <= cellX(x1); ++cx) {
+        int cell = cz * myColumns + cx;
+        for (int e = myCellStart[cell]; e < myCellStart[cell + 1]; ++e) {
+          int r = myEntryRoad[e];
+          if (found[r])
+            continue;
+
+          double[] polyline = myPolylines[r];
+          int piece = myEntryPiece[e];
+          double halfWidth = myRoads[r].width() / 2;
+          if (Math.min(polyline[piece], polyline[piece + 2]) - halfWidth <= x1 &&
+              Math.max(polyline[piece], polyline[piece + 2]) + halfWidth >= x0 &&
+              Math.min(polyline[piece + 1], polyline[piece + 3]) - halfWidth <= z1 &&
+              Math.max(polyline[piece + 1], polyline[piece + 3]) + halfWidth >= z0)
+            found[r] = true;
+        }
+      }
+    }
+
+    List<Road> roads = new ArrayList<Road>();
+    for (int r = 0; r < myRoads.length; ++r) {
+      if (found[r])
+        roads.add(myRoads[r]);
+    }
+    return roads;
+  }
+
+  /**
+   * Helper to find the closest point to (x, z) on the straight piece of a polyline starting at
+   * index piece. Stores its x, z and distance in out.
+   */
+  private static void closestOnPiece(double[] polyline, int piece, double x, double z, double[] out) {
+    double ax = polyline[piece];
+    double az = polyline[piece + 1];
+    double dx = polyline[piece + 2] - ax;
+    double dz = polyline[piece + 3] - az;
+    double lengthSquared = dx * dx + dz * dz;
+
+    double t = (lengthSquared == 0) ? 0 : MathUtil.clamp(((x - ax) * dx + (z - az) * dz) / lengthSquared, 0, 1);
+    out[0] = ax + dx * t;
+    out[1] = az + dz * t;
+    out[2] = Math.hypot(x - out[0], z - out[1]);
+  }
+}
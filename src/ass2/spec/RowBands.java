@@ -0,0 +1,86 @@
+package ass2.spec;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs work over a range of rows in parallel using fork/join.
+ *
+ * The range is split in half until each band is at most a grain of rows, and the bands run on the
+ * common ForkJoinPool. Each band must only write its own rows (for example its own slice of a
+ * buffer) so no locking is needed.
+ */
+public class RowBands {
+
+  /**
+   * Work done on the rows from z0 (inclusive) to z1 (exclusive).
+   */
+  public interface Band {
+    void run(int z0, int z1);
+  }
+
+  private static boolean parallel = true;
+
+  //Constants
+  public static final int DEFAULT_GRAIN = 16; //rows per band, small enough to balance but big enough to be worth a task
+
+  /**
+   * Enable or disable parallel work, mainly to compare against a single thread.
+   */
+  public static void setParallel(boolean parallel) {
+    RowBands.parallel = parallel;
+  }
+
+  public static boolean isParallel() {
+    return parallel;
+  }
+
+  /**
+   * Run work over the rows z0 (inclusive) to z1 (exclusive).
+   *
+   * @param z0 first row
+   * @param z1 end row (exclusive)
+   * @param grain maximum rows per band
+   * @param band work to run on each band
+   */
+  public static void run(int z0, int z1, int grain, Band band) {
+    if (!parallel || z1 - z0 <= grain) {
+      if (z1 > z0)
+        band.run(z0, z1);
+      return;
+    }
+
+    ForkJoinPool.commonPool().invoke(new BandTask(z0, z1, grain, band));
+  }
+
+  /**
+   * Task splitting its rows in half until they fit in a grain.
+   */
+  private static class BandTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private int myZ0;
+    private int myZ1;
+    private int myGrain;
+    private Band myBand;
+
+    BandTask(int z0, int z1, int grain, Band band) {
+      this.myZ0 = z0;
+      this.myZ1 = z1;
+      this.myGrain = grain;
+      this.myBand = band;
+    }
+
+    @Override
+    protected void compute() {
+      if (myZ1 - myZ0 <= myGrain) {
+        myBand.run(myZ0, myZ1);
+        return;
+      }
+
+      int middle = (myZ0 + myZ1) >>> 1;
+      invokeAll(new BandTask(myZ0, middle, myGrain, myBand), new BandTask(middle, myZ1, myGrain, myBand));
+    }
+  }
+}
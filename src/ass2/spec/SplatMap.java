@@ -0,0 +1,475 @@
+package ass2.spec;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.GLContext;
+import com.jogamp.opengl.util.GLBuffers;
+import com.jogamp.opengl.util.texture.Texture;
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+/**
+ * Texture splatting for the terrain mesh.
+ *
+ * Each vertex of the mesh carries the blend weights of four texture layers (grass, rock, road and
+ * lava) as 4 unsigned bytes in a VBO of their own, indexed the same way as the mesh vertices.
+ * Rock is chosen by slope, lava by low altitude and road by distance to the road spines, with
+ * grass taking whatever weight is left. The shader blends the four layer textures per fragment so
+ * the whole terrain is drawn in one pass, with the same fixed function lighting as before.
+ *
+ * Edits to the altitudes are tracked as a dirty rectangle like TerrainMesh, and only the weights
+ * of the changed rows are recomputed and uploaded.
+ */
+public class SplatMap {
+
+  /**
+   * Texture layers, in the order of the weights of a vertex.
+   */
+  public enum LAYER {
+    GRASS, ROCK, ROAD, LAVA
+  }
+
+  private Terrain myTerrain;
+  private int myWidth;
+  private int myDepth;
+
+  //Weights of each vertex, 4 bytes per vertex row by row like the mesh
+  private ByteBuffer myWeights;
+
+  //How much of each vertex is covered by a road, from 0 to 1
+  private float[] myRoadCoverage;
+
+  //Rules
+  private double myRockSlope;
+  private double myLavaAltitude;
+
+  //GL objects, the shader is shared by every terrain drawn in the same context
+  private static GLContext sharedContext;
+  private static int shaderProgram;
+  private int weightVboId;
+  private int weightAttributeId;
+
+  //Dirty rectangle in grid points, minimum x and z then maximum x and z (inclusive)
+  private int[] dirtyRegion;
+  private int[] uploadRegion;
+
+  //Rows of weights already uploaded by uploadPart
+  private int uploadedRows;
+
+  //State
+  private boolean built;
+  private boolean uploaded;
+  private boolean roadsBuilt;
+
+  //Constants
+  public static final double DEFAULT_ROCK_SLOPE = 30.0; //slope in degrees at which rock starts to show through grass
+  private static final double ROCK_BLEND = 15.0; //degrees of slope over which grass turns fully to rock
+  private static final double LAVA_BLEND = 0.25; //altitude above and below the lava altitude over which lava fades out
+  private static final double ROAD_BLEND = 0.5; //distance past the edge of a road over which it fades out
+  private static final double ROAD_SAMPLE_SPACING = 0.25; //distance between samples along a road spine
+  private static final String VERTEX_SHADER_GLSL = "/shader/SplatVertex.glsl"; //path to vertex shader GLSL file
+  private static final String FRAGMENT_SHADER_GLSL = "/shader/SplatFragment.glsl"; //path to fragment shader GLSL file
+
+  public SplatMap(Terrain terrain) {
+    this.myTerrain = terrain;
+    this.myRockSlope = DEFAULT_ROCK_SLOPE;
+    this.myLavaAltitude = Double.NEGATIVE_INFINITY;
+    this.built = false;
+    this.uploaded = false;
+  }
+
+  /**
+   * Mark the whole map as out of date, for example when the terrain is resized.
+   */
+  public void invalidate() {
+    built = false;
+    roadsBuilt = false;
+    dirtyRegion = null;
+    uploadRegion = null;
+  }
+
+  /**
+   * Mark the road weights as out of date, for example when a road is added.
+   */
+  public void invalidateRoads() {
+    roadsBuilt = false;
+    built = false;
+  }
+
+  /**
+   * Mark a rectangle of grid points as changed. Their weights, and their neighbours' as the slope
+   * depends on them, are recomputed the next time the map is drawn.
+   *
+   * @param x0 minimum grid x coordinate
+   * @param z0 minimum grid z coordinate
+   * @param x1 maximum grid x coordinate (inclusive)
+   * @param z1 maximum grid z coordinate (inclusive)
+   */
+  public void markDirty(int x0, int z0, int x1, int z1) {
+    if (!built)
+      return;
+
+    if (dirtyRegion == null) {
+      dirtyRegion = new int[]{x0, z0, x1, z1};
+    } else {
+      dirtyRegion[0] = Math.min(dirtyRegion[0], x0);
+      dirtyRegion[1] = Math.min(dirtyRegion[1], z0);
+      dirtyRegion[2] = Math.max(dirtyRegion[2], x1);
+      dirtyRegion[3] = Math.max(dirtyRegion[3], z1);
+    }
+  }
+
+  /**
+   * Compute the weights of every vertex.
+   * This only touches CPU memory, no OpenGL calls are made.
+   */
+  public void build() {
+    myWidth = myTerrain.size().width;
+    myDepth = myTerrain.size().height;
+
+    if (myWeights == null || myWeights.capacity() != myWidth * myDepth * 4)
+      myWeights = GLBuffers.newDirectByteBuffer(myWidth * myDepth * 4);
+    if (!roadsBuilt || myRoadCoverage == null || myRoadCoverage.length != myWidth * myDepth)
+      buildRoadCoverage();
+
+    computeRegion(0, 0, myWidth - 1, myDepth - 1);
+
+    built = true;
+    uploaded = false;
+    uploadedRows = 0;
+    dirtyRegion = null;
+    uploadRegion = null;
+  }
+
+  /**
+   * Recompute the weights around the dirty rectangle.
+   * This only touches CPU memory, the changed rows are uploaded on the next draw.
+   */
+  public void updateDirty() {
+    if (dirtyRegion == null)
+      return;
+
+    int x0 = Math.max(dirtyRegion[0] - 1, 0);
+    int z0 = Math.max(dirtyRegion[1] - 1, 0);
+    int x1 = Math.min(dirtyRegion[2] + 1, myWidth - 1);
+    int z1 = Math.min(dirtyRegion[3] + 1, myDepth - 1);
+    dirtyRegion = null;
+
+    computeRegion(x0, z0, x1, z1);
+
+    if (uploadRegion == null) {
+      uploadRegion = new int[]{z0, z1};
+    } else {
+      uploadRegion[0] = Math.min(uploadRegion[0], z0);
+      uploadRegion[1] = Math.max(uploadRegion[1], z1);
+    }
+  }
+
+  /**
+   * Mark how much of each grid point is covered by a road, from samples along every road spine.
+   */
+  private void buildRoadCoverage() {
+    myRoadCoverage = new float[myWidth * myDepth];
+
+    for (Road road : myTerrain.roads()) {
+      if (road.size() == 0)
+        continue;
+
+      double reach = road.width() / 2 + ROAD_BLEND;
+      double[] spine = road.getSpine();
+      double[] p = new double[2];
+      for (int segment = 0; segment < road.size(); ++segment) {
+        //Enough samples for the length of the control polygon, which is at least the length of the curve
+        double length = 0;
+        for (int i = segment * 6; i < segment * 6 + 6; i += 2) {
+          length += Math.sqrt((spine[i+2] - spine[i]) * (spine[i+2] - spine[i]) + (spine[i+3] - spine[i+1]) * (spine[i+3] - spine[i+1]));
+        }
+        int samples = Math.max((int)Math.ceil(length / ROAD_SAMPLE_SPACING), 1);
+
+        for (int s = 0; s <= samples; ++s) {
+          road.point(Math.min(segment + s / (double)samples, road.size() - 1e-9), p);
+          int x0 = Math.max((int)Math.floor(p[0] - reach), 0);
+          int z0 = Math.max((int)Math.floor(p[1] - reach), 0);
+          int x1 = Math.min((int)Math.ceil(p[0] + reach), myWidth - 1);
+          int z1 = Math.min((int)Math.ceil(p[1] + reach), myDepth - 1);
+
+          for (int z = z0; z <= z1; ++z) {
+            for (int x = x0; x <= x1; ++x) {
+              double distance = Math.sqrt((x - p[0]) * (x - p[0]) + (z - p[1]) * (z - p[1]));
+              float coverage = (float)(1 - smoothStep(road.width() / 2, reach, distance));
+              int index = z * myWidth + x;
+              myRoadCoverage[index] = Math.max(myRoadCoverage[index], coverage);
+            }
+          }
+        }
+      }
+    }
+
+    roadsBuilt = true;
+  }
+
+  /**
+   * Compute the weights of a rectangle of grid points (inclusive), in parallel bands of rows.
+   */
+  private void computeRegion(final int x0, int z0, final int x1, int z1) {
+    final NormalField normals = myTerrain.getNormalField();
+
+    RowBands.run(z0, z1 + 1, RowBands.DEFAULT_GRAIN, new RowBands.Band() {
+      @Override
+      public void run(int bandZ0, int bandZ1) {
+        for (int z = bandZ0; z < bandZ1; ++z) {
+          for (int x = x0; x <= x1; ++x) {
+            computeWeights(normals, x, z);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Compute the weights of grid point (x, z).
+   * Road covers everything below it, lava covers rock and rock covers grass.
+   */
+  private void computeWeights(NormalField normals, int x, int z) {
+    int index = z * myWidth + x;
+    double slope = Math.toDegrees(Math.acos(MathUtil.clamp(normals.getY(x, z), -1, 1)));
+    double altitude = myTerrain.getGridAltitude(x, z);
+
+    double road = myRoadCoverage[index];
+    double lava = (1 - road) * (1 - smoothStep(myLavaAltitude - LAVA_BLEND, myLavaAltitude + LAVA_BLEND, altitude));
+    double rock = (1 - road - lava) * smoothStep(myRockSlope, myRockSlope + ROCK_BLEND, slope);
+    double grass = 1 - road - lava - rock;
+
+    int base = index * 4;
+    myWeights.put(base + LAYER.GRASS.ordinal(), toByte(grass));
+    myWeights.put(base + LAYER.ROCK.ordinal(), toByte(rock));
+    myWeights.put(base + LAYER.ROAD.ordinal(), toByte(road));
+    myWeights.put(base + LAYER.LAVA.ordinal(), toByte(lava));
+  }
+
+  /**
+   * Helper for a smooth step from 0 at a to 1 at b.
+   */
+  private static double smoothStep(double a, double b, double x) {
+    if (Double.isInfinite(a))
+      return (x > a) ? 1 : 0;
+
+    double t = MathUtil.clamp((x - a) / (b - a), 0, 1);
+    return t * t * (3 - 2 * t);
+  }
+
+  /**
+   * Helper to store a weight from 0 to 1 as an unsigned normalised byte.
+   */
+  private static byte toByte(double weight) {
+    return (byte)Math.round(MathUtil.clamp(weight, 0, 1) * 255);
+  }
+
+  /**
+   * Get the weight of a layer at a grid point, building the map first if required.
+   *
+   * @param layer texture layer
+   * @param x grid x coordinate
+   * @param z grid z coordinate
+   * @return weight from 0 to 1
+   */
+  public double getWeight(LAYER layer, int x, int z) {
+    if (!built)
+      build();
+    updateDirty();
+
+    return (myWeights.get((z * myWidth + x) * 4 + layer.ordinal()) & 0xFF) / 255.0;
+  }
+
+  //Getters and setters for the rules, changing them rebuilds the map
+  public double getRockSlope() {
+    return myRockSlope;
+  }
+
+  public void setRockSlope(double rockSlope) {
+    this.myRockSlope = rockSlope;
+    built = false;
+  }
+
+  public double getLavaAltitude() {
+    return myLavaAltitude;
+  }
+
+  /**
+   * Set the altitude below which the terrain turns to lava, negative infinity for no lava.
+   */
+  public void setLavaAltitude(double lavaAltitude) {
+    this.myLavaAltitude = lavaAltitude;
+    built = false;
+  }
+
+  /**
+   * Start drawing with the splat shader. The weights are built and uploaded first if required,
+   * and the four layer textures are bound to texture units 0 to 3.
+   * The mesh is then drawn as usual and end() restores the state.
+   *
+   * @param gl GL2 object
+   * @param texturePack textures, with a texture for each layer
+   * @param curLighting true if lighting is enabled
+   * @param nightMode true if lit by the torch instead of the sun
+   */
+  public void begin(GL2 gl, TexturePack texturePack, boolean curLighting, boolean nightMode) {
+    if (!built)
+      build();
+    updateDirty();
+
+    //Names from a context that was destroyed and recreated mean nothing in the new one
+    if (gl.getContext() != sharedContext) {
+      sharedContext = gl.getContext();
+      shaderProgram = 0;
+    }
+    if (shaderProgram == 0) {
+      try {
+        URL vertexShader = SplatMap.class.getResource(VERTEX_SHADER_GLSL);
+        URL fragmentShader = SplatMap.class.getResource(FRAGMENT_SHADER_GLSL);
+        shaderProgram = Shader.initShaders(gl, vertexShader.getPath(), fragmentShader.getPath());
+      } catch (Exception e) {
+        e.printStackTrace();
+        System.exit(1);
+      }
+    }
+
+    if (!uploaded)
+      upload(gl);
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, weightVboId);
+    if (uploadRegion != null) {
+      int first = uploadRegion[0] * myWidth * 4;
+      int end = (uploadRegion[1] + 1) * myWidth * 4;
+      myWeights.limit(end);
+      myWeights.position(first);
+      gl.glBufferSubData(GL.GL_ARRAY_BUFFER, first, end - first, myWeights);
+      myWeights.clear();
+      uploadRegion = null;
+    }
+
+    gl.glUseProgram(shaderProgram);
+    weightAttributeId = gl.glGetAttribLocation(shaderProgram, "splatWeights");
+    gl.glEnableVertexAttribArray(weightAttributeId);
+    gl.glVertexAttribPointer(weightAttributeId, 4, GL.GL_UNSIGNED_BYTE, true, 0, 0);
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+
+    gl.glUniform1i(gl.glGetUniformLocation(shaderProgram, "lightingEnabled"), curLighting ? 1 : 0);
+    gl.glUniform1i(gl.glGetUniformLocation(shaderProgram, "nightMode"), nightMode ? 1 : 0);
+
+    //Each layer on its own texture unit, repeating once per grid like the single terrain texture
+    String[] samplers = {"grassTexture", "rockTexture", "roadTexture", "lavaTexture"};
+    for (LAYER layer : LAYER.values()) {
+      Texture texture = texturePack.getSplatLayer(layer);
+      gl.glActiveTexture(GL.GL_TEXTURE0 + layer.ordinal());
+      texture.bind(gl);
+      texture.setTexParameteri(gl, GL2.GL_TEXTURE_WRAP_S, GL2.GL_REPEAT);
+      texture.setTexParameteri(gl, GL2.GL_TEXTURE_WRAP_T, GL2.GL_REPEAT);
+      gl.glUniform1i(gl.glGetUniformLocation(shaderProgram, samplers[layer.ordinal()]), layer.ordinal());
+    }
+    gl.glActiveTexture(GL.GL_TEXTURE0);
+  }
+
+  /**
+   * Upload all the weights into the weight VBO, creating it on first use.
+   *
+   * @param gl GL2 object
+   * @return number of bytes uploaded
+   */
+  public long upload(GL2 gl) {
+    if (!built)
+      build();
+    updateDirty();
+
+    if (weightVboId == 0) {
+      int[] bufferIDs = new int[1];
+      gl.glGenBuffers(1, bufferIDs, 0);
+      weightVboId = bufferIDs[0];
+    }
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, weightVboId);
+    gl.glBufferData(GL.GL_ARRAY_BUFFER, myWeights.capacity(), myWeights, GL.GL_STATIC_DRAW);
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+    uploaded = true;
+    uploadRegion = null;
+
+    return myWeights.capacity();
+  }
+
+  /**
+   * Upload part of the weights, so a large weight VBO can be uploaded over several frames.
+   * The VBO is allocated on the first call, then rows are copied in with glBufferSubData, at most
+   * budget bytes per call (rounded to whole rows, and at least one row). Rows changed after they
+   * were uploaded are uploaded again by begin(). The weights are built first if required.
+   *
+   * @param gl GL2 object
+   * @param budget maximum number of bytes to upload
+   * @return number of bytes uploaded
+   */
+  public long uploadPart(GL2 gl, long budget) {
+    if (!built)
+      build();
+    updateDirty();
+    if (uploaded)
+      return 0;
+
+    if (weightVboId == 0 || uploadedRows == 0) {
+      if (weightVboId == 0) {
+        int[] bufferIDs = new int[1];
+        gl.glGenBuffers(1, bufferIDs, 0);
+        weightVboId = bufferIDs[0];
+      }
+      gl.glBindBuffer(GL.GL_ARRAY_BUFFER, weightVboId);
+      gl.glBufferData(GL.GL_ARRAY_BUFFER, myWeights.capacity(), null, GL.GL_STATIC_DRAW);
+      uploadedRows = 0;
+    }
+
+    int rowBytes = myWidth * 4;
+    int count = (int)Math.min(Math.max(budget / rowBytes, 1), myDepth - uploadedRows);
+    int first = uploadedRows * rowBytes;
+    myWeights.limit(first + count * rowBytes);
+    myWeights.position(first);
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, weightVboId);
+    gl.glBufferSubData(GL.GL_ARRAY_BUFFER, first, count * rowBytes, myWeights);
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+    myWeights.clear();
+
+    uploadedRows += count;
+    if (uploadedRows >= myDepth)
+      uploaded = true;
+
+    return (long)count * rowBytes;
+  }
+
+  public boolean isUploaded() {
+    return uploaded;
+  }
+
+  /**
+   * Stop drawing with the splat shader.
+   *
+   * @param gl GL2 object
+   */
+  public void end(GL2 gl) {
+    gl.glDisableVertexAttribArray(weightAttributeId);
+    gl.glUseProgram(0);
+
+    for (int unit = LAYER.values().length - 1; unit >= 0; --unit) {
+      gl.glActiveTexture(GL.GL_TEXTURE0 + unit);
+      gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+    }
+  }
+
+  /**
+   * Release the weight VBO. The CPU side weights and the shared shader are kept.
+   *
+   * @param gl GL2 object
+   */
+  public void dispose(GL2 gl) {
+    if (weightVboId != 0) {
+      gl.glDeleteBuffers(1, new int[]{weightVboId}, 0);
+      weightVboId = 0;
+    }
+    uploaded = false;
+    uploadedRows = 0;
+  }
+}
@@ -4,7 +4,6 @@ import com.jogamp.opengl.GL2;
 import com.jogamp.opengl.GLAutoDrawable;
 import com.jogamp.opengl.GLEventListener;
 import com.jogamp.opengl.util.texture.Texture;
-import com.jogamp.opengl.util.texture.TextureCoords;
 
 import java.awt.Dimension;
 import java.util.ArrayList;
@@ -19,12 +18,32 @@ import java.util.List;
 public class Terrain {
   
   private Dimension mySize;
-  private double[][] myAltitude;
+  private HeightField myAltitude;
   private List<Tree> myTrees;
   private List<Enemy> myEnemies;
   private List<Road> myRoads;
   private float[] mySunlight;
   private List<PortalPair> myPortalPairs;
+  private TerrainMesh myMesh;
+  private NormalField myNormals;
+  private HeightPyramid myPyramid;
+  private TerrainQuadtree myQuadtree;
+  private boolean quadtreeEnabled;
+  private SplatMap mySplatMap;
+  private boolean splatEnabled;
+  private RoadIndex myRoadIndex;
+  private TreeInstances myTreeInstances;
+  private TreeGrid myTreeGrid;
+  private ForestGenerator myForest;
+  private TreeCollider myTreeCollider;
+  
+  //Culling of objects on the terrain
+  private OcclusionBuffer myOcclusion;
+  private boolean occlusionEnabled;
+  private int treesCulled;
+  private int roadsCulled;
+  private int enemiesCulled;
+  private int portalsCulled;
   
   /**
    * Create a new terrain
@@ -33,13 +52,34 @@ public class Terrain {
    * @param depth The number of vertices in the z-direction
    */
   public Terrain(int width, int depth) {
-    mySize = new Dimension(width, depth);
-    myAltitude = new double[width][depth];
+    this(new DoubleHeightField(width, depth));
+  }
+  
+  /**
+   * Create a new terrain using the given altitude storage
+   *
+   * @param heightField altitudes, its width and depth give the size of the terrain
+   */
+  public Terrain(HeightField heightField) {
+    mySize = new Dimension(heightField.getWidth(), heightField.getDepth());
+    myAltitude = heightField;
     myTrees = new ArrayList<Tree>();
     myEnemies = new ArrayList<Enemy>();
     myRoads = new ArrayList<Road>();
     mySunlight = new float[3];
     myPortalPairs = new ArrayList<PortalPair>();
+    myMesh = new TerrainMesh(this);
+    myNormals = new NormalField(this);
+    myPyramid = new HeightPyramid(this);
+    myQuadtree = new TerrainQuadtree(this);
+    mySplatMap = new SplatMap(this);
+    myRoadIndex = new RoadIndex(this);
+    myTreeInstances = new TreeInstances();
+    myTreeGrid = new TreeGrid(this);
+    myForest = new ForestGenerator(this);
+    myTreeCollider = new TreeCollider(this);
+    myOcclusion = new OcclusionBuffer();
+    occlusionEnabled = true;
   }
   
   public Terrain(Dimension size) {
@@ -66,6 +106,10 @@ public class Terrain {
     return myRoads;
   }
   
+  public HeightField getHeightField() {
+    return myAltitude;
+  }
+  
   public float[] getSunlight() {
     return mySunlight;
   }
@@ -93,14 +137,20 @@ public class Terrain {
    */
   public void setSize(int width, int height) {
     mySize = new Dimension(width, height);
-    double[][] oldAlt = myAltitude;
-    myAltitude = new double[width][height];
+    HeightField oldAlt = myAltitude;
+    myAltitude = oldAlt.create(width, height);
     
-    for (int i = 0; i < width && i < oldAlt.length; i++) {
-      for (int j = 0; j < height && j < oldAlt[i].length; j++) {
-        myAltitude[i][j] = oldAlt[i][j];
+    for (int j = 0; j < height && j < oldAlt.getDepth(); j++) {
+      for (int i = 0; i < width && i < oldAlt.getWidth(); i++) {
+        myAltitude.set(i, j, oldAlt.get(i, j));
       }
     }
+    myMesh.invalidate();
+    myNormals.invalidate();
+    myPyramid.invalidate();
+    myQuadtree.invalidate();
+    mySplatMap.invalidate();
+    myTreeGrid.invalidate();
   }
   
   /**
@@ -111,7 +161,7 @@ public class Terrain {
    * @return
    */
   public double getGridAltitude(int x, int z) {
-    return myAltitude[x][z];
+    return myAltitude.get(x, z);
   }
   
   /**
@@ -122,75 +172,273 @@ public class Terrain {
    * @return
    */
   public void setGridAltitude(int x, int z, double h) {
-    myAltitude[x][z] = h;
+    myAltitude.set(x, z, h);
+    myMesh.markDirty(x, z, x, z);
+    myNormals.markDirty(x, z, x, z);
+    myPyramid.markDirty(x, z, x, z);
+    myQuadtree.markDirty(x, z, x, z);
+    mySplatMap.markDirty(x, z, x, z);
+    markRoadsDirty(x, z, x, z);
   }
   
   /**
-   * Get the altitude at an arbitrary point.
-   * Non-integer points should be interpolated from neighbouring grid points
+   * Set the altitudes of a rectangle of grid points
+   *
+   * @param x0 grid x coordinate of the first point
+   * @param z0 grid z coordinate of the first point
+   * @param w number of points in the x-direction
+   * @param d number of points in the z-direction
+   * @param heights altitudes row by row (x varies fastest), w * d values
+   */
+  public void setGridAltitudes(int x0, int z0, int w, int d, double[] heights) {
+    for (int j = 0; j < d; j++) {
+      for (int i = 0; i < w; i++) {
+        myAltitude.set(x0 + i, z0 + j, heights[j * w + i]);
+      }
+    }
+    myMesh.markDirty(x0, z0, x0 + w - 1, z0 + d - 1);
+    myNormals.markDirty(x0, z0, x0 + w - 1, z0 + d - 1);
+    myPyramid.markDirty(x0, z0, x0 + w - 1, z0 + d - 1);
+    myQuadtree.markDirty(x0, z0, x0 + w - 1, z0 + d - 1);
+    mySplatMap.markDirty(x0, z0, x0 + w - 1, z0 + d - 1);
+    markRoadsDirty(x0, z0, x0 + w - 1, z0 + d - 1);
+  }
+  
+  /**
+   * Helper to mark the roads near a rectangle of changed grid points. Draped roads take their
+   * normals from the normal field, whose central differences reach two points, so only roads
+   * within two points of the rectangle are affected.
+   *
+   * @param x0 minimum grid x coordinate
+   * @param z0 minimum grid z coordinate
+   * @param x1 maximum grid x coordinate (inclusive)
+   * @param z1 maximum grid z coordinate (inclusive)
+   */
+  private void markRoadsDirty(int x0, int z0, int x1, int z1) {
+    if (myRoads.isEmpty())
+      return;
+    
+    for (Road road : myRoadIndex.roadsIn(x0 - 2, z0 - 2, x1 + 2, z1 + 2))
+      road.markDirty(x0, z0, x1, z1);
+  }
+  
+  /**
+   * Get the cached vertex normals, brought up to date with any altitude changes.
+   *
+   * @return normal field of this terrain
+   */
+  public NormalField getNormalField() {
+    myNormals.update();
+    return myNormals;
+  }
+  
+  /**
+   * Get the smooth surface normal at an arbitrary point.
    *
    * @param x point on x axis
    * @param z point on z axis
-   * @return altitude at an arbitary point
+   * @return unit normal vector, straight up off the terrain
    */
-  public double altitude(double x, double z) {
-    double altitude = 0;
+  public double[] normalAt(double x, double z) {
+    return myNormals.normalAt(x, z);
+  }
   
-    //Out of bounds, return default value
-    if (x < 0 || x > mySize.width -1 || z < 0 || z > mySize.height -1 )
-      return altitude;
-  
-    //Check trivial case
-    if ((int)x == x && (int)z == z) {
-      altitude = getGridAltitude((int)x, (int)z);
-    } else {
-      //Compute closest 'grid' int coordinates
-      //We floor/ceil based on winding order (Right hand rule)
-      //Thus we know the point is enclosed in grid made by 4 points (leftX, rightX, upperZ, lowerZ).
-      double leftX = Math.floor(x);
-      double rightX = Math.ceil(x);
-      double upperZ = Math.floor(z);
-      double lowerZ = Math.ceil(z);
-      double hypotenuseX = (leftX + lowerZ) - z;
+  /**
+   * Get the slope at an arbitrary point.
+   *
+   * @param x point on x axis
+   * @param z point on z axis
+   * @return angle between the surface normal and straight up in degrees
+   */
+  public double slopeAt(double x, double z) {
+    return myNormals.slopeAt(x, z);
+  }
+  
+  /**
+   * Cast a ray against the terrain surface, for picking, line of sight and projectile hits.
+   *
+   * @param origin start of the ray
+   * @param direction direction of the ray
+   * @param maxDistance furthest distance along the ray to look
+   * @return first point hit on the terrain, or null if nothing is hit within maxDistance
+   */
+  public double[] raycast(double[] origin, double[] direction, double maxDistance) {
+    double length = Math.sqrt(direction[0] * direction[0] + direction[1] * direction[1] + direction[2] * direction[2]);
+    if (length == 0)
+      return null;
+
+    double[] unit = {direction[0] / length, direction[1] / length, direction[2] / length};
+    double t = myPyramid.raycast(origin, unit, maxDistance);
+    if (t < 0)
+      return null;
+
+    return new double[]{origin[0] + unit[0] * t, origin[1] + unit[1] * t, origin[2] + unit[2] * t};
+  }
+  
+  /**
+   * Check if the terrain blocks the straight line between two points.
+   *
+   * @param from first point
+   * @param to second point
+   * @return true if nothing on the terrain is in the way
+   */
+  public boolean lineOfSight(double[] from, double[] to) {
+    double[] direction = {to[0] - from[0], to[1] - from[1], to[2] - from[2]};
+    double distance = Math.sqrt(direction[0] * direction[0] + direction[1] * direction[1] + direction[2] * direction[2]);
     
-      if ((int)x == x) {  //X provided is int
-        altitude = calcBilinearInterpolationZComponent(z, upperZ, lowerZ, x, x); //interpolate only Z component
-      } else if ((int)z == z) { //Z provided is int
-        altitude = calcBilinearInterpolationXComponent(x, leftX, rightX, z, z); //interpolate only X component
-      } else if (x < hypotenuseX) { //Point exists in left triangle, interpolate using it
-        altitude = calcBilinearInterpolation(x, leftX, leftX, rightX, z, lowerZ, upperZ, upperZ, hypotenuseX);
-      } else { //x > hypotenuseX, point exists in right triangle, interpolate using it
-        altitude = calcBilinearInterpolation(x, rightX, rightX, leftX, z, upperZ, lowerZ, lowerZ, hypotenuseX);
-      }
-    }
+    return raycast(from, direction, distance) == null;
+  }
   
-    return altitude;
+  /**
+   * Find the highest grid point in a rectangle of the terrain, for example as a vantage point.
+   *
+   * @param x0 minimum grid x coordinate
+   * @param z0 minimum grid z coordinate
+   * @param x1 maximum grid x coordinate (inclusive)
+   * @param z1 maximum grid z coordinate (inclusive)
+   * @return highest grid point (x, y, z), or null if the rectangle is off the terrain
+   */
+  public double[] highestPoint(int x0, int z0, int x1, int z1) {
+    return myPyramid.getHighestPoint(x0, z0, x1, z1);
   }
   
   /**
-   * Helper bilinear interpolation function based on slides 39-41 week 5 lectures
+   * Get the mesh the terrain is drawn with.
    */
-  private double calcBilinearInterpolationXComponent(double x, double x1, double x2, double z1, double z2) {
-    return ((x - x1) / (x2 - x1)) * getGridAltitude((int)x2, (int)z2) +
-      ((x2 - x) / (x2 - x1)) * getGridAltitude((int)x1, (int)z1);
+  public TerrainMesh getMesh() {
+    return myMesh;
   }
   
   /**
-   * Helper bilinear interpolation function based on slides 39-41 week 5 lectures
+   * Get the continuous level of detail renderer the terrain can be drawn with instead of the mesh.
    */
-  private double calcBilinearInterpolationZComponent(double z, double z1, double z2, double x1, double x2) {
-    return ((z - z1) / (z2 - z1)) * getGridAltitude((int)x2, (int)z2) +
-      ((z2 - z) / (z2 - z1)) * getGridAltitude((int)x1, (int)z1);
+  public TerrainQuadtree getQuadtree() {
+    return myQuadtree;
   }
   
   /**
-   * Helper bilinear interpolation function based on slides 39-41 week 5 lectures
+   * Get the spatial index of the roads, for nearest road and on road queries.
    */
-  private double calcBilinearInterpolation(double x, double x1, double x2, double x3,
-                                           double z, double z1, double z2, double z3,
-                                           double hypotenuseX) {
-    return ((x - x1) / (hypotenuseX - x1)) * calcBilinearInterpolationZComponent(z, z1, z3, x1, x3) +
-      ((hypotenuseX - x) / (hypotenuseX - x1)) * calcBilinearInterpolationZComponent(z, z1, z2, x1, x2);
+  public RoadIndex getRoadIndex() {
+    return myRoadIndex;
+  }
+  
+  /**
+   * Get the instanced renderer the trees are drawn with.
+   */
+  public TreeInstances getTreeInstances() {
+    return myTreeInstances;
+  }
+  
+  /**
+   * Get the spatial grid of the trees, with cells the size of the mesh chunks.
+   */
+  public TreeGrid getTreeGrid() {
+    return myTreeGrid;
+  }
+  
+  /**
+   * Get the generator that scatters forests over the terrain.
+   */
+  public ForestGenerator getForest() {
+    return myForest;
+  }
+  
+  /**
+   * Get the collision of movers against the tree trunks.
+   */
+  public TreeCollider getTreeCollider() {
+    return myTreeCollider;
+  }
+  
+  /**
+   * Get the blend weights of the texture layers the mesh can be drawn with.
+   */
+  public SplatMap getSplatMap() {
+    return mySplatMap;
+  }
+  
+  /**
+   * Get the largest spacing between the vertices of the terrain triangles drawn over a rectangle
+   * of grid points in the last draw, by whichever renderer drew them.
+   *
+   * @param x0 minimum grid x coordinate
+   * @param z0 minimum grid z coordinate
+   * @param x1 maximum grid x coordinate (inclusive)
+   * @param z1 maximum grid z coordinate (inclusive)
+   * @return spacing in grids, 1 at full detail
+   */
+  public int getDrawnStride(int x0, int z0, int x1, int z1) {
+    if (quadtreeEnabled)
+      return myQuadtree.getDrawnStride(x0, z0, x1, z1);
+    
+    return myMesh.getDrawnStride(x0, z0, x1, z1);
+  }
+  
+  /**
+   * Get the min/max height quadtree used for ray casting and altitude range queries.
+   */
+  public HeightPyramid getHeightPyramid() {
+    return myPyramid;
+  }
+  
+  /**
+   * Get the altitude at an arbitrary point.
+   * Non-integer points should be interpolated from neighbouring grid points
+   *
+   * @param x point on x axis
+   * @param z point on z axis
+   * @return altitude at an arbitary point
+   */
+  public double altitude(double x, double z) {
+    return interpolate(myAltitude, mySize.width, mySize.height, x, z);
+  }
+  
+  /**
+   * Get the altitudes at many points at once.
+   * Gives the same results as calling altitude() for each point without allocating anything.
+   *
+   * @param xs points on x axis
+   * @param zs points on z axis
+   * @param out altitudes, out[i] is the altitude at (xs[i], zs[i])
+   * @param n number of points
+   */
+  public void altitudes(double[] xs, double[] zs, double[] out, int n) {
+    HeightField heightField = myAltitude;
+    int width = mySize.width;
+    int depth = mySize.height;
+    
+    for (int i = 0; i < n; i++) {
+      out[i] = interpolate(heightField, width, depth, xs[i], zs[i]);
+    }
+  }
+  
+  /**
+   * Interpolate the altitude at a point in one pass.
+   * Each grid is split into 2 triangles along the diagonal from (x0, z1) to (x1, z0), the same as
+   * the drawn mesh. The triangle holding the point is picked and its 3 corners are blended with
+   * barycentric weights, which matches interpolating along the triangle edges.
+   */
+  private static double interpolate(HeightField heightField, int width, int depth, double x, double z) {
+    //Out of bounds, return default value
+    if (x < 0 || x > width - 1 || z < 0 || z > depth - 1)
+      return 0;
+    
+    //Grid holding the point, the last grid in each direction also holds points on the far edge
+    int x0 = Math.min((int)x, Math.max(width - 2, 0));
+    int z0 = Math.min((int)z, Math.max(depth - 2, 0));
+    int x1 = Math.min(x0 + 1, width - 1);
+    int z1 = Math.min(z0 + 1, depth - 1);
+    double fx = x - x0;
+    double fz = z - z0;
+    
+    double h10 = heightField.get(x1, z0);
+    double h01 = heightField.get(x0, z1);
+    if (fx + fz < 1) { //first triangle (x0, z0), (x0, z1), (x1, z0)
+      return (1 - fx - fz) * heightField.get(x0, z0) + fx * h10 + fz * h01;
+    } else { //second triangle (x1, z0), (x0, z1), (x1, z1)
+      return (fx + fz - 1) * heightField.get(x1, z1) + (1 - fz) * h10 + (1 - fx) * h01;
+    }
   }
   
   /**
@@ -204,6 +452,46 @@ public class Terrain {
     double y = altitude(x, z);
     Tree tree = new Tree(x, y, z);
     myTrees.add(tree);
+    myTreeGrid.add(tree);
+    myTreeCollider.invalidate();
+  }
+  
+  /**
+   * Add many trees at once, for example a generated forest.
+   * Altitudes are looked up together and the tree grid is rebuilt once at the end.
+   *
+   * @param positions x and z of each tree
+   * @param n number of trees
+   */
+  public void addTrees(double[] positions, int n) {
+    double[] xs = new double[n];
+    double[] zs = new double[n];
+    double[] ys = new double[n];
+    for (int i = 0; i < n; i++) {
+      xs[i] = positions[2 * i];
+      zs[i] = positions[2 * i + 1];
+    }
+    altitudes(xs, zs, ys, n);
+    
+    for (int i = 0; i < n; i++)
+      myTrees.add(new Tree(xs[i], ys[i], zs[i]));
+    myTreeGrid.invalidate();
+    myTreeCollider.invalidate();
+  }
+  
+  /**
+   * Remove a tree, only the grid cell it stands in is rebuilt.
+   *
+   * @param tree tree to remove
+   * @return true if the tree was on the terrain
+   */
+  public boolean removeTree(Tree tree) {
+    if (!myTrees.remove(tree))
+      return false;
+    
+    myTreeGrid.remove(tree);
+    myTreeCollider.invalidate();
+    return true;
   }
   
   
@@ -216,22 +504,222 @@ public class Terrain {
   public void addRoad(double width, double[] spine) {
     Road road = new Road(width, spine, this);
     myRoads.add(road);
+    roadChanged(road);
+  }
+  
+  /**
+   * Note that a road was added or its spine changed, so everything derived from the roads is rebuilt.
+   *
+   * @param road road that changed
+   */
+  public void roadChanged(Road road) {
+    mySplatMap.invalidateRoads();
+    myRoadIndex.invalidate();
   }
   
   /*********************** My Code *********************/
   
+  /**
+   * Number of terrain chunks tested against the frustum in the last draw.
+   */
+  public int getChunksTested() {
+    return myMesh.getChunksTested();
+  }
+  
+  /**
+   * Number of terrain chunks skipped as outside the frustum in the last draw.
+   */
+  public int getChunksCulled() {
+    return myMesh.getChunksCulled();
+  }
+  
+  /**
+   * Number of terrain triangles drawn in the last draw.
+   */
+  public int getTrianglesDrawn() {
+    if (quadtreeEnabled)
+      return myQuadtree.getTrianglesDrawn();
+    
+    return myMesh.getTrianglesDrawn();
+  }
+  
+  /**
+   * Check if an object can be skipped, either because it is outside the frustum or because it is
+   * hidden behind the terrain.
+   *
+   * @param bounds minimum x, y, z then maximum x, y, z of the object
+   * @param frustum camera frustum, or null to draw everything
+   * @return true if the object cannot be seen
+   */
+  private boolean isCulled(double[] bounds, Frustum frustum) {
+    if (frustum == null)
+      return false;
+    
+    if (!frustum.intersectsBox(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5]))
+      return true;
+    
+    return occlusionEnabled && myOcclusion.isOccluded(bounds);
+  }
+  
+  /**
+   * Get the number of trees culled in the last draw, outside the frustum or hidden behind terrain.
+   */
+  public int getTreesCulled() {
+    return treesCulled;
+  }
+  
+  /**
+   * Get the number of roads culled in the last draw.
+   */
+  public int getRoadsCulled() {
+    return roadsCulled;
+  }
+  
+  /**
+   * Get the number of enemies culled in the last draw.
+   */
+  public int getEnemiesCulled() {
+    return enemiesCulled;
+  }
+  
+  /**
+   * Get the number of portals culled in the last draw, each pair has 2 portals.
+   */
+  public int getPortalsCulled() {
+    return portalsCulled;
+  }
+  
+  public boolean isOcclusionEnabled() {
+    return occlusionEnabled;
+  }
+  
+  /**
+   * Enable or disable skipping objects hidden behind the terrain.
+   * Objects outside the frustum are always skipped.
+   *
+   * @param occlusionEnabled true to test objects against the occlusion buffer
+   */
+  public void setOcclusionEnabled(boolean occlusionEnabled) {
+    this.occlusionEnabled = occlusionEnabled;
+  }
+  
+  public boolean isLodEnabled() {
+    return myMesh.isLodEnabled();
+  }
+  
+  /**
+   * Enable or disable level of detail (geomipmapping) for the drawn terrain.
+   * This only changes what is drawn, altitude() always uses the full resolution grid.
+   *
+   * @param lodEnabled true to draw distant chunks at lower detail
+   */
+  public void setLodEnabled(boolean lodEnabled) {
+    myMesh.setLodEnabled(lodEnabled);
+  }
+  
+  public boolean isQuadtreeEnabled() {
+    return quadtreeEnabled;
+  }
+  
+  /**
+   * Enable or disable drawing the terrain with the continuous level of detail quadtree (see
+   * TerrainQuadtree) instead of the chunked mesh.
+   *
+   * @param quadtreeEnabled true to draw with the quadtree
+   */
+  public void setQuadtreeEnabled(boolean quadtreeEnabled) {
+    this.quadtreeEnabled = quadtreeEnabled;
+  }
+  
+  public boolean isSplatEnabled() {
+    return splatEnabled;
+  }
+  
+  /**
+   * Enable or disable drawing the terrain with blended grass, rock, road and lava layers (see
+   * SplatMap) instead of the single terrain texture.
+   * The quadtree renderer always uses the single terrain texture.
+   *
+   * @param splatEnabled true to draw with the splat map
+   */
+  public void setSplatEnabled(boolean splatEnabled) {
+    this.splatEnabled = splatEnabled;
+  }
+  
+  /**
+   * Upload part of everything the terrain draws, so a streamed tile can be uploaded over several
+   * frames and its first draw uploads nothing. The mesh, quadtree height texture and splat weights
+   * are uploaded in slices of rows, then the instances of each tree cell and road strips are
+   * uploaded whole, each only started while the budget is not used up. Both the quadtree and splat
+   * data are uploaded as either may be switched on at any time.
+   *
+   * @param gl GL2 object
+   * @param budget maximum number of bytes to upload, at least one slice or part is uploaded
+   * @return number of bytes uploaded
+   */
+  public long uploadPart(GL2 gl, long budget) {
+    long used = 0;
+    while (!myMesh.isUploaded() && used < budget)
+      used += myMesh.uploadPart(gl, budget - used);
+    if (!myMesh.isUploaded())
+      return used;
+  
+    while (!myQuadtree.isUploaded() && used < budget)
+      used += myQuadtree.uploadPart(gl, budget - used);
+    while (!mySplatMap.isUploaded() && used < budget)
+      used += mySplatMap.uploadPart(gl, budget - used);
+  
+    for (TreeCell cell : myTreeGrid.getCells()) {
+      if (used >= budget)
+        return used;
+      if (cell.size() > 0 && !cell.isUploaded()) {
+        cell.upload(gl);
+        used += cell.getByteSize();
+      }
+    }
+  
+    for (Road road : myRoads) {
+      if (used >= budget)
+        return used;
+      if (!road.isUploaded())
+        used += road.upload(gl);
+    }
+  
+    return used;
+  }
+  
+  /**
+   * Check if everything the terrain draws is uploaded, see uploadPart().
+   */
+  public boolean isUploaded() {
+    if (!myMesh.isUploaded() || !myQuadtree.isUploaded() || !mySplatMap.isUploaded())
+      return false;
+    for (TreeCell cell : myTreeGrid.getCells()) {
+      if (cell.size() > 0 && !cell.isUploaded())
+        return false;
+    }
+    for (Road road : myRoads) {
+      if (!road.isUploaded())
+        return false;
+    }
+  
+    return true;
+  }
+  
   public void draw(GL2 gl, TexturePack texturePack, int shaderProgram, Game.FRAGMENT_SHADER_MODE fragmentShaderColourMode,
-                   boolean curLighting, boolean nightMode, float[] torchPosition) {
+                   boolean curLighting, boolean nightMode, float[] torchPosition, Frustum frustum) {
     gl.glPushMatrix();
     gl.glPushAttrib(GL2.GL_LIGHTING);
     
     gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_FILL);
     
     //Get terrain texture
+    //The mesh repeats the texture once per grid so wrapping must be enabled
     Texture terrain = texturePack.getTerrain();
     terrain.enable(gl);
     terrain.bind(gl);
-    TextureCoords textureCoords = terrain.getImageTexCoords();
+    terrain.setTexParameteri(gl, GL2.GL_TEXTURE_WRAP_S, GL2.GL_REPEAT);
+    terrain.setTexParameteri(gl, GL2.GL_TEXTURE_WRAP_T, GL2.GL_REPEAT);
   
     //Set terrain material
     float[] ambient = {0.2f, 0.25f, 0.2f, 1.0f};
@@ -242,81 +730,81 @@ public class Terrain {
     gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_DIFFUSE, diffuse, 0);
     gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SPECULAR, specular, 0);
     
-    //Draw the terrain one grid point at a time
-    //Each grid contains 2 triangles
-    for (int z = 0; z < mySize.height -1; ++z) {
-      for (int x = 0; x < mySize.width -1; ++x) {
-        //Fir
-        double[] v1 = {x, getGridAltitude(x, z), z};
-        double[] v2 = {x, getGridAltitude(x, z + 1), z + 1};
-        double[] v3 = {x + 1, getGridAltitude(x + 1, z), z};
-  
-        double[] v1Texture = {textureCoords.left(), textureCoords.bottom()};
-        double[] v2Texture = {textureCoords.right(), textureCoords.bottom()};
-        double[] v3Texture = {textureCoords.left(), textureCoords.top()};
-        
-        double[] normal1 = MathUtil.getNormal(v1, v2, v3);
-        gl.glNormal3dv(normal1, 0);
-        
-        //Draw first triangle in grid
-        gl.glBegin(GL2.GL_TRIANGLES);
-        {
-          gl.glColor3f(0.0f, 1.0f, 0.0f); //Green colour (does nothing if lighting enabled)
-          gl.glTexCoord2dv(v1Texture, 0);
-          gl.glVertex3dv(v1, 0);
-          gl.glTexCoord2dv(v2Texture, 0);
-          gl.glVertex3dv(v2, 0);
-          gl.glTexCoord2dv(v3Texture, 0);
-          gl.glVertex3dv(v3, 0);
-        }
-        gl.glEnd();
-  
-        double[] v4 = {x + 1, getGridAltitude(x + 1, z), z};
-        double[] v5 = {x, getGridAltitude(x, z + 1), z + 1};
-        double[] v6 = {x + 1, getGridAltitude(x + 1, z + 1), z + 1};
-  
-        double[] v4Texture = {textureCoords.left(), textureCoords.top()};
-        double[] v5Texture = {textureCoords.right(), textureCoords.bottom()};
-        double[] v6Texture = {textureCoords.right(), textureCoords.top()};
-  
-        double[] normal2 = MathUtil.getNormal(v4, v5, v6);
-        gl.glNormal3dv(normal2, 0);
-  
-        //Draw second triangle in grid
-        gl.glBegin(GL2.GL_TRIANGLES);
-        {
-          gl.glColor3f(0.0f, 1.0f, 0.0f); //Green colour (does nothing if lighting enabled)
-          gl.glTexCoord2dv(v4Texture, 0);
-          gl.glVertex3dv(v4, 0);
-          gl.glTexCoord2dv(v5Texture, 0);
-          gl.glVertex3dv(v5, 0);
-          gl.glTexCoord2dv(v6Texture, 0);
-          gl.glVertex3dv(v6, 0);
-        }
-        gl.glEnd();
-      }
+    //Draw the terrain from its VBO, skipping chunks outside the frustum
+    //The mesh is only rebuilt when the altitudes change
+    //The quadtree needs the camera to pick its levels so it is only used with a frustum
+    gl.glColor3f(0.0f, 1.0f, 0.0f); //Green colour (does nothing if lighting enabled)
+    if (quadtreeEnabled && frustum != null)
+      myQuadtree.draw(gl, frustum, fragmentShaderColourMode, curLighting, nightMode ? torchPosition : null);
+    else if (splatEnabled) {
+      mySplatMap.begin(gl, texturePack, curLighting, nightMode);
+      myMesh.draw(gl, frustum);
+      mySplatMap.end(gl);
     }
+    else
+      myMesh.draw(gl, frustum);
+    
     gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_FILL);
     terrain.disable(gl); //turn off terrain
   
-    //Draw all trees part of terrain
-    for (Tree tree : myTrees) {
-      tree.draw(gl, texturePack);
+    //Rasterise the terrain into the occlusion buffer so objects behind hills can be skipped
+    //Without a frustum there is no camera, so nothing is culled and trees are drawn at full detail
+    if (occlusionEnabled && frustum != null)
+      myOcclusion.render(this, frustum);
+    double[] eye = (frustum != null) ? frustum.getEye() : null;
+    treesCulled = 0;
+    roadsCulled = 0;
+    enemiesCulled = 0;
+    portalsCulled = 0;
+  
+    //Draw all trees part of terrain, the visible ones are drawn together with instancing
+    //at a level of detail for their distance from the camera
+    //Trees are culled a grid cell at a time and cells that are all impostors are drawn whole
+    myTreeGrid.disposeReleased(gl);
+    myTreeInstances.clear();
+    for (TreeCell cell : myTreeGrid.getCells()) {
+      if (cell.size() == 0)
+        continue;
+      
+      if (isCulled(cell.getBounds(), frustum)) {
+        treesCulled += cell.size();
+      } else if (TreeInstances.isImpostorCell(cell.getBounds(), eye)) {
+        myTreeInstances.addCell(cell);
+      } else {
+        for (Tree tree : cell.getTrees()) {
+          if (isCulled(tree.getBounds(), frustum))
+            treesCulled++;
+          else
+            myTreeInstances.add(tree, eye);
+        }
+      }
     }
+    myTreeInstances.draw(gl, texturePack, fragmentShaderColourMode, curLighting, nightMode, torchPosition, mySunlight);
     
     //Draw all roads part of terrain
     for (Road road : myRoads) {
-      road.draw(gl, texturePack);
+      if (isCulled(road.getBounds(), frustum))
+        roadsCulled++;
+      else
+        road.draw(gl, texturePack);
     }
     
     //Draw all enemies on terrain
     for (Enemy enemy : myEnemies) {
-      enemy.draw(gl, texturePack, shaderProgram, fragmentShaderColourMode, curLighting, nightMode, torchPosition);
+      if (isCulled(enemy.getBounds(), frustum))
+        enemiesCulled++;
+      else
+        enemy.draw(gl, texturePack, shaderProgram, fragmentShaderColourMode, curLighting, nightMode, torchPosition);
     }
     
-    //Draw all portal pairs
+    //Draw all portal pairs, each portal is culled on its own
     for (PortalPair pp : myPortalPairs) {
-      pp.draw(gl, texturePack);
+      for (Portal portal : new Portal[]{pp.getFirst(), pp.getSecond()}) {
+        if (isCulled(portal.getBounds(), frustum))
+          portalsCulled++;
+        else
+          portal.draw(gl, texturePack);
+      }
     }
     
     gl.glPopAttrib();
@@ -0,0 +1,164 @@
+package ass2.spec;
+
+/**
+ * A rectangular block of terrain grids that is culled and drawn as a unit.
+ *
+ * A chunk covers the grid points x0..x1 and z0..z1 (so the grids x0..x1-1, z0..z1-1).
+ * Neighbouring chunks share their edge grid points. The bounding box uses the
+ * minimum and maximum altitude of the chunk, taken from the terrain's height pyramid.
+ *
+ * For level of detail drawing a chunk also keeps, for each level, the range of its interior
+ * triangles and the ranges of the strips along each side that stitch it to a neighbour drawn
+ * at the same or a coarser level.
+ */
+public class TerrainChunk {
+
+  //Extent in grid points
+  private int myX0;
+  private int myZ0;
+  private int myX1;
+  private int myZ1;
+
+  //Altitude range
+  private double myMinY;
+  private double myMaxY;
+
+  //Range of this chunk in the terrain index buffer
+  private int myIndexOffset;
+  private int myIndexCount;
+
+  //Level of detail
+  private int myMaxLevel;
+  private int myLevel;
+  private int[][] myLodOffsets; //indexed by level then part
+  private int[][] myLodCounts;
+
+  public TerrainChunk(int x0, int z0, int x1, int z1) {
+    this.myX0 = x0;
+    this.myZ0 = z0;
+    this.myX1 = x1;
+    this.myZ1 = z1;
+
+    //The coarsest level must still leave at least 2 steps along each side of the chunk
+    //so the chunk has an inner ring to stitch from
+    int minExtent = Math.min(x1 - x0, z1 - z0);
+    myMaxLevel = -1;
+    for (int level = 0; level < TerrainMesh.LOD_LEVELS && (2 << level) <= minExtent; ++level) {
+      myMaxLevel = level;
+    }
+  }
+
+  /**
+   * Recompute the altitude range from the terrain's min/max height pyramid.
+   *
+   * @param terrain terrain this chunk belongs to
+   */
+  public void computeBounds(Terrain terrain) {
+    double[] range = terrain.getHeightPyramid().getAltitudeRange(myX0, myZ0, myX1, myZ1);
+
+    myMinY = range[0];
+    myMaxY = range[1];
+  }
+
+  /**
+   * Check if any part of the chunk is inside the frustum.
+   *
+   * @param frustum camera frustum
+   * @return true if the chunk may be visible
+   */
+  public boolean isVisible(Frustum frustum) {
+    return frustum.intersectsBox(myX0, myMinY, myZ0, myX1, myMaxY, myZ1);
+  }
+
+  /**
+   * Get the distance from a point to the closest point of the bounding box.
+   *
+   * @param p point
+   * @return distance, 0 if the point is inside the box
+   */
+  public double distanceTo(double[] p) {
+    double dx = Math.max(Math.max(myX0 - p[0], p[0] - myX1), 0);
+    double dy = Math.max(Math.max(myMinY - p[1], p[1] - myMaxY), 0);
+    double dz = Math.max(Math.max(myZ0 - p[2], p[2] - myZ1), 0);
+
+    return Math.sqrt(dx * dx + dy * dy + dz * dz);
+  }
+
+  /**
+   * Reset the level of detail index ranges.
+   *
+   * @param levels number of levels
+   * @param parts number of parts per level
+   */
+  public void allocateLod(int levels, int parts) {
+    myLodOffsets = new int[levels][parts];
+    myLodCounts = new int[levels][parts];
+  }
+
+  public void setLodRange(int level, int part, int offset, int count) {
+    myLodOffsets[level][part] = offset;
+    myLodCounts[level][part] = count;
+  }
+
+  public int getLodOffset(int level, int part) {
+    return myLodOffsets[level][part];
+  }
+
+  public int getLodCount(int level, int part) {
+    return myLodCounts[level][part];
+  }
+
+  //Getters and setters
+  public int getX0() {
+    return myX0;
+  }
+
+  public int getZ0() {
+    return myZ0;
+  }
+
+  public int getX1() {
+    return myX1;
+  }
+
+  public int getZ1() {
+    return myZ1;
+  }
+
+  public double getMinY() {
+    return myMinY;
+  }
+
+  public double getMaxY() {
+    return myMaxY;
+  }
+
+  public int getIndexOffset() {
+    return myIndexOffset;
+  }
+
+  public int getIndexCount() {
+    return myIndexCount;
+  }
+
+  public void setIndexRange(int offset, int count) {
+    this.myIndexOffset = offset;
+    this.myIndexCount = count;
+  }
+
+  /**
+   * Get the coarsest level this chunk can be drawn at, or -1 if the chunk is too small to
+   * be stitched and is always drawn at full detail.
+   */
+  public int getMaxLevel() {
+    return myMaxLevel;
+  }
+
+  public int getLevel() {
+    return myLevel;
+  }
+
+  public void setLevel(int level) {
+    this.myLevel = level;
+  }
+}
@@ -0,0 +1,881 @@
+package ass2.spec;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.util.GLBuffers;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Retained-mode mesh of a terrain.
+ *
+ * The mesh is built once on the CPU from the terrain altitudes as an interleaved vertex buffer
+ * (position, normal, texture coordinates) plus an index buffer. It is then uploaded to VBOs and
+ * the whole terrain is drawn with a single glDrawElements call.
+ *
+ * The index buffer is ordered chunk by chunk (see TerrainChunk) so each chunk is a contiguous
+ * range of indices. Chunks outside the camera frustum are skipped when drawing and runs of
+ * visible chunks are merged into one draw call.
+ *
+ * In level of detail mode (geomipmapping) each chunk is instead drawn from a second index buffer
+ * holding every chunk at strides of 1, 2, 4 and 8 grids. The level is picked from the distance to
+ * the camera and the sides of a chunk next to a coarser chunk are stitched to the coarser edge so
+ * there are no cracks. Only the drawn mesh is simplified, Terrain.altitude() is unchanged.
+ *
+ * Edits to the altitudes are tracked as a dirty rectangle of grid points. Only the vertices
+ * in (and next to) that rectangle are recomputed and only their rows are uploaded again
+ * with glBufferSubData, so live deformation does not rebuild the whole mesh.
+ *
+ * Building runs in parallel over bands of rows for the vertices and over chunks for the indices
+ * (see RowBands), each band writing its own slice of the same direct buffer.
+ *
+ * Uploading can also be spread over several frames with uploadPart, for streamed terrain tiles.
+ *
+ * Building does not require an OpenGL context so it can be run and timed headless (see
+ * TerrainMeshBenchmark).
+ */
+public class TerrainMesh {
+
+  private Terrain myTerrain;
+
+  //CPU side buffers
+  private FloatBuffer vertexBuffer;
+  private IntBuffer indexBuffer;
+  private int width;
+  private int depth;
+  private int indexCount;
+  private List<TerrainChunk> chunks;
+  private int chunksX;
+  private int chunksZ;
+
+  //Level of detail index buffer
+  private IntBuffer lodIndexBuffer;
+  private int[] lodIndices;
+  private int lodIndexCount;
+
+  //VBO indexes
+  private int vertexVboId;
+  private int indexVboId;
+  private int lodIndexVboId;
+
+  //Dirty rectangles in grid points, minimum x and z then maximum x and z (inclusive)
+  private int[] dirtyRegion;
+  private int[] uploadRegion;
+
+  //Bytes of the vertex then index buffer already uploaded by uploadPart
+  private long uploadedBytes;
+
+  //State
+  private boolean built;
+  private boolean uploaded;
+  private boolean lodEnabled;
+  private boolean lodBuilt;
+
+  //Culling statistics for the last frame
+  private int chunksTested;
+  private int chunksCulled;
+  private int trianglesDrawn;
+
+  //Constants
+  public static final int FLOATS_PER_VERTEX = 8; //position (3), normal (3), texture coordinates (2)
+  public static final int NORMAL_OFFSET = 3; //offset of normal in floats within a vertex
+  public static final int TEXTURE_OFFSET = 6; //offset of texture coordinates in floats within a vertex
+  private static final int STRIDE = FLOATS_PER_VERTEX * GLBuffers.SIZEOF_FLOAT; //size of a vertex in bytes
+  public static final int CHUNK_SIZE = 64; //number of grids along each side of a chunk
+  public static final int LOD_LEVELS = 4; //levels of detail, level n uses a stride of 2^n grids
+  private static final int LOD_PARTS = 1 + 4 * LOD_LEVELS; //interior, then each side stitched to each neighbour level
+  private static final double LOD_DISTANCE = 96.0; //distance at which chunks drop to level 1, doubling for each level after
+
+  public TerrainMesh(Terrain terrain) {
+    this.myTerrain = terrain;
+    this.built = false;
+    this.uploaded = false;
+    this.chunks = new ArrayList<TerrainChunk>();
+  }
+
+  /**
+   * Mark the mesh as out of date so it is rebuilt and uploaded again on the next draw.
+   */
+  public void invalidate() {
+    built = false;
+    uploaded = false;
+    dirtyRegion = null;
+    uploadRegion = null;
+    uploadedBytes = 0;
+  }
+
+  /**
+   * Mark a rectangle of grid points as changed so only that part of the mesh is updated on the next draw.
+   *
+   * @param x0 minimum grid x coordinate
+   * @param z0 minimum grid z coordinate
+   * @param x1 maximum grid x coordinate (inclusive)
+   * @param z1 maximum grid z coordinate (inclusive)
+   */
+  public void markDirty(int x0, int z0, int x1, int z1) {
+    //Nothing to update yet, the whole mesh will be built
+    if (!built)
+      return;
+
+    dirtyRegion = unionRegion(dirtyRegion, x0, z0, x1, z1);
+  }
+
+  public boolean isDirty() {
+    return dirtyRegion != null;
+  }
+
+  /**
+   * Helper to grow a rectangle to include another, a null rectangle is empty.
+   */
+  private static int[] unionRegion(int[] region, int x0, int z0, int x1, int z1) {
+    if (region == null)
+      return new int[]{x0, z0, x1, z1};
+
+    region[0] = Math.min(region[0], x0);
+    region[1] = Math.min(region[1], z0);
+    region[2] = Math.max(region[2], x1);
+    region[3] = Math.max(region[3], z1);
+    return region;
+  }
+
+  public boolean isBuilt() {
+    return built;
+  }
+
+  public boolean isUploaded() {
+    return uploaded;
+  }
+
+  /**
+   * Get the size of the CPU side vertex and index buffers in bytes.
+   */
+  public long getByteSize() {
+    long bytes = 0;
+    if (vertexBuffer != null)
+      bytes += (long)vertexBuffer.capacity() * GLBuffers.SIZEOF_FLOAT;
+    if (indexBuffer != null)
+      bytes += (long)indexBuffer.capacity() * GLBuffers.SIZEOF_INT;
+    if (lodIndexBuffer != null)
+      bytes += (long)lodIndexBuffer.capacity() * GLBuffers.SIZEOF_INT;
+
+    return bytes;
+  }
+
+  public FloatBuffer getVertexBuffer() {
+    return vertexBuffer;
+  }
+
+  public IntBuffer getIndexBuffer() {
+    return indexBuffer;
+  }
+
+  public int getVertexCount() {
+    return width * depth;
+  }
+
+  public int getIndexCount() {
+    return indexCount;
+  }
+
+  public IntBuffer getLodIndexBuffer() {
+    return lodIndexBuffer;
+  }
+
+  public List<TerrainChunk> getChunks() {
+    return chunks;
+  }
+
+  public int getChunksTested() {
+    return chunksTested;
+  }
+
+  public int getChunksCulled() {
+    return chunksCulled;
+  }
+
+  public int getTrianglesDrawn() {
+    return trianglesDrawn;
+  }
+
+  public boolean isLodEnabled() {
+    return lodEnabled;
+  }
+
+  public void setLodEnabled(boolean lodEnabled) {
+    this.lodEnabled = lodEnabled;
+  }
+
+  /**
+   * Get the index of the vertex for grid point (x, z).
+   * Vertices are stored row by row, so a row of constant z is contiguous.
+   *
+   * @param x grid x coordinate
+   * @param z grid z coordinate
+   * @return index of the vertex in the vertex buffer
+   */
+  public int vertexIndex(int x, int z) {
+    return z * width + x;
+  }
+
+  /**
+   * Build the vertex and index buffers from the terrain altitudes.
+   * This only touches CPU memory, no OpenGL calls are made.
+   */
+  public void build() {
+    width = myTerrain.size().width;
+    depth = myTerrain.size().height;
+
+    int vertexCount = width * depth;
+    if (vertexBuffer == null || vertexBuffer.capacity() != vertexCount * FLOATS_PER_VERTEX)
+      vertexBuffer = GLBuffers.newDirectFloatBuffer(vertexCount * FLOATS_PER_VERTEX);
+
+    writeVertices(0, 0, width - 1, depth - 1);
+
+    //Each grid contains 2 triangles
+    indexCount = Math.max(width - 1, 0) * Math.max(depth - 1, 0) * 6;
+    if (indexBuffer == null || indexBuffer.capacity() != indexCount)
+      indexBuffer = GLBuffers.newDirectIntBuffer(indexCount);
+
+    //Every chunk knows its range up front, so chunks can be filled in parallel
+    buildChunks();
+    int offset = 0;
+    for (TerrainChunk chunk : chunks) {
+      int count = (chunk.getX1() - chunk.getX0()) * (chunk.getZ1() - chunk.getZ0()) * 6;
+      chunk.setIndexRange(offset, count);
+      offset += count;
+    }
+
+    RowBands.run(0, chunks.size(), 1, new RowBands.Band() {
+      @Override
+      public void run(int first, int end) {
+        for (int i = first; i < end; ++i) {
+          TerrainChunk chunk = chunks.get(i);
+          int position = chunk.getIndexOffset();
+          for (int z = chunk.getZ0(); z < chunk.getZ1(); ++z) {
+            for (int x = chunk.getX0(); x < chunk.getX1(); ++x) {
+              position = putGridIndices(position, x, z);
+            }
+          }
+          chunk.computeBounds(myTerrain);
+        }
+      }
+    });
+    indexBuffer.rewind();
+    vertexBuffer.rewind();
+
+    built = true;
+    uploaded = false;
+    lodBuilt = false;
+    dirtyRegion = null;
+    uploadRegion = null;
+    uploadedBytes = 0;
+  }
+
+  /**
+   * Recompute the part of the vertex buffer covered by the dirty rectangle, and the bounds of the
+   * chunks it touches. This only touches CPU memory, the changed rows are uploaded on the next draw.
+   * Normals depend on neighbouring altitudes so the rectangle is grown by one grid point first.
+   */
+  public void updateDirty() {
+    if (dirtyRegion == null)
+      return;
+
+    int x0 = Math.max(dirtyRegion[0] - 1, 0);
+    int z0 = Math.max(dirtyRegion[1] - 1, 0);
+    int x1 = Math.min(dirtyRegion[2] + 1, width - 1);
+    int z1 = Math.min(dirtyRegion[3] + 1, depth - 1);
+    dirtyRegion = null;
+
+    writeVertices(x0, z0, x1, z1);
+
+    for (TerrainChunk chunk : chunks) {
+      if (chunk.getX0() <= x1 && chunk.getX1() >= x0 && chunk.getZ0() <= z1 && chunk.getZ1() >= z0)
+        chunk.computeBounds(myTerrain);
+    }
+
+    //Rows already in the VBOs, fully or partly, are uploaded again
+    if (uploaded || uploadedBytes > 0)
+      uploadRegion = unionRegion(uploadRegion, x0, z0, x1, z1);
+  }
+
+  /**
+   * Split the grid into chunks of CHUNK_SIZE grids along each side.
+   * The last chunk along each axis takes any remainder so no chunk is a thin sliver.
+   */
+  private void buildChunks() {
+    chunks.clear();
+
+    chunksX = Math.max((width - 1) / CHUNK_SIZE, 1);
+    chunksZ = Math.max((depth - 1) / CHUNK_SIZE, 1);
+
+    for (int j = 0; j < chunksZ; ++j) {
+      int z0 = j * CHUNK_SIZE;
+      int z1 = (j == chunksZ - 1) ? Math.max(depth - 1, 0) : z0 + CHUNK_SIZE;
+      for (int i = 0; i < chunksX; ++i) {
+        int x0 = i * CHUNK_SIZE;
+        int x1 = (i == chunksX - 1) ? Math.max(width - 1, 0) : x0 + CHUNK_SIZE;
+        chunks.add(new TerrainChunk(x0, z0, x1, z1));
+      }
+    }
+  }
+
+  /**
+   * Put the indices of the 2 triangles in grid (x, z), wound the same way the immediate mode terrain was.
+   *
+   * @return position after the indices
+   */
+  private int putGridIndices(int position, int x, int z) {
+    //First triangle in grid
+    indexBuffer.put(position, vertexIndex(x, z));
+    indexBuffer.put(position + 1, vertexIndex(x, z + 1));
+    indexBuffer.put(position + 2, vertexIndex(x + 1, z));
+
+    //Second triangle in grid
+    indexBuffer.put(position + 3, vertexIndex(x + 1, z));
+    indexBuffer.put(position + 4, vertexIndex(x, z + 1));
+    indexBuffer.put(position + 5, vertexIndex(x + 1, z + 1));
+
+    return position + 6;
+  }
+
+  /**
+   * Write the vertices of a rectangle of grid points (inclusive), in parallel bands of rows.
+   */
+  private void writeVertices(final int x0, int z0, final int x1, int z1) {
+    final NormalField normals = myTerrain.getNormalField();
+
+    RowBands.run(z0, z1 + 1, RowBands.DEFAULT_GRAIN, new RowBands.Band() {
+      @Override
+      public void run(int bandZ0, int bandZ1) {
+        for (int z = bandZ0; z < bandZ1; ++z) {
+          for (int x = x0; x <= x1; ++x) {
+            writeVertex(normals, x, z);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Build the level of detail index buffer.
+   * This only depends on the size of the terrain, not on its altitudes.
+   */
+  public void buildLod() {
+    lodIndices = new int[Math.max(indexCount + indexCount / 2, 16)];
+    lodIndexCount = 0;
+
+    for (TerrainChunk chunk : chunks) {
+      chunk.allocateLod(LOD_LEVELS, LOD_PARTS);
+
+      //Chunks too small to stitch are always drawn at full detail
+      if (chunk.getMaxLevel() < 0) {
+        int offset = lodIndexCount;
+        for (int z = chunk.getZ0(); z < chunk.getZ1(); ++z) {
+          for (int x = chunk.getX0(); x < chunk.getX1(); ++x) {
+            putLodGrid(x, z, x + 1, z + 1);
+          }
+        }
+        chunk.setLodRange(0, 0, offset, lodIndexCount - offset);
+        continue;
+      }
+
+      for (int level = 0; level <= chunk.getMaxLevel(); ++level) {
+        int[] xs = axisPoints(chunk.getX0(), chunk.getX1(), 1 << level);
+        int[] zs = axisPoints(chunk.getZ0(), chunk.getZ1(), 1 << level);
+
+        //Interior, every grid that does not touch the edge of the chunk
+        int offset = lodIndexCount;
+        for (int j = 1; j < zs.length - 2; ++j) {
+          for (int i = 1; i < xs.length - 2; ++i) {
+            putLodGrid(xs[i], zs[j], xs[i + 1], zs[j + 1]);
+          }
+        }
+        chunk.setLodRange(level, 0, offset, lodIndexCount - offset);
+
+        //Edge strips, one for each neighbour level at least as coarse as this one
+        for (int side = 0; side < 4; ++side) {
+          for (int neighbourLevel = level; neighbourLevel < LOD_LEVELS; ++neighbourLevel) {
+            offset = lodIndexCount;
+            putLodSide(chunk, side, xs, zs, 1 << neighbourLevel);
+            chunk.setLodRange(level, 1 + side * LOD_LEVELS + neighbourLevel, offset, lodIndexCount - offset);
+          }
+        }
+      }
+    }
+
+    if (lodIndexBuffer == null || lodIndexBuffer.capacity() != lodIndexCount)
+      lodIndexBuffer = GLBuffers.newDirectIntBuffer(lodIndexCount);
+    lodIndexBuffer.clear();
+    lodIndexBuffer.put(lodIndices, 0, lodIndexCount);
+    lodIndexBuffer.rewind();
+    lodIndices = null;
+
+    lodBuilt = true;
+  }
+
+  /**
+   * Get the grid points from a to b (inclusive) at the given stride.
+   * The last step is shortened if the stride does not divide the range.
+   */
+  private static int[] axisPoints(int a, int b, int stride) {
+    int[] points = new int[(b - a + stride - 1) / stride + 1];
+    for (int i = 0; i < points.length; ++i) {
+      points[i] = Math.min(a + i * stride, b);
+    }
+
+    return points;
+  }
+
+  /**
+   * Put the strip along one side of a chunk, joining the inner ring of the chunk to the chunk edge.
+   * The edge is sampled at the stride of the neighbour so both chunks share the same edge vertices.
+   * Sides are 0 (z0), 1 (x1), 2 (z1), 3 (x0).
+   */
+  private void putLodSide(TerrainChunk chunk, int side, int[] xs, int[] zs, int edgeStride) {
+    boolean alongX = (side % 2 == 0);
+    int[] axis = alongX ? xs : zs;
+    int[] inner = new int[axis.length - 2];
+    System.arraycopy(axis, 1, inner, 0, inner.length);
+    int[] outer = alongX ? axisPoints(chunk.getX0(), chunk.getX1(), edgeStride) : axisPoints(chunk.getZ0(), chunk.getZ1(), edgeStride);
+
+    int innerFixed;
+    int outerFixed;
+    switch (side) {
+      case 0:
+        innerFixed = zs[1];
+        outerFixed = chunk.getZ0();
+        break;
+      case 1:
+        innerFixed = xs[xs.length - 2];
+        outerFixed = chunk.getX1();
+        break;
+      case 2:
+        innerFixed = zs[zs.length - 2];
+        outerFixed = chunk.getZ1();
+        break;
+      default:
+        innerFixed = xs[1];
+        outerFixed = chunk.getX0();
+        break;
+    }
+
+    //Zip the two rows of points together, always advancing along whichever row is behind
+    int i = 0;
+    int j = 0;
+    while (i < inner.length - 1 || j < outer.length - 1) {
+      if (j < outer.length - 1 && (i == inner.length - 1 || outer[j + 1] <= inner[i + 1])) {
+        putLodSideTriangle(alongX, inner[i], innerFixed, outer[j], outer[j + 1], outerFixed);
+        ++j;
+      } else {
+        putLodSideTriangle(alongX, outer[j], outerFixed, inner[i], inner[i + 1], innerFixed);
+        ++i;
+      }
+    }
+  }
+
+  /**
+   * Helper to put a side triangle made of one point (a, aFixed) and two points (b, bFixed), (c, bFixed)
+   * where a, b, c run along the side and the fixed coordinates are across it.
+   */
+  private void putLodSideTriangle(boolean alongX, int a, int aFixed, int b, int c, int bFixed) {
+    if (alongX)
+      putLodTriangle(a, aFixed, b, bFixed, c, bFixed);
+    else
+      putLodTriangle(aFixed, a, bFixed, b, bFixed, c);
+  }
+
+  /**
+   * Put the 2 triangles of the rectangle (x0, z0) to (x1, z1) split the same way as a grid.
+   */
+  private void putLodGrid(int x0, int z0, int x1, int z1) {
+    putLodTriangle(x0, z0, x0, z1, x1, z0);
+    putLodTriangle(x1, z0, x0, z1, x1, z1);
+  }
+
+  /**
+   * Put a triangle into the level of detail indices.
+   * The winding is fixed up so the triangle faces upwards and degenerate triangles are dropped.
+   */
+  private void putLodTriangle(int ax, int az, int bx, int bz, int cx, int cz) {
+    int winding = (bz - az) * (cx - ax) - (bx - ax) * (cz - az);
+    if (winding == 0)
+      return;
+
+    if (lodIndexCount + 3 > lodIndices.length) {
+      int[] larger = new int[lodIndices.length * 2];
+      System.arraycopy(lodIndices, 0, larger, 0, lodIndexCount);
+      lodIndices = larger;
+    }
+
+    lodIndices[lodIndexCount++] = vertexIndex(ax, az);
+    if (winding > 0) {
+      lodIndices[lodIndexCount++] = vertexIndex(bx, bz);
+      lodIndices[lodIndexCount++] = vertexIndex(cx, cz);
+    } else {
+      lodIndices[lodIndexCount++] = vertexIndex(cx, cz);
+      lodIndices[lodIndexCount++] = vertexIndex(bx, bz);
+    }
+  }
+
+  /**
+   * Pick the level of detail of every chunk from its distance to the eye.
+   * This is done for all chunks, including culled ones, as visible neighbours stitch to them.
+   */
+  private void selectLevels(double[] eye) {
+    for (TerrainChunk chunk : chunks) {
+      int level = 0;
+      if (eye != null) {
+        double distance = chunk.distanceTo(eye);
+        while (level < LOD_LEVELS - 1 && distance >= LOD_DISTANCE * (1 << level)) {
+          ++level;
+        }
+      }
+      chunk.setLevel(Math.max(Math.min(level, chunk.getMaxLevel()), 0));
+    }
+  }
+
+  /**
+   * Get the largest spacing between the vertices of the triangles drawn over a rectangle of grid
+   * points in the last draw. This is 1 at full detail, otherwise the stride of the coarsest level
+   * used by the chunks around the rectangle, including the strips stitching them together.
+   *
+   * @param x0 minimum grid x coordinate
+   * @param z0 minimum grid z coordinate
+   * @param x1 maximum grid x coordinate (inclusive)
+   * @param z1 maximum grid z coordinate (inclusive)
+   * @return spacing in grids
+   */
+  public int getDrawnStride(int x0, int z0, int x1, int z1) {
+    if (!lodEnabled || !lodBuilt || chunks == null || chunks.isEmpty())
+      return 1;
+
+    //Chunks holding the rectangle and the ring around them
+    int i0 = Math.max(Math.min(x0 / CHUNK_SIZE, chunksX - 1) - 1, 0);
+    int j0 = Math.max(Math.min(z0 / CHUNK_SIZE, chunksZ - 1) - 1, 0);
+    int i1 = Math.min(x1 / CHUNK_SIZE + 1, chunksX - 1);
+    int j1 = Math.min(z1 / CHUNK_SIZE + 1, chunksZ - 1);
+
+    int level = 0;
+    for (int j = j0; j <= j1; ++j) {
+      for (int i = i0; i <= i1; ++i) {
+        level = Math.max(level, chunks.get(j * chunksX + i).getLevel());
+      }
+    }
+
+    return 1 << level;
+  }
+
+  /**
+   * Get the neighbouring chunk on the given side (see putLodSide), or null at the edge of the terrain.
+   */
+  private TerrainChunk neighbour(int index, int side) {
+    int i = index % chunksX;
+    int j = index / chunksX;
+
+    switch (side) {
+      case 0:
+        return (j > 0) ? chunks.get(index - chunksX) : null;
+      case 1:
+        return (i < chunksX - 1) ? chunks.get(index + 1) : null;
+      case 2:
+        return (j < chunksZ - 1) ? chunks.get(index + chunksX) : null;
+      default:
+        return (i > 0) ? chunks.get(index - 1) : null;
+    }
+  }
+
+  /**
+   * Write the interleaved position, normal and texture coordinates of grid point (x, z).
+   * Normals come from the terrain's cached normal field.
+   */
+  private void writeVertex(NormalField normals, int x, int z) {
+    int base = vertexIndex(x, z) * FLOATS_PER_VERTEX;
+
+    //Position
+    vertexBuffer.put(base, x);
+    vertexBuffer.put(base + 1, (float)myTerrain.getGridAltitude(x, z));
+    vertexBuffer.put(base + 2, z);
+
+    //Normal
+    vertexBuffer.put(base + NORMAL_OFFSET, normals.getX(x, z));
+    vertexBuffer.put(base + NORMAL_OFFSET + 1, normals.getY(x, z));
+    vertexBuffer.put(base + NORMAL_OFFSET + 2, normals.getZ(x, z));
+
+    //Texture repeats once per grid, matching the old per grid texture coordinates
+    vertexBuffer.put(base + TEXTURE_OFFSET, z);
+    vertexBuffer.put(base + TEXTURE_OFFSET + 1, x);
+  }
+
+  /**
+   * Upload the CPU side buffers into VBOs, creating the VBOs on first use.
+   *
+   * @param gl GL2 object
+   */
+  public void upload(GL2 gl) {
+    if (vertexVboId == 0) {
+      int[] bufferIDs = new int[2];
+      gl.glGenBuffers(2, bufferIDs, 0);
+      vertexVboId = bufferIDs[0];
+      indexVboId = bufferIDs[1];
+    }
+
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexVboId);
+    gl.glBufferData(GL.GL_ARRAY_BUFFER, (long)vertexBuffer.capacity() * GLBuffers.SIZEOF_FLOAT, vertexBuffer, GL.GL_STATIC_DRAW);
+    gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, indexVboId);
+    gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, (long)indexBuffer.capacity() * GLBuffers.SIZEOF_INT, indexBuffer, GL.GL_STATIC_DRAW);
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+    gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+
+    uploaded = true;
+    uploadedBytes = (long)vertexBuffer.capacity() * GLBuffers.SIZEOF_FLOAT + (long)indexBuffer.capacity() * GLBuffers.SIZEOF_INT;
+  }
+
+  /**
+   * Upload part of the CPU side buffers, so a large mesh can be uploaded over several frames.
+   * The VBOs are allocated on the first call, then the vertex buffer followed by the index buffer
+   * are copied in with glBufferSubData, at most budget bytes per call (rounded to whole vertices or
+   * indices, and at least one of them). The mesh is only drawn once it is fully uploaded.
+   * The mesh is built, or brought up to date with any edits, first.
+   *
+   * @param gl GL2 object
+   * @param budget maximum number of bytes to upload
+   * @return number of bytes uploaded
+   */
+  public long uploadPart(GL2 gl, long budget) {
+    if (!built)
+      build();
+    updateDirty();
+    if (uploaded)
+      return 0;
+
+    long vertexBytes = (long)vertexBuffer.capacity() * GLBuffers.SIZEOF_FLOAT;
+    long indexBytes = (long)indexBuffer.capacity() * GLBuffers.SIZEOF_INT;
+
+    if (vertexVboId == 0 || uploadedBytes == 0) {
+      if (vertexVboId == 0) {
+        int[] bufferIDs = new int[2];
+        gl.glGenBuffers(2, bufferIDs, 0);
+        vertexVboId = bufferIDs[0];
+        indexVboId = bufferIDs[1];
+      }
+      gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexVboId);
+      gl.glBufferData(GL.GL_ARRAY_BUFFER, vertexBytes, null, GL.GL_STATIC_DRAW);
+      gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, indexVboId);
+      gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, indexBytes, null, GL.GL_STATIC_DRAW);
+      uploadedBytes = 0;
+    }
+
+    long used = 0;
+    if (uploadedBytes < vertexBytes) {
+      int first = (int)(uploadedBytes / STRIDE);
+      int count = (int)Math.min(Math.max(budget / STRIDE, 1), getVertexCount() - first);
+      gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexVboId);
+      uploadVertices(gl, first, count);
+      used = (long)count * STRIDE;
+    } else {
+      int first = (int)((uploadedBytes - vertexBytes) / GLBuffers.SIZEOF_INT);
+      int count = (int)Math.min(Math.max(budget / GLBuffers.SIZEOF_INT, 1), indexBuffer.capacity() - first);
+      gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, indexVboId);
+      indexBuffer.limit(first + count);
+      indexBuffer.position(first);
+      gl.glBufferSubData(GL.GL_ELEMENT_ARRAY_BUFFER, (long)first * GLBuffers.SIZEOF_INT, (long)count * GLBuffers.SIZEOF_INT, indexBuffer);
+      indexBuffer.clear();
+      used = (long)count * GLBuffers.SIZEOF_INT;
+    }
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+    gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+
+    uploadedBytes += used;
+    if (uploadedBytes >= vertexBytes + indexBytes)
+      uploaded = true;
+
+    return used;
+  }
+
+  /**
+   * Upload the rows of the vertex buffer changed since the last upload with glBufferSubData.
+   * If the changed rectangle spans the full width of the terrain its rows are contiguous and
+   * are uploaded in one call.
+   *
+   * @param gl GL2 object
+   */
+  private void uploadChanges(GL2 gl) {
+    int x0 = uploadRegion[0];
+    int z0 = uploadRegion[1];
+    int x1 = uploadRegion[2];
+    int z1 = uploadRegion[3];
+    uploadRegion = null;
+
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexVboId);
+    if (x0 == 0 && x1 == width - 1) {
+      uploadVertices(gl, vertexIndex(0, z0), (z1 - z0 + 1) * width);
+    } else {
+      for (int z = z0; z <= z1; ++z) {
+        uploadVertices(gl, vertexIndex(x0, z), x1 - x0 + 1);
+      }
+    }
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+  }
+
+  /**
+   * Upload a contiguous run of vertices into the bound vertex VBO.
+   */
+  private void uploadVertices(GL2 gl, int first, int count) {
+    vertexBuffer.limit((first + count) * FLOATS_PER_VERTEX);
+    vertexBuffer.position(first * FLOATS_PER_VERTEX);
+    gl.glBufferSubData(GL.GL_ARRAY_BUFFER, (long)first * STRIDE, (long)count * STRIDE, vertexBuffer);
+    vertexBuffer.clear();
+  }
+
+  /**
+   * Upload the level of detail index buffer, creating its VBO on first use.
+   *
+   * @param gl GL2 object
+   */
+  private void uploadLod(GL2 gl) {
+    if (lodIndexVboId == 0) {
+      int[] bufferIDs = new int[1];
+      gl.glGenBuffers(1, bufferIDs, 0);
+      lodIndexVboId = bufferIDs[0];
+    }
+
+    gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, lodIndexVboId);
+    gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, (long)lodIndexBuffer.capacity() * GLBuffers.SIZEOF_INT, lodIndexBuffer, GL.GL_STATIC_DRAW);
+    gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+  }
+
+  /**
+   * Draw the terrain mesh, building and uploading it first if required.
+   * Material and texture state should already be set by the caller.
+   *
+   * @param gl GL2 object
+   * @param frustum camera frustum used to skip chunks, or null to draw every chunk
+   */
+  public void draw(GL2 gl, Frustum frustum) {
+    if (!built)
+      build();
+    updateDirty();
+    if (!uploaded)
+      upload(gl);
+    else if (uploadRegion != null)
+      uploadChanges(gl);
+    if (lodEnabled && !lodBuilt) {
+      buildLod();
+      uploadLod(gl);
+    }
+
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexVboId);
+    gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+    gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+    gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+    gl.glVertexPointer(3, GL.GL_FLOAT, STRIDE, 0);
+    gl.glNormalPointer(GL.GL_FLOAT, STRIDE, NORMAL_OFFSET * GLBuffers.SIZEOF_FLOAT);
+    gl.glTexCoordPointer(2, GL.GL_FLOAT, STRIDE, TEXTURE_OFFSET * GLBuffers.SIZEOF_FLOAT);
+
+    chunksTested = 0;
+    chunksCulled = 0;
+    trianglesDrawn = 0;
+
+    if (lodEnabled)
+      drawLod(gl, frustum);
+    else
+      drawFull(gl, frustum);
+
+    //Cleanup and reset bindings
+    gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+    gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+    gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+    gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+  }
+
+  /**
+   * Draw visible chunks at full detail, merging runs of neighbouring visible chunks into one call.
+   */
+  private void drawFull(GL2 gl, Frustum frustum) {
+    gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, indexVboId);
+
+    int runOffset = 0;
+    int runCount = 0;
+
+    for (TerrainChunk chunk : chunks) {
+      ++chunksTested;
+      if (frustum != null && !chunk.isVisible(frustum)) {
+        ++chunksCulled;
+        continue;
+      }
+
+      if (runCount > 0 && runOffset + runCount != chunk.getIndexOffset()) {
+        drawRange(gl, runOffset, runCount);
+        runCount = 0;
+      }
+      if (runCount == 0)
+        runOffset = chunk.getIndexOffset();
+      runCount += chunk.getIndexCount();
+    }
+    if (runCount > 0)
+      drawRange(gl, runOffset, runCount);
+  }
+
+  /**
+   * Draw visible chunks at their level of detail, with each side stitched to its neighbour.
+   */
+  private void drawLod(GL2 gl, Frustum frustum) {
+    gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, lodIndexVboId);
+
+    selectLevels((frustum != null) ? frustum.getEye() : null);
+
+    for (int index = 0; index < chunks.size(); ++index) {
+      TerrainChunk chunk = chunks.get(index);
+      ++chunksTested;
+      if (frustum != null && !chunk.isVisible(frustum)) {
+        ++chunksCulled;
+        continue;
+      }
+
+      int level = chunk.getLevel();
+      drawRange(gl, chunk.getLodOffset(level, 0), chunk.getLodCount(level, 0));
+
+      for (int side = 0; side < 4; ++side) {
+        TerrainChunk neighbour = neighbour(index, side);
+        int edgeLevel = (neighbour == null) ? level : Math.max(level, neighbour.getLevel());
+        int part = 1 + side * LOD_LEVELS + edgeLevel;
+        drawRange(gl, chunk.getLodOffset(level, part), chunk.getLodCount(level, part));
+      }
+    }
+  }
+
+  /**
+   * Draw a range of the index buffer as triangles.
+   */
+  private void drawRange(GL2 gl, int offset, int count) {
+    if (count == 0)
+      return;
+
+    trianglesDrawn += count / 3;
+    gl.glDrawElements(GL.GL_TRIANGLES, count, GL.GL_UNSIGNED_INT, (long)offset * GLBuffers.SIZEOF_INT);
+  }
+
+  /**
+   * Release the VBOs. The CPU side buffers are kept.
+   *
+   * @param gl GL2 object
+   */
+  public void dispose(GL2 gl) {
+    if (vertexVboId != 0) {
+      gl.glDeleteBuffers(2, new int[]{vertexVboId, indexVboId}, 0);
+      vertexVboId = 0;
+      indexVboId = 0;
+    }
+    if (lodIndexVboId != 0) {
+      gl.glDeleteBuffers(1, new int[]{lodIndexVboId}, 0);
+      lodIndexVboId = 0;
+    }
+    uploaded = false;
+    uploadedBytes = 0;
+    lodBuilt = false;
+  }
+}
@@ -0,0 +1,617 @@
+package ass2.spec;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.GLContext;
+import com.jogamp.opengl.util.GLBuffers;
+
+import java.net.URL;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Continuous distance dependent level of detail (CDLOD) renderer for a terrain.
+ *
+ * The terrain is covered by a quadtree of square nodes. A node at level n is PATCH_SIZE grids
+ * of 2^n grid points each along a side, so every node is drawn with the same small grid patch,
+ * only translated and scaled. Each frame the tree is walked from the root and a node is split while
+ * it is inside the range of the next finer level, so the number of triangles drawn depends on
+ * the view distance and not on the size of the terrain. A node only partly inside the finer range
+ * draws the quarters of its patch not covered by its children.
+ *
+ * Altitudes are kept in a float texture sampled per vertex in the vertex shader. Towards the end of
+ * its range every other vertex of a patch slides onto its even neighbour (geomorphing), so a patch
+ * has become the next coarser grid by the time it is replaced by its parent. Neighbouring nodes of
+ * different levels therefore meet without cracks and switching level does not pop.
+ *
+ * Node bounds come from the terrain's HeightPyramid and selection does not require an OpenGL
+ * context, so it can be run and checked headless (see TerrainQuadtreeTest). Only the drawn surface
+ * is simplified, Terrain.altitude() is unchanged.
+ */
+public class TerrainQuadtree {
+
+  private Terrain myTerrain;
+  private int myWidth;
+  private int myDepth;
+  private int myLevels;
+  private double[] myRanges;
+
+  //Nodes selected in the last frame, x then z of the node, its level and the mask of quarters to draw
+  private int[] mySelection;
+  private int mySelectedCount;
+
+  //Coarsest level drawn over each PATCH_SIZE square of the terrain in the last frame
+  private int[] myDrawnLevels;
+  private int myCellsX;
+  private int myCellsZ;
+
+  //CPU side copy of the altitudes uploaded to the height texture
+  private FloatBuffer myHeights;
+
+  //GL objects, the patch and shader are shared by every terrain drawn in the same context
+  private static GLContext sharedContext;
+  private static int patchVboId;
+  private static int patchIndexVboId;
+  private static int shaderProgram;
+  private int heightTextureId;
+
+  //Dirty rectangle in grid points, minimum x and z then maximum x and z (inclusive)
+  private int[] dirtyRegion;
+
+  //Rows of altitudes already uploaded by uploadPart
+  private int uploadedRows;
+
+  //State
+  private boolean built;
+  private boolean uploaded;
+
+  //Statistics for the last frame
+  private int nodesDrawn;
+  private int trianglesDrawn;
+
+  //Constants
+  public static final int PATCH_SIZE = 16; //grids along each side of the patch, must be a power of 2
+  private static final int PATCH_SHIFT = Integer.numberOfTrailingZeros(PATCH_SIZE); //PATCH_SIZE is 2^PATCH_SHIFT
+  private static final int QUARTER_INDICES = (PATCH_SIZE / 2) * (PATCH_SIZE / 2) * 6; //indices in a quarter of the patch
+  private static final int ALL_QUARTERS = 15; //mask drawing a whole patch
+  private static final double LOD_DISTANCE = 96.0; //range of level 0, doubling for each level after
+  private static final double MORPH_START = 0.7; //fraction of the way through a level's range at which its vertices start to morph
+  private static final String VERTEX_SHADER_GLSL = "/shader/QuadtreeVertex.glsl"; //path to vertex shader GLSL file
+  private static final String FRAGMENT_SHADER_GLSL = "/shader/AttributeFragment.glsl"; //path to fragment shader GLSL file
+  private static final float SUN_DISTANCE = 10000.0f; //distance of the sun from the eye, so its light is nearly parallel
+
+  public TerrainQuadtree(Terrain terrain) {
+    this.myTerrain = terrain;
+    this.built = false;
+    this.uploaded = false;
+  }
+
+  /**
+   * Mark the whole quadtree as out of date, for example when the terrain is resized.
+   */
+  public void invalidate() {
+    built = false;
+    dirtyRegion = null;
+  }
+
+  /**
+   * Mark a rectangle of grid points as changed so their altitudes are uploaded again on the next draw.
+   *
+   * @param x0 minimum grid x coordinate
+   * @param z0 minimum grid z coordinate
+   * @param x1 maximum grid x coordinate (inclusive)
+   * @param z1 maximum grid z coordinate (inclusive)
+   */
+  public void markDirty(int x0, int z0, int x1, int z1) {
+    if (!built)
+      return;
+
+    if (dirtyRegion == null) {
+      dirtyRegion = new int[]{x0, z0, x1, z1};
+    } else {
+      dirtyRegion[0] = Math.min(dirtyRegion[0], x0);
+      dirtyRegion[1] = Math.min(dirtyRegion[1], z0);
+      dirtyRegion[2] = Math.max(dirtyRegion[2], x1);
+      dirtyRegion[3] = Math.max(dirtyRegion[3], z1);
+    }
+  }
+
+  /**
+   * Size the tree to the terrain and copy the altitudes for the height texture.
+   * This only touches CPU memory, no OpenGL calls are made.
+   */
+  public void build() {
+    myWidth = myTerrain.size().width;
+    myDepth = myTerrain.size().height;
+
+    //Enough levels for a single root node to cover the terrain
+    int extent = Math.max(Math.max(myWidth, myDepth) - 1, 1);
+    myLevels = 1;
+    while ((PATCH_SIZE << (myLevels - 1)) < extent) {
+      ++myLevels;
+    }
+
+    //The coarsest level has no coarser level to morph into so its range never ends
+    myRanges = new double[myLevels];
+    for (int level = 0; level < myLevels; ++level) {
+      myRanges[level] = (level == myLevels - 1) ? Double.POSITIVE_INFINITY : LOD_DISTANCE * (1 << level);
+    }
+
+    myCellsX = (Math.max(myWidth - 1, 1) + PATCH_SIZE - 1) / PATCH_SIZE;
+    myCellsZ = (Math.max(myDepth - 1, 1) + PATCH_SIZE - 1) / PATCH_SIZE;
+    myDrawnLevels = new int[myCellsX * myCellsZ];
+    mySelection = new int[64 * 4];
+    mySelectedCount = 0;
+
+    if (myHeights == null || myHeights.capacity() != myWidth * myDepth)
+      myHeights = GLBuffers.newDirectFloatBuffer(myWidth * myDepth);
+    copyHeights(0, myDepth - 1);
+
+    built = true;
+    uploaded = false;
+    uploadedRows = 0;
+    dirtyRegion = null;
+  }
+
+  /**
+   * Copy whole rows of altitudes (inclusive) into the CPU side height buffer.
+   */
+  private void copyHeights(int z0, int z1) {
+    for (int z = z0; z <= z1; ++z) {
+      for (int x = 0; x < myWidth; ++x) {
+        myHeights.put(z * myWidth + x, (float)myTerrain.getGridAltitude(x, z));
+      }
+    }
+  }
+
+  /**
+   * Select the nodes to draw for a camera.
+   *
+   * @param frustum camera frustum, nodes outside it are skipped
+   */
+  public void select(Frustum frustum) {
+    if (!built)
+      build();
+
+    mySelectedCount = 0;
+    nodesDrawn = 0;
+    trianglesDrawn = 0;
+    for (int i = 0; i < myDrawnLevels.length; ++i) {
+      myDrawnLevels[i] = 0;
+    }
+
+    //The root range is infinite so the root always selects something if it is visible
+    selectNode(0, 0, myLevels - 1, frustum);
+  }
+
+  /**
+   * Select a node, or the parts of it its children do not cover.
+   *
+   * @return false if the node is beyond the range of its level and must be drawn by its parent instead
+   */
+  private boolean selectNode(int x, int z, int level, Frustum frustum) {
+    int size = PATCH_SIZE << level;
+    if (x >= myWidth - 1 || z >= myDepth - 1)
+      return true;
+    int x1 = Math.min(x + size, myWidth - 1);
+    int z1 = Math.min(z + size, myDepth - 1);
+
+    //Nodes line up with the blocks of the height pyramid, so their range is a single lookup
+    HeightPyramid pyramid = myTerrain.getHeightPyramid();
+    int block = level + PATCH_SHIFT;
+    double[] range;
+    if (block < pyramid.getLevels())
+      range = new double[]{pyramid.getBlockMin(block, x >> block, z >> block), pyramid.getBlockMax(block, x >> block, z >> block)};
+    else
+      range = pyramid.getAltitudeRange(x, z, x1, z1);
+    if (!frustum.intersectsBox(x, range[0], z, x1, range[1], z1))
+      return true;
+
+    double[] eye = frustum.getEye();
+    if (!intersectsSphere(x, range[0], z, x1, range[1], z1, eye, myRanges[level]))
+      return false;
+
+    //Wholly outside the finer range, draw the whole patch at this level
+    if (level == 0 || !intersectsSphere(x, range[0], z, x1, range[1], z1, eye, myRanges[level - 1])) {
+      addNode(x, z, level, ALL_QUARTERS);
+      return true;
+    }
+
+    //Otherwise children in range draw themselves and this node draws the quarters left over
+    int half = size / 2;
+    int mask = 0;
+    for (int quarter = 0; quarter < 4; ++quarter) {
+      if (!selectNode(x + (quarter & 1) * half, z + (quarter >> 1) * half, level - 1, frustum))
+        mask |= 1 << quarter;
+    }
+    if (mask != 0)
+      addNode(x, z, level, mask);
+
+    return true;
+  }
+
+  /**
+   * Helper to test an axis aligned box against a sphere around the eye.
+   */
+  private static boolean intersectsSphere(double minX, double minY, double minZ, double maxX, double maxY, double maxZ,
+                                          double[] eye, double radius) {
+    double dx = Math.max(Math.max(minX - eye[0], eye[0] - maxX), 0);
+    double dy = Math.max(Math.max(minY - eye[1], eye[1] - maxY), 0);
+    double dz = Math.max(Math.max(minZ - eye[2], eye[2] - maxZ), 0);
+    return dx * dx + dy * dy + dz * dz <= radius * radius;
+  }
+
+  /**
+   * Add a selected node and record its level over the squares it covers.
+   */
+  private void addNode(int x, int z, int level, int mask) {
+    if ((mySelectedCount + 1) * 4 > mySelection.length) {
+      int[] larger = new int[mySelection.length * 2];
+      System.arraycopy(mySelection, 0, larger, 0, mySelectedCount * 4);
+      mySelection = larger;
+    }
+
+    int base = mySelectedCount * 4;
+    mySelection[base] = x;
+    mySelection[base + 1] = z;
+    mySelection[base + 2] = level;
+    mySelection[base + 3] = mask;
+    ++mySelectedCount;
+
+    ++nodesDrawn;
+    trianglesDrawn += Integer.bitCount(mask) * QUARTER_INDICES / 3;
+
+    int cells = 1 << level;
+    int i1 = Math.min(x / PATCH_SIZE + cells, myCellsX);
+    int j1 = Math.min(z / PATCH_SIZE + cells, myCellsZ);
+    for (int j = z / PATCH_SIZE; j < j1; ++j) {
+      for (int i = x / PATCH_SIZE; i < i1; ++i) {
+        myDrawnLevels[j * myCellsX + i] = Math.max(myDrawnLevels[j * myCellsX + i], level);
+      }
+    }
+  }
+
+  /**
+   * Get the largest spacing between the vertices of the triangles drawn over a rectangle of grid
+   * points in the last draw, allowing for patches morphing into the next coarser level.
+   *
+   * @param x0 minimum grid x coordinate
+   * @param z0 minimum grid z coordinate
+   * @param x1 maximum grid x coordinate (inclusive)
+   * @param z1 maximum grid z coordinate (inclusive)
+   * @return spacing in grids
+   */
+  public int getDrawnStride(int x0, int z0, int x1, int z1) {
+    if (!built || mySelectedCount == 0)
+      return 1;
+
+    //Squares holding the rectangle and the ring around them
+    int i0 = Math.max(Math.min(x0 / PATCH_SIZE, myCellsX - 1) - 1, 0);
+    int j0 = Math.max(Math.min(z0 / PATCH_SIZE, myCellsZ - 1) - 1, 0);
+    int i1 = Math.min(x1 / PATCH_SIZE + 1, myCellsX - 1);
+    int j1 = Math.min(z1 / PATCH_SIZE + 1, myCellsZ - 1);
+
+    int level = 0;
+    for (int j = j0; j <= j1; ++j) {
+      for (int i = i0; i <= i1; ++i) {
+        level = Math.max(level, myDrawnLevels[j * myCellsX + i]);
+      }
+    }
+
+    return 2 << level;
+  }
+
+  /**
+   * Get the distances from the eye over which the vertices of a level morph into the next coarser
+   * level. Morphing takes the last part of the level's range and reaches the coarser grid at its end.
+   * The coarsest level never morphs.
+   *
+   * @param level level of the nodes
+   * @return distances at which morphing starts and ends
+   */
+  public double[] getMorphRange(int level) {
+    if (!built)
+      build();
+
+    double start = (level == 0) ? 0 : myRanges[level - 1];
+    double end = myRanges[level];
+    if (Double.isInfinite(end))
+      return new double[]{Float.MAX_VALUE / 2, Float.MAX_VALUE};
+
+    return new double[]{start + (end - start) * MORPH_START, end};
+  }
+
+  /**
+   * Get the nodes selected by the last select(), 4 values per node: x then z of the node, its
+   * level and the mask of quarters drawn. Only the first getSelectedCount() nodes are valid.
+   */
+  public int[] getSelection() {
+    return mySelection;
+  }
+
+  public int getSelectedCount() {
+    return mySelectedCount;
+  }
+
+  public int getNodesDrawn() {
+    return nodesDrawn;
+  }
+
+  public int getTrianglesDrawn() {
+    return trianglesDrawn;
+  }
+
+  public int getLevels() {
+    return myLevels;
+  }
+
+  public boolean isUploaded() {
+    return uploaded;
+  }
+
+  /**
+   * Create the patch buffers and the shader shared by every terrain, on first use in a context.
+   * The patch indices are ordered quarter by quarter so any quarter is a contiguous range.
+   *
+   * @param gl GL2 object
+   */
+  private static void setupShared(GL2 gl) {
+    //Names from a context that was destroyed and recreated mean nothing in the new one
+    if (gl.getContext() != sharedContext) {
+      sharedContext = gl.getContext();
+      patchVboId = 0;
+      patchIndexVboId = 0;
+      shaderProgram = 0;
+    }
+
+    if (patchVboId == 0) {
+      int vertices = PATCH_SIZE + 1;
+      FloatBuffer patch = GLBuffers.newDirectFloatBuffer(vertices * vertices * 2);
+      for (int z = 0; z <= PATCH_SIZE; ++z) {
+        for (int x = 0; x <= PATCH_SIZE; ++x) {
+          patch.put(x);
+          patch.put(z);
+        }
+      }
+      patch.rewind();
+
+      //Triangles are split the same way as TerrainMesh, so morphing collapses onto the coarser grid exactly
+      int half = PATCH_SIZE / 2;
+      IntBuffer indices = GLBuffers.newDirectIntBuffer(QUARTER_INDICES * 4);
+      for (int quarter = 0; quarter < 4; ++quarter) {
+        int qx = (quarter & 1) * half;
+        int qz = (quarter >> 1) * half;
+        for (int z = qz; z < qz + half; ++z) {
+          for (int x = qx; x < qx + half; ++x) {
+            indices.put(z * vertices + x);
+            indices.put((z + 1) * vertices + x);
+            indices.put(z * vertices + x + 1);
+            indices.put(z * vertices + x + 1);
+            indices.put((z + 1) * vertices + x);
+            indices.put((z + 1) * vertices + x + 1);
+          }
+        }
+      }
+      indices.rewind();
+
+      int[] bufferIDs = new int[2];
+      gl.glGenBuffers(2, bufferIDs, 0);
+      patchVboId = bufferIDs[0];
+      patchIndexVboId = bufferIDs[1];
+      gl.glBindBuffer(GL.GL_ARRAY_BUFFER, patchVboId);
+      gl.glBufferData(GL.GL_ARRAY_BUFFER, (long)patch.capacity() * GLBuffers.SIZEOF_FLOAT, patch, GL.GL_STATIC_DRAW);
+      gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, patchIndexVboId);
+      gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, (long)indices.capacity() * GLBuffers.SIZEOF_INT, indices, GL.GL_STATIC_DRAW);
+      gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+      gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
+    if (shaderProgram == 0) {
+      try {
+        URL vertexShader = TerrainQuadtree.class.getResource(VERTEX_SHADER_GLSL);
+        URL fragmentShader = TerrainQuadtree.class.getResource(FRAGMENT_SHADER_GLSL);
+        shaderProgram = Shader.initShaders(gl, vertexShader.getPath(), fragmentShader.getPath());
+      } catch (Exception e) {
+        e.printStackTrace();
+        System.exit(1);
+      }
+    }
+  }
+
+  /**
+   * Upload the altitudes into the height texture, creating it on first use.
+   *
+   * @param gl GL2 object
+   * @return number of bytes uploaded
+   */
+  public long upload(GL2 gl) {
+    if (!built)
+      build();
+
+    //Altitudes are read exactly with texelFetch so no filtering or mipmaps are needed
+    if (heightTextureId == 0) {
+      int[] textureIDs = new int[1];
+      gl.glGenTextures(1, textureIDs, 0);
+      heightTextureId = textureIDs[0];
+    }
+    gl.glBindTexture(GL.GL_TEXTURE_2D, heightTextureId);
+    gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_NEAREST);
+    gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_NEAREST);
+    gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 4);
+    gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL2.GL_R32F, myWidth, myDepth, 0, GL2.GL_RED, GL.GL_FLOAT, myHeights);
+    gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+
+    uploaded = true;
+    return (long)myWidth * myDepth * GLBuffers.SIZEOF_FLOAT;
+  }
+
+  /**
+   * Upload part of the altitudes, so a large height texture can be uploaded over several frames.
+   * The texture is allocated on the first call, then rows are copied in with glTexSubImage2D, at
+   * most budget bytes per call (rounded to whole rows, and at least one row). The terrain is built
+   * first if required.
+   *
+   * @param gl GL2 object
+   * @param budget maximum number of bytes to upload
+   * @return number of bytes uploaded
+   */
+  public long uploadPart(GL2 gl, long budget) {
+    if (!built)
+      build();
+    if (uploaded)
+      return 0;
+
+    if (heightTextureId == 0 || uploadedRows == 0) {
+      if (heightTextureId == 0) {
+        int[] textureIDs = new int[1];
+        gl.glGenTextures(1, textureIDs, 0);
+        heightTextureId = textureIDs[0];
+      }
+      gl.glBindTexture(GL.GL_TEXTURE_2D, heightTextureId);
+      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_NEAREST);
+      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_NEAREST);
+      gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL2.GL_R32F, myWidth, myDepth, 0, GL2.GL_RED, GL.GL_FLOAT, null);
+      uploadedRows = 0;
+    }
+
+    long rowBytes = (long)myWidth * GLBuffers.SIZEOF_FLOAT;
+    int count = (int)Math.min(Math.max(budget / rowBytes, 1), myDepth - uploadedRows);
+    myHeights.position(uploadedRows * myWidth);
+    gl.glBindTexture(GL.GL_TEXTURE_2D, heightTextureId);
+    gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 4);
+    gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, 0, uploadedRows, myWidth, count, GL2.GL_RED, GL.GL_FLOAT, myHeights);
+    gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+    myHeights.rewind();
+
+    uploadedRows += count;
+    if (uploadedRows >= myDepth)
+      uploaded = true;
+
+    return count * rowBytes;
+  }
+
+  /**
+   * Upload the rows of altitudes changed since the last upload with glTexSubImage2D.
+   *
+   * @param gl GL2 object
+   */
+  private void uploadChanges(GL2 gl) {
+    int z0 = Math.max(dirtyRegion[1], 0);
+    int z1 = Math.min(dirtyRegion[3], myDepth - 1);
+    dirtyRegion = null;
+
+    copyHeights(z0, z1);
+    myHeights.position(z0 * myWidth);
+    gl.glBindTexture(GL.GL_TEXTURE_2D, heightTextureId);
+    gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, 0, z0, myWidth, z1 - z0 + 1, GL2.GL_RED, GL.GL_FLOAT, myHeights);
+    gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+    myHeights.rewind();
+  }
+
+  /**
+   * Draw the terrain, selecting nodes for the frustum and uploading first if required.
+   * Material state and the terrain texture on texture unit 0 should already be set by the caller.
+   *
+   * @param gl GL2 object
+   * @param frustum camera frustum
+   * @param fragmentShaderColourMode whether the terrain is textured or drawn in its material colour
+   * @param curLighting true if lighting is enabled
+   * @param torchPosition position of the torch to light the terrain with, or null to use the sun
+   */
+  public void draw(GL2 gl, Frustum frustum, Game.FRAGMENT_SHADER_MODE fragmentShaderColourMode, boolean curLighting,
+                   float[] torchPosition) {
+    if (!built)
+      build();
+    setupShared(gl);
+    if (!uploaded)
+      upload(gl);
+    else if (dirtyRegion != null)
+      uploadChanges(gl);
+
+    select(frustum);
+
+    gl.glUseProgram(shaderProgram);
+
+    //The fragment shader lights in eye coordinates
+    float[] modelView = new float[16];
+    gl.glGetFloatv(GL2.GL_MODELVIEW_MATRIX, modelView, 0);
+    float[] light;
+    if (torchPosition != null) {
+      light = torchPosition;
+    } else {
+      float[] sun = myTerrain.getSunlight();
+      double[] eye = frustum.getEye();
+      light = new float[]{(float)eye[0] + sun[0] * SUN_DISTANCE, (float)eye[1] + sun[1] * SUN_DISTANCE, (float)eye[2] + sun[2] * SUN_DISTANCE};
+    }
+    float[] lightEye = new float[3];
+    for (int i = 0; i < 3; i++) {
+      lightEye[i] = modelView[i] * light[0] + modelView[4 + i] * light[1] + modelView[8 + i] * light[2] + modelView[12 + i];
+    }
+
+    gl.glUniform1i(gl.glGetUniformLocation(shaderProgram, "lightingEnabled"), curLighting ? 1 : 0);
+    gl.glUniform1i(gl.glGetUniformLocation(shaderProgram, "textureMode"),
+      (fragmentShaderColourMode == Game.FRAGMENT_SHADER_MODE.TEXTURE) ? 1 : 0);
+    gl.glUniform3fv(gl.glGetUniformLocation(shaderProgram, "lightPosition"), 1, lightEye, 0);
+    gl.glUniform1i(gl.glGetUniformLocation(shaderProgram, "textureID"), 0);
+    gl.glUniform1i(gl.glGetUniformLocation(shaderProgram, "heightMap"), 1);
+    gl.glUniform2f(gl.glGetUniformLocation(shaderProgram, "terrainSize"), myWidth - 1, myDepth - 1);
+    double[] eye = frustum.getEye();
+    gl.glUniform3f(gl.glGetUniformLocation(shaderProgram, "eyePosition"), (float)eye[0], (float)eye[1], (float)eye[2]);
+    int nodeOriginID = gl.glGetUniformLocation(shaderProgram, "nodeOrigin");
+    int nodeSpacingID = gl.glGetUniformLocation(shaderProgram, "nodeSpacing");
+    int morphRangeID = gl.glGetUniformLocation(shaderProgram, "morphRange");
+
+    gl.glActiveTexture(GL.GL_TEXTURE1);
+    gl.glBindTexture(GL.GL_TEXTURE_2D, heightTextureId);
+    gl.glActiveTexture(GL.GL_TEXTURE0);
+
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, patchVboId);
+    gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, patchIndexVboId);
+    int patchPositionID = gl.glGetAttribLocation(shaderProgram, "patchPosition");
+    gl.glEnableVertexAttribArray(patchPositionID);
+    gl.glVertexAttribPointer(patchPositionID, 2, GL.GL_FLOAT, false, 0, 0);
+
+    for (int i = 0; i < mySelectedCount; ++i) {
+      int base = i * 4;
+      int level = mySelection[base + 2];
+      int mask = mySelection[base + 3];
+
+      double[] morphRange = getMorphRange(level);
+      gl.glUniform2f(nodeOriginID, mySelection[base], mySelection[base + 1]);
+      gl.glUniform1f(nodeSpacingID, 1 << level);
+      gl.glUniform2f(morphRangeID, (float)morphRange[0], (float)morphRange[1]);
+
+      if (mask == ALL_QUARTERS) {
+        gl.glDrawElements(GL.GL_TRIANGLES, QUARTER_INDICES * 4, GL.GL_UNSIGNED_INT, 0);
+      } else {
+        for (int quarter = 0; quarter < 4; ++quarter) {
+          if ((mask & (1 << quarter)) != 0)
+            gl.glDrawElements(GL.GL_TRIANGLES, QUARTER_INDICES, GL.GL_UNSIGNED_INT, (long)quarter * QUARTER_INDICES * GLBuffers.SIZEOF_INT);
+        }
+      }
+    }
+
+    //Cleanup and reset bindings
+    gl.glDisableVertexAttribArray(patchPositionID);
+    gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+    gl.glActiveTexture(GL.GL_TEXTURE1);
+    gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+    gl.glActiveTexture(GL.GL_TEXTURE0);
+    gl.glUseProgram(0);
+  }
+
+  /**
+   * Release the height texture. The CPU side altitudes and the shared patch and shader are kept.
+   *
+   * @param gl GL2 object
+   */
+  public void dispose(GL2 gl) {
+    if (heightTextureId != 0) {
+      gl.glDeleteTextures(1, new int[]{heightTextureId}, 0);
+      heightTextureId = 0;
+    }
+    uploaded = false;
+    uploadedRows = 0;
+  }
+}
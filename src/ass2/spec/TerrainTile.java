@@ -0,0 +1,135 @@
+package ass2.spec;
+
+import java.io.File;
+import java.util.concurrent.Future;
+
+/**
+ * One tile of a streamed TerrainWorld.
+ *
+ * A tile is a complete Terrain loaded from its own level file. Its grid point (0, 0) sits at
+ * (originX, originZ) in world coordinates and neighbouring tiles share their edge points.
+ * Tiles are loaded and meshed on a background thread, then uploaded to GL over several frames
+ * on the GL thread before they are drawn.
+ */
+public class TerrainTile {
+
+  /**
+   * Life cycle of a tile.
+   * LOADING while its level is read and meshed in the background, LOADED once that is done,
+   * UPLOADING while its mesh is copied into VBOs, RESIDENT once it can be drawn and FAILED if
+   * its level could not be read.
+   */
+  public enum TILE_STATE {
+    LOADING, LOADED, UPLOADING, RESIDENT, FAILED
+  }
+
+  private int myTileX;
+  private int myTileZ;
+  private double myOriginX;
+  private double myOriginZ;
+  private File myFile;
+
+  //Set by the loader thread, read by the GL thread once the state is LOADED
+  private Terrain myTerrain;
+  private double myMinAltitude;
+  private double myMaxAltitude;
+  private long myMemorySize;
+  private volatile TILE_STATE myState;
+  private Future<?> myLoad;
+
+  //Constants
+  private static final int BYTES_PER_GRID_POINT = 8 + 12 + 11; //altitude, cached normal and about 4/3 of a min/max pyramid cell
+
+  public TerrainTile(int tileX, int tileZ, double originX, double originZ, File file) {
+    this.myTileX = tileX;
+    this.myTileZ = tileZ;
+    this.myOriginX = originX;
+    this.myOriginZ = originZ;
+    this.myFile = file;
+    this.myState = TILE_STATE.LOADING;
+  }
+
+  /**
+   * Load the level of the tile and build its mesh, normals, height pyramid and everything else
+   * Terrain.uploadPart() uploads.
+   * This makes no OpenGL calls and is run on a loader thread.
+   */
+  public void load() {
+    try {
+      Terrain terrain = LevelIO.load(myFile);
+      terrain.getMesh().build();
+
+      //Everything uploaded with the mesh is built here too, so the GL thread only copies it
+      terrain.getQuadtree().build();
+      terrain.getSplatMap().build();
+      terrain.getTreeGrid().build();
+      for (Road road : terrain.roads())
+        road.build();
+
+      double[] range = terrain.getHeightPyramid().getAltitudeRange(0, 0, terrain.size().width - 1, terrain.size().height - 1);
+      myMinAltitude = range[0];
+      myMaxAltitude = range[1];
+      myMemorySize = terrain.getMesh().getByteSize() + (long)terrain.size().width * terrain.size().height * BYTES_PER_GRID_POINT;
+      myTerrain = terrain;
+      myState = TILE_STATE.LOADED;
+    } catch (Exception e) {
+      System.out.println("Could not load terrain tile " + myFile + ": " + e.getMessage());
+      myState = TILE_STATE.FAILED;
+    }
+  }
+
+  /**
+   * Test the tile against a frustum in world coordinates.
+   */
+  public boolean isVisible(Frustum frustum) {
+    if (frustum == null)
+      return true;
+
+    return frustum.intersectsBox(myOriginX, myMinAltitude, myOriginZ,
+      myOriginX + myTerrain.size().width - 1, myMaxAltitude, myOriginZ + myTerrain.size().height - 1);
+  }
+
+  //Getters and setters
+  public int getTileX() {
+    return myTileX;
+  }
+
+  public int getTileZ() {
+    return myTileZ;
+  }
+
+  public double getOriginX() {
+    return myOriginX;
+  }
+
+  public double getOriginZ() {
+    return myOriginZ;
+  }
+
+  public Terrain getTerrain() {
+    return myTerrain;
+  }
+
+  /**
+   * Get the estimated CPU memory used by the tile in bytes, 0 until it is loaded.
+   */
+  public long getMemorySize() {
+    return myMemorySize;
+  }
+
+  public TILE_STATE getState() {
+    return myState;
+  }
+
+  public void setState(TILE_STATE state) {
+    this.myState = state;
+  }
+
+  public Future<?> getLoad() {
+    return myLoad;
+  }
+
+  public void setLoad(Future<?> load) {
+    this.myLoad = load;
+  }
+}
@@ -0,0 +1,456 @@
+package ass2.spec;
+
+import com.jogamp.opengl.GL2;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * A large world made of a grid of Terrain tiles streamed in around the camera.
+ *
+ * The world is described by a manifest in JSON format:
+ *   tileSize      number of grid points along each side of a tile, neighbouring tiles share their edge points
+ *   tilesX/tilesZ number of tiles along each axis
+ *   tiles         file name pattern of the tile levels given the tile x and z, e.g. "tiles/%d_%d.json",
+ *                 relative to the manifest
+ *   sunlight      sunlight direction, as in a level
+ *   loadRadius    (optional) distance from the camera within which tiles are kept resident
+ *   memoryLimit   (optional) memory in MB tiles may use before tiles outside the radius are evicted
+ *   uploadBudget  (optional) KB of tile data (meshes, textures and instances) uploaded to GL per frame
+ *
+ * Only tiles within the load radius are requested. Each is loaded and meshed on a background thread
+ * (see TerrainTile), then uploaded on the GL thread a slice at a time within the per frame budget,
+ * closest tiles first, so a new tile never stalls a frame. Tiles are kept in least recently used
+ * order, a tile being used whenever it is within the radius, and when the tiles use more than the
+ * memory limit the least recently used tiles outside the radius are evicted and their VBOs released.
+ */
+public class TerrainWorld {
+
+  private File myDirectory;
+  private String myTilePattern;
+  private int myTileSize;
+  private int myTilesX;
+  private int myTilesZ;
+  private float[] mySunlight;
+
+  //Streaming settings
+  private double myLoadRadius;
+  private long myMemoryLimit;
+  private long myUploadBudget;
+
+  //Tiles by index, in least recently used order
+  private LinkedHashMap<Integer, TerrainTile> myTiles;
+  private ExecutorService myLoader;
+  private List<Terrain> myReleased;
+  private double[] myCamera;
+
+  //Drawing settings applied to every tile
+  private boolean lodEnabled;
+  private boolean quadtreeEnabled;
+  private boolean splatEnabled;
+  private boolean occlusionEnabled;
+
+  //Statistics
+  private int tilesDrawn;
+  private int tilesEvicted;
+
+  //Constants
+  private static final double DEFAULT_LOAD_RADIUS = 384.0; //distance from camera to keep tiles resident
+  private static final long DEFAULT_MEMORY_LIMIT = 256L * 1024 * 1024; //bytes tiles may use before eviction
+  private static final long DEFAULT_UPLOAD_BUDGET = 1024L * 1024; //bytes uploaded to GL per frame
+  private static final int LOADER_THREADS = 2; //background threads loading and meshing tiles
+
+  /**
+   * Create a world.
+   *
+   * @param directory directory tile file names are relative to
+   * @param tilePattern file name pattern of the tile levels given the tile x and z
+   * @param tileSize number of grid points along each side of a tile
+   * @param tilesX number of tiles along the x axis
+   * @param tilesZ number of tiles along the z axis
+   */
+  public TerrainWorld(File directory, String tilePattern, int tileSize, int tilesX, int tilesZ) {
+    this.myDirectory = directory;
+    this.myTilePattern = tilePattern;
+    this.myTileSize = tileSize;
+    this.myTilesX = tilesX;
+    this.myTilesZ = tilesZ;
+    this.mySunlight = new float[]{0, 1, 0};
+    this.myLoadRadius = DEFAULT_LOAD_RADIUS;
+    this.myMemoryLimit = DEFAULT_MEMORY_LIMIT;
+    this.myUploadBudget = DEFAULT_UPLOAD_BUDGET;
+    this.myTiles = new LinkedHashMap<Integer, TerrainTile>(16, 0.75f, true);
+    this.myReleased = new ArrayList<Terrain>();
+    this.myCamera = new double[]{0, 0};
+    this.occlusionEnabled = true;
+
+    //Daemon threads so a running load never keeps the game open
+    this.myLoader = Executors.newFixedThreadPool(LOADER_THREADS, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Terrain tile loader");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Load a world from its manifest in JSON format. No tiles are loaded until update() is called.
+   *
+   * @param manifest manifest file
+   * @return the world
+   * @throws FileNotFoundException
+   */
+  public static TerrainWorld load(File manifest) throws FileNotFoundException {
+    JSONObject json = new JSONObject(new JSONTokener(new FileReader(manifest)));
+
+    File directory = manifest.getAbsoluteFile().getParentFile();
+    TerrainWorld world = new TerrainWorld(directory, json.getString("tiles"), json.getInt("tileSize"),
+      json.getInt("tilesX"), json.getInt("tilesZ"));
+
+    JSONArray jsonSun = json.getJSONArray("sunlight");
+    world.setSunlightDir((float)jsonSun.getDouble(0), (float)jsonSun.getDouble(1), (float)jsonSun.getDouble(2));
+
+    if (json.has("loadRadius"))
+      world.setLoadRadius(json.getDouble("loadRadius"));
+    if (json.has("memoryLimit"))
+      world.setMemoryLimit((long)(json.getDouble("memoryLimit") * 1024 * 1024));
+    if (json.has("uploadBudget"))
+      world.setUploadBudget((long)(json.getDouble("uploadBudget") * 1024));
+
+    return world;
+  }
+
+  /**
+   * Request the tiles around the camera and evict tiles if over the memory limit.
+   * This makes no OpenGL calls, the meshes of evicted tiles are released by the next upload().
+   *
+   * @param x camera position on x axis
+   * @param z camera position on z axis
+   */
+  public synchronized void update(double x, double z) {
+    myCamera[0] = x;
+    myCamera[1] = z;
+
+    int span = myTileSize - 1;
+    int tx0 = Math.max((int)Math.floor((x - myLoadRadius) / span), 0);
+    int tz0 = Math.max((int)Math.floor((z - myLoadRadius) / span), 0);
+    int tx1 = Math.min((int)Math.floor((x + myLoadRadius) / span), myTilesX - 1);
+    int tz1 = Math.min((int)Math.floor((z + myLoadRadius) / span), myTilesZ - 1);
+
+    for (int tz = tz0; tz <= tz1; ++tz) {
+      for (int tx = tx0; tx <= tx1; ++tx) {
+        if (distanceToTile(tx, tz, x, z) > myLoadRadius)
+          continue;
+
+        //Looking the tile up marks it as recently used
+        Integer key = tz * myTilesX + tx;
+        if (myTiles.get(key) == null)
+          myTiles.put(key, requestTile(tx, tz));
+      }
+    }
+
+    evict();
+  }
+
+  /**
+   * Create a tile and queue it for loading in the background.
+   */
+  private TerrainTile requestTile(int tx, int tz) {
+    File file = new File(String.format(myTilePattern, tx, tz));
+    if (!file.isAbsolute())
+      file = new File(myDirectory, file.getPath());
+
+    final TerrainTile tile = new TerrainTile(tx, tz, tx * (myTileSize - 1), tz * (myTileSize - 1), file);
+    tile.setLoad(myLoader.submit(new Runnable() {
+      @Override
+      public void run() {
+        tile.load();
+      }
+    }));
+
+    return tile;
+  }
+
+  /**
+   * Evict the least recently used tiles outside the load radius until the tiles fit in the memory limit.
+   * Tiles inside the radius are never evicted, so the limit may be exceeded if the radius is too large.
+   */
+  private void evict() {
+    long memory = getMemorySize();
+
+    Iterator<TerrainTile> tiles = myTiles.values().iterator();
+    while (memory > myMemoryLimit && tiles.hasNext()) {
+      TerrainTile tile = tiles.next();
+      if (distanceToTile(tile.getTileX(), tile.getTileZ(), myCamera[0], myCamera[1]) <= myLoadRadius)
+        continue;
+
+      tiles.remove();
+      memory -= tile.getMemorySize();
+      ++tilesEvicted;
+
+      if (tile.getState() == TerrainTile.TILE_STATE.LOADING)
+        tile.getLoad().cancel(true);
+      else if (tile.getState() == TerrainTile.TILE_STATE.UPLOADING || tile.getState() == TerrainTile.TILE_STATE.RESIDENT)
+        myReleased.add(tile.getTerrain());
+    }
+  }
+
+  /**
+   * Release the VBOs of evicted tiles, then upload loaded tiles within the per frame budget,
+   * closest to the camera first. Must be called on the GL thread.
+   *
+   * @param gl GL2 object
+   * @return number of bytes uploaded
+   */
+  public synchronized long upload(GL2 gl) {
+    for (Terrain terrain : myReleased) {
+      terrain.getMesh().dispose(gl);
+      terrain.getQuadtree().dispose(gl);
+      terrain.getSplatMap().dispose(gl);
+      terrain.getTreeInstances().dispose(gl);
+      terrain.getTreeGrid().dispose(gl);
+      for (Road road : terrain.roads())
+        road.dispose(gl);
+    }
+    myReleased.clear();
+
+    List<TerrainTile> pending = new ArrayList<TerrainTile>();
+    for (TerrainTile tile : myTiles.values()) {
+      if (tile.getState() == TerrainTile.TILE_STATE.LOADED || tile.getState() == TerrainTile.TILE_STATE.UPLOADING)
+        pending.add(tile);
+    }
+    Collections.sort(pending, new Comparator<TerrainTile>() {
+      @Override
+      public int compare(TerrainTile a, TerrainTile b) {
+        return Double.compare(distanceToTile(a.getTileX(), a.getTileZ(), myCamera[0], myCamera[1]),
+          distanceToTile(b.getTileX(), b.getTileZ(), myCamera[0], myCamera[1]));
+      }
+    });
+
+    long used = 0;
+    for (TerrainTile tile : pending) {
+      if (used >= myUploadBudget)
+        break;
+
+      //A tile is only drawn once everything it draws is uploaded, so its first draw uploads nothing
+      Terrain terrain = tile.getTerrain();
+      tile.setState(TerrainTile.TILE_STATE.UPLOADING);
+      used += terrain.uploadPart(gl, myUploadBudget - used);
+      if (terrain.isUploaded())
+        tile.setState(TerrainTile.TILE_STATE.RESIDENT);
+    }
+
+    return used;
+  }
+
+  /**
+   * Draw every resident tile in the frustum, each translated to its place in the world.
+   * Arguments are the same as for Terrain.draw(), in world coordinates.
+   */
+  public synchronized void draw(GL2 gl, TexturePack texturePack, int shaderProgram, Game.FRAGMENT_SHADER_MODE fragmentShaderColourMode,
+                                boolean curLighting, boolean nightMode, float[] torchPosition, Frustum frustum) {
+    tilesDrawn = 0;
+
+    for (TerrainTile tile : myTiles.values()) {
+      if (tile.getState() != TerrainTile.TILE_STATE.RESIDENT || !tile.isVisible(frustum))
+        continue;
+
+      //Tiles are drawn in their own coordinates, so move the frustum and torch into them
+      double ox = tile.getOriginX();
+      double oz = tile.getOriginZ();
+      Frustum localFrustum = (frustum != null) ? frustum.translate(-ox, 0, -oz) : null;
+      float[] localTorch = {(float)(torchPosition[0] - ox), torchPosition[1], (float)(torchPosition[2] - oz)};
+
+      Terrain terrain = tile.getTerrain();
+      terrain.setLodEnabled(lodEnabled);
+      terrain.setQuadtreeEnabled(quadtreeEnabled);
+      terrain.setSplatEnabled(splatEnabled);
+      terrain.setOcclusionEnabled(occlusionEnabled);
+
+      gl.glPushMatrix();
+      gl.glTranslated(ox, 0, oz);
+      terrain.draw(gl, texturePack, shaderProgram, fragmentShaderColourMode, curLighting, nightMode, localTorch, localFrustum);
+      gl.glPopMatrix();
+      ++tilesDrawn;
+    }
+  }
+
+  /**
+   * Get the altitude at a point in world coordinates.
+   * Points in tiles that are not loaded yet, or off the world, are at altitude 0.
+   *
+   * @param x point on x axis
+   * @param z point on z axis
+   * @return altitude at the point
+   */
+  public synchronized double altitude(double x, double z) {
+    TerrainTile tile = getTileAt(x, z);
+    if (tile == null)
+      return 0;
+
+    return tile.getTerrain().altitude(x - tile.getOriginX(), z - tile.getOriginZ());
+  }
+
+  /**
+   * Get the loaded tile holding a point in world coordinates, or null if there is none.
+   *
+   * @param x point on x axis
+   * @param z point on z axis
+   * @return the tile, which is at least LOADED
+   */
+  public synchronized TerrainTile getTileAt(double x, double z) {
+    if (x < 0 || x > getWidth() - 1 || z < 0 || z > getDepth() - 1)
+      return null;
+
+    int tx = Math.min((int)(x / (myTileSize - 1)), myTilesX - 1);
+    int tz = Math.min((int)(z / (myTileSize - 1)), myTilesZ - 1);
+    TerrainTile tile = myTiles.get(tz * myTilesX + tx);
+    if (tile == null || tile.getState() == TerrainTile.TILE_STATE.LOADING || tile.getState() == TerrainTile.TILE_STATE.FAILED)
+      return null;
+
+    return tile;
+  }
+
+  /**
+   * Get the distance along the ground from a point to the closest point of a tile.
+   */
+  private double distanceToTile(int tx, int tz, double x, double z) {
+    double x0 = tx * (myTileSize - 1);
+    double z0 = tz * (myTileSize - 1);
+    double dx = Math.max(Math.max(x0 - x, x - (x0 + myTileSize - 1)), 0);
+    double dz = Math.max(Math.max(z0 - z, z - (z0 + myTileSize - 1)), 0);
+    return Math.sqrt(dx * dx + dz * dz);
+  }
+
+  /**
+   * Get the estimated CPU memory used by all loaded tiles in bytes.
+   */
+  public synchronized long getMemorySize() {
+    long memory = 0;
+    for (TerrainTile tile : myTiles.values()) {
+      memory += tile.getMemorySize();
+    }
+
+    return memory;
+  }
+
+  /**
+   * Count the tiles currently in a state.
+   */
+  public synchronized int countTiles(TerrainTile.TILE_STATE state) {
+    int count = 0;
+    for (TerrainTile tile : myTiles.values()) {
+      if (tile.getState() == state)
+        ++count;
+    }
+
+    return count;
+  }
+
+  /**
+   * Stop the loader threads. Meshes still in GL are not released.
+   */
+  public synchronized void shutdown() {
+    myLoader.shutdownNow();
+  }
+
+  //Getters and setters
+  public int getWidth() {
+    return myTilesX * (myTileSize - 1) + 1;
+  }
+
+  public int getDepth() {
+    return myTilesZ * (myTileSize - 1) + 1;
+  }
+
+  public float[] getSunlight() {
+    return mySunlight;
+  }
+
+  public void setSunlightDir(float dx, float dy, float dz) {
+    mySunlight[0] = dx;
+    mySunlight[1] = dy;
+    mySunlight[2] = dz;
+  }
+
+  public double getLoadRadius() {
+    return myLoadRadius;
+  }
+
+  public void setLoadRadius(double loadRadius) {
+    this.myLoadRadius = loadRadius;
+  }
+
+  public long getMemoryLimit() {
+    return myMemoryLimit;
+  }
+
+  public void setMemoryLimit(long memoryLimit) {
+    this.myMemoryLimit = memoryLimit;
+  }
+
+  public long getUploadBudget() {
+    return myUploadBudget;
+  }
+
+  public void setUploadBudget(long uploadBudget) {
+    this.myUploadBudget = uploadBudget;
+  }
+
+  public boolean isLodEnabled() {
+    return lodEnabled;
+  }
+
+  public void setLodEnabled(boolean lodEnabled) {
+    this.lodEnabled = lodEnabled;
+  }
+
+  public boolean isQuadtreeEnabled() {
+    return quadtreeEnabled;
+  }
+
+  public void setQuadtreeEnabled(boolean quadtreeEnabled) {
+    this.quadtreeEnabled = quadtreeEnabled;
+  }
+
+  public boolean isSplatEnabled() {
+    return splatEnabled;
+  }
+
+  public void setSplatEnabled(boolean splatEnabled) {
+    this.splatEnabled = splatEnabled;
+  }
+
+  public boolean isOcclusionEnabled() {
+    return occlusionEnabled;
+  }
+
+  public void setOcclusionEnabled(boolean occlusionEnabled) {
+    this.occlusionEnabled = occlusionEnabled;
+  }
+
+  public int getTilesDrawn() {
+    return tilesDrawn;
+  }
+
+  public int getTilesEvicted() {
+    return tilesEvicted;
+  }
+}
@@ -13,6 +13,7 @@ public class TexturePack {
   private Texture enemyMouth;
   private Texture bluePortal;
   private Texture orangePortal;
+  private Texture[] splatLayers = new Texture[SplatMap.LAYER.values().length];
   
   public Texture getTerrain() {
     return terrain;
@@ -94,4 +95,12 @@ public class TexturePack {
     this.orangePortal = orangePortal;
   }
   
+  public Texture getSplatLayer(SplatMap.LAYER layer) {
+    return splatLayers[layer.ordinal()];
+  }
+  
+  public void setSplatLayer(SplatMap.LAYER layer, Texture texture) {
+    this.splatLayers[layer.ordinal()] = texture;
+  }
+  
 }
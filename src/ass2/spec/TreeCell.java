@@ -0,0 +1,179 @@
+package ass2.spec;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.util.GLBuffers;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One cell of a TreeGrid, holding the trees over one terrain chunk.
+ *
+ * The positions of its trees are kept in an instance buffer of its own, so a whole cell can be
+ * drawn with one instanced call. Adding or removing a tree only rebuilds and uploads this cell.
+ */
+public class TreeCell {
+
+  private int myCellX;
+  private int myCellZ;
+  private double myMinX;
+  private double myMinZ;
+  private double mySize;
+  private List<Tree> myTrees;
+
+  //Cached from the trees, rebuilt when they change
+  private double[] myBounds;
+  private FloatBuffer instanceBuffer;
+  private boolean dirty;
+
+  //GL objects
+  private int instanceVboId;
+  private boolean uploaded;
+
+  public TreeCell(int cellX, int cellZ, double minX, double minZ, double size) {
+    this.myCellX = cellX;
+    this.myCellZ = cellZ;
+    this.myMinX = minX;
+    this.myMinZ = minZ;
+    this.mySize = size;
+    this.myTrees = new ArrayList<Tree>();
+    this.dirty = true;
+  }
+
+  public void add(Tree tree) {
+    myTrees.add(tree);
+    dirty = true;
+  }
+
+  /**
+   * Remove a tree from the cell.
+   *
+   * @param tree tree to remove
+   * @return true if the tree was in the cell
+   */
+  public boolean remove(Tree tree) {
+    if (!myTrees.remove(tree))
+      return false;
+
+    dirty = true;
+    return true;
+  }
+
+  /**
+   * Rebuild the bounds and instance buffer after the trees changed.
+   */
+  private void update() {
+    if (!dirty)
+      return;
+
+    if (instanceBuffer == null || instanceBuffer.capacity() < myTrees.size() * 3)
+      instanceBuffer = GLBuffers.newDirectFloatBuffer(Math.max(myTrees.size(), 1) * 3);
+    instanceBuffer.clear();
+
+    //Trees sit inside the cell but their leaves may hang over its edges
+    double minY = Double.POSITIVE_INFINITY;
+    double maxY = Double.NEGATIVE_INFINITY;
+    double minX = myMinX, minZ = myMinZ, maxX = myMinX + mySize, maxZ = myMinZ + mySize;
+    for (Tree tree : myTrees) {
+      double[] bounds = tree.getBounds();
+      minX = Math.min(minX, bounds[0]);
+      minY = Math.min(minY, bounds[1]);
+      minZ = Math.min(minZ, bounds[2]);
+      maxX = Math.max(maxX, bounds[3]);
+      maxY = Math.max(maxY, bounds[4]);
+      maxZ = Math.max(maxZ, bounds[5]);
+
+      double[] position = tree.getPosition();
+      instanceBuffer.put((float)position[0]);
+      instanceBuffer.put((float)position[1]);
+      instanceBuffer.put((float)position[2]);
+    }
+    instanceBuffer.flip();
+    myBounds = new double[]{minX, minY, minZ, maxX, maxY, maxZ};
+
+    dirty = false;
+    uploaded = false;
+  }
+
+  /**
+   * Get the bounding box of every tree in the cell.
+   *
+   * @return minimum x, y, z then maximum x, y, z
+   */
+  public double[] getBounds() {
+    update();
+    return myBounds;
+  }
+
+  /**
+   * Upload the positions of the trees into the instance VBO if they changed, creating it on first use.
+   *
+   * @param gl GL2 object
+   * @return the instance VBO, x, y, z per tree
+   */
+  public int upload(GL2 gl) {
+    update();
+    if (uploaded)
+      return instanceVboId;
+
+    if (instanceVboId == 0) {
+      int[] bufferIDs = new int[1];
+      gl.glGenBuffers(1, bufferIDs, 0);
+      instanceVboId = bufferIDs[0];
+    }
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, instanceVboId);
+    gl.glBufferData(GL.GL_ARRAY_BUFFER, (long)instanceBuffer.limit() * GLBuffers.SIZEOF_FLOAT, instanceBuffer, GL.GL_STATIC_DRAW);
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+
+    uploaded = true;
+    return instanceVboId;
+  }
+
+  /**
+   * Release the instance VBO, it is uploaded again if the cell is drawn.
+   *
+   * @param gl GL2 object
+   */
+  public void dispose(GL2 gl) {
+    if (instanceVboId != 0) {
+      gl.glDeleteBuffers(1, new int[]{instanceVboId}, 0);
+      instanceVboId = 0;
+    }
+    uploaded = false;
+  }
+
+  /**
+   * Check if the instance VBO holds the current trees.
+   */
+  public boolean isUploaded() {
+    update();
+    return uploaded;
+  }
+
+  /**
+   * Get the size of the instance buffer in bytes.
+   */
+  public long getByteSize() {
+    update();
+    return (long)instanceBuffer.limit() * GLBuffers.SIZEOF_FLOAT;
+  }
+
+  //Getters
+  public int getCellX() {
+    return myCellX;
+  }
+
+  public int getCellZ() {
+    return myCellZ;
+  }
+
+  public List<Tree> getTrees() {
+    return myTrees;
+  }
+
+  public int size() {
+    return myTrees.size();
+  }
+}
@@ -0,0 +1,178 @@
+package ass2.spec;
+
+import java.util.List;
+
+/**
+ * Collision of movers (the player and enemies) against the trunks of the trees on a terrain.
+ *
+ * Each trunk is an upright cylinder of radius Tree.TRUNK_RADIUS, so on the ground it is a circle
+ * and a mover of some radius overlaps it when their centres are closer than the sum of the radii.
+ *
+ * Trunks are filed in a spatial hash: the ground is split into small square cells and each cell is
+ * hashed into a table about as long as the number of trees, so memory does not depend on the size
+ * of the terrain. A bucket's trunks are stored together in flat arrays. A query only reads the
+ * few cells around the mover, so it costs the same however many trees there are. Cells that share
+ * a bucket only cost a few extra distance tests.
+ *
+ * The hash is rebuilt the next time it is used after trees are added or removed.
+ */
+public class TreeCollider {
+
+  private Terrain myTerrain;
+
+  //Trunks bucket by bucket, bucket b holds entries myBucketStart[b] to myBucketStart[b + 1]
+  private int myMask;
+  private int[] myBucketStart;
+  private float[] myTrunkX;
+  private float[] myTrunkZ;
+  private int myCount;
+
+  //State
+  private boolean built;
+
+  //Constants
+  public static final double CELL_SIZE = 1.0; //width and depth of a cell, movers up to this wide need only 3x3 cells
+  private static final int MIN_BUCKETS = 16; //smallest hash table
+
+  public TreeCollider(Terrain terrain) {
+    this.myTerrain = terrain;
+    this.built = false;
+  }
+
+  /**
+   * Mark the hash as out of date, for example when a tree is added.
+   */
+  public void invalidate() {
+    built = false;
+  }
+
+  /**
+   * File the trunk of every tree under its cell.
+   */
+  public void build() {
+    List<Tree> trees = myTerrain.trees();
+    int count = trees.size();
+
+    int buckets = MIN_BUCKETS;
+    while (buckets < count)
+      buckets <<= 1;
+    myMask = buckets - 1;
+
+    //Count the trunks of each bucket, then turn the counts into start positions
+    int[] treeBucket = new int[count];
+    myBucketStart = new int[buckets + 1];
+    for (int t = 0; t < count; ++t) {
+      double[] position = trees.get(t).getPosition();
+      treeBucket[t] = bucket(cell(position[0]), cell(position[2]));
+      myBucketStart[treeBucket[t] + 1]++;
+    }
+    for (int b = 0; b < buckets; ++b)
+      myBucketStart[b + 1] += myBucketStart[b];
+
+    myTrunkX = new float[count];
+    myTrunkZ = new float[count];
+    int[] fill = new int[buckets];
+    for (int t = 0; t < count; ++t) {
+      int entry = myBucketStart[treeBucket[t]] + fill[treeBucket[t]]++;
+      double[] position = trees.get(t).getPosition();
+      myTrunkX[entry] = (float)position[0];
+      myTrunkZ[entry] = (float)position[2];
+    }
+
+    myCount = count;
+    built = true;
+  }
+
+  /**
+   * Helper to rebuild the hash if it is out of date or trees were changed behind its back.
+   */
+  private void ensureBuilt() {
+    if (!built || myCount != myTerrain.trees().size())
+      build();
+  }
+
+  /**
+   * Helper to get the cell coordinate holding a coordinate.
+   */
+  private static int cell(double coordinate) {
+    return (int)Math.floor(coordinate / CELL_SIZE);
+  }
+
+  /**
+   * Helper to hash a cell into a bucket.
+   */
+  private int bucket(int cx, int cz) {
+    return ((cx * 73856093) ^ (cz * 19349663)) & myMask;
+  }
+
+  /**
+   * Check if a mover overlaps any trunk.
+   *
+   * @param x centre of the mover on x axis
+   * @param z centre of the mover on z axis
+   * @param radius radius of the mover
+   * @return true if the mover is inside a trunk
+   */
+  public boolean collides(double x, double z, double radius) {
+    ensureBuilt();
+
+    double reach = radius + Tree.TRUNK_RADIUS;
+    int cx0 = cell(x - reach), cx1 = cell(x + reach);
+    int cz0 = cell(z - reach), cz1 = cell(z + reach);
+    for (int cz = cz0; cz <= cz1; ++cz) {
+      for (int cx = cx0; cx <= cx1; ++cx) {
+        int b = bucket(cx, cz);
+        for (int e = myBucketStart[b]; e < myBucketStart[b + 1]; ++e) {
+          double dx = x - myTrunkX[e];
+          double dz = z - myTrunkZ[e];
+          if (dx * dx + dz * dz < reach * reach)
+            return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Push a mover out of any trunk it overlaps, along the line from the trunk's centre. A mover
+   * walking into a trunk at an angle slides around it instead of stopping dead.
+   *
+   * @param position x and z of the mover's centre, moved in place
+   * @param radius radius of the mover
+   * @return true if the mover was pushed
+   */
+  public boolean resolve(double[] position, double radius) {
+    ensureBuilt();
+
+    double reach = radius + Tree.TRUNK_RADIUS;
+    int cx0 = cell(position[0] - reach), cx1 = cell(position[0] + reach);
+    int cz0 = cell(position[1] - reach), cz1 = cell(position[1] + reach);
+    boolean pushed = false;
+    for (int cz = cz0; cz <= cz1; ++cz) {
+      for (int cx = cx0; cx <= cx1; ++cx) {
+        int b = bucket(cx, cz);
+        for (int e = myBucketStart[b]; e < myBucketStart[b + 1]; ++e) {
+          double dx = position[0] - myTrunkX[e];
+          double dz = position[1] - myTrunkZ[e];
+          double distance2 = dx * dx + dz * dz;
+          if (distance2 >= reach * reach)
+            continue;
+
+          //Dead centre of a trunk has no direction out, any will do
+          double distance = Math.sqrt(distance2);
+          if (distance == 0) {
+            position[0] += reach;
+          } else {
+            double push = (reach - distance) / distance;
+            position[0] += dx * push;
+            position[1] += dz * push;
+          }
+          pushed = true;
+        }
+      }
+    }
+
+    return pushed;
+  }
+}
@@ -0,0 +1,194 @@
+package ass2.spec;
+
+import com.jogamp.opengl.GL2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spatial grid of the trees of a terrain, with cells the size of the terrain mesh chunks.
+ *
+ * Each cell (see TreeCell) is culled and given a level of detail as a whole before its trees are
+ * looked at, and keeps its own instance buffer. Trees off the terrain are kept in the nearest
+ * edge cell. Terrain.trees() stays the list of every tree; the grid is rebuilt if that list is
+ * changed directly instead of through Terrain.addTree and Terrain.removeTree.
+ */
+public class TreeGrid {
+
+  private Terrain myTerrain;
+  private int myColumns;
+  private int myRows;
+  private TreeCell[] myCells;
+  private int myCount;
+  private List<TreeCell> myReleased;
+
+  //State
+  private boolean built;
+
+  //Constants
+  public static final int CELL_SIZE = TerrainMesh.CHUNK_SIZE; //width and depth of a cell, one terrain chunk
+
+  public TreeGrid(Terrain terrain) {
+    this.myTerrain = terrain;
+    this.myReleased = new ArrayList<TreeCell>();
+    this.built = false;
+  }
+
+  /**
+   * Mark the grid as out of date, for example when the terrain is resized.
+   * Cells keep their VBOs until dispose() is called.
+   */
+  public void invalidate() {
+    built = false;
+  }
+
+  /**
+   * File every tree of the terrain into its cell.
+   */
+  public void build() {
+    //Old cells may still hold VBOs, they are released on the GL thread
+    if (myCells != null) {
+      for (TreeCell cell : myCells)
+        myReleased.add(cell);
+    }
+
+    myColumns = Math.max((myTerrain.size().width - 2) / CELL_SIZE + 1, 1);
+    myRows = Math.max((myTerrain.size().height - 2) / CELL_SIZE + 1, 1);
+    myCells = new TreeCell[myColumns * myRows];
+    for (int cz = 0; cz < myRows; ++cz) {
+      for (int cx = 0; cx < myColumns; ++cx) {
+        myCells[cz * myColumns + cx] = new TreeCell(cx, cz, cx * CELL_SIZE, cz * CELL_SIZE, CELL_SIZE);
+      }
+    }
+
+    myCount = 0;
+    for (Tree tree : myTerrain.trees()) {
+      cell(tree.getPosition()[0], tree.getPosition()[2]).add(tree);
+      myCount++;
+    }
+
+    built = true;
+  }
+
+  /**
+   * Helper to rebuild the grid if it is out of date or trees were changed behind its back.
+   */
+  private void ensureBuilt() {
+    if (!built || myCount != myTerrain.trees().size())
+      build();
+  }
+
+  /**
+   * Add a tree that was just added to Terrain.trees(), only its cell is changed.
+   *
+   * @param tree new tree
+   */
+  public void add(Tree tree) {
+    if (!built) {
+      build();
+      return;
+    }
+
+    cell(tree.getPosition()[0], tree.getPosition()[2]).add(tree);
+    myCount++;
+  }
+
+  /**
+   * Remove a tree that was just removed from Terrain.trees(), only its cell is changed.
+   *
+   * @param tree removed tree
+   */
+  public void remove(Tree tree) {
+    if (!built) {
+      build();
+      return;
+    }
+
+    if (cell(tree.getPosition()[0], tree.getPosition()[2]).remove(tree))
+      myCount--;
+  }
+
+  /**
+   * Get the cell holding a point, the nearest edge cell for points off the terrain.
+   *
+   * @param x point on x axis
+   * @param z point on z axis
+   * @return cell
+   */
+  public TreeCell cellAt(double x, double z) {
+    ensureBuilt();
+    return cell(x, z);
+  }
+
+  /**
+   * Helper to get the cell holding a point once the grid is built.
+   */
+  private TreeCell cell(double x, double z) {
+    int cx = (int)MathUtil.clamp(Math.floor(x / CELL_SIZE), 0, myColumns - 1);
+    int cz = (int)MathUtil.clamp(Math.floor(z / CELL_SIZE), 0, myRows - 1);
+    return myCells[cz * myColumns + cx];
+  }
+
+  /**
+   * Get every cell, row by row.
+   */
+  public TreeCell[] getCells() {
+    ensureBuilt();
+    return myCells;
+  }
+
+  /**
+   * Find the trees standing in a rectangle, only looking at the cells it overlaps.
+   *
+   * @param x0 minimum x
+   * @param z0 minimum z
+   * @param x1 maximum x
+   * @param z1 maximum z
+   * @return trees whose position is inside the rectangle
+   */
+  public List<Tree> treesIn(double x0, double z0, double x1, double z1) {
+    ensureBuilt();
+
+    List<Tree> trees = new ArrayList<Tree>();
+    int cx0 = (int)MathUtil.clamp(Math.floor(x0 / CELL_SIZE), 0, myColumns - 1);
+    int cz0 = (int)MathUtil.clamp(Math.floor(z0 / CELL_SIZE), 0, myRows - 1);
+    int cx1 = (int)MathUtil.clamp(Math.floor(x1 / CELL_SIZE), 0, myColumns - 1);
+    int cz1 = (int)MathUtil.clamp(Math.floor(z1 / CELL_SIZE), 0, myRows - 1);
+    for (int cz = cz0; cz <= cz1; ++cz) {
+      for (int cx = cx0; cx <= cx1; ++cx) {
+        for (Tree tree : myCells[cz * myColumns + cx].getTrees()) {
+          double[] p = tree.getPosition();
+          if (p[0] >= x0 && p[0] <= x1 && p[2] >= z0 && p[2] <= z1)
+            trees.add(tree);
+        }
+      }
+    }
+
+    return trees;
+  }
+
+  /**
+   * Release the instance VBOs of cells replaced when the grid was rebuilt.
+   *
+   * @param gl GL2 object
+   */
+  public void disposeReleased(GL2 gl) {
+    for (TreeCell cell : myReleased)
+      cell.dispose(gl);
+    myReleased.clear();
+  }
+
+  /**
+   * Release the instance VBOs of every cell.
+   *
+   * @param gl GL2 object
+   */
+  public void dispose(GL2 gl) {
+    disposeReleased(gl);
+    if (myCells == null)
+      return;
+
+    for (TreeCell cell : myCells)
+      cell.dispose(gl);
+  }
+}
@@ -0,0 +1,627 @@
+package ass2.spec;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.GLContext;
+import com.jogamp.opengl.util.GLBuffers;
+import com.jogamp.opengl.util.texture.Texture;
+
+import java.net.URL;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Instanced drawing of the trees of a terrain.
+ *
+ * Every tree is the same trunk cylinder and leaves sphere, so the meshes are built once, shared by
+ * every terrain and drawn with glDrawArraysInstanced. Only the position of each tree changes,
+ * which is read from an instance buffer (glVertexAttribDivisor) filled with the visible trees each
+ * frame.
+ *
+ * Trees are drawn at one of three levels of detail picked by their distance from the camera: the
+ * full mesh close up, a mesh with fewer slices at mid range and a camera facing impostor quad far
+ * away. The impostor texture is rendered from the full mesh once per texture pack. Each tree
+ * remembers its level and only changes it once it is clearly past the switching distance
+ * (hysteresis), so trees near the boundary do not flicker between levels.
+ *
+ * Whole cells of a TreeGrid beyond the impostor distance are drawn straight from their own
+ * instance buffers, so only the trees near the camera are sorted into levels each frame.
+ */
+public class TreeInstances {
+
+  /**
+   * Levels of detail, from closest to furthest.
+   */
+  public enum LOD_LEVEL {
+    FULL, REDUCED, IMPOSTOR
+  }
+
+  //Positions of the trees to draw at each level, x, y, z per tree
+  private FloatBuffer[] instanceBuffers;
+  private int[] instanceCounts;
+  private int instanceVboId;
+
+  //Cells drawn entirely as impostors
+  private List<TreeCell> myCells;
+  private int cellInstances;
+
+  //Shared meshes as triangles with interleaved position, normal and texture coordinates
+  //Parts are the trunk and leaves of the full and reduced meshes, then the impostor quad
+  //These and the impostor belong to the context they were made in
+  private static GLContext sharedContext;
+  private static int meshVboId;
+  private static int[] partFirst = new int[5];
+  private static int[] partCount = new int[5];
+  private static int shaderProgram;
+
+  //Impostor texture, rendered from the textures it was made with
+  private static int impostorTextureId;
+  private static int impostorTrunkId;
+  private static int impostorLeavesId;
+
+  //Constants
+  private static final int FULL_TRUNK = 0, FULL_LEAVES = 1, REDUCED_TRUNK = 2, REDUCED_LEAVES = 3, IMPOSTOR_QUAD = 4; //mesh parts
+  private static final int FULL_TRUNK_SLICES = 12; //sides of the trunk cylinder close up
+  private static final int FULL_LEAVES_SLICES = 16; //slices around the leaves sphere close up
+  private static final int FULL_LEAVES_STACKS = 12; //stacks from the bottom to the top of the leaves sphere close up
+  private static final int REDUCED_TRUNK_SLICES = 5; //sides of the trunk cylinder at mid range
+  private static final int REDUCED_LEAVES_SLICES = 7; //slices around the leaves sphere at mid range
+  private static final int REDUCED_LEAVES_STACKS = 5; //stacks of the leaves sphere at mid range
+  private static final double[] LOD_DISTANCES = {12, 35}; //distances from the camera at which trees switch to the next level
+  private static final double LOD_HYSTERESIS = 0.1; //fraction past a switching distance before a tree changes level
+  private static final int IMPOSTOR_SIZE = 128; //width and height of the impostor texture in pixels
+  private static final float IMPOSTOR_ALPHA_CUTOFF = 0.5f; //impostor texels more transparent than this are discarded
+  private static final int INITIAL_CAPACITY = 256; //trees in a new instance buffer
+  private static final int FLOATS_PER_VERTEX = 8; //position (3), normal (3), texture coordinates (2)
+  private static final int NORMAL_OFFSET = 3; //offset of the normal in a vertex, in floats
+  private static final int TEXTURE_OFFSET = 6; //offset of the texture coordinates in a vertex, in floats
+  private static final int STRIDE = FLOATS_PER_VERTEX * GLBuffers.SIZEOF_FLOAT; //bytes between vertices
+  private static final String VERTEX_SHADER_GLSL = "/shader/TreeVertex.glsl"; //path to vertex shader GLSL file
+  private static final String FRAGMENT_SHADER_GLSL = "/shader/AttributeFragment.glsl"; //path to fragment shader GLSL file
+
+  public TreeInstances() {
+    int levels = LOD_LEVEL.values().length;
+    instanceBuffers = new FloatBuffer[levels];
+    instanceCounts = new int[levels];
+    for (int level = 0; level < levels; ++level)
+      instanceBuffers[level] = GLBuffers.newDirectFloatBuffer(INITIAL_CAPACITY * 3);
+    myCells = new ArrayList<TreeCell>();
+  }
+
+  /**
+   * Remove every tree, ready for the trees of the next frame.
+   */
+  public void clear() {
+    for (int level = 0; level < instanceBuffers.length; ++level) {
+      instanceBuffers[level].clear();
+      instanceCounts[level] = 0;
+    }
+    myCells.clear();
+    cellInstances = 0;
+  }
+
+  /**
+   * Add a tree to draw at its level of detail for the given camera position.
+   *
+   * @param tree tree to draw
+   * @param eye camera position, or null to draw the full mesh
+   */
+  public void add(Tree tree, double[] eye) {
+    double[] position = tree.getPosition();
+    LOD_LEVEL level = LOD_LEVEL.FULL;
+    if (eye != null) {
+      double dx = position[0] - eye[0];
+      double dy = position[1] - eye[1];
+      double dz = position[2] - eye[2];
+      level = selectLevel(tree.getLodLevel(), Math.sqrt(dx * dx + dy * dy + dz * dz));
+      tree.setLodLevel(level);
+    }
+
+    add(position, level);
+  }
+
+  /**
+   * Add a whole cell of trees to draw as impostors.
+   *
+   * @param cell cell whose every tree is past the impostor distance, see isImpostorCell()
+   */
+  public void addCell(TreeCell cell) {
+    myCells.add(cell);
+    cellInstances += cell.size();
+  }
+
+  /**
+   * Check if every tree in a box is far enough from the camera to be an impostor whatever its
+   * current level, so the box can be drawn without looking at its trees.
+   *
+   * @param bounds minimum x, y, z then maximum x, y, z
+   * @param eye camera position, or null
+   * @return true if the nearest point of the box is past the impostor distance
+   */
+  public static boolean isImpostorCell(double[] bounds, double[] eye) {
+    if (eye == null)
+      return false;
+
+    double dx = Math.max(Math.max(bounds[0] - eye[0], eye[0] - bounds[3]), 0);
+    double dy = Math.max(Math.max(bounds[1] - eye[1], eye[1] - bounds[4]), 0);
+    double dz = Math.max(Math.max(bounds[2] - eye[2], eye[2] - bounds[5]), 0);
+    return Math.sqrt(dx * dx + dy * dy + dz * dz) > LOD_DISTANCES[LOD_DISTANCES.length - 1] * (1 + LOD_HYSTERESIS);
+  }
+
+  /**
+   * Pick the level of detail of a tree, only moving from its current level once the distance is
+   * clearly past the switching distance.
+   *
+   * @param current current level of the tree
+   * @param distance distance from the camera
+   * @return new level of the tree
+   */
+  public static LOD_LEVEL selectLevel(LOD_LEVEL current, double distance) {
+    int level = current.ordinal();
+    while (level > 0 && distance < LOD_DISTANCES[level - 1] * (1 - LOD_HYSTERESIS))
+      level--;
+    while (level < LOD_DISTANCES.length && distance > LOD_DISTANCES[level] * (1 + LOD_HYSTERESIS))
+      level++;
+    return LOD_LEVEL.values()[level];
+  }
+
+  /**
+   * Helper to add a position to the instance buffer of a level, growing it when it is full.
+   */
+  private void add(double[] position, LOD_LEVEL level) {
+    int l = level.ordinal();
+    if (instanceBuffers[l].remaining() < 3) {
+      FloatBuffer bigger = GLBuffers.newDirectFloatBuffer(instanceBuffers[l].capacity() * 2);
+      instanceBuffers[l].flip();
+      bigger.put(instanceBuffers[l]);
+      instanceBuffers[l] = bigger;
+    }
+
+    instanceBuffers[l].put((float)position[0]);
+    instanceBuffers[l].put((float)position[1]);
+    instanceBuffers[l].put((float)position[2]);
+    instanceCounts[l]++;
+  }
+
+  /**
+   * Get the number of trees added at a level of detail since the last clear().
+   */
+  public int getInstanceCount(LOD_LEVEL level) {
+    return instanceCounts[level.ordinal()] + ((level == LOD_LEVEL.IMPOSTOR) ? cellInstances : 0);
+  }
+
+  /**
+   * Get the number of triangles of the trees added since the last clear().
+   */
+  public int getTrianglesDrawn() {
+    int vertices = instanceCounts[LOD_LEVEL.FULL.ordinal()] * (partCount(FULL_TRUNK) + partCount(FULL_LEAVES)) +
+      instanceCounts[LOD_LEVEL.REDUCED.ordinal()] * (partCount(REDUCED_TRUNK) + partCount(REDUCED_LEAVES)) +
+      (instanceCounts[LOD_LEVEL.IMPOSTOR.ordinal()] + cellInstances) * partCount(IMPOSTOR_QUAD);
+    return vertices / 3;
+  }
+
+  /**
+   * Helper to get the number of vertices of a mesh part, building the meshes first if required.
+   */
+  private static int partCount(int part) {
+    if (partCount[part] == 0)
+      buildMesh();
+    return partCount[part];
+  }
+
+  /**
+   * Build the shared tree meshes: a trunk cylinder from just under the ground up to the leaves and
+   * a leaves sphere on top, both centred on the origin, at full and reduced detail. Then the
+   * impostor quad covering the same space, which is turned to face the camera by the shader.
+   */
+  private static FloatBuffer buildMesh() {
+    partCount[FULL_TRUNK] = FULL_TRUNK_SLICES * 6;
+    partCount[FULL_LEAVES] = FULL_LEAVES_SLICES * FULL_LEAVES_STACKS * 6;
+    partCount[REDUCED_TRUNK] = REDUCED_TRUNK_SLICES * 6;
+    partCount[REDUCED_LEAVES] = REDUCED_LEAVES_SLICES * REDUCED_LEAVES_STACKS * 6;
+    partCount[IMPOSTOR_QUAD] = 6;
+    int vertices = 0;
+    for (int part = 0; part < partCount.length; ++part) {
+      partFirst[part] = vertices;
+      vertices += partCount[part];
+    }
+
+    FloatBuffer mesh = GLBuffers.newDirectFloatBuffer(vertices * FLOATS_PER_VERTEX);
+    putTrunk(mesh, FULL_TRUNK_SLICES);
+    putLeaves(mesh, FULL_LEAVES_SLICES, FULL_LEAVES_STACKS);
+    putTrunk(mesh, REDUCED_TRUNK_SLICES);
+    putLeaves(mesh, REDUCED_LEAVES_SLICES, REDUCED_LEAVES_STACKS);
+
+    //Impostor, a square as wide as it is tall so the texture is not stretched
+    double bottom = -Tree.TRUNK_INTERPOLATION_OFFSET;
+    double top = Tree.TRUNK_HEIGHT - Tree.TRUNK_INTERPOLATION_OFFSET + Tree.LEAVES_RADIUS;
+    double half = (top - bottom) / 2;
+    int[][] corners = {{0, 0}, {1, 0}, {1, 1}, {0, 0}, {1, 1}, {0, 1}};
+    for (int[] corner : corners) {
+      putVertex(mesh, (corner[0] == 0) ? -half : half, (corner[1] == 0) ? bottom : top, 0, 0, 0, 1, corner[0], corner[1]);
+    }
+
+    mesh.flip();
+    return mesh;
+  }
+
+  /**
+   * Helper to add the trunk cylinder, each side a quad of two triangles.
+   */
+  private static void putTrunk(FloatBuffer mesh, int slices) {
+    double bottom = -Tree.TRUNK_INTERPOLATION_OFFSET;
+    double top = Tree.TRUNK_HEIGHT - Tree.TRUNK_INTERPOLATION_OFFSET;
+    for (int i = 0; i < slices; ++i) {
+      int[][] corners = {{i, 0}, {i + 1, 0}, {i + 1, 1}, {i, 0}, {i + 1, 1}, {i, 1}};
+      for (int[] corner : corners) {
+        double angle = 2 * Math.PI * corner[0] / slices;
+        double nx = Math.sin(angle);
+        double nz = Math.cos(angle);
+        putVertex(mesh, nx * Tree.TRUNK_RADIUS, (corner[1] == 0) ? bottom : top, nz * Tree.TRUNK_RADIUS, nx, 0, nz,
+          (double)corner[0] / slices, corner[1]);
+      }
+    }
+  }
+
+  /**
+   * Helper to add the leaves sphere, each patch between two slices and two stacks a quad of two triangles.
+   */
+  private static void putLeaves(FloatBuffer mesh, int slices, int stacks) {
+    double centre = Tree.TRUNK_HEIGHT - Tree.TRUNK_INTERPOLATION_OFFSET;
+    for (int j = 0; j < stacks; ++j) {
+      for (int i = 0; i < slices; ++i) {
+        int[][] corners = {{i, j}, {i + 1, j}, {i + 1, j + 1}, {i, j}, {i + 1, j + 1}, {i, j + 1}};
+        for (int[] corner : corners) {
+          double longitude = 2 * Math.PI * corner[0] / slices;
+          double latitude = Math.PI * corner[1] / stacks - Math.PI / 2;
+          double nx = Math.cos(latitude) * Math.sin(longitude);
+          double ny = Math.sin(latitude);
+          double nz = Math.cos(latitude) * Math.cos(longitude);
+          putVertex(mesh, nx * Tree.LEAVES_RADIUS, centre + ny * Tree.LEAVES_RADIUS, nz * Tree.LEAVES_RADIUS, nx, ny, nz,
+            (double)corner[0] / slices, (double)corner[1] / stacks);
+        }
+      }
+    }
+  }
+
+  /**
+   * Helper to add an interleaved vertex to the mesh.
+   */
+  private static void putVertex(FloatBuffer mesh, double x, double y, double z, double nx, double ny, double nz, double s, double t) {
+    mesh.put((float)x);
+    mesh.put((float)y);
+    mesh.put((float)z);
+    mesh.put((float)nx);
+    mesh.put((float)ny);
+    mesh.put((float)nz);
+    mesh.put((float)s);
+    mesh.put((float)t);
+  }
+
+  /**
+   * Create the shared mesh VBO and shader the first time any trees are drawn in a context.
+   */
+  private static void setupShared(GL2 gl) {
+    //Names from a context that was destroyed and recreated mean nothing in the new one
+    if (gl.getContext() != sharedContext) {
+      sharedContext = gl.getContext();
+      meshVboId = 0;
+      shaderProgram = 0;
+      impostorTextureId = 0;
+      impostorTrunkId = 0;
+      impostorLeavesId = 0;
+    }
+
+    if (shaderProgram == 0) {
+      try {
+        URL vertexShader = TreeInstances.class.getResource(VERTEX_SHADER_GLSL);
+        URL fragmentShader = TreeInstances.class.getResource(FRAGMENT_SHADER_GLSL);
+        shaderProgram = Shader.initShaders(gl, vertexShader.getPath(), fragmentShader.getPath());
+      } catch (Exception e) {
+        e.printStackTrace();
+        System.exit(1);
+      }
+    }
+
+    if (meshVboId == 0) {
+      FloatBuffer mesh = buildMesh();
+      int[] bufferIDs = new int[1];
+      gl.glGenBuffers(1, bufferIDs, 0);
+      meshVboId = bufferIDs[0];
+      gl.glBindBuffer(GL.GL_ARRAY_BUFFER, meshVboId);
+      gl.glBufferData(GL.GL_ARRAY_BUFFER, (long)mesh.limit() * GLBuffers.SIZEOF_FLOAT, mesh, GL.GL_STATIC_DRAW);
+      gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+    }
+  }
+
+  /**
+   * Render the full tree mesh from the side into the impostor texture, unlit and with a
+   * transparent background. This is redone when the tree textures change (a new texture pack).
+   */
+  private static void setupImpostor(GL2 gl, TexturePack texturePack) {
+    Texture treeTrunk = texturePack.getTreeTrunk();
+    Texture treeLeaves = texturePack.getTreeLeaves();
+    if (impostorTextureId != 0 && impostorTrunkId == treeTrunk.getTextureObject() &&
+        impostorLeavesId == treeLeaves.getTextureObject())
+      return;
+
+    if (impostorTextureId == 0) {
+      int[] textureIDs = new int[1];
+      gl.glGenTextures(1, textureIDs, 0);
+      impostorTextureId = textureIDs[0];
+      gl.glBindTexture(GL.GL_TEXTURE_2D, impostorTextureId);
+      gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL.GL_RGBA8, IMPOSTOR_SIZE, IMPOSTOR_SIZE, 0, GL.GL_RGBA, GL.GL_UNSIGNED_BYTE, null);
+      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_LINEAR_MIPMAP_LINEAR);
+      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_LINEAR);
+      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL.GL_CLAMP_TO_EDGE);
+      gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL.GL_CLAMP_TO_EDGE);
+    }
+    impostorTrunkId = treeTrunk.getTextureObject();
+    impostorLeavesId = treeLeaves.getTextureObject();
+
+    //Render into the texture through a temporary framebuffer, restoring the current one after
+    //(GLJPanel draws into a framebuffer of its own)
+    int[] previousFramebuffer = new int[1];
+    gl.glGetIntegerv(GL.GL_FRAMEBUFFER_BINDING, previousFramebuffer, 0);
+    int[] framebufferIDs = new int[1];
+    int[] renderbufferIDs = new int[1];
+    gl.glGenFramebuffers(1, framebufferIDs, 0);
+    gl.glGenRenderbuffers(1, renderbufferIDs, 0);
+    gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, framebufferIDs[0]);
+    gl.glFramebufferTexture2D(GL.GL_FRAMEBUFFER, GL.GL_COLOR_ATTACHMENT0, GL.GL_TEXTURE_2D, impostorTextureId, 0);
+    gl.glBindRenderbuffer(GL.GL_RENDERBUFFER, renderbufferIDs[0]);
+    gl.glRenderbufferStorage(GL.GL_RENDERBUFFER, GL.GL_DEPTH_COMPONENT24, IMPOSTOR_SIZE, IMPOSTOR_SIZE);
+    gl.glFramebufferRenderbuffer(GL.GL_FRAMEBUFFER, GL.GL_DEPTH_ATTACHMENT, GL.GL_RENDERBUFFER, renderbufferIDs[0]);
+
+    gl.glPushAttrib(GL2.GL_ALL_ATTRIB_BITS);
+    gl.glViewport(0, 0, IMPOSTOR_SIZE, IMPOSTOR_SIZE);
+    gl.glClearColor(0, 0, 0, 0);
+    gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
+    gl.glDisable(GL2.GL_LIGHTING);
+    gl.glDisable(GL.GL_BLEND);
+    gl.glEnable(GL.GL_DEPTH_TEST);
+    gl.glEnable(GL.GL_TEXTURE_2D);
+    gl.glColor4f(1, 1, 1, 1);
+
+    //Orthographic view from the side, covering the impostor quad
+    double bottom = -Tree.TRUNK_INTERPOLATION_OFFSET;
+    double top = Tree.TRUNK_HEIGHT - Tree.TRUNK_INTERPOLATION_OFFSET + Tree.LEAVES_RADIUS;
+    double half = (top - bottom) / 2;
+    gl.glMatrixMode(GL2.GL_PROJECTION);
+    gl.glPushMatrix();
+    gl.glLoadIdentity();
+    gl.glOrtho(-half, half, bottom, top, -1, 1);
+    gl.glMatrixMode(GL2.GL_MODELVIEW);
+    gl.glPushMatrix();
+    gl.glLoadIdentity();
+
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, meshVboId);
+    gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+    gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+    gl.glVertexPointer(3, GL.GL_FLOAT, STRIDE, 0);
+    gl.glTexCoordPointer(2, GL.GL_FLOAT, STRIDE, TEXTURE_OFFSET * GLBuffers.SIZEOF_FLOAT);
+    gl.glBindTexture(GL.GL_TEXTURE_2D, impostorTrunkId);
+    gl.glDrawArrays(GL.GL_TRIANGLES, partFirst[FULL_TRUNK], partCount[FULL_TRUNK]);
+    gl.glBindTexture(GL.GL_TEXTURE_2D, impostorLeavesId);
+    gl.glDrawArrays(GL.GL_TRIANGLES, partFirst[FULL_LEAVES], partCount[FULL_LEAVES]);
+    gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+    gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+
+    gl.glMatrixMode(GL2.GL_PROJECTION);
+    gl.glPopMatrix();
+    gl.glMatrixMode(GL2.GL_MODELVIEW);
+    gl.glPopMatrix();
+    gl.glPopAttrib();
+
+    gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, previousFramebuffer[0]);
+    gl.glDeleteFramebuffers(1, framebufferIDs, 0);
+    gl.glDeleteRenderbuffers(1, renderbufferIDs, 0);
+
+    //Mipmaps so distant impostors do not shimmer
+    gl.glBindTexture(GL.GL_TEXTURE_2D, impostorTextureId);
+    gl.glGenerateMipmap(GL.GL_TEXTURE_2D);
+    gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+  }
+
+  /**
+   * Draw every tree added since the last clear().
+   *
+   * @param gl GL2 object
+   * @param texturePack textures for the trunk and leaves
+   * @param fragmentShaderColourMode whether textures or colours are used
+   * @param curLighting true if lighting is enabled
+   * @param nightMode true if lit by the torch instead of the sun
+   * @param torchPosition position of the torch in eye coordinates
+   * @param sunlight direction of the sun
+   */
+  public void draw(GL2 gl, TexturePack texturePack, Game.FRAGMENT_SHADER_MODE fragmentShaderColourMode,
+                   boolean curLighting, boolean nightMode, float[] torchPosition, float[] sunlight) {
+    int total = 0;
+    for (int count : instanceCounts)
+      total += count;
+    if (total + cellInstances == 0)
+      return;
+
+    setupShared(gl);
+    boolean textureMode = (fragmentShaderColourMode == Game.FRAGMENT_SHADER_MODE.TEXTURE);
+    if (textureMode)
+      setupImpostor(gl, texturePack);
+
+    //Copy this frame's trees into the instance buffer, one level after another
+    if (instanceVboId == 0) {
+      int[] bufferIDs = new int[1];
+      gl.glGenBuffers(1, bufferIDs, 0);
+      instanceVboId = bufferIDs[0];
+    }
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, instanceVboId);
+    gl.glBufferData(GL.GL_ARRAY_BUFFER, (long)Math.max(total, 1) * 3 * GLBuffers.SIZEOF_FLOAT, null, GL2.GL_STREAM_DRAW);
+    long[] offsets = new long[instanceBuffers.length];
+    long offset = 0;
+    for (int level = 0; level < instanceBuffers.length; ++level) {
+      offsets[level] = offset;
+      FloatBuffer buffer = instanceBuffers[level];
+      buffer.flip();
+      gl.glBufferSubData(GL.GL_ARRAY_BUFFER, offset, (long)buffer.limit() * GLBuffers.SIZEOF_FLOAT, buffer);
+      offset += (long)buffer.limit() * GLBuffers.SIZEOF_FLOAT;
+      buffer.position(buffer.limit());
+      buffer.limit(buffer.capacity());
+    }
+
+    gl.glPushAttrib(GL2.GL_LIGHTING_BIT | GL2.GL_ENABLE_BIT | GL2.GL_COLOR_BUFFER_BIT);
+    gl.glUseProgram(shaderProgram);
+
+    //Per instance position, advancing once per tree instead of once per vertex
+    int instancePositionID = gl.glGetAttribLocation(shaderProgram, "instancePosition");
+    gl.glEnableVertexAttribArray(instancePositionID);
+    gl.glVertexAttribDivisor(instancePositionID, 1);
+
+    //Shared mesh
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, meshVboId);
+    int vertexPositionID = gl.glGetAttribLocation(shaderProgram, "vertexPosition");
+    gl.glEnableVertexAttribArray(vertexPositionID);
+    gl.glVertexAttribPointer(vertexPositionID, 3, GL.GL_FLOAT, false, STRIDE, 0);
+
+    int vertexNormalID = gl.glGetAttribLocation(shaderProgram, "vertexNormals");
+    gl.glEnableVertexAttribArray(vertexNormalID);
+    gl.glVertexAttribPointer(vertexNormalID, 3, GL.GL_FLOAT, false, STRIDE, NORMAL_OFFSET * GLBuffers.SIZEOF_FLOAT);
+
+    int vertexTextureID = gl.glGetAttribLocation(shaderProgram, "vertexTextures");
+    gl.glEnableVertexAttribArray(vertexTextureID);
+    gl.glVertexAttribPointer(vertexTextureID, 2, GL.GL_FLOAT, false, STRIDE, TEXTURE_OFFSET * GLBuffers.SIZEOF_FLOAT);
+
+    //Determine if lighting will be used when rendering
+    gl.glUniform1i(gl.glGetUniformLocation(shaderProgram, "lightingEnabled"), (curLighting) ? 1 : 0);
+
+    //Determine if textures will be used or if colours will be used
+    gl.glUniform1i(gl.glGetUniformLocation(shaderProgram, "textureMode"), (textureMode) ? 1 : 0);
+
+    //Setup which texture to use
+    gl.glActiveTexture(GL.GL_TEXTURE0);
+    gl.glUniform1i(gl.glGetUniformLocation(shaderProgram, "textureID"), 0); //0 for GL_TEXTURE0
+
+    //If night mode, the sun is the position of the camera (spotlight)
+    int sunID = gl.glGetUniformLocation(shaderProgram, "lightPosition");
+    if (nightMode)
+      gl.glUniform3fv(sunID, 1, torchPosition, 0);
+    else
+      gl.glUniform3fv(sunID, 1, sunlight, 0);
+
+    int billboardID = gl.glGetUniformLocation(shaderProgram, "billboard");
+    gl.glUniform1i(billboardID, 0);
+
+    //Full and reduced meshes, in colour mode there is no impostor texture so distant trees use the reduced mesh
+    for (int level = LOD_LEVEL.FULL.ordinal(); level <= LOD_LEVEL.IMPOSTOR.ordinal(); ++level) {
+      if (level == LOD_LEVEL.IMPOSTOR.ordinal() && textureMode)
+        break;
+
+      int count = instanceCounts[level];
+      if (count == 0)
+        continue;
+
+      int trunk = (level == LOD_LEVEL.FULL.ordinal()) ? FULL_TRUNK : REDUCED_TRUNK;
+      int leaves = (level == LOD_LEVEL.FULL.ordinal()) ? FULL_LEAVES : REDUCED_LEAVES;
+      gl.glBindBuffer(GL.GL_ARRAY_BUFFER, instanceVboId);
+      gl.glVertexAttribPointer(instancePositionID, 3, GL.GL_FLOAT, false, 0, offsets[level]);
+
+      //Trunks
+      {
+        float[] ambient = {0.2f, 0.2f, 0.2f, 1.0f};
+        float[] diffuse = {0.3f, 0.1f, 0.0f, 1.0f};
+        float[] specular = {0.5f, 0.5f, 0.5f, 1.0f};
+
+        gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT, ambient, 0);
+        gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_DIFFUSE, diffuse, 0);
+        gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SPECULAR, specular, 0);
+
+        Texture treeTrunk = texturePack.getTreeTrunk();
+        gl.glBindTexture(GL.GL_TEXTURE_2D, treeTrunk.getTextureObject());
+        gl.glColor3f(0.4f, 0.2f, 0.0f); //Brown trunk (only used in colour mode)
+
+        gl.glDrawArraysInstanced(GL.GL_TRIANGLES, partFirst[trunk], partCount[trunk], count);
+      }
+
+      //Leaves
+      {
+        setLeavesMaterial(gl);
+
+        Texture treeLeaves = texturePack.getTreeLeaves();
+        gl.glBindTexture(GL.GL_TEXTURE_2D, treeLeaves.getTextureObject());
+        gl.glColor3f(0.0f, 0.6f, 0.0f); //Green leaves (only used in colour mode)
+
+        gl.glDrawArraysInstanced(GL.GL_TRIANGLES, partFirst[leaves], partCount[leaves], count);
+      }
+    }
+
+    //Far cells in colour mode have no impostor texture, they use the reduced mesh like distant trees
+    if (!textureMode) {
+      for (TreeCell cell : myCells) {
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, cell.upload(gl));
+        gl.glVertexAttribPointer(instancePositionID, 3, GL.GL_FLOAT, false, 0, 0);
+        gl.glColor3f(0.4f, 0.2f, 0.0f);
+        gl.glDrawArraysInstanced(GL.GL_TRIANGLES, partFirst[REDUCED_TRUNK], partCount[REDUCED_TRUNK], cell.size());
+        gl.glColor3f(0.0f, 0.6f, 0.0f);
+        gl.glDrawArraysInstanced(GL.GL_TRIANGLES, partFirst[REDUCED_LEAVES], partCount[REDUCED_LEAVES], cell.size());
+      }
+    }
+
+    //Impostors, turned to face the camera with the transparent texels discarded
+    //Far cells are drawn straight from their own instance buffers
+    int impostors = instanceCounts[LOD_LEVEL.IMPOSTOR.ordinal()];
+    if (impostors + cellInstances > 0 && textureMode) {
+      gl.glUniform1i(billboardID, 1);
+      setLeavesMaterial(gl);
+      gl.glBindTexture(GL.GL_TEXTURE_2D, impostorTextureId);
+      gl.glEnable(GL2.GL_ALPHA_TEST);
+      gl.glAlphaFunc(GL.GL_GREATER, IMPOSTOR_ALPHA_CUTOFF);
+
+      if (impostors > 0) {
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, instanceVboId);
+        gl.glVertexAttribPointer(instancePositionID, 3, GL.GL_FLOAT, false, 0, offsets[LOD_LEVEL.IMPOSTOR.ordinal()]);
+        gl.glDrawArraysInstanced(GL.GL_TRIANGLES, partFirst[IMPOSTOR_QUAD], partCount[IMPOSTOR_QUAD], impostors);
+      }
+      for (TreeCell cell : myCells) {
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, cell.upload(gl));
+        gl.glVertexAttribPointer(instancePositionID, 3, GL.GL_FLOAT, false, 0, 0);
+        gl.glDrawArraysInstanced(GL.GL_TRIANGLES, partFirst[IMPOSTOR_QUAD], partCount[IMPOSTOR_QUAD], cell.size());
+      }
+    }
+
+    //Cleanup and reset bindings, the divisor must not leak into other attribute arrays
+    gl.glVertexAttribDivisor(instancePositionID, 0);
+    gl.glDisableVertexAttribArray(instancePositionID);
+    gl.glDisableVertexAttribArray(vertexPositionID);
+    gl.glDisableVertexAttribArray(vertexNormalID);
+    gl.glDisableVertexAttribArray(vertexTextureID);
+    gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+    gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+    gl.glUseProgram(0);
+    gl.glPopAttrib();
+  }
+
+  /**
+   * Helper to set the leaves material, which the impostors use as well.
+   */
+  private static void setLeavesMaterial(GL2 gl) {
+    float[] ambient = {0.3f, 0.4f, 0.3f, 1.0f};
+    float[] diffuse = {0.0f, 0.5f, 0.0f, 0.5f};
+    float[] specular = {0.5f, 0.5f, 0.5f, 0.7f};
+
+    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT, ambient, 0);
+    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_DIFFUSE, diffuse, 0);
+    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SPECULAR, specular, 0);
+  }
+
+  /**
+   * Release the instance buffer. The shared meshes, shader and impostor are kept for other terrains.
+   *
+   * @param gl GL2 object
+   */
+  public void dispose(GL2 gl) {
+    if (instanceVboId != 0) {
+      gl.glDeleteBuffers(1, new int[]{instanceVboId}, 0);
+      instanceVboId = 0;
+    }
+  }
+}
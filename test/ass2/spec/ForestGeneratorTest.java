@@ -0,0 +1,152 @@
+package ass2.spec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for scattering a forest over rolling hills crossed by a road.
+ */
+public class ForestGeneratorTest {
+
+  private Terrain myTerrain;
+  private ForestGenerator myForest;
+
+  //Constants
+  private static final int SIZE = 257; //width and depth of the terrain
+  private static final long SEED = 42; //seed of the forest
+  private static final double ROAD_WIDTH = 3; //width of the road across the terrain
+
+  @Before
+  public void plantForest() {
+    myTerrain = TestTerrains.hills(SIZE, SIZE, 3, 0.05, 0.04);
+    myTerrain.addRoad(ROAD_WIDTH, new double[]{0, SIZE / 2, SIZE / 3, 0, 2 * SIZE / 3, SIZE, SIZE - 1, SIZE / 2});
+
+    myForest = new ForestGenerator(myTerrain);
+    myForest.setSeed(SEED);
+  }
+
+  @After
+  public void restoreThreads() {
+    RowBands.setParallel(true);
+  }
+
+  /**
+   * Helper to find the distance between the closest pair of trees, through a grid of cells the
+   * size of the spacing.
+   */
+  private static double closestPair(double[] positions, double spacing) {
+    int columns = (int)((SIZE - 1) / spacing) + 1;
+    int[] head = new int[columns * columns];
+    int[] next = new int[positions.length / 2];
+    Arrays.fill(head, -1);
+    for (int t = 0; t < next.length; ++t) {
+      int cell = (int)(positions[2 * t + 1] / spacing) * columns + (int)(positions[2 * t] / spacing);
+      next[t] = head[cell];
+      head[cell] = t;
+    }
+
+    double closest = Double.POSITIVE_INFINITY;
+    for (int t = 0; t < next.length; ++t) {
+      int cx = (int)(positions[2 * t] / spacing);
+      int cz = (int)(positions[2 * t + 1] / spacing);
+      for (int j = Math.max(cz - 1, 0); j <= Math.min(cz + 1, columns - 1); ++j) {
+        for (int i = Math.max(cx - 1, 0); i <= Math.min(cx + 1, columns - 1); ++i) {
+          for (int o = head[j * columns + i]; o != -1; o = next[o]) {
+            if (o != t)
+              closest = Math.min(closest, Math.hypot(positions[2 * t] - positions[2 * o],
+                positions[2 * t + 1] - positions[2 * o + 1]));
+          }
+        }
+      }
+    }
+
+    return closest;
+  }
+
+  @Test
+  public void treesAreNeverCloserThanTheSpacing() {
+    for (double spacing : new double[]{1.0, ForestGenerator.DEFAULT_SPACING, 5.0}) {
+      myForest.setSpacing(spacing);
+      double[] positions = myForest.generate();
+
+      //Samples are kept as floats, so allow for their rounding
+      assertTrue(positions.length > 200);
+      assertTrue("closest trees with spacing " + spacing, closestPair(positions, spacing) >= spacing - 1e-4);
+    }
+  }
+
+  @Test
+  public void parallelForestMatchesASingleThread() {
+    double[] parallel = myForest.generate();
+    RowBands.setParallel(false);
+    double[] serial = myForest.generate();
+
+    assertTrue(parallel.length > 0);
+    assertArrayEquals(serial, parallel, 0);
+  }
+
+  @Test
+  public void theSeedDecidesTheForest() {
+    double[] first = myForest.generate();
+    assertArrayEquals(first, myForest.generate(), 0);
+
+    myForest.setSeed(SEED + 1);
+    assertFalse(Arrays.equals(first, myForest.generate()));
+  }
+
+  @Test
+  public void treesStayClearOfTheRoadAndOnTheTerrain() {
+    double[] positions = myForest.generate();
+    RoadIndex roads = myTerrain.getRoadIndex();
+    for (int t = 0; t < positions.length / 2; ++t) {
+      double x = positions[2 * t];
+      double z = positions[2 * t + 1];
+      assertTrue(x >= 0 && x <= SIZE - 1 && z >= 0 && z <= SIZE - 1);
+
+      double[] nearest = roads.nearestPoint(x, z, Double.POSITIVE_INFINITY);
+      assertTrue("tree at " + x + ", " + z, nearest[2] - ROAD_WIDTH / 2 >= myForest.getRoadClearance());
+    }
+  }
+
+  @Test
+  public void densityAtSeesTheRoadBeforeGenerating() {
+    //A point on the road, to one side of the middle of its spine
+    double[] polyline = myTerrain.roads().get(0).getPolyline();
+    int middle = polyline.length / 4 * 2;
+    double dx = polyline[middle + 2] - polyline[middle];
+    double dz = polyline[middle + 3] - polyline[middle + 1];
+    double length = Math.hypot(dx, dz);
+    double x = polyline[middle] - dz / length * ROAD_WIDTH / 4;
+    double z = polyline[middle + 1] + dx / length * ROAD_WIDTH / 4;
+
+    assertEquals(0, myForest.densityAt(x, z), 0);
+  }
+
+  @Test
+  public void densityThinsTheForest() {
+    int full = myForest.generate().length;
+    myForest.setDensity(0.25);
+    int thinned = myForest.generate().length;
+    myForest.setDensity(0);
+
+    assertTrue(thinned > 0 && thinned < full / 2);
+    assertEquals(0, myForest.generate().length);
+  }
+
+  @Test
+  public void scatterAddsTheForestToTheTerrain() {
+    double[] positions = myForest.generate();
+    int before = myTerrain.trees().size();
+
+    assertEquals(positions.length / 2, myForest.scatter());
+    assertEquals(before + positions.length / 2, myTerrain.trees().size());
+  }
+}
@@ -0,0 +1,236 @@
+package ass2.spec;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the min/max height pyramid, checked against testing every grid of the terrain.
+ */
+public class HeightPyramidTest {
+
+  //Constants
+  private static final double TOLERANCE = 1e-6; //largest difference allowed between hit points
+  private static final double AMPLITUDE = 3; //height of the hills
+  private static final double FREQUENCY_X = 0.3; //angular frequency of the hills along x
+  private static final double FREQUENCY_Z = 0.2; //angular frequency of the hills along z
+  private static final double NOISE = 1; //largest bump added to each grid point
+
+  /**
+   * Helper to intersect a ray with a triangle (Moller-Trumbore).
+   *
+   * @return ray parameter of the hit, or -1 if there is none
+   */
+  private static double intersect(double[] origin, double[] direction, double[] a, double[] b, double[] c) {
+    double[] e1 = {b[0] - a[0], b[1] - a[1], b[2] - a[2]};
+    double[] e2 = {c[0] - a[0], c[1] - a[1], c[2] - a[2]};
+    double[] p = MathUtil.crossProduct(direction, e2);
+    double determinant = e1[0] * p[0] + e1[1] * p[1] + e1[2] * p[2];
+    if (Math.abs(determinant) < 1e-12)
+      return -1;
+
+    double[] s = {origin[0] - a[0], origin[1] - a[1], origin[2] - a[2]};
+    double u = (s[0] * p[0] + s[1] * p[1] + s[2] * p[2]) / determinant;
+    if (u < 0 || u > 1)
+      return -1;
+    double[] q = MathUtil.crossProduct(s, e1);
+    double v = (direction[0] * q[0] + direction[1] * q[1] + direction[2] * q[2]) / determinant;
+    if (v < 0 || u + v > 1)
+      return -1;
+
+    return (e2[0] * q[0] + e2[1] * q[1] + e2[2] * q[2]) / determinant;
+  }
+
+  /**
+   * Helper to cast a ray against both triangles of every grid, split the same way as the mesh.
+   *
+   * @return first point hit within maxDistance, or null
+   */
+  private static double[] bruteForceRaycast(Terrain terrain, double[] origin, double[] direction, double maxDistance) {
+    double length = Math.sqrt(direction[0] * direction[0] + direction[1] * direction[1] + direction[2] * direction[2]);
+    double[] unit = {direction[0] / length, direction[1] / length, direction[2] / length};
+
+    double best = Double.POSITIVE_INFINITY;
+    for (int z = 0; z < terrain.size().height - 1; ++z) {
+      for (int x = 0; x < terrain.size().width - 1; ++x) {
+        double[] p00 = {x, terrain.getGridAltitude(x, z), z};
+        double[] p10 = {x + 1, terrain.getGridAltitude(x + 1, z), z};
+        double[] p01 = {x, terrain.getGridAltitude(x, z + 1), z + 1};
+        double[] p11 = {x + 1, terrain.getGridAltitude(x + 1, z + 1), z + 1};
+        for (double t : new double[]{intersect(origin, unit, p00, p01, p10), intersect(origin, unit, p10, p01, p11)}) {
+          if (t >= 0 && t <= maxDistance && t < best)
+            best = t;
+        }
+      }
+    }
+    if (Double.isInfinite(best))
+      return null;
+
+    return new double[]{origin[0] + unit[0] * best, origin[1] + unit[1] * best, origin[2] + unit[2] * best};
+  }
+
+  @Test
+  public void raycastMatchesBruteForce() {
+    Random random = new Random(1);
+    Terrain terrain = TestTerrains.bumpyHills(60, 40, AMPLITUDE, FREQUENCY_X, FREQUENCY_Z, NOISE, random);
+
+    int hits = 0;
+    for (int i = 0; i < 2000; ++i) {
+      //Rays from above the terrain, some starting off its edges, mostly looking down
+      double[] origin = {random.nextDouble() * 80 - 10, 5 + random.nextDouble() * 10, random.nextDouble() * 60 - 10};
+      double[] direction = {random.nextDouble() * 2 - 1, -random.nextDouble(), random.nextDouble() * 2 - 1};
+      double maxDistance = random.nextDouble() * 100;
+
+      double[] expected = bruteForceRaycast(terrain, origin, direction, maxDistance);
+      double[] actual = terrain.raycast(origin, direction, maxDistance);
+      if (expected == null) {
+        assertNull("ray " + i, actual);
+      } else {
+        assertNotNull("ray " + i, actual);
+        for (int axis = 0; axis < 3; ++axis) {
+          assertEquals("ray " + i, expected[axis], actual[axis], TOLERANCE);
+        }
+        ++hits;
+      }
+    }
+
+    //Both hits and misses were tested
+    assertTrue(hits > 100 && hits < 1900);
+  }
+
+  @Test
+  public void raysParallelToTheGroundSkimOver() {
+    Terrain terrain = new Terrain(20, 20);
+    terrain.setGridAltitude(10, 10, 5);
+
+    assertNull(terrain.raycast(new double[]{-1, 6, 10}, new double[]{1, 0, 0}, 100));
+    assertNotNull(terrain.raycast(new double[]{-1, 4, 10}, new double[]{1, 0, 0}, 100));
+  }
+
+  @Test
+  public void hillsBlockTheLineOfSight() {
+    Terrain terrain = new Terrain(20, 20);
+    terrain.setGridAltitude(10, 10, 5);
+
+    assertFalse(terrain.lineOfSight(new double[]{5, 1, 10}, new double[]{15, 1, 10}));
+    assertTrue(terrain.lineOfSight(new double[]{5, 6, 10}, new double[]{15, 6, 10}));
+    assertTrue(terrain.lineOfSight(new double[]{5, 1, 5}, new double[]{15, 1, 5}));
+  }
+
+  /**
+   * Helper to check two pyramids of a terrain hold the same blocks on every level.
+   */
+  private static void assertSameBlocks(Terrain terrain, HeightPyramid expected, HeightPyramid actual) {
+    assertEquals(expected.getLevels(), actual.getLevels());
+    for (int level = 0; level < expected.getLevels(); ++level) {
+      for (int bz = 0; bz <= (terrain.size().height - 2) >> level; ++bz) {
+        for (int bx = 0; bx <= (terrain.size().width - 2) >> level; ++bx) {
+          assertEquals("level " + level + " block " + bx + ", " + bz,
+            expected.getBlockMin(level, bx, bz), actual.getBlockMin(level, bx, bz), 0);
+          assertEquals("level " + level + " block " + bx + ", " + bz,
+            expected.getBlockMax(level, bx, bz), actual.getBlockMax(level, bx, bz), 0);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void incrementalUpdatesMatchRebuilding() {
+    Random random = new Random(2);
+    for (int test = 0; test < 20; ++test) {
+      int width = 2 + random.nextInt(100);
+      int depth = 2 + random.nextInt(100);
+      Terrain terrain = TestTerrains.bumpyHills(width, depth, AMPLITUDE, FREQUENCY_X, FREQUENCY_Z, NOISE, random);
+      HeightPyramid pyramid = terrain.getHeightPyramid();
+      pyramid.update();
+
+      //Single points and rectangles, the pyramid is brought up to date after some of them
+      for (int edit = 0; edit < 10; ++edit) {
+        int x0 = random.nextInt(width);
+        int z0 = random.nextInt(depth);
+        if (random.nextBoolean()) {
+          terrain.setGridAltitude(x0, z0, random.nextDouble() * 20 - 10);
+        } else {
+          int w = 1 + random.nextInt(width - x0);
+          int d = 1 + random.nextInt(depth - z0);
+          double[] heights = new double[w * d];
+          for (int i = 0; i < heights.length; ++i) {
+            heights[i] = random.nextDouble() * 20 - 10;
+          }
+          terrain.setGridAltitudes(x0, z0, w, d, heights);
+        }
+        if (random.nextInt(3) == 0)
+          pyramid.update();
+      }
+
+      assertSameBlocks(terrain, new HeightPyramid(terrain), pyramid);
+    }
+  }
+
+  @Test
+  public void altitudeRangesBoundTheRectangle() {
+    Random random = new Random(3);
+    Terrain terrain = TestTerrains.bumpyHills(90, 70, AMPLITUDE, FREQUENCY_X, FREQUENCY_Z, NOISE, random);
+    HeightPyramid pyramid = terrain.getHeightPyramid();
+
+    for (int i = 0; i < 500; ++i) {
+      int x0 = random.nextInt(90);
+      int z0 = random.nextInt(70);
+      int x1 = x0 + random.nextInt(90 - x0);
+      int z1 = z0 + random.nextInt(70 - z0);
+
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      for (int z = z0; z <= z1; ++z) {
+        for (int x = x0; x <= x1; ++x) {
+          min = Math.min(min, terrain.getGridAltitude(x, z));
+          max = Math.max(max, terrain.getGridAltitude(x, z));
+        }
+      }
+
+      //Never narrower than the altitudes, and only wider by float rounding
+      double[] range = pyramid.getAltitudeRange(x0, z0, x1, z1);
+      assertTrue(range[0] <= min && range[1] >= max);
+      assertEquals(min, range[0], 1e-5);
+      assertEquals(max, range[1], 1e-5);
+    }
+  }
+
+  @Test
+  public void highestPointsMatchBruteForce() {
+    Random random = new Random(4);
+    Terrain terrain = TestTerrains.bumpyHills(90, 70, AMPLITUDE, FREQUENCY_X, FREQUENCY_Z, NOISE, random);
+
+    for (int i = 0; i < 500; ++i) {
+      int x0 = random.nextInt(90);
+      int z0 = random.nextInt(70);
+      int x1 = x0 + random.nextInt(90 - x0);
+      int z1 = z0 + random.nextInt(70 - z0);
+
+      double max = Double.NEGATIVE_INFINITY;
+      for (int z = z0; z <= z1; ++z) {
+        for (int x = x0; x <= x1; ++x) {
+          max = Math.max(max, terrain.getGridAltitude(x, z));
+        }
+      }
+
+      double[] highest = terrain.highestPoint(x0, z0, x1, z1);
+      assertEquals(max, highest[1], 0);
+      assertEquals(max, terrain.getGridAltitude((int)highest[0], (int)highest[2]), 0);
+      assertTrue(highest[0] >= x0 && highest[0] <= x1 && highest[2] >= z0 && highest[2] <= z1);
+    }
+  }
+
+  @Test
+  public void highestPointOffTheTerrainIsNull() {
+    Terrain terrain = new Terrain(10, 10);
+
+    assertNull(terrain.highestPoint(20, 20, 30, 30));
+  }
+}
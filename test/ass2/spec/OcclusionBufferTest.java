@@ -0,0 +1,111 @@
+package ass2.spec;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for culling boxes hidden behind the terrain, checked by ray casting points of each box.
+ */
+public class OcclusionBufferTest {
+
+  //Constants
+  private static final int SIZE = 256; //width and depth of the terrain
+  private static final double AMPLITUDE = 10; //height of the hills
+  private static final double FREQUENCY_X = 0.07; //angular frequency of the hills along x
+  private static final double FREQUENCY_Z = 0.05; //angular frequency of the hills along z
+  private static final int CAMERAS = 40; //cameras near the ground
+  private static final int BOXES = 200; //boxes per camera
+
+  /**
+   * Helper to make a camera a little above the terrain looking level in a random direction.
+   */
+  private static Frustum camera(Terrain terrain, Random random) {
+    double x = 20 + random.nextDouble() * (SIZE - 40);
+    double z = 20 + random.nextDouble() * (SIZE - 40);
+    double[] eye = {x, terrain.altitude(x, z) + 1.5, z};
+    double angle = random.nextDouble() * 2 * Math.PI;
+    double[] center = {eye[0] + Math.cos(angle), eye[1], eye[2] + Math.sin(angle)};
+
+    return new Frustum(60, 4.0 / 3, 0.1, 500, eye, center, new double[]{0, 1, 0});
+  }
+
+  /**
+   * Helper to count the points on the corners, edges, faces and centre of a box that are in the
+   * frustum and can be seen from the eye.
+   */
+  private static int visiblePoints(Terrain terrain, Frustum frustum, double[] bounds) {
+    int visible = 0;
+    for (int k = 0; k <= 2; ++k) {
+      for (int j = 0; j <= 2; ++j) {
+        for (int i = 0; i <= 2; ++i) {
+          double[] point = {
+            bounds[0] + (bounds[3] - bounds[0]) * i / 2,
+            bounds[1] + (bounds[4] - bounds[1]) * j / 2,
+            bounds[2] + (bounds[5] - bounds[2]) * k / 2};
+          if (frustum.intersectsBox(point[0], point[1], point[2], point[0], point[1], point[2]) &&
+              terrain.lineOfSight(frustum.getEye(), point))
+            ++visible;
+        }
+      }
+    }
+
+    return visible;
+  }
+
+  @Test
+  public void visibleBoxesAreNeverCulledAndMostHiddenOnesAre() {
+    Random random = new Random(1);
+    Terrain terrain = TestTerrains.hills(SIZE, SIZE, AMPLITUDE, FREQUENCY_X, FREQUENCY_Z);
+    OcclusionBuffer buffer = new OcclusionBuffer();
+
+    int hidden = 0;
+    int hiddenCulled = 0;
+    for (int c = 0; c < CAMERAS; ++c) {
+      Frustum frustum = camera(terrain, random);
+      buffer.render(terrain, frustum);
+      assertTrue(buffer.isActive());
+
+      for (int b = 0; b < BOXES; ++b) {
+        double x = random.nextDouble() * (SIZE - 1);
+        double z = random.nextDouble() * (SIZE - 1);
+        double size = 0.5 + random.nextDouble() * 2;
+        double y = terrain.altitude(x, z) + 0.1;
+        double[] bounds = {x, y, z, Math.min(x + size, SIZE - 1), y + size * 2, Math.min(z + size, SIZE - 1)};
+        if (!frustum.intersectsBox(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5]))
+          continue;
+
+        boolean culled = buffer.isOccluded(bounds);
+        int visible = visiblePoints(terrain, frustum, bounds);
+        if (visible > 0) {
+          assertFalse("camera " + c + " culled a visible box", culled);
+        } else {
+          ++hidden;
+          if (culled)
+            ++hiddenCulled;
+        }
+      }
+    }
+
+    //The buffer is coarse and conservative, but should catch most boxes behind hills (about 9 in 10)
+    assertTrue(hidden > 100);
+    assertTrue("only " + hiddenCulled + " of " + hidden + " hidden boxes were culled", hiddenCulled * 4 > hidden * 3);
+  }
+
+  @Test
+  public void nothingIsCulledFromUnderTheTerrain() {
+    Terrain terrain = TestTerrains.hills(SIZE, SIZE, AMPLITUDE, FREQUENCY_X, FREQUENCY_Z);
+    OcclusionBuffer buffer = new OcclusionBuffer();
+
+    //Under the top of a hill, looking along it
+    double[] eye = {22, terrain.getGridAltitude(22, 0) - 1, 1};
+    Frustum frustum = new Frustum(60, 4.0 / 3, 0.1, 500, eye, new double[]{23, eye[1], 1}, new double[]{0, 1, 0});
+    buffer.render(terrain, frustum);
+
+    assertFalse(buffer.isActive());
+    assertFalse(buffer.isOccluded(new double[]{100, -20, 0, 101, -19, 1}));
+  }
+}
@@ -0,0 +1,186 @@
+package ass2.spec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the road index, checked against testing every piece of every road.
+ */
+public class RoadIndexTest {
+
+  private Terrain myTerrain;
+  private Random myRandom;
+
+  //Constants
+  private static final int SIZE = 513; //width and depth of the terrain
+  private static final int ROADS = 200; //random roads on the terrain
+  private static final int QUERIES = 2000; //random queries per test
+
+  @Before
+  public void addRoads() {
+    myTerrain = new Terrain(SIZE, SIZE);
+    myRandom = new Random(1);
+    for (int i = 0; i < ROADS; ++i) {
+      addRandomRoad();
+    }
+  }
+
+  /**
+   * Helper to add a flat road with one Bezier segment around a random point.
+   */
+  private void addRandomRoad() {
+    double x = myRandom.nextDouble() * SIZE;
+    double z = myRandom.nextDouble() * SIZE;
+    double[] spine = new double[8];
+    for (int p = 0; p < 8; p += 2) {
+      spine[p] = x + myRandom.nextGaussian() * 20;
+      spine[p + 1] = z + myRandom.nextGaussian() * 20;
+    }
+    myTerrain.addRoad(1 + myRandom.nextDouble() * 3, spine);
+    myTerrain.roads().get(myTerrain.roads().size() - 1).setDrapeEnabled(false);
+  }
+
+  /**
+   * Helper to get the distance from a point to the closest point on a straight piece of a polyline.
+   */
+  private static double distanceToPiece(double[] polyline, int piece, double x, double z) {
+    double ax = polyline[piece];
+    double az = polyline[piece + 1];
+    double dx = polyline[piece + 2] - ax;
+    double dz = polyline[piece + 3] - az;
+    double lengthSquared = dx * dx + dz * dz;
+
+    double t = (lengthSquared == 0) ? 0 : MathUtil.clamp(((x - ax) * dx + (z - az) * dz) / lengthSquared, 0, 1);
+    return Math.hypot(x - (ax + dx * t), z - (az + dz * t));
+  }
+
+  /**
+   * Helper to get the distance from a point to the spine of a road, given its polyline.
+   */
+  private static double distanceToRoad(double[] polyline, double x, double z) {
+    double best = Double.POSITIVE_INFINITY;
+    for (int piece = 0; piece + 3 < polyline.length; piece += 2) {
+      best = Math.min(best, distanceToPiece(polyline, piece, x, z));
+    }
+
+    return best;
+  }
+
+  /**
+   * Helper to get the polyline of every road, in the order of Terrain.roads().
+   */
+  private List<double[]> polylines() {
+    List<double[]> polylines = new ArrayList<double[]>();
+    for (Road road : myTerrain.roads()) {
+      polylines.add(road.getPolyline());
+    }
+
+    return polylines;
+  }
+
+  @Test
+  public void nearestPointMatchesBruteForce() {
+    RoadIndex index = myTerrain.getRoadIndex();
+    List<double[]> polylines = polylines();
+    for (int q = 0; q < QUERIES; ++q) {
+      double x = myRandom.nextDouble() * SIZE;
+      double z = myRandom.nextDouble() * SIZE;
+
+      double best = Double.POSITIVE_INFINITY;
+      for (double[] polyline : polylines) {
+        best = Math.min(best, distanceToRoad(polyline, x, z));
+      }
+
+      double[] nearest = index.nearestPoint(x, z, Double.POSITIVE_INFINITY);
+      assertEquals(best, nearest[2], 1e-9);
+      assertEquals(nearest[2], Math.hypot(x - nearest[0], z - nearest[1]), 1e-9);
+      assertEquals(best, distanceToRoad(polylines.get((int)nearest[3]), x, z), 1e-9);
+      assertSame(myTerrain.roads().get((int)nearest[3]), index.nearestRoad(x, z, Double.POSITIVE_INFINITY));
+
+      //Nothing is found beyond the furthest distance asked for
+      assertNull(index.nearestPoint(x, z, best * 0.99));
+      assertNotNull(index.nearestPoint(x, z, best * 1.01 + 1e-9));
+    }
+  }
+
+  @Test
+  public void onRoadMatchesBruteForce() {
+    RoadIndex index = myTerrain.getRoadIndex();
+    List<Road> roads = myTerrain.roads();
+    List<double[]> polylines = polylines();
+    int covered = 0;
+    for (int q = 0; q < QUERIES * 2; ++q) {
+      double x = myRandom.nextDouble() * SIZE;
+      double z = myRandom.nextDouble() * SIZE;
+
+      boolean expected = false;
+      for (int r = 0; r < roads.size(); ++r) {
+        expected |= distanceToRoad(polylines.get(r), x, z) <= roads.get(r).width() / 2;
+      }
+      assertEquals(expected, index.onRoad(x, z));
+
+      Road road = index.roadAt(x, z);
+      if (road != null) {
+        assertTrue(distanceToRoad(polylines.get(roads.indexOf(road)), x, z) <= road.width() / 2);
+        ++covered;
+      }
+    }
+
+    //Points both on and off roads were tested
+    assertTrue(covered > 0 && covered < QUERIES * 2);
+  }
+
+  @Test
+  public void roadsInMatchesBruteForce() {
+    RoadIndex index = myTerrain.getRoadIndex();
+    List<double[]> polylines = polylines();
+    for (int q = 0; q < QUERIES / 10; ++q) {
+      double x0 = myRandom.nextDouble() * SIZE;
+      double z0 = myRandom.nextDouble() * SIZE;
+      double x1 = x0 + myRandom.nextDouble() * 50;
+      double z1 = z0 + myRandom.nextDouble() * 50;
+
+      //Roads with a piece whose widened bounding box overlaps the rectangle
+      List<Road> expected = new ArrayList<Road>();
+      for (int r = 0; r < polylines.size(); ++r) {
+        Road road = myTerrain.roads().get(r);
+        double[] polyline = polylines.get(r);
+        double halfWidth = road.width() / 2;
+        for (int piece = 0; piece + 3 < polyline.length; piece += 2) {
+          if (Math.min(polyline[piece], polyline[piece + 2]) - halfWidth <= x1 &&
+              Math.max(polyline[piece], polyline[piece + 2]) + halfWidth >= x0 &&
+              Math.min(polyline[piece + 1], polyline[piece + 3]) - halfWidth <= z1 &&
+              Math.max(polyline[piece + 1], polyline[piece + 3]) + halfWidth >= z0) {
+            expected.add(road);
+            break;
+          }
+        }
+      }
+
+      assertEquals(expected, index.roadsIn(x0, z0, x1, z1));
+    }
+  }
+
+  @Test
+  public void addingARoadRebuildsTheIndex() {
+    RoadIndex index = myTerrain.getRoadIndex();
+    index.build();
+
+    myTerrain.addRoad(2, new double[]{-50, -50, -40, -50, -30, -50, -20, -50});
+    Road road = myTerrain.roads().get(myTerrain.roads().size() - 1);
+    road.setDrapeEnabled(false);
+
+    assertSame(road, index.roadAt(-35, -50.5));
+    assertSame(road, index.nearestRoad(-35, -60, Double.POSITIVE_INFINITY));
+  }
+}
@@ -0,0 +1,65 @@
+package ass2.spec;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+/**
+ * Times building the mesh and normals headless, on a single thread and then in parallel row
+ * bands, and reports the speedup. TerrainMeshTest checks the two give the same buffers.
+ */
+public class TerrainMeshBenchmark {
+
+  //Constants
+  private static final int DEFAULT_SIZE = 1024; //width and depth of the generated terrain
+  private static final int RUNS = 3; //builds of each mode, the last is reported once the JIT has warmed up
+
+  /**
+   * Helper to time building the normals and mesh of a terrain.
+   *
+   * @return milliseconds taken by the last run
+   */
+  private static double time(Terrain terrain, TerrainMesh mesh, boolean parallel) {
+    RowBands.setParallel(parallel);
+    double time = 0;
+    for (int run = 0; run < RUNS; ++run) {
+      terrain.getNormalField().invalidate();
+      mesh.invalidate();
+      long start = System.nanoTime();
+      mesh.build();
+      time = (System.nanoTime() - start) / 1e6;
+    }
+    RowBands.setParallel(true);
+
+    return time;
+  }
+
+  /**
+   * Build the mesh headless and report its size, build times and speedup.
+   *
+   * @param args either a level file in JSON format, or the width and depth of a generated terrain
+   * @throws FileNotFoundException
+   */
+  public static void main(String[] args) throws FileNotFoundException {
+    Terrain terrain;
+    if (args.length == 1) {
+      terrain = LevelIO.load(new File(args[0]));
+    } else {
+      int width = (args.length >= 2) ? Integer.parseInt(args[0]) : DEFAULT_SIZE;
+      int depth = (args.length >= 2) ? Integer.parseInt(args[1]) : DEFAULT_SIZE;
+      terrain = TestTerrains.hills(width, depth, 4, 0.05, 0.05);
+    }
+
+    TerrainMesh mesh = new TerrainMesh(terrain);
+    double single = time(terrain, mesh, false);
+    double parallel = time(terrain, mesh, true);
+
+    System.out.printf("Terrain %dx%d: %d vertices, %d indices, %d chunks\n",
+      terrain.size().width, terrain.size().height, mesh.getVertexCount(), mesh.getIndexCount(), mesh.getChunks().size());
+    System.out.printf("Built in %.2f ms single threaded, %.2f ms parallel on %d cores (%.2fx speedup)\n",
+      single, parallel, Runtime.getRuntime().availableProcessors(), single / parallel);
+
+    long start = System.nanoTime();
+    mesh.buildLod();
+    System.out.printf("Level of detail built in %.2f ms\n", (System.nanoTime() - start) / 1e6);
+  }
+}
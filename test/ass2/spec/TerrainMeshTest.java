@@ -0,0 +1,81 @@
+package ass2.spec;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that building the mesh and normals in parallel row bands gives exactly the same buffers
+ * as a single thread.
+ */
+public class TerrainMeshTest {
+
+  //Constants
+  private static final int WIDTH = 300; //width of the terrain
+  private static final int DEPTH = 200; //depth of the terrain, more rows than fit in one band
+
+  /**
+   * Helper to build a mesh of a terrain, on a single thread or in parallel.
+   */
+  private static TerrainMesh build(Terrain terrain, boolean parallel) {
+    RowBands.setParallel(parallel);
+    terrain.getNormalField().invalidate();
+    TerrainMesh mesh = new TerrainMesh(terrain);
+    mesh.build();
+
+    return mesh;
+  }
+
+  /**
+   * Helper to check two meshes have the same vertex and index buffers.
+   */
+  private static void assertSameBuffers(TerrainMesh expected, TerrainMesh actual) {
+    FloatBuffer expectedVertices = expected.getVertexBuffer();
+    FloatBuffer actualVertices = actual.getVertexBuffer();
+    assertEquals(expected.getVertexCount(), actual.getVertexCount());
+    for (int i = 0; i < expected.getVertexCount() * TerrainMesh.FLOATS_PER_VERTEX; ++i) {
+      assertEquals("vertex float " + i, expectedVertices.get(i), actualVertices.get(i), 0);
+    }
+
+    IntBuffer expectedIndices = expected.getIndexBuffer();
+    IntBuffer actualIndices = actual.getIndexBuffer();
+    assertEquals(expected.getIndexCount(), actual.getIndexCount());
+    for (int i = 0; i < expected.getIndexCount(); ++i) {
+      assertEquals("index " + i, expectedIndices.get(i), actualIndices.get(i));
+    }
+  }
+
+  @After
+  public void restoreParallel() {
+    RowBands.setParallel(true);
+  }
+
+  @Test
+  public void parallelBuildMatchesSingleThreaded() {
+    Terrain terrain = TestTerrains.hills(WIDTH, DEPTH, 4, 0.05, 0.05);
+    TerrainMesh single = build(terrain, false);
+    TerrainMesh parallel = build(terrain, true);
+
+    assertSameBuffers(single, parallel);
+    assertEquals(single.getChunks().size(), parallel.getChunks().size());
+  }
+
+  @Test
+  public void parallelDirtyUpdateMatchesFullBuild() {
+    Terrain terrain = TestTerrains.hills(WIDTH, DEPTH, 4, 0.05, 0.05);
+    TerrainMesh mesh = build(terrain, true);
+
+    //A tall ridge across many bands
+    for (int z = 10; z < 190; ++z) {
+      terrain.setGridAltitude(150, z, 20);
+    }
+    mesh.markDirty(150, 10, 150, 189);
+    mesh.updateDirty();
+
+    assertSameBuffers(build(terrain, false), mesh);
+  }
+}
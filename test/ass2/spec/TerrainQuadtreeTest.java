@@ -0,0 +1,203 @@
+package ass2.spec;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for selecting quadtree nodes and morphing their patches, done headless. Morphing is
+ * replayed here the same way QuadtreeVertex.glsl does it.
+ */
+public class TerrainQuadtreeTest {
+
+  //Constants
+  private static final int SIZE = 1025; //width and depth of the terrain
+  private static final double AMPLITUDE = 20; //height of the hills
+  private static final double FREQUENCY_X = 0.02; //angular frequency of the hills along x
+  private static final double FREQUENCY_Z = 0.03; //angular frequency of the hills along z
+  private static final double[] HEIGHTS = {2, 50, 400}; //heights of the cameras above the terrain
+
+  /**
+   * Helper to make a camera over the middle of the terrain looking out and a little down.
+   */
+  private static Frustum camera(Terrain terrain, double height) {
+    double[] eye = {SIZE / 2.0, terrain.altitude(SIZE / 2.0, SIZE / 2.0) + height, SIZE / 2.0};
+    double[] center = {eye[0] + 1, eye[1] - 0.3, eye[2] + 1};
+
+    return new Frustum(60, 4.0 / 3.0, 0.01, 10000, eye, center, new double[]{0, 1, 0});
+  }
+
+  /**
+   * Helper to list the quarters drawn by the last selection, as x and z of the quarter, its size
+   * and level, then x and z of its node.
+   */
+  private static List<int[]> quarters(TerrainQuadtree quadtree) {
+    List<int[]> quarters = new ArrayList<int[]>();
+    int[] selection = quadtree.getSelection();
+    for (int i = 0; i < quadtree.getSelectedCount(); ++i) {
+      int x = selection[i * 4];
+      int z = selection[i * 4 + 1];
+      int level = selection[i * 4 + 2];
+      int half = (TerrainQuadtree.PATCH_SIZE << level) / 2;
+      for (int quarter = 0; quarter < 4; ++quarter) {
+        int qx = x + (quarter & 1) * half;
+        int qz = z + (quarter >> 1) * half;
+        if ((selection[i * 4 + 3] & (1 << quarter)) != 0 && qx < SIZE - 1 && qz < SIZE - 1)
+          quarters.add(new int[]{qx, qz, half, level, x, z});
+      }
+    }
+
+    return quarters;
+  }
+
+  /**
+   * Helper to get a grid point's altitude as the height texture holds it.
+   */
+  private static double height(Terrain terrain, double x, double z) {
+    return (float)terrain.getGridAltitude((int)x, (int)z);
+  }
+
+  /**
+   * Helper to get the altitude drawn at a point on the edge of a quarter running along z (alongX
+   * false) or x (alongX true), from the morphed patch vertices on that edge.
+   */
+  private static double drawnAltitude(Terrain terrain, TerrainQuadtree quadtree, int[] quarter, boolean alongX,
+                                      int edge, double at, double[] eye) {
+    int level = quarter[3];
+    int spacing = 1 << level;
+    double[] morphRange = quadtree.getMorphRange(level);
+    int nodeAlong = alongX ? quarter[4] : quarter[5];
+    int start = ((alongX ? quarter[0] : quarter[1]) - nodeAlong) / spacing;
+
+    //Morph each patch vertex on the edge, odd vertices slide onto the even vertex before them
+    int vertices = TerrainQuadtree.PATCH_SIZE / 2 + 1;
+    double[] positions = new double[vertices];
+    double[] heights = new double[vertices];
+    for (int k = 0; k < vertices; ++k) {
+      int patch = start + k;
+      double fine = nodeAlong + patch * spacing;
+      double coarse = nodeAlong + (patch - patch % 2) * spacing;
+      double fineHeight = alongX ? height(terrain, fine, edge) : height(terrain, edge, fine);
+      double coarseHeight = alongX ? height(terrain, coarse, edge) : height(terrain, edge, coarse);
+
+      double dx = (alongX ? fine : edge) - eye[0];
+      double dy = fineHeight - eye[1];
+      double dz = (alongX ? edge : fine) - eye[2];
+      double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+      double morph = MathUtil.clamp((distance - morphRange[0]) / (morphRange[1] - morphRange[0]), 0, 1);
+
+      positions[k] = fine + (coarse - fine) * morph;
+      heights[k] = fineHeight + (coarseHeight - fineHeight) * morph;
+    }
+
+    //The drawn edge is the line through the morphed vertices
+    for (int k = 0; k < vertices - 1; ++k) {
+      if (at >= positions[k] && at <= positions[k + 1] && positions[k + 1] > positions[k]) {
+        double t = (at - positions[k]) / (positions[k + 1] - positions[k]);
+        return heights[k] + (heights[k + 1] - heights[k]) * t;
+      }
+    }
+
+    throw new IllegalArgumentException(at + " is not on the edge");
+  }
+
+  @Test
+  public void selectedQuartersCoverTheViewOnce() {
+    Terrain terrain = TestTerrains.hills(SIZE, SIZE, AMPLITUDE, FREQUENCY_X, FREQUENCY_Z);
+    TerrainQuadtree quadtree = new TerrainQuadtree(terrain);
+
+    for (double height : HEIGHTS) {
+      Frustum frustum = camera(terrain, height);
+      quadtree.select(frustum);
+
+      int[] covered = new int[(SIZE - 1) * (SIZE - 1)];
+      for (int[] quarter : quarters(quadtree)) {
+        for (int z = quarter[1]; z < Math.min(quarter[1] + quarter[2], SIZE - 1); ++z) {
+          for (int x = quarter[0]; x < Math.min(quarter[0] + quarter[2], SIZE - 1); ++x) {
+            covered[z * (SIZE - 1) + x]++;
+          }
+        }
+      }
+
+      //Patch sized squares in view are covered, and nothing is covered twice
+      int patch = TerrainQuadtree.PATCH_SIZE;
+      for (int z = 0; z < SIZE - 1; ++z) {
+        for (int x = 0; x < SIZE - 1; ++x) {
+          assertTrue(covered[z * (SIZE - 1) + x] <= 1);
+          if (x % patch == 0 && z % patch == 0) {
+            double[] range = terrain.getHeightPyramid().getAltitudeRange(x, z, x + patch, z + patch);
+            if (frustum.intersectsBox(x, range[0], z, x + patch, range[1], z + patch))
+              assertEquals("square at " + x + ", " + z, 1, covered[z * (SIZE - 1) + x]);
+          }
+        }
+      }
+
+      //Far less than the full grid is drawn
+      assertTrue(quadtree.getTrianglesDrawn() < 2L * (SIZE - 1) * (SIZE - 1) / 10);
+    }
+  }
+
+  @Test
+  public void neighboursMorphTogetherWithoutCracks() {
+    Terrain terrain = TestTerrains.hills(SIZE, SIZE, AMPLITUDE, FREQUENCY_X, FREQUENCY_Z);
+    TerrainQuadtree quadtree = new TerrainQuadtree(terrain);
+
+    int sharedEdges = 0;
+    int coarserNeighbours = 0;
+    for (double height : HEIGHTS) {
+      Frustum frustum = camera(terrain, height);
+      quadtree.select(frustum);
+      double[] eye = frustum.getEye();
+      List<int[]> quarters = quarters(quadtree);
+
+      for (int[] a : quarters) {
+        for (int[] b : quarters) {
+          //b lies along the right (x) or far (z) edge of a
+          for (int axis = 0; axis < 2; ++axis) {
+            boolean alongX = (axis == 1);
+            int edge = alongX ? a[1] + a[2] : a[0] + a[2];
+            if ((alongX ? b[1] : b[0]) != edge || edge >= SIZE - 1)
+              continue;
+            int from = Math.max(alongX ? a[0] : a[1], alongX ? b[0] : b[1]);
+            int to = Math.min(Math.min((alongX ? a[0] : a[1]) + a[2], (alongX ? b[0] : b[1]) + b[2]), SIZE - 1);
+            if (from >= to)
+              continue;
+
+            //Neighbours are at most one level apart and meet at every grid point along the edge
+            assertTrue(Math.abs(a[3] - b[3]) <= 1);
+            for (int at = from; at <= to; ++at) {
+              assertEquals("edge at " + edge + " from " + from + " to " + to + ", camera at height " + height,
+                drawnAltitude(terrain, quadtree, a, alongX, edge, at, eye),
+                drawnAltitude(terrain, quadtree, b, alongX, edge, at, eye), 1e-6);
+            }
+            ++sharedEdges;
+            if (a[3] != b[3])
+              ++coarserNeighbours;
+          }
+        }
+      }
+    }
+
+    //Edges between levels were tested, not only between nodes of the same level
+    assertTrue(sharedEdges > 0);
+    assertTrue(coarserNeighbours > 0);
+  }
+
+  @Test
+  public void morphingFinishesAtTheEndOfEachLevel() {
+    TerrainQuadtree quadtree = new TerrainQuadtree(TestTerrains.hills(SIZE, SIZE, AMPLITUDE, FREQUENCY_X, FREQUENCY_Z));
+
+    for (int level = 0; level < quadtree.getLevels() - 1; ++level) {
+      double[] range = quadtree.getMorphRange(level);
+      double[] coarser = quadtree.getMorphRange(level + 1);
+      assertTrue(range[0] < range[1]);
+
+      //A level has finished morphing before the next coarser level starts
+      assertTrue(range[1] <= coarser[0]);
+    }
+  }
+}
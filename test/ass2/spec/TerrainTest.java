@@ -0,0 +1,104 @@
+package ass2.spec;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for interpolating altitudes between grid points, one at a time and in bulk.
+ */
+public class TerrainTest {
+
+  //Constants
+  private static final double TOLERANCE = 1e-9; //largest difference allowed between altitudes
+  private static final int[][] SIZES = {{10, 10}, {513, 257}, {2, 2}, {1, 5}}; //width and depth of the terrains tested
+  private static final double NOISE = 10; //largest random altitude of a grid point
+
+  @Test
+  public void gridPointsHaveTheirOwnAltitude() {
+    Random random = new Random(1);
+    for (int[] size : SIZES) {
+      Terrain terrain = TestTerrains.bumpyHills(size[0], size[1], 0, 0, 0, NOISE, random);
+      for (int z = 0; z < size[1]; ++z) {
+        for (int x = 0; x < size[0]; ++x) {
+          assertEquals(terrain.getGridAltitude(x, z), terrain.altitude(x, z), TOLERANCE);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void planesAreInterpolatedExactly() {
+    Random random = new Random(2);
+    Terrain terrain = new Terrain(20, 30);
+    for (int z = 0; z < 30; ++z) {
+      for (int x = 0; x < 20; ++x) {
+        terrain.setGridAltitude(x, z, 0.5 * x - 0.25 * z + 3);
+      }
+    }
+
+    for (int i = 0; i < 10000; ++i) {
+      double x = random.nextDouble() * 19;
+      double z = random.nextDouble() * 29;
+      assertEquals(0.5 * x - 0.25 * z + 3, terrain.altitude(x, z), TOLERANCE);
+    }
+  }
+
+  @Test
+  public void gridsAreSplitAlongTheSameDiagonalAsTheMesh() {
+    //Only the (0, 0) corner is raised, so it only reaches into the first triangle
+    Terrain terrain = new Terrain(2, 2);
+    terrain.setGridAltitude(0, 0, 1);
+
+    assertEquals(0.5, terrain.altitude(0.25, 0.25), TOLERANCE);
+    assertEquals(0, terrain.altitude(0.75, 0.75), TOLERANCE);
+    assertEquals(0, terrain.altitude(0.5, 0.5), TOLERANCE);
+  }
+
+  @Test
+  public void pointsOffTheTerrainAreAtZero() {
+    Terrain terrain = TestTerrains.bumpyHills(10, 10, 0, 0, 0, NOISE, new Random(3));
+
+    assertEquals(0, terrain.altitude(-0.01, 5), 0);
+    assertEquals(0, terrain.altitude(5, -0.01), 0);
+    assertEquals(0, terrain.altitude(9.01, 5), 0);
+    assertEquals(0, terrain.altitude(5, 9.01), 0);
+  }
+
+  @Test
+  public void bulkAltitudesMatchSingleAltitudes() {
+    Random random = new Random(4);
+    for (int[] size : SIZES) {
+      Terrain terrain = TestTerrains.bumpyHills(size[0], size[1], 0, 0, 0, NOISE, random);
+
+      //Random points, integer points and points on the far edges, plus a few off the terrain
+      int n = 20000;
+      double[] xs = new double[n];
+      double[] zs = new double[n];
+      for (int i = 0; i < n; ++i) {
+        switch (i % 4) {
+          case 0:
+            xs[i] = random.nextInt(size[0]);
+            zs[i] = random.nextInt(size[1]);
+            break;
+          case 1:
+            xs[i] = size[0] - 1;
+            zs[i] = random.nextDouble() * (size[1] - 1);
+            break;
+          default:
+            xs[i] = random.nextDouble() * (size[0] + 1) - 1;
+            zs[i] = random.nextDouble() * (size[1] + 1) - 1;
+            break;
+        }
+      }
+
+      double[] out = new double[n];
+      terrain.altitudes(xs, zs, out, n);
+      for (int i = 0; i < n; ++i) {
+        assertEquals(terrain.altitude(xs[i], zs[i]), out[i], 0);
+      }
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package ass2.spec;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for streaming a small generated world of terrain tiles headless.
+ */
+public class TerrainWorldTest {
+
+  private File myDirectory;
+  private TerrainWorld myWorld;
+
+  //Constants
+  private static final int TILES = 6; //tiles along each side of the world
+  private static final int TILE_SIZE = 33; //grid points along each side of a tile
+  private static final int SPAN = TILE_SIZE - 1; //grids along each side of a tile
+  private static final double LOAD_RADIUS = SPAN * 1.25; //distance from camera to keep tiles resident
+  private static final long LOAD_TIMEOUT = 20000; //milliseconds to wait for the loaders
+  private static final double AMPLITUDE = 4; //height of the hills
+  private static final double FREQUENCY_X = 0.05; //angular frequency of the hills along x
+  private static final double FREQUENCY_Z = 0.07; //angular frequency of the hills along z
+
+  /**
+   * Helper to get the altitude of the generated world at a point in world coordinates.
+   */
+  private static double hills(double x, double z) {
+    return TestTerrains.hill(x, z, AMPLITUDE, FREQUENCY_X, FREQUENCY_Z);
+  }
+
+  /**
+   * Write a world of rolling hills, whose altitudes are a function of world coordinates so
+   * tiles meet along their shared edges.
+   */
+  @Before
+  public void writeWorld() throws IOException {
+    myDirectory = Files.createTempDirectory("world").toFile();
+    for (int tz = 0; tz < TILES; ++tz) {
+      for (int tx = 0; tx < TILES; ++tx) {
+        Terrain terrain = TestTerrains.tile(tx * SPAN, tz * SPAN, TILE_SIZE, TILE_SIZE,
+          AMPLITUDE, FREQUENCY_X, FREQUENCY_Z);
+        LevelIO.save(terrain, new File(myDirectory, String.format("tile_%d_%d.json", tx, tz)));
+      }
+    }
+
+    JSONObject json = new JSONObject();
+    json.put("tileSize", TILE_SIZE);
+    json.put("tilesX", TILES);
+    json.put("tilesZ", TILES);
+    json.put("tiles", "tile_%d_%d.json");
+    json.put("sunlight", new JSONArray(new double[]{-1, 1, 0}));
+    json.put("loadRadius", LOAD_RADIUS);
+    json.put("memoryLimit", 0.5);
+    File manifest = new File(myDirectory, "world.json");
+    FileWriter out = new FileWriter(manifest);
+    json.write(out);
+    out.close();
+
+    myWorld = TerrainWorld.load(manifest);
+  }
+
+  @After
+  public void deleteWorld() {
+    myWorld.shutdown();
+    for (File file : myDirectory.listFiles()) {
+      file.delete();
+    }
+    myDirectory.delete();
+  }
+
+  /**
+   * Helper to wait until no tile is loading.
+   */
+  private void waitForLoads() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + LOAD_TIMEOUT;
+    while (myWorld.countTiles(TerrainTile.TILE_STATE.LOADING) > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, myWorld.countTiles(TerrainTile.TILE_STATE.LOADING));
+    assertEquals(0, myWorld.countTiles(TerrainTile.TILE_STATE.FAILED));
+  }
+
+  @Test
+  public void onlyTilesAroundTheCameraAreLoaded() throws InterruptedException {
+    myWorld.update(SPAN * 0.5, SPAN * 0.5);
+    waitForLoads();
+
+    //The corner tile and its neighbours, but nothing far away
+    assertNotNull(myWorld.getTileAt(SPAN * 0.5, SPAN * 0.5));
+    assertNotNull(myWorld.getTileAt(SPAN * 1.5, SPAN * 1.5));
+    assertNull(myWorld.getTileAt(SPAN * 4.5, SPAN * 4.5));
+    assertEquals(4, myWorld.countTiles(TerrainTile.TILE_STATE.LOADED));
+  }
+
+  @Test
+  public void altitudesMatchTheWorldAcrossTileEdges() throws InterruptedException {
+    myWorld.update(SPAN, SPAN);
+    waitForLoads();
+
+    for (int i = 0; i <= 2 * SPAN; ++i) {
+      //Grid points, including those on shared edges
+      assertEquals(hills(i, SPAN), myWorld.altitude(i, SPAN), 1e-9);
+      assertEquals(hills(SPAN, i), myWorld.altitude(SPAN, i), 1e-9);
+
+      //Just either side of an edge
+      double z = i + 0.5;
+      assertEquals(myWorld.altitude(SPAN - 1e-6, z), myWorld.altitude(SPAN + 1e-6, z), 1e-4);
+    }
+  }
+
+  @Test
+  public void tilesLeftBehindAreEvictedOverTheMemoryLimit() throws InterruptedException {
+    //Walk the camera diagonally across the world
+    int steps = 20;
+    for (int step = 0; step <= steps; ++step) {
+      double position = (myWorld.getWidth() - 1) * step / (double)steps;
+      myWorld.update(position, position);
+      waitForLoads();
+
+      //Tiles within the radius are never evicted
+      assertNotNull(myWorld.getTileAt(position, position));
+    }
+
+    assertTrue(myWorld.getTilesEvicted() > 0);
+    assertNull(myWorld.getTileAt(SPAN * 0.5, SPAN * 0.5));
+  }
+}
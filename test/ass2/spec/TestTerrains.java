@@ -0,0 +1,100 @@
+package ass2.spec;
+
+import java.util.Random;
+
+/**
+ * Terrains shared by the tests.
+ *
+ * Each terrain is filled with a single setGridAltitudes call, so the mesh, normals, pyramid and
+ * other subsystems are only marked dirty once rather than once per grid point.
+ */
+public class TestTerrains {
+
+  /**
+   * Get the altitude of rolling hills at a point.
+   *
+   * @param x point on x axis
+   * @param z point on z axis
+   * @param amplitude height of the hills
+   * @param frequencyX angular frequency of the hills along x, in radians per grid
+   * @param frequencyZ angular frequency of the hills along z, in radians per grid
+   * @return amplitude * sin(x * frequencyX) * cos(z * frequencyZ)
+   */
+  public static double hill(double x, double z, double amplitude, double frequencyX, double frequencyZ) {
+    return amplitude * Math.sin(x * frequencyX) * Math.cos(z * frequencyZ);
+  }
+
+  /**
+   * Make a terrain of rolling hills.
+   *
+   * @param width number of grid points in the x-direction
+   * @param depth number of grid points in the z-direction
+   * @param amplitude height of the hills
+   * @param frequencyX angular frequency of the hills along x, in radians per grid
+   * @param frequencyZ angular frequency of the hills along z, in radians per grid
+   * @return new terrain
+   */
+  public static Terrain hills(int width, int depth, double amplitude, double frequencyX, double frequencyZ) {
+    return tile(0, 0, width, depth, amplitude, frequencyX, frequencyZ);
+  }
+
+  /**
+   * Make a terrain of bumpy hills, rolling hills with random noise added to every grid point.
+   * Hills of amplitude 0 are just noise.
+   *
+   * @param width number of grid points in the x-direction
+   * @param depth number of grid points in the z-direction
+   * @param amplitude height of the hills
+   * @param frequencyX angular frequency of the hills along x, in radians per grid
+   * @param frequencyZ angular frequency of the hills along z, in radians per grid
+   * @param noise largest altitude added to a grid point, each gets from 0 up to this
+   * @param random source of the noise, read row by row
+   * @return new terrain
+   */
+  public static Terrain bumpyHills(int width, int depth, double amplitude, double frequencyX, double frequencyZ,
+                                   double noise, Random random) {
+    double[] heights = new double[width * depth];
+    for (int z = 0; z < depth; ++z) {
+      for (int x = 0; x < width; ++x) {
+        heights[z * width + x] = hill(x, z, amplitude, frequencyX, frequencyZ) + random.nextDouble() * noise;
+      }
+    }
+
+    return terrain(width, depth, heights);
+  }
+
+  /**
+   * Make one tile of a world of rolling hills, whose altitudes are a function of world coordinates
+   * so neighbouring tiles meet along their shared edges.
+   *
+   * @param x0 world x coordinate of the tile's first grid point
+   * @param z0 world z coordinate of the tile's first grid point
+   * @param width number of grid points in the x-direction
+   * @param depth number of grid points in the z-direction
+   * @param amplitude height of the hills
+   * @param frequencyX angular frequency of the hills along x, in radians per grid
+   * @param frequencyZ angular frequency of the hills along z, in radians per grid
+   * @return new terrain
+   */
+  public static Terrain tile(int x0, int z0, int width, int depth, double amplitude, double frequencyX,
+                             double frequencyZ) {
+    double[] heights = new double[width * depth];
+    for (int z = 0; z < depth; ++z) {
+      for (int x = 0; x < width; ++x) {
+        heights[z * width + x] = hill(x0 + x, z0 + z, amplitude, frequencyX, frequencyZ);
+      }
+    }
+
+    return terrain(width, depth, heights);
+  }
+
+  /**
+   * Helper to make a terrain and set all of its altitudes at once.
+   */
+  private static Terrain terrain(int width, int depth, double[] heights) {
+    Terrain terrain = new Terrain(width, depth);
+    terrain.setGridAltitudes(0, 0, width, depth, heights);
+
+    return terrain;
+  }
+}
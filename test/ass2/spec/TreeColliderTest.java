@@ -0,0 +1,129 @@
+package ass2.spec;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for colliding movers with tree trunks, checked against testing every trunk.
+ */
+public class TreeColliderTest {
+
+  //Constants
+  private static final int SIZE = 257; //width and depth of the terrain
+  private static final double RADIUS = 0.15; //radius of the movers
+  private static final int QUERIES = 2000; //random points tested against the trunks
+
+  /**
+   * Helper to make a flat terrain with a dense forest.
+   */
+  private static Terrain forest() {
+    Terrain terrain = new Terrain(SIZE, SIZE);
+    terrain.getForest().setSeed(1);
+    terrain.getForest().setSpacing(1.0);
+    terrain.getForest().setDensity(0.5);
+    terrain.getForest().scatter();
+
+    return terrain;
+  }
+
+  /**
+   * Helper to check a mover against every trunk, at the float precision the collider keeps.
+   */
+  private static boolean bruteForceCollides(Terrain terrain, double x, double z, double radius) {
+    for (Tree tree : terrain.trees()) {
+      double[] p = tree.getPosition();
+      if (Math.hypot(x - (float)p[0], z - (float)p[2]) < radius + Tree.TRUNK_RADIUS)
+        return true;
+    }
+
+    return false;
+  }
+
+  @Test
+  public void collidesMatchesBruteForce() {
+    Random random = new Random(2);
+    Terrain terrain = forest();
+    TreeCollider collider = terrain.getTreeCollider();
+
+    int hits = 0;
+    for (int q = 0; q < QUERIES; ++q) {
+      double x = random.nextDouble() * (SIZE - 1);
+      double z = random.nextDouble() * (SIZE - 1);
+      boolean expected = bruteForceCollides(terrain, x, z, RADIUS);
+      assertEquals("mover at " + x + ", " + z, expected, collider.collides(x, z, RADIUS));
+      if (expected)
+        ++hits;
+    }
+
+    //Points both inside and outside trunks were tested
+    assertTrue(hits > 0 && hits < QUERIES);
+  }
+
+  @Test
+  public void resolvePushesOutToTheTrunkEdge() {
+    Terrain terrain = new Terrain(10, 10);
+    terrain.addTree(5, 5);
+    TreeCollider collider = terrain.getTreeCollider();
+    double reach = RADIUS + Tree.TRUNK_RADIUS;
+
+    //Pushed straight out along the line from the trunk's centre
+    double[] position = {5 + reach / 2, 5};
+    assertTrue(collider.resolve(position, RADIUS));
+    assertEquals(5 + reach, position[0], 1e-9);
+    assertEquals(5, position[1], 1e-9);
+
+    //Dead centre still gets out, and a mover already clear is left alone
+    position = new double[]{5, 5};
+    assertTrue(collider.resolve(position, RADIUS));
+    assertFalse(collider.collides(position[0], position[1], RADIUS * 0.99));
+    assertFalse(collider.resolve(position, RADIUS * 0.99));
+  }
+
+  @Test
+  public void walkingMoversEndOutsideTrunks() {
+    Random random = new Random(3);
+    Terrain terrain = forest();
+    TreeCollider collider = terrain.getTreeCollider();
+
+    //Movers walk through the forest, resolved against the trunks every frame
+    double[][] positions = new double[200][];
+    for (int m = 0; m < positions.length; ++m) {
+      positions[m] = new double[]{random.nextDouble() * (SIZE - 1), random.nextDouble() * (SIZE - 1)};
+    }
+    int pushes = 0;
+    for (int frame = 0; frame < 500; ++frame) {
+      for (double[] position : positions) {
+        position[0] = MathUtil.clamp(position[0] + 0.02, 0, SIZE - 1);
+        if (collider.resolve(position, RADIUS))
+          ++pushes;
+      }
+    }
+
+    assertTrue(pushes > 0);
+    for (double[] position : positions) {
+      assertFalse("mover at " + position[0] + ", " + position[1],
+        collider.collides(position[0], position[1], RADIUS * 0.99));
+    }
+  }
+
+  @Test
+  public void addingAndRemovingTreesRebuildsTheHash() {
+    Terrain terrain = forest();
+    TreeCollider collider = terrain.getTreeCollider();
+    collider.build();
+
+    //Off the terrain, where no tree was scattered
+    assertFalse(collider.collides(-20, -20, RADIUS));
+    terrain.addTree(-20, -20);
+    assertTrue(collider.collides(-20, -20, RADIUS));
+
+    Tree tree = terrain.trees().get(terrain.trees().size() - 1);
+    assertTrue(terrain.removeTree(tree));
+    assertFalse(collider.collides(-20, -20, RADIUS));
+  }
+}